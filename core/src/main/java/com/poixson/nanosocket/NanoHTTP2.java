@@ -0,0 +1,1484 @@
+package com.poixson.nanosocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpInputBuffer;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMethod;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPcommon.httpVersion;
+import com.poixson.nanosocket.NanoHTTPserver.httpCancelReason;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerWorker;
+
+
+/**
+ * HTTP/2 over cleartext (h2c) for a single connection, taken over from
+ * the worker after a connection preface or an Upgrade: h2c request.
+ * <p>
+ * Frames are read on the worker thread. Each stream is served on its own
+ * thread through the server's request handlers, so a slow handler doesn't
+ * hold up the other streams. Responses are written as HEADERS and DATA
+ * frames within the peer's flow control windows.
+ * </p>
+ */
+public class NanoHTTP2 implements Closeable {
+
+	// rest of the preface after the PRI * HTTP/2.0 request line
+	protected static final byte[] PREFACE_END = { 'S', 'M', '\r', '\n', '\r', '\n' };
+	protected static final byte[] PREFACE = {
+		'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+		'\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+	};
+
+	// frame types
+	public static final int FRAME_DATA          = 0x0;
+	public static final int FRAME_HEADERS       = 0x1;
+	public static final int FRAME_PRIORITY      = 0x2;
+	public static final int FRAME_RST_STREAM    = 0x3;
+	public static final int FRAME_SETTINGS      = 0x4;
+	public static final int FRAME_PUSH_PROMISE  = 0x5;
+	public static final int FRAME_PING          = 0x6;
+	public static final int FRAME_GOAWAY        = 0x7;
+	public static final int FRAME_WINDOW_UPDATE = 0x8;
+	public static final int FRAME_CONTINUATION  = 0x9;
+
+	// frame flags
+	public static final int FLAG_END_STREAM  = 0x1;
+	public static final int FLAG_ACK         = 0x1;
+	public static final int FLAG_END_HEADERS = 0x4;
+	public static final int FLAG_PADDED      = 0x8;
+	public static final int FLAG_PRIORITY    = 0x20;
+
+	// settings
+	public static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+	public static final int SETTINGS_ENABLE_PUSH            = 0x2;
+	public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	public static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+	public static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+	public static final int SETTINGS_MAX_HEADER_LIST_SIZE   = 0x6;
+
+	// error codes
+	public static final int NO_ERROR            = 0x0;
+	public static final int PROTOCOL_ERROR      = 0x1;
+	public static final int INTERNAL_ERROR      = 0x2;
+	public static final int FLOW_CONTROL_ERROR  = 0x3;
+	public static final int STREAM_CLOSED       = 0x5;
+	public static final int FRAME_SIZE_ERROR    = 0x6;
+	public static final int REFUSED_STREAM      = 0x7;
+	public static final int CANCEL              = 0x8;
+	public static final int COMPRESSION_ERROR   = 0x9;
+	public static final int ENHANCE_YOUR_CALM   = 0xb;
+
+	public static final int DEFAULT_WINDOW_SIZE = 65535;
+	public static final int DEFAULT_FRAME_SIZE  = 16384;
+	public static final int MAX_WINDOW_SIZE     = 0x7fffffff;
+	public static final int MAX_STREAMS         = 100;
+	// largest header block to collect from HEADERS and CONTINUATION frames
+	public static final int MAX_HEADER_BLOCK    = 64 * 1024; // 64K
+
+	private final NanoHTTPserver server;
+	private final httpServerWorker worker;
+	private final httpInputBuffer in;
+	private final OutputStream out;
+	// request which asked to upgrade, served as stream 1
+	private final httpServerRequest upgrade;
+
+	private final http2Hpack decoder = new http2Hpack();
+	private final ThreadPoolExecutor pool;
+
+	// open streams, also guards the send windows
+	private final Map<Integer, http2Stream> streams = new HashMap<Integer, http2Stream>();
+	private long sendWindow = DEFAULT_WINDOW_SIZE;
+	private int peerWindowSize = DEFAULT_WINDOW_SIZE;
+	private volatile int peerFrameSize = DEFAULT_FRAME_SIZE;
+	private volatile int lastStreamId = 0;
+	private volatile boolean goingAway = false;
+	private volatile boolean goAwaySent = false;
+	private volatile boolean closed = false;
+
+	// header block being collected
+	private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+	private int headerStreamId = 0;
+	private boolean headerEndStream = false;
+
+	// stats
+	private volatile int countStreams = 0;
+
+
+	/**
+	 * @return true if the request starts an HTTP/2 connection.
+	 */
+	public static boolean isHTTP2(final httpServerRequest request) {
+		return request.isHTTP2Preface() || isUpgrade(request);
+	}
+	/**
+	 * Upgrade: h2c is only accepted for HTTP/1.1 requests without a body.
+	 */
+	public static boolean isUpgrade(final httpServerRequest request) {
+		if(!httpVersion.HTTP_1_1.equals(request.getVersion()))
+			return false;
+		if(request.getHeader("HTTP2-Settings") == null)
+			return false;
+		final String connection = request.getHeader("Connection");
+		if(connection == null || !connection.toLowerCase(Locale.US).contains("upgrade"))
+			return false;
+		if(request.getHeader("Transfer-Encoding") != null)
+			return false;
+		final String length = request.getHeader("Content-Length");
+		if(length != null && !"0".equals(length.trim()))
+			return false;
+		final String upgrade = request.getHeader("Upgrade");
+		if(upgrade == null) return false;
+		for(final String token : upgrade.split(",")) {
+			if("h2c".equalsIgnoreCase(token.trim()))
+				return true;
+		}
+		return false;
+	}
+
+
+	public NanoHTTP2(final NanoHTTPserver server, final httpServerWorker worker,
+			final httpInputBuffer in, final OutputStream out, final httpServerRequest request) {
+		if(server == null) throw new NullPointerException();
+		if(in     == null) throw new NullPointerException();
+		if(out    == null) throw new NullPointerException();
+		this.server = server;
+		this.worker = worker;
+		this.in  = in;
+		this.out = out;
+		this.upgrade = (request != null && !request.isHTTP2Preface() ? request : null);
+		final String name = (worker == null ? "h2" : worker.getName()+"-h2");
+		this.pool = new ThreadPoolExecutor(
+			0, MAX_STREAMS,
+			30L, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new ThreadFactory() {
+				private int count = 0;
+				@Override
+				public Thread newThread(final Runnable run) {
+					final Thread thread = new Thread(run, name+"["+Integer.toString(++count)+"]");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}
+		);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// read frames
+
+
+	/**
+	 * Runs the connection until the peer goes away or it fails.
+	 */
+	public void run() {
+		boolean graceful = false;
+		try {
+			if(upgrade == null) {
+				readPreface(PREFACE_END);
+				writeSettings();
+			} else {
+				// switch protocols, the upgraded request becomes stream 1
+				out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(NanoHTTPserver.UTF8));
+				writeSettings();
+				applySettings(decodeBase64(upgrade.getHeader("HTTP2-Settings")));
+				final http2Stream stream = new http2Stream(1);
+				stream.remoteClosed = true;
+				stream.request = upgrade;
+				synchronized(streams) {
+					streams.put(Integer.valueOf(1), stream);
+				}
+				lastStreamId = 1;
+				dispatch(stream, upgrade);
+				readPreface(PREFACE);
+			}
+			graceful = readFrames();
+		} catch (http2Exception e) {
+			goAway(e.getErrorCode());
+		} catch (EOFException ignore) {
+		} catch (SocketTimeoutException ignore) {
+		} catch (IOException e) {
+			if(!closed)
+				e.printStackTrace();
+		} finally {
+			if(graceful)
+				awaitStreams(NanoHTTPserver.SOCKET_TIMEOUT);
+			close();
+		}
+	}
+	private void readPreface(final byte[] expected) throws IOException {
+		final byte[] buff = new byte[expected.length];
+		readFully(buff, 0, buff.length);
+		for(int i=0; i<expected.length; i++) {
+			if(buff[i] != expected[i])
+				throw new http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+		}
+	}
+	/**
+	 * Reads frames until the peer sends GOAWAY or the connection is idle.
+	 * @return true if open streams should be finished before closing.
+	 */
+	private boolean readFrames() throws IOException {
+		final byte[] head = new byte[9];
+		while(!goingAway) {
+			// only an idle connection times out between frames
+			final int first;
+			try {
+				first = in.read();
+			} catch (SocketTimeoutException e) {
+				if(getOpenStreams() > 0)
+					continue;
+				goAway(NO_ERROR);
+				return false;
+			}
+			if(first < 0) throw new EOFException();
+			head[0] = (byte) first;
+			readFully(head, 1, 8);
+			final int length   = ((head[0] & 0xff) << 16) | ((head[1] & 0xff) << 8) | (head[2] & 0xff);
+			final int type     = head[3] & 0xff;
+			final int flags    = head[4] & 0xff;
+			final int streamId = readInt(head, 5) & 0x7fffffff;
+			if(length > DEFAULT_FRAME_SIZE)
+				throw new http2Exception(FRAME_SIZE_ERROR, "Frame too large: "+Integer.toString(length));
+			final byte[] payload = new byte[length];
+			readFully(payload, 0, length);
+			// header blocks can't be interrupted
+			if(headerStreamId != 0 && type != FRAME_CONTINUATION)
+				throw new http2Exception(PROTOCOL_ERROR, "Expected CONTINUATION frame");
+			try {
+				switch(type) {
+				case FRAME_DATA:
+					onData(flags, streamId, payload);
+					break;
+				case FRAME_HEADERS:
+					onHeaders(flags, streamId, payload);
+					break;
+				case FRAME_CONTINUATION:
+					onContinuation(flags, streamId, payload);
+					break;
+				case FRAME_PRIORITY:
+					if(length != 5) throw new http2Exception(streamId, FRAME_SIZE_ERROR, "Invalid PRIORITY frame");
+					break;
+				case FRAME_RST_STREAM:
+					onReset(streamId, payload);
+					break;
+				case FRAME_SETTINGS:
+					onSettings(flags, streamId, payload);
+					break;
+				case FRAME_PING:
+					if(length != 8) throw new http2Exception(FRAME_SIZE_ERROR, "Invalid PING frame");
+					if(streamId != 0) throw new http2Exception(PROTOCOL_ERROR, "PING on a stream");
+					if((flags & FLAG_ACK) == 0)
+						writeFrame(FRAME_PING, FLAG_ACK, 0, payload, 0, payload.length);
+					break;
+				case FRAME_GOAWAY:
+					goingAway = true;
+					break;
+				case FRAME_WINDOW_UPDATE:
+					onWindowUpdate(streamId, payload);
+					break;
+				case FRAME_PUSH_PROMISE:
+					throw new http2Exception(PROTOCOL_ERROR, "Clients can't push");
+				default:
+					// unknown frame types are ignored
+					break;
+				}
+			} catch (http2Exception e) {
+				if(e.getStreamId() == 0) throw e;
+				resetStream(e.getStreamId(), e.getErrorCode());
+			}
+		}
+		return true;
+	}
+
+
+	private void onData(final int flags, final int streamId, final byte[] payload) throws IOException {
+		if(streamId == 0) throw new http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+		// the whole frame counts against the connection window, give it back now
+		if(payload.length > 0)
+			writeWindowUpdate(0, payload.length);
+		int off = 0;
+		int len = payload.length;
+		if((flags & FLAG_PADDED) != 0) {
+			if(len < 1) throw new http2Exception(PROTOCOL_ERROR, "Invalid padding");
+			final int pad = payload[0] & 0xff;
+			off = 1;
+			len -= pad + 1;
+			if(len < 0) throw new http2Exception(PROTOCOL_ERROR, "Invalid padding");
+		}
+		final http2Stream stream = getStream(streamId);
+		if(stream == null) {
+			if(streamId > lastStreamId)
+				throw new http2Exception(PROTOCOL_ERROR, "DATA on an idle stream");
+			throw new http2Exception(streamId, STREAM_CLOSED, "DATA on a closed stream");
+		}
+		if(stream.remoteClosed)
+			throw new http2Exception(streamId, STREAM_CLOSED, "DATA after end of stream");
+		stream.receive(payload, off, len, payload.length);
+		if((flags & FLAG_END_STREAM) != 0)
+			stream.receiveEnd();
+	}
+
+
+	private void onHeaders(final int flags, final int streamId, final byte[] payload) throws IOException {
+		if(streamId == 0) throw new http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+		int off = 0;
+		int len = payload.length;
+		if((flags & FLAG_PADDED) != 0) {
+			if(len < 1) throw new http2Exception(PROTOCOL_ERROR, "Invalid padding");
+			final int pad = payload[0] & 0xff;
+			off = 1;
+			len -= pad + 1;
+		}
+		if((flags & FLAG_PRIORITY) != 0) {
+			off += 5;
+			len -= 5;
+		}
+		if(len < 0) throw new http2Exception(PROTOCOL_ERROR, "Invalid HEADERS frame");
+		headerBlock.reset();
+		headerBlock.write(payload, off, len);
+		headerStreamId = streamId;
+		headerEndStream = ((flags & FLAG_END_STREAM) != 0);
+		if((flags & FLAG_END_HEADERS) != 0)
+			onHeaderBlock();
+	}
+	private void onContinuation(final int flags, final int streamId, final byte[] payload) throws IOException {
+		if(headerStreamId == 0 || streamId != headerStreamId)
+			throw new http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+		if(headerBlock.size() + payload.length > MAX_HEADER_BLOCK)
+			throw new http2Exception(ENHANCE_YOUR_CALM, "Header block too large");
+		headerBlock.write(payload, 0, payload.length);
+		if((flags & FLAG_END_HEADERS) != 0)
+			onHeaderBlock();
+	}
+	/**
+	 * Decodes a complete header block and starts serving the stream.
+	 */
+	private void onHeaderBlock() throws IOException {
+		final int streamId = headerStreamId;
+		headerStreamId = 0;
+		// always decoded, to keep the compression state in step
+		final byte[] block = headerBlock.toByteArray();
+		final List<String[]> fields = decoder.decode(block, block.length);
+		// trailers
+		final http2Stream existing = getStream(streamId);
+		if(existing != null) {
+			if(!headerEndStream)
+				throw new http2Exception(streamId, PROTOCOL_ERROR, "Trailers without end of stream");
+			existing.receiveEnd();
+			return;
+		}
+		if((streamId & 1) == 0 || streamId <= lastStreamId)
+			throw new http2Exception(PROTOCOL_ERROR, "Invalid stream id: "+Integer.toString(streamId));
+		lastStreamId = streamId;
+		if(goingAway) return;
+		// request pseudo headers
+		String method = null;
+		String path = null;
+		String authority = null;
+		final Map<String, String> headers = new HashMap<String, String>();
+		for(final String[] field : fields) {
+			final String name = field[0];
+			if(name.startsWith(":")) {
+				if(":method".equals(name))    method = field[1]; else
+				if(":path".equals(name))      path = field[1]; else
+				if(":authority".equals(name)) authority = field[1];
+				continue;
+			}
+			final String existingValue = headers.get(name);
+			if(existingValue == null)
+				headers.put(name, field[1]);
+			else
+				headers.put(name, existingValue+("cookie".equals(name) ? "; " : ", ")+field[1]);
+		}
+		if(method == null || path == null || path.isEmpty())
+			throw new http2Exception(streamId, PROTOCOL_ERROR, "Missing :method or :path");
+		if(authority != null && !headers.containsKey("host"))
+			headers.put("host", authority);
+		if(getOpenStreams() >= MAX_STREAMS)
+			throw new http2Exception(streamId, REFUSED_STREAM, "Too many streams");
+		final http2Stream stream = new http2Stream(streamId);
+		stream.remoteClosed = headerEndStream;
+		final httpServerRequest request = new httpServerRequest(
+			method, path, headers,
+			(headerEndStream ? null : stream.input)
+		);
+		stream.request = request;
+		synchronized(streams) {
+			streams.put(Integer.valueOf(streamId), stream);
+		}
+		dispatch(stream, request);
+	}
+
+
+	private void onReset(final int streamId, final byte[] payload) throws http2Exception {
+		if(payload.length != 4) throw new http2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+		if(streamId == 0) throw new http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+		final http2Stream stream = getStream(streamId);
+		if(stream != null)
+			stream.reset();
+	}
+
+
+	private void onSettings(final int flags, final int streamId, final byte[] payload) throws IOException {
+		if(streamId != 0) throw new http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+		if((flags & FLAG_ACK) != 0) {
+			if(payload.length != 0) throw new http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS ack");
+			return;
+		}
+		applySettings(payload);
+		writeFrame(FRAME_SETTINGS, FLAG_ACK, 0, null, 0, 0);
+	}
+	private void applySettings(final byte[] payload) throws http2Exception {
+		if(payload.length % 6 != 0) throw new http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+		for(int i=0; i<payload.length; i+=6) {
+			final int id = ((payload[i] & 0xff) << 8) | (payload[i+1] & 0xff);
+			final int value = readInt(payload, i+2);
+			switch(id) {
+			case SETTINGS_ENABLE_PUSH:
+				if(value != 0 && value != 1)
+					throw new http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if(value < 0)
+					throw new http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+				// applies to the windows of all open streams
+				synchronized(streams) {
+					final int delta = value - peerWindowSize;
+					peerWindowSize = value;
+					for(final http2Stream stream : streams.values())
+						stream.sendWindow += delta;
+					streams.notifyAll();
+				}
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if(value < DEFAULT_FRAME_SIZE || value > 0xffffff)
+					throw new http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+				peerFrameSize = value;
+				break;
+			default:
+				// responses aren't compressed with the dynamic table,
+				// so the peer's table size doesn't matter
+				break;
+			}
+		}
+	}
+
+
+	private void onWindowUpdate(final int streamId, final byte[] payload) throws http2Exception {
+		if(payload.length != 4) throw new http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+		final int increment = readInt(payload, 0) & 0x7fffffff;
+		if(increment == 0)
+			throw new http2Exception(streamId, PROTOCOL_ERROR, "Window increment of 0");
+		synchronized(streams) {
+			if(streamId == 0) {
+				sendWindow += increment;
+				if(sendWindow > MAX_WINDOW_SIZE)
+					throw new http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+			} else {
+				final http2Stream stream = streams.get(Integer.valueOf(streamId));
+				if(stream == null) return;
+				stream.sendWindow += increment;
+				if(stream.sendWindow > MAX_WINDOW_SIZE)
+					throw new http2Exception(streamId, FLOW_CONTROL_ERROR, "Stream window overflow");
+			}
+			streams.notifyAll();
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// streams
+
+
+	/**
+	 * Serves a stream on a pooled thread.
+	 */
+	protected void dispatch(final http2Stream stream, final httpServerRequest request) {
+		countStreams++;
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					serve(stream, request);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			closeStream(stream);
+			resetStream(stream.id, REFUSED_STREAM);
+		}
+	}
+	protected void serve(final http2Stream stream, final httpServerRequest request) {
+		try {
+			httpServerResponse result = null;
+			try {
+				result = server.serve(request);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if(result == null) {
+				result = new httpServerResponse(
+					request,
+					httpStatus.INTERNAL_ERROR,
+					NanoHTTPserver.DEFAULT_MIME,
+					""
+				);
+			}
+			if(worker != null)
+				worker.incrementRequests();
+			sendResponse(stream, result);
+			// request body the handler didn't read
+			if(!stream.remoteClosed)
+				resetStream(stream.id, NO_ERROR);
+		} catch (IOException e) {
+			if(!stream.reset && !closed)
+				resetStream(stream.id, INTERNAL_ERROR);
+		} finally {
+			closeStream(stream);
+		}
+	}
+
+
+	/**
+	 * Writes the response as a HEADERS frame followed by DATA frames.
+	 */
+	protected void sendResponse(final http2Stream stream, final httpServerResponse result) throws IOException {
+		final httpStatus status = result.getStatus();
+		final httpBody body = result.getBody();
+		try {
+			final boolean allowsBody = status.allowsBody();
+			final long length = (allowsBody && body != null ? body.length() : 0L);
+			final boolean hasBody = (allowsBody && body != null && length != 0L
+					&& !httpMethod.HEAD.equals(result.getMethod()));
+			final Map<String, String> headers = result.getHeaders();
+			final List<String[]> fields = new ArrayList<String[]>();
+			fields.add(new String[] { ":status", Integer.toString(status.getValue()) });
+			if(!headers.containsKey("Date"))
+				fields.add(new String[] { "date", NanoHTTPcommon.formatDate(System.currentTimeMillis()) });
+			fields.add(new String[] { "server", "NanoHTTPlib/"+NanoHTTPcommon.version });
+			if(allowsBody) {
+				if(length >= 0L)
+					fields.add(new String[] { "content-length", Long.toString(length) });
+				if(!headers.containsKey("Content-Type")) {
+					final httpMime mime = result.getMime();
+					fields.add(new String[] { "content-type", (mime == null ? NanoHTTPserver.DEFAULT_MIME : mime).toString() });
+				}
+			}
+			for(final Entry<String, String> entry : headers.entrySet()) {
+				final String name = entry.getKey().toLowerCase(Locale.US);
+				// connection specific headers aren't allowed
+				if("connection".equals(name) || "keep-alive".equals(name) || "transfer-encoding".equals(name)
+						|| "upgrade".equals(name) || "proxy-connection".equals(name))
+					continue;
+				fields.add(new String[] { name, (entry.getValue() == null ? "" : entry.getValue()) });
+			}
+			writeHeaders(stream, http2Hpack.encode(fields), !hasBody);
+			if(!hasBody) return;
+			final http2DataOutputStream data = new http2DataOutputStream(stream);
+			body.writeTo(data);
+			data.finish();
+		} finally {
+			NanoHTTPserver.safeClose(body);
+		}
+	}
+
+
+	protected http2Stream getStream(final int streamId) {
+		synchronized(streams) {
+			return streams.get(Integer.valueOf(streamId));
+		}
+	}
+	protected void closeStream(final http2Stream stream) {
+		synchronized(streams) {
+			streams.remove(Integer.valueOf(stream.id));
+			streams.notifyAll();
+		}
+	}
+	public int getOpenStreams() {
+		synchronized(streams) {
+			return streams.size();
+		}
+	}
+	public int totalStreams() {
+		return countStreams;
+	}
+	/**
+	 * Waits for open streams to finish before closing.
+	 */
+	private void awaitStreams(final long timeout) {
+		final long until = System.currentTimeMillis() + timeout;
+		synchronized(streams) {
+			while(!streams.isEmpty()) {
+				final long remaining = until - System.currentTimeMillis();
+				if(remaining <= 0L) break;
+				try {
+					streams.wait(remaining);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// write frames
+
+
+	private void writeFrameHeader(final int length, final int type,
+			final int flags, final int streamId) throws IOException {
+		final byte[] head = new byte[9];
+		head[0] = (byte) (length >>> 16);
+		head[1] = (byte) (length >>> 8);
+		head[2] = (byte) length;
+		head[3] = (byte) type;
+		head[4] = (byte) flags;
+		writeInt(head, 5, streamId);
+		out.write(head);
+	}
+	protected void writeFrame(final int type, final int flags, final int streamId,
+			final byte[] payload, final int off, final int len) throws IOException {
+		synchronized(out) {
+			writeFrameHeader(len, type, flags, streamId);
+			if(len > 0)
+				out.write(payload, off, len);
+			out.flush();
+		}
+	}
+	private void writeSettings() throws IOException {
+		final byte[] payload = new byte[12];
+		payload[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+		writeInt(payload, 2, MAX_STREAMS);
+		payload[7] = SETTINGS_MAX_HEADER_LIST_SIZE;
+		writeInt(payload, 8, MAX_HEADER_BLOCK);
+		writeFrame(FRAME_SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+	protected void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+		final byte[] payload = new byte[4];
+		writeInt(payload, 0, increment);
+		writeFrame(FRAME_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+	}
+	/**
+	 * Writes a header block, split into CONTINUATION frames if needed.
+	 */
+	protected void writeHeaders(final http2Stream stream, final byte[] block,
+			final boolean endStream) throws IOException {
+		final int max = peerFrameSize;
+		synchronized(out) {
+			if(stream.reset) throw new IOException("Stream reset");
+			int off = 0;
+			do {
+				final int len = Math.min(max, block.length - off);
+				int flags = 0;
+				if(off == 0 && endStream)
+					flags |= FLAG_END_STREAM;
+				if(off + len >= block.length)
+					flags |= FLAG_END_HEADERS;
+				writeFrameHeader(len, (off == 0 ? FRAME_HEADERS : FRAME_CONTINUATION), flags, stream.id);
+				out.write(block, off, len);
+				off += len;
+			} while(off < block.length);
+			out.flush();
+		}
+	}
+	/**
+	 * Writes DATA frames, waiting for the stream and connection
+	 * windows to allow each one.
+	 */
+	protected void writeData(final http2Stream stream, final byte[] data,
+			int off, int len, final boolean endStream) throws IOException {
+		while(true) {
+			final int size;
+			synchronized(streams) {
+				final long until = System.currentTimeMillis() + NanoHTTPserver.SOCKET_TIMEOUT;
+				while(true) {
+					if(closed)       throw new IOException("Connection closed");
+					if(stream.reset) throw new IOException("Stream reset");
+					if(len == 0) {
+						size = 0;
+						break;
+					}
+					final long window = Math.min(sendWindow, stream.sendWindow);
+					if(window > 0L) {
+						size = (int) Math.min(Math.min(window, len), peerFrameSize);
+						sendWindow -= size;
+						stream.sendWindow -= size;
+						break;
+					}
+					final long remaining = until - System.currentTimeMillis();
+					if(remaining <= 0L)
+						throw new SocketTimeoutException("Timeout waiting for flow control window");
+					try {
+						streams.wait(remaining);
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted waiting for flow control window");
+					}
+				}
+			}
+			final boolean last = (size == len);
+			if(size > 0 || (last && endStream)) {
+				writeFrame(FRAME_DATA, (last && endStream ? FLAG_END_STREAM : 0),
+					stream.id, data, off, size);
+			}
+			off += size;
+			len -= size;
+			if(last) return;
+		}
+	}
+	protected void resetStream(final int streamId, final int errorCode) {
+		final http2Stream stream = getStream(streamId);
+		if(stream != null)
+			stream.reset();
+		final byte[] payload = new byte[4];
+		writeInt(payload, 0, errorCode);
+		try {
+			writeFrame(FRAME_RST_STREAM, 0, streamId, payload, 0, 4);
+		} catch (IOException ignore) {}
+	}
+	protected void goAway(final int errorCode) {
+		if(goAwaySent) return;
+		goAwaySent = true;
+		final byte[] payload = new byte[8];
+		writeInt(payload, 0, lastStreamId);
+		writeInt(payload, 4, errorCode);
+		try {
+			writeFrame(FRAME_GOAWAY, 0, 0, payload, 0, 8);
+		} catch (IOException ignore) {}
+	}
+
+
+	@Override
+	public void close() {
+		if(closed) return;
+		goAway(NO_ERROR);
+		synchronized(streams) {
+			closed = true;
+			for(final http2Stream stream : streams.values())
+				stream.reset();
+			streams.notifyAll();
+		}
+		pool.shutdown();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// utils
+
+
+	private void readFully(final byte[] buff, int off, int len) throws IOException {
+		while(len > 0) {
+			final int read = in.read(buff, off, len);
+			if(read < 0) throw new EOFException();
+			off += read;
+			len -= read;
+		}
+	}
+	private static int readInt(final byte[] buff, final int off) {
+		return ((buff[off]   & 0xff) << 24)
+			| ((buff[off+1] & 0xff) << 16)
+			| ((buff[off+2] & 0xff) << 8)
+			|  (buff[off+3] & 0xff);
+	}
+	private static void writeInt(final byte[] buff, final int off, final int value) {
+		buff[off]   = (byte) (value >>> 24);
+		buff[off+1] = (byte) (value >>> 16);
+		buff[off+2] = (byte) (value >>> 8);
+		buff[off+3] = (byte) value;
+	}
+	/**
+	 * Decodes the base64url HTTP2-Settings header.
+	 */
+	protected static byte[] decodeBase64(final String str) throws http2Exception {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		int bits = 0;
+		int count = 0;
+		for(int i=0; i<str.length(); i++) {
+			final char chr = str.charAt(i);
+			final int value;
+			if(chr >= 'A' && chr <= 'Z') value = chr - 'A';      else
+			if(chr >= 'a' && chr <= 'z') value = chr - 'a' + 26; else
+			if(chr >= '0' && chr <= '9') value = chr - '0' + 52; else
+			if(chr == '-' || chr == '+') value = 62;             else
+			if(chr == '_' || chr == '/') value = 63;             else
+			if(chr == '=' || chr == ' ') continue;
+			else throw new http2Exception(PROTOCOL_ERROR, "Invalid HTTP2-Settings header");
+			bits = (bits << 6) | value;
+			count += 6;
+			if(count >= 8) {
+				count -= 8;
+				result.write((bits >>> count) & 0xff);
+			}
+		}
+		return result.toByteArray();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * State of a single stream.
+	 */
+	protected class http2Stream {
+
+		public final int id;
+		public final http2DataInputStream input;
+
+		// guarded by the stream map
+		protected long sendWindow;
+		protected volatile boolean reset = false;
+		protected volatile boolean remoteClosed = false;
+		// cancelled if the stream is reset
+		protected volatile httpServerRequest request = null;
+
+		// received request body, guarded by this
+		private final LinkedList<byte[]> received = new LinkedList<byte[]>();
+		private int receivedOffset = 0;
+		private int receiveWindow = DEFAULT_WINDOW_SIZE;
+		private int consumed = 0;
+
+
+		public http2Stream(final int id) {
+			this.id = id;
+			synchronized(streams) {
+				this.sendWindow = peerWindowSize;
+			}
+			this.input = new http2DataInputStream(this);
+		}
+
+
+		protected synchronized void receive(final byte[] data, final int off,
+				final int len, final int frameLength) throws http2Exception {
+			if(frameLength > receiveWindow)
+				throw new http2Exception(id, FLOW_CONTROL_ERROR, "Stream window exceeded");
+			receiveWindow -= frameLength;
+			// padding counts against the window, but isn't read
+			consumed += frameLength - len;
+			if(len > 0) {
+				final byte[] copy = new byte[len];
+				System.arraycopy(data, off, copy, 0, len);
+				received.add(copy);
+			}
+			this.notifyAll();
+		}
+		protected synchronized void receiveEnd() {
+			remoteClosed = true;
+			this.notifyAll();
+		}
+		protected void reset() {
+			reset = true;
+			remoteClosed = true;
+			final httpServerRequest tmp = request;
+			if(tmp != null)
+				tmp.cancel(httpCancelReason.DISCONNECTED);
+			synchronized(this) {
+				this.notifyAll();
+			}
+			synchronized(streams) {
+				streams.notifyAll();
+			}
+		}
+
+
+		/**
+		 * Reads received body data, opening the window again once half
+		 * of it has been read.
+		 */
+		protected int read(final byte[] b, final int off, final int len) throws IOException {
+			if(len == 0) return 0;
+			final int read;
+			int update = 0;
+			synchronized(this) {
+				final long until = System.currentTimeMillis() + NanoHTTPserver.SOCKET_TIMEOUT;
+				while(received.isEmpty()) {
+					if(reset) throw new IOException("Stream reset");
+					if(remoteClosed) return -1;
+					final long remaining = until - System.currentTimeMillis();
+					if(remaining <= 0L)
+						throw new SocketTimeoutException("Timeout waiting for request body");
+					try {
+						this.wait(remaining);
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted waiting for request body");
+					}
+				}
+				final byte[] chunk = received.getFirst();
+				read = Math.min(len, chunk.length - receivedOffset);
+				System.arraycopy(chunk, receivedOffset, b, off, read);
+				receivedOffset += read;
+				if(receivedOffset >= chunk.length) {
+					received.removeFirst();
+					receivedOffset = 0;
+				}
+				consumed += read;
+				if(consumed >= DEFAULT_WINDOW_SIZE / 2 && !remoteClosed) {
+					update = consumed;
+					receiveWindow += consumed;
+					consumed = 0;
+				}
+			}
+			if(update > 0)
+				writeWindowUpdate(id, update);
+			return read;
+		}
+
+
+	}
+
+
+	/**
+	 * Request body of a stream.
+	 */
+	protected static class http2DataInputStream extends InputStream {
+
+		private final http2Stream stream;
+
+
+		public http2DataInputStream(final http2Stream stream) {
+			this.stream = stream;
+		}
+
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			final int read = stream.read(b, 0, 1);
+			return (read < 0 ? -1 : (b[0] & 0xff));
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			return stream.read(b, off, len);
+		}
+
+
+	}
+
+
+	/**
+	 * Response body of a stream, buffered into DATA frames.
+	 */
+	protected class http2DataOutputStream extends OutputStream {
+
+		private final http2Stream stream;
+		private final byte[] buffer = new byte[DEFAULT_FRAME_SIZE];
+		private int count = 0;
+
+
+		public http2DataOutputStream(final http2Stream stream) {
+			this.stream = stream;
+		}
+
+
+		@Override
+		public void write(final int b) throws IOException {
+			if(count >= buffer.length)
+				flush();
+			buffer[count++] = (byte) b;
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			// large writes skip the buffer
+			if(len >= buffer.length) {
+				flush();
+				writeData(stream, b, off, len, false);
+				return;
+			}
+			if(len > buffer.length - count)
+				flush();
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+		@Override
+		public void flush() throws IOException {
+			if(count > 0) {
+				writeData(stream, buffer, 0, count, false);
+				count = 0;
+			}
+		}
+		/**
+		 * Writes what's left, ending the stream.
+		 */
+		public void finish() throws IOException {
+			writeData(stream, buffer, 0, count, true);
+			count = 0;
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * HPACK header compression. Decoding supports the full format,
+	 * including the dynamic table and Huffman coded strings. Encoded
+	 * blocks only refer to the static table, so no state is kept for them.
+	 */
+	protected static class http2Hpack {
+
+		public static final int DEFAULT_TABLE_SIZE = 4096;
+
+		private static final String[][] STATIC_TABLE = {
+			{ ":authority",                  ""              },
+			{ ":method",                     "GET"           },
+			{ ":method",                     "POST"          },
+			{ ":path",                       "/"             },
+			{ ":path",                       "/index.html"   },
+			{ ":scheme",                     "http"          },
+			{ ":scheme",                     "https"         },
+			{ ":status",                     "200"           },
+			{ ":status",                     "204"           },
+			{ ":status",                     "206"           },
+			{ ":status",                     "304"           },
+			{ ":status",                     "400"           },
+			{ ":status",                     "404"           },
+			{ ":status",                     "500"           },
+			{ "accept-charset",              ""              },
+			{ "accept-encoding",             "gzip, deflate" },
+			{ "accept-language",             ""              },
+			{ "accept-ranges",               ""              },
+			{ "accept",                      ""              },
+			{ "access-control-allow-origin", ""              },
+			{ "age",                         ""              },
+			{ "allow",                       ""              },
+			{ "authorization",               ""              },
+			{ "cache-control",               ""              },
+			{ "content-disposition",         ""              },
+			{ "content-encoding",            ""              },
+			{ "content-language",            ""              },
+			{ "content-length",              ""              },
+			{ "content-location",            ""              },
+			{ "content-range",               ""              },
+			{ "content-type",                ""              },
+			{ "cookie",                      ""              },
+			{ "date",                        ""              },
+			{ "etag",                        ""              },
+			{ "expect",                      ""              },
+			{ "expires",                     ""              },
+			{ "from",                        ""              },
+			{ "host",                        ""              },
+			{ "if-match",                    ""              },
+			{ "if-modified-since",           ""              },
+			{ "if-none-match",               ""              },
+			{ "if-range",                    ""              },
+			{ "if-unmodified-since",         ""              },
+			{ "last-modified",               ""              },
+			{ "link",                        ""              },
+			{ "location",                    ""              },
+			{ "max-forwards",                ""              },
+			{ "proxy-authenticate",          ""              },
+			{ "proxy-authorization",         ""              },
+			{ "range",                       ""              },
+			{ "referer",                     ""              },
+			{ "refresh",                     ""              },
+			{ "retry-after",                 ""              },
+			{ "server",                      ""              },
+			{ "set-cookie",                  ""              },
+			{ "strict-transport-security",   ""              },
+			{ "transfer-encoding",           ""              },
+			{ "user-agent",                  ""              },
+			{ "vary",                        ""              },
+			{ "via",                         ""              },
+			{ "www-authenticate",            ""              }
+		};
+
+		// canonical Huffman code from RFC 7541, the last entry is EOS
+		private static final int[] HUFFMAN_CODES = {
+			0x00001ff8, 0x007fffd8, 0x0fffffe2, 0x0fffffe3, 0x0fffffe4, 0x0fffffe5, 0x0fffffe6, 0x0fffffe7,
+			0x0fffffe8, 0x00ffffea, 0x3ffffffc, 0x0fffffe9, 0x0fffffea, 0x3ffffffd, 0x0fffffeb, 0x0fffffec,
+			0x0fffffed, 0x0fffffee, 0x0fffffef, 0x0ffffff0, 0x0ffffff1, 0x0ffffff2, 0x3ffffffe, 0x0ffffff3,
+			0x0ffffff4, 0x0ffffff5, 0x0ffffff6, 0x0ffffff7, 0x0ffffff8, 0x0ffffff9, 0x0ffffffa, 0x0ffffffb,
+			0x00000014, 0x000003f8, 0x000003f9, 0x00000ffa, 0x00001ff9, 0x00000015, 0x000000f8, 0x000007fa,
+			0x000003fa, 0x000003fb, 0x000000f9, 0x000007fb, 0x000000fa, 0x00000016, 0x00000017, 0x00000018,
+			0x00000000, 0x00000001, 0x00000002, 0x00000019, 0x0000001a, 0x0000001b, 0x0000001c, 0x0000001d,
+			0x0000001e, 0x0000001f, 0x0000005c, 0x000000fb, 0x00007ffc, 0x00000020, 0x00000ffb, 0x000003fc,
+			0x00001ffa, 0x00000021, 0x0000005d, 0x0000005e, 0x0000005f, 0x00000060, 0x00000061, 0x00000062,
+			0x00000063, 0x00000064, 0x00000065, 0x00000066, 0x00000067, 0x00000068, 0x00000069, 0x0000006a,
+			0x0000006b, 0x0000006c, 0x0000006d, 0x0000006e, 0x0000006f, 0x00000070, 0x00000071, 0x00000072,
+			0x000000fc, 0x00000073, 0x000000fd, 0x00001ffb, 0x0007fff0, 0x00001ffc, 0x00003ffc, 0x00000022,
+			0x00007ffd, 0x00000003, 0x00000023, 0x00000004, 0x00000024, 0x00000005, 0x00000025, 0x00000026,
+			0x00000027, 0x00000006, 0x00000074, 0x00000075, 0x00000028, 0x00000029, 0x0000002a, 0x00000007,
+			0x0000002b, 0x00000076, 0x0000002c, 0x00000008, 0x00000009, 0x0000002d, 0x00000077, 0x00000078,
+			0x00000079, 0x0000007a, 0x0000007b, 0x00007ffe, 0x000007fc, 0x00003ffd, 0x00001ffd, 0x0ffffffc,
+			0x000fffe6, 0x003fffd2, 0x000fffe7, 0x000fffe8, 0x003fffd3, 0x003fffd4, 0x003fffd5, 0x007fffd9,
+			0x003fffd6, 0x007fffda, 0x007fffdb, 0x007fffdc, 0x007fffdd, 0x007fffde, 0x00ffffeb, 0x007fffdf,
+			0x00ffffec, 0x00ffffed, 0x003fffd7, 0x007fffe0, 0x00ffffee, 0x007fffe1, 0x007fffe2, 0x007fffe3,
+			0x007fffe4, 0x001fffdc, 0x003fffd8, 0x007fffe5, 0x003fffd9, 0x007fffe6, 0x007fffe7, 0x00ffffef,
+			0x003fffda, 0x001fffdd, 0x000fffe9, 0x003fffdb, 0x003fffdc, 0x007fffe8, 0x007fffe9, 0x001fffde,
+			0x007fffea, 0x003fffdd, 0x003fffde, 0x00fffff0, 0x001fffdf, 0x003fffdf, 0x007fffeb, 0x007fffec,
+			0x001fffe0, 0x001fffe1, 0x003fffe0, 0x001fffe2, 0x007fffed, 0x003fffe1, 0x007fffee, 0x007fffef,
+			0x000fffea, 0x003fffe2, 0x003fffe3, 0x003fffe4, 0x007ffff0, 0x003fffe5, 0x003fffe6, 0x007ffff1,
+			0x03ffffe0, 0x03ffffe1, 0x000fffeb, 0x0007fff1, 0x003fffe7, 0x007ffff2, 0x003fffe8, 0x01ffffec,
+			0x03ffffe2, 0x03ffffe3, 0x03ffffe4, 0x07ffffde, 0x07ffffdf, 0x03ffffe5, 0x00fffff1, 0x01ffffed,
+			0x0007fff2, 0x001fffe3, 0x03ffffe6, 0x07ffffe0, 0x07ffffe1, 0x03ffffe7, 0x07ffffe2, 0x00fffff2,
+			0x001fffe4, 0x001fffe5, 0x03ffffe8, 0x03ffffe9, 0x0ffffffd, 0x07ffffe3, 0x07ffffe4, 0x07ffffe5,
+			0x000fffec, 0x00fffff3, 0x000fffed, 0x001fffe6, 0x003fffe9, 0x001fffe7, 0x001fffe8, 0x007ffff3,
+			0x003fffea, 0x003fffeb, 0x01ffffee, 0x01ffffef, 0x00fffff4, 0x00fffff5, 0x03ffffea, 0x007ffff4,
+			0x03ffffeb, 0x07ffffe6, 0x03ffffec, 0x03ffffed, 0x07ffffe7, 0x07ffffe8, 0x07ffffe9, 0x07ffffea,
+			0x07ffffeb, 0x0ffffffe, 0x07ffffec, 0x07ffffed, 0x07ffffee, 0x07ffffef, 0x07fffff0, 0x03ffffee,
+			0x3fffffff
+		};
+		private static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			 6, 10, 10, 12, 13,  6,  8, 11, 10, 10,  8, 11,  8,  6,  6,  6,
+			 5,  5,  5,  6,  6,  6,  6,  6,  6,  6,  7,  8, 15,  6, 12, 10,
+			13,  6,  7,  7,  7,  7,  7,  7,  7,  7,  7,  7,  7,  7,  7,  7,
+			 7,  7,  7,  7,  7,  7,  7,  7,  8,  7,  8, 13, 19, 13, 14,  6,
+			15,  5,  6,  5,  6,  5,  6,  6,  6,  5,  7,  7,  6,  6,  6,  5,
+			 6,  7,  6,  5,  5,  6,  7,  7,  7,  7,  7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30
+		};
+		// decoding tree, two slots per node: next node, or -(symbol + 1) for a leaf
+		private static final int[] HUFFMAN_TREE = new int[2 * 257];
+		static {
+			int nodes = 1;
+			for(int sym=0; sym<HUFFMAN_CODES.length; sym++) {
+				final int code = HUFFMAN_CODES[sym];
+				final int len  = HUFFMAN_LENGTHS[sym];
+				int node = 0;
+				for(int i=len-1; i>0; i--) {
+					final int slot = (node * 2) + ((code >>> i) & 1);
+					if(HUFFMAN_TREE[slot] == 0)
+						HUFFMAN_TREE[slot] = nodes++;
+					node = HUFFMAN_TREE[slot];
+				}
+				HUFFMAN_TREE[(node * 2) + (code & 1)] = -(sym + 1);
+			}
+		}
+
+		// dynamic table, newest first
+		private final LinkedList<http2Field> table = new LinkedList<http2Field>();
+		private int tableSize = 0;
+		private int maxTableSize = DEFAULT_TABLE_SIZE;
+
+		// block being decoded
+		private byte[] buff = null;
+		private int pos = 0;
+		private int end = 0;
+
+
+		/**
+		 * Decodes a header block.
+		 * @return list of { name, value } pairs, in order.
+		 */
+		public List<String[]> decode(final byte[] block, final int len) throws http2Exception {
+			this.buff = block;
+			this.pos = 0;
+			this.end = len;
+			final List<String[]> fields = new ArrayList<String[]>();
+			try {
+				while(pos < end) {
+					final int b = buff[pos] & 0xff;
+					// indexed field
+					if((b & 0x80) != 0) {
+						final http2Field field = getField(readInteger(7));
+						fields.add(new String[] { field.name, field.value });
+					} else
+					// literal with incremental indexing
+					if((b & 0x40) != 0) {
+						final int index = readInteger(6);
+						final String name = (index == 0 ? readString() : getField(index).name);
+						final String value = readString();
+						fields.add(new String[] { name, value });
+						addField(new http2Field(name, value));
+					} else
+					// dynamic table size update
+					if((b & 0x20) != 0) {
+						final int size = readInteger(5);
+						if(size > DEFAULT_TABLE_SIZE)
+							throw new http2Exception(COMPRESSION_ERROR, "Table size too large");
+						maxTableSize = size;
+						evict(0);
+					// literal without indexing, or never indexed
+					} else {
+						final int index = readInteger(4);
+						final String name = (index == 0 ? readString() : getField(index).name);
+						final String value = readString();
+						fields.add(new String[] { name, value });
+					}
+				}
+			} finally {
+				this.buff = null;
+			}
+			return fields;
+		}
+
+
+		private http2Field getField(final int index) throws http2Exception {
+			if(index < 1)
+				throw new http2Exception(COMPRESSION_ERROR, "Invalid table index: 0");
+			if(index <= STATIC_TABLE.length)
+				return new http2Field(STATIC_TABLE[index-1][0], STATIC_TABLE[index-1][1]);
+			final int dynamic = index - STATIC_TABLE.length - 1;
+			if(dynamic >= table.size())
+				throw new http2Exception(COMPRESSION_ERROR, "Invalid table index: "+Integer.toString(index));
+			return table.get(dynamic);
+		}
+		private void addField(final http2Field field) {
+			// too large for the table, which empties it
+			if(field.size > maxTableSize) {
+				table.clear();
+				tableSize = 0;
+				return;
+			}
+			evict(field.size);
+			table.addFirst(field);
+			tableSize += field.size;
+		}
+		private void evict(final int needed) {
+			while(!table.isEmpty() && tableSize + needed > maxTableSize)
+				tableSize -= table.removeLast().size;
+		}
+
+
+		private int readInteger(final int prefix) throws http2Exception {
+			final int max = (1 << prefix) - 1;
+			int value = buff[pos++] & max;
+			if(value < max) return value;
+			int shift = 0;
+			while(true) {
+				if(pos >= end || shift > 21)
+					throw new http2Exception(COMPRESSION_ERROR, "Invalid integer");
+				final int b = buff[pos++] & 0xff;
+				value += (b & 0x7f) << shift;
+				if((b & 0x80) == 0) return value;
+				shift += 7;
+			}
+		}
+		private String readString() throws http2Exception {
+			if(pos >= end)
+				throw new http2Exception(COMPRESSION_ERROR, "Missing string");
+			final boolean huffman = ((buff[pos] & 0x80) != 0);
+			final int len = readInteger(7);
+			if(len > end - pos)
+				throw new http2Exception(COMPRESSION_ERROR, "String too long");
+			final int off = pos;
+			pos += len;
+			try {
+				if(huffman)
+					return decodeHuffman(buff, off, len);
+				return new String(buff, off, len, NanoHTTPserver.UTF8);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		private static String decodeHuffman(final byte[] data, final int off,
+				final int len) throws http2Exception, UnsupportedEncodingException {
+			// shortest code is 5 bits
+			final byte[] result = new byte[((len * 8) / 5) + 1];
+			int count = 0;
+			int node = 0;
+			int bits = 0;
+			boolean ones = true;
+			for(int i=off; i<off+len; i++) {
+				final int b = data[i] & 0xff;
+				for(int shift=7; shift>=0; shift--) {
+					final int bit = (b >>> shift) & 1;
+					final int next = HUFFMAN_TREE[(node * 2) + bit];
+					bits++;
+					if(bit == 0) ones = false;
+					if(next < 0) {
+						final int sym = -next - 1;
+						if(sym == 256)
+							throw new http2Exception(COMPRESSION_ERROR, "EOS in Huffman string");
+						result[count++] = (byte) sym;
+						node = 0;
+						bits = 0;
+						ones = true;
+					} else {
+						if(next == 0)
+							throw new http2Exception(COMPRESSION_ERROR, "Invalid Huffman code");
+						node = next;
+					}
+				}
+			}
+			// padding must be the start of EOS, less than a byte
+			if(bits > 7 || !ones)
+				throw new http2Exception(COMPRESSION_ERROR, "Invalid Huffman padding");
+			return new String(result, 0, count, NanoHTTPserver.UTF8);
+		}
+
+
+		/**
+		 * Encodes a header block using the static table and Huffman coding,
+		 * without adding to the dynamic table.
+		 * @param fields list of { name, value } pairs with lowercase names.
+		 */
+		public static byte[] encode(final List<String[]> fields) {
+			final ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+			for(final String[] field : fields) {
+				int nameIndex = 0;
+				int fullIndex = 0;
+				for(int i=0; i<STATIC_TABLE.length; i++) {
+					if(!STATIC_TABLE[i][0].equals(field[0])) continue;
+					if(nameIndex == 0)
+						nameIndex = i + 1;
+					if(STATIC_TABLE[i][1].equals(field[1])) {
+						fullIndex = i + 1;
+						break;
+					}
+				}
+				if(fullIndex > 0) {
+					writeInteger(block, 0x80, 7, fullIndex);
+					continue;
+				}
+				// literal without indexing
+				writeInteger(block, 0x00, 4, nameIndex);
+				if(nameIndex == 0)
+					writeString(block, field[0]);
+				writeString(block, field[1]);
+			}
+			return block.toByteArray();
+		}
+		protected static void writeInteger(final ByteArrayOutputStream block,
+				final int flags, final int prefix, int value) {
+			final int max = (1 << prefix) - 1;
+			if(value < max) {
+				block.write(flags | value);
+				return;
+			}
+			block.write(flags | max);
+			value -= max;
+			while(value >= 0x80) {
+				block.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			block.write(value);
+		}
+		private static void writeString(final ByteArrayOutputStream block, final String str) {
+			final byte[] bytes;
+			try {
+				bytes = str.getBytes(NanoHTTPserver.UTF8);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			long bits = 0L;
+			for(final byte b : bytes)
+				bits += HUFFMAN_LENGTHS[b & 0xff];
+			final int huffmanLength = (int) ((bits + 7L) / 8L);
+			if(huffmanLength >= bytes.length) {
+				writeInteger(block, 0x00, 7, bytes.length);
+				block.write(bytes, 0, bytes.length);
+				return;
+			}
+			writeInteger(block, 0x80, 7, huffmanLength);
+			long acc = 0L;
+			int count = 0;
+			for(final byte b : bytes) {
+				final int len = HUFFMAN_LENGTHS[b & 0xff];
+				acc = (acc << len) | HUFFMAN_CODES[b & 0xff];
+				count += len;
+				while(count >= 8) {
+					count -= 8;
+					block.write((int) (acc >>> count) & 0xff);
+				}
+				acc &= (1L << count) - 1L;
+			}
+			// pad with the start of EOS
+			if(count > 0)
+				block.write((int) ((acc << (8 - count)) | (0xff >>> count)) & 0xff);
+		}
+
+
+	}
+
+
+	/**
+	 * Dynamic table entry.
+	 */
+	protected static class http2Field {
+
+		public final String name;
+		public final String value;
+		// octets counted against the table size
+		public final int size;
+
+
+		public http2Field(final String name, final String value) {
+			this.name = name;
+			this.value = value;
+			int len = 32;
+			try {
+				len += name.getBytes(NanoHTTPserver.UTF8).length;
+				len += value.getBytes(NanoHTTPserver.UTF8).length;
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			this.size = len;
+		}
+
+
+	}
+
+
+	/**
+	 * Protocol error, for one stream or the whole connection.
+	 */
+	public static class http2Exception extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int streamId;
+		private final int errorCode;
+
+
+		/**
+		 * Connection error.
+		 */
+		public http2Exception(final int errorCode, final String msg) {
+			this(0, errorCode, msg);
+		}
+		/**
+		 * Stream error, or connection error if the stream id is 0.
+		 */
+		public http2Exception(final int streamId, final int errorCode, final String msg) {
+			super(msg);
+			this.streamId = streamId;
+			this.errorCode = errorCode;
+		}
+
+
+		public int getStreamId() {
+			return streamId;
+		}
+		public int getErrorCode() {
+			return errorCode;
+		}
+
+
+	}
+
+
+}
@@ -0,0 +1,798 @@
+package com.poixson.nanosocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+
+
+/**
+ * A small HTTP/1.1 client with a pool of keep-alive connections to one host.
+ * <p>
+ * Uses the same header parsing, body framing and write buffering as
+ * NanoHTTPserver. Request and response bodies are streamed, a connection
+ * goes back to the pool once its response body has been fully read or
+ * the response is closed.
+ * </p>
+ */
+public class NanoHTTPclient extends NanoHTTPcommon {
+
+	public static final int  DEFAULT_MAX_CONNECTIONS = 8;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000L;
+	public static final int  DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	// unread response body to skip when closed early, before dropping the connection
+	public static final long MAX_DISCARD_BODY = 64L * 1024L; // 64K
+
+	private final int maxConnections;
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = SOCKET_TIMEOUT;
+
+	// connection pool, most recently used first
+	private final LinkedList<httpClientConnection> idle = new LinkedList<httpClientConnection>();
+	private int countOpen = 0;
+	private volatile boolean closed = false;
+
+	// stats
+	private volatile int countConnections = 0;
+	private volatile int countRequests = 0;
+
+
+	// ------------------------------------------------------------------------------- //
+	// http client constructors
+
+
+	/**
+	 * Creates an HTTP client for the given host/port.
+	 * @param host IP address or hostname to connect to.
+	 * @param port TCP port to connect to.
+	 */
+	public NanoHTTPclient(final String host, final int port) {
+		this(host, port, DEFAULT_MAX_CONNECTIONS);
+	}
+	/**
+	 * Creates an HTTP client for the given host/port.
+	 * @param host IP address or hostname to connect to.
+	 * @param port TCP port to connect to.
+	 * @param maxConnections maximum number of open connections to the host.
+	 */
+	public NanoHTTPclient(final String host, final int port, final int maxConnections) {
+		super(host, port);
+		if(this.host == null) throw new IllegalArgumentException("Host is required");
+		if(maxConnections < 1) throw new IllegalArgumentException("maxConnections must be at least 1");
+		this.maxConnections = maxConnections;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// settings
+
+
+	/**
+	 * Idle pooled connections are closed after this long.
+	 * @param ms time in milliseconds.
+	 */
+	public void setIdleTimeout(final long ms) {
+		this.idleTimeout = (ms < 0L ? 0L : ms);
+	}
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+	/**
+	 * Maximum time to wait for a connection, including waiting
+	 * for a free connection when the pool is full.
+	 * @param ms time in milliseconds.
+	 */
+	public void setConnectTimeout(final int ms) {
+		this.connectTimeout = (ms < 0 ? 0 : ms);
+	}
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	/**
+	 * Maximum time to wait on a read from the server.
+	 * @param ms time in milliseconds.
+	 */
+	public void setReadTimeout(final int ms) {
+		this.readTimeout = (ms < 0 ? 0 : ms);
+	}
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+
+	/**
+	 * @return value for the Host request header.
+	 */
+	protected String getHostHeader() {
+		if(port == DEFAULT_PORT)
+			return host;
+		return host+":"+Integer.toString(port);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// requests
+
+
+	/**
+	 * Sends a request and reads the response headers. The body is streamed,
+	 * and the connection is returned to the pool once it's been read
+	 * or the response is closed.
+	 */
+	public httpClientResponse execute(final httpClientRequest request) throws IOException {
+		if(request == null) throw new NullPointerException();
+		int attempt = 0;
+		while(true) {
+			final httpClientConnection conn = borrow();
+			final boolean reused = (conn.getRequests() > 0);
+			try {
+				conn.write(request, getHostHeader());
+				conn.flush();
+				countRequests++;
+				return conn.read(this, request, true);
+			} catch (IOException e) {
+				release(conn, false);
+				// stale keep-alive connection, closed by the server while idle
+				if(reused && attempt == 0 && request.isRetryable()) {
+					attempt++;
+					continue;
+				}
+				throw e;
+			}
+		}
+	}
+	/**
+	 * Sends several idempotent requests on one connection before reading
+	 * any of the responses. Response bodies are read into memory, in order.
+	 */
+	public List<httpClientResponse> pipeline(final httpClientRequest...requests) throws IOException {
+		if(requests == null) throw new NullPointerException();
+		for(final httpClientRequest request : requests) {
+			if(!request.isIdempotent())
+				throw new IllegalArgumentException("Only idempotent requests can be pipelined: "+request.getMethod());
+		}
+		final List<httpClientResponse> responses = new ArrayList<httpClientResponse>(requests.length);
+		if(requests.length == 0) return responses;
+		final httpClientConnection conn = borrow();
+		boolean keepAlive = false;
+		try {
+			for(final httpClientRequest request : requests)
+				conn.write(request, getHostHeader());
+			conn.flush();
+			for(final httpClientRequest request : requests) {
+				// a failed read leaves the connection half way through a response
+				keepAlive = false;
+				final httpClientResponse response = conn.read(this, request, false);
+				countRequests++;
+				responses.add(response);
+				keepAlive = response.isKeepAlive();
+				if(!keepAlive && responses.size() < requests.length)
+					throw new IOException("Server closed the connection after "+responses.size()+" pipelined requests");
+			}
+		} finally {
+			release(conn, keepAlive);
+		}
+		return responses;
+	}
+
+
+	public httpClientResponse get(final String uri) throws IOException {
+		return execute(new httpClientRequest(httpMethod.GET, uri));
+	}
+	public httpClientResponse post(final String uri, final httpMime mime, final httpBody body) throws IOException {
+		final httpClientRequest request = new httpClientRequest(httpMethod.POST, uri, body);
+		if(mime != null)
+			request.addHeader("Content-Type", mime.toString());
+		return execute(request);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// connection pool
+
+
+	/**
+	 * Takes an idle connection from the pool, or opens a new one.
+	 */
+	protected httpClientConnection borrow() throws IOException {
+		final long timeout = this.connectTimeout;
+		final long start = System.currentTimeMillis();
+		synchronized(idle) {
+			evictIdle();
+			while(true) {
+				if(closed) throw new IOException("Client is closed");
+				if(!idle.isEmpty()) {
+					final httpClientConnection conn = idle.removeFirst();
+					if(conn.isClosed()) {
+						safeClose(conn);
+						countOpen--;
+						continue;
+					}
+					return conn;
+				}
+				if(countOpen < maxConnections) {
+					countOpen++;
+					break;
+				}
+				// wait for a connection to be released
+				final long remaining = timeout - (System.currentTimeMillis() - start);
+				if(timeout > 0L && remaining <= 0L)
+					throw new IOException("Timeout waiting for a pooled connection");
+				try {
+					idle.wait(timeout > 0L ? remaining : 0L);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for a pooled connection");
+				}
+			}
+		}
+		try {
+			final httpClientConnection conn = connect();
+			countConnections++;
+			return conn;
+		} catch (IOException e) {
+			synchronized(idle) {
+				countOpen--;
+				idle.notify();
+			}
+			throw e;
+		}
+	}
+	/**
+	 * Returns a connection to the pool, or closes it.
+	 * @param reusable true if the connection is at the start of a new response.
+	 */
+	protected void release(final httpClientConnection conn, final boolean reusable) {
+		if(conn == null) return;
+		synchronized(idle) {
+			if(reusable && !closed && !conn.isClosed()) {
+				conn.lastUsed = System.currentTimeMillis();
+				idle.addFirst(conn);
+			} else {
+				safeClose(conn);
+				countOpen--;
+			}
+			idle.notify();
+		}
+	}
+	/**
+	 * Closes connections which have been idle longer than the idle timeout.
+	 */
+	public void evictIdle() {
+		final long cutoff = System.currentTimeMillis() - this.idleTimeout;
+		synchronized(idle) {
+			final Iterator<httpClientConnection> it = idle.iterator();
+			while(it.hasNext()) {
+				final httpClientConnection conn = it.next();
+				if(conn.lastUsed < cutoff || conn.isClosed()) {
+					it.remove();
+					safeClose(conn);
+					countOpen--;
+				}
+			}
+		}
+	}
+	/**
+	 * Opens a new connection to the host.
+	 */
+	protected httpClientConnection connect() throws IOException {
+		validateHostPort();
+		final SocketChannel channel = SocketChannel.open();
+		final Socket socket = channel.socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(inet, connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			return new httpClientConnection(socket);
+		} catch (IOException e) {
+			safeClose(socket);
+			throw e;
+		}
+	}
+
+
+	public int getIdleConnections() {
+		synchronized(idle) {
+			return idle.size();
+		}
+	}
+	public int getOpenConnections() {
+		synchronized(idle) {
+			return countOpen;
+		}
+	}
+	public int totalConnections() {
+		return countConnections;
+	}
+	public int totalRequests() {
+		return countRequests;
+	}
+
+
+	/**
+	 * Closes all idle connections. Connections still in use are closed
+	 * when they're released.
+	 */
+	@Override
+	public void close() {
+		synchronized(idle) {
+			closed = true;
+			for(final httpClientConnection conn : idle) {
+				safeClose(conn);
+				countOpen--;
+			}
+			idle.clear();
+			idle.notifyAll();
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * A pooled connection, with buffers kept for its whole life.
+	 */
+	protected static class httpClientConnection implements Closeable {
+
+		private final Socket socket;
+		private final httpInputBuffer in;
+		private final httpOutputBuffer out;
+		protected volatile long lastUsed = 0L;
+		private volatile int countRequests = 0;
+
+
+		public httpClientConnection(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in  = new httpInputBuffer(socket.getInputStream());
+			this.out = new httpOutputBuffer(socket.getOutputStream(), socket.getChannel(), httpOutputBuffer.DEFAULT_SIZE);
+		}
+
+
+		/**
+		 * Writes the request line, headers and body.
+		 */
+		public void write(final httpClientRequest request, final String hostHeader) throws IOException {
+			final httpBody body = request.getBody();
+			final long length = (body == null ? 0L : body.length());
+			final StringBuilder head = new StringBuilder(256);
+			head.append(request.getMethod().toString())
+				.append(' ').append(request.getUri())
+				.append(" HTTP/1.1\r\n");
+			final Map<String, String> headers = request.getHeaders();
+			if(!headers.containsKey("host"))
+				appendHeader(head, "Host", hostHeader);
+			if(!headers.containsKey("user-agent"))
+				appendHeader(head, "User-Agent", "NanoHTTPlib/"+NanoHTTPcommon.version);
+			if(body != null) {
+				if(length >= 0L)
+					appendHeader(head, "Content-Length", Long.toString(length));
+				else
+					appendHeader(head, "Transfer-Encoding", "chunked");
+			}
+			for(final Entry<String, String> entry : request.getHeaderEntries())
+				appendHeader(head, entry.getKey(), entry.getValue());
+			head.append("\r\n");
+			out.write(head.toString().getBytes(UTF8));
+			countRequests++;
+			if(body == null) return;
+			try {
+				// stream the body
+				if(length < 0L) {
+					final httpChunkedOutputStream chunks = new httpChunkedOutputStream(out);
+					body.writeTo(chunks);
+					chunks.finish();
+					return;
+				}
+				// headers and body in one gathering write
+				final ByteBuffer[] buffers = body.getBuffers();
+				if(buffers != null) {
+					out.write(buffers);
+					return;
+				}
+				body.writeTo(out);
+			} finally {
+				if(!body.isRepeatable())
+					safeClose(body);
+			}
+		}
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+
+		/**
+		 * Reads a response status line and headers, skipping interim 1xx responses.
+		 * @param stream true to stream the body, false to read it into memory.
+		 */
+		public httpClientResponse read(final NanoHTTPclient client,
+				final httpClientRequest request, final boolean stream) throws IOException {
+			while(true) {
+				final String line = in.readLine();
+				if(line == null) throw new EOFException("Connection closed by server");
+				// status line, for example: HTTP/1.1 200 OK
+				final int sp1 = line.indexOf(' ');
+				if(sp1 < 0 || !line.startsWith("HTTP/"))
+					throw new IOException("Invalid status line: "+line);
+				final int sp2 = line.indexOf(' ', sp1 + 1);
+				final int code;
+				try {
+					code = Integer.parseInt(sp2 < 0 ? line.substring(sp1 + 1) : line.substring(sp1 + 1, sp2));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid status line: "+line);
+				}
+				final String reason = (sp2 < 0 ? "" : line.substring(sp2 + 1));
+				httpVersion version = httpVersion.lookup(line.substring(5, sp1));
+				if(version == null) version = httpVersion.HTTP_1_0;
+				final Properties headers = new Properties();
+				readHeaders(in, headers);
+				// interim response, the real one follows
+				if(code >= 100 && code < 200 && code != 101)
+					continue;
+				// connection persistence
+				final String connection = (String) headers.get("connection");
+				boolean keepAlive;
+				if(httpVersion.HTTP_1_0.equals(version))
+					keepAlive = (connection != null && connection.toLowerCase(Locale.US).contains("keep-alive"));
+				else
+					keepAlive = (connection == null || !connection.toLowerCase(Locale.US).contains("close"));
+				// response body
+				InputStream body = null;
+				if(!httpMethod.HEAD.equals(request.getMethod())
+						&& code >= 200 && code != 204 && code != 304) {
+					body = openBody(
+						in,
+						(String) headers.get("transfer-encoding"),
+						(String) headers.get("content-length"),
+						true
+					);
+					// read until closed
+					if(body == in)
+						keepAlive = false;
+				}
+				final httpClientResponse response = new httpClientResponse(
+					code, reason, version, headers, keepAlive
+				);
+				if(stream) {
+					response.attach(client, this, body);
+				} else
+				if(body != null) {
+					final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					copy(body, buffer);
+					response.attach(null, null, new ByteArrayInputStream(buffer.toByteArray()));
+				}
+				return response;
+			}
+		}
+
+
+		public int getRequests() {
+			return countRequests;
+		}
+		public boolean isClosed() {
+			return socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown();
+		}
+		@Override
+		public void close() throws IOException {
+			safeClose(socket);
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * HTTP request to send with a client.
+	 */
+	public static class httpClientRequest {
+
+		private final httpMethod method;
+		private final String uri;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private volatile httpBody body = null;
+
+
+		public httpClientRequest(final httpMethod method, final String uri) {
+			this(method, uri, null);
+		}
+		/**
+		 * @param method request method.
+		 * @param uri request path and query string, already percent encoded.
+		 * @param body request body, or null for none.
+		 */
+		public httpClientRequest(final httpMethod method, final String uri, final httpBody body) {
+			if(method == null) throw new NullPointerException("method cannot be null");
+			if(uri == null || uri.isEmpty()) throw new NullPointerException("uri cannot be null");
+			if(uri.indexOf(' ') >= 0 || uri.indexOf('\r') >= 0 || uri.indexOf('\n') >= 0)
+				throw new IllegalArgumentException("Invalid uri: "+uri);
+			this.method = method;
+			this.uri = uri;
+			this.body = body;
+		}
+
+
+		public httpMethod getMethod() {
+			return method;
+		}
+		public String getUri() {
+			return uri;
+		}
+		public httpBody getBody() {
+			return body;
+		}
+		public void setBody(final httpBody body) {
+			this.body = body;
+		}
+
+
+		public void addHeader(final String name, final String value) {
+			if(name == null || name.isEmpty()) throw new NullPointerException();
+			synchronized(headers) {
+				headers.put(name, value);
+			}
+		}
+		public String getHeader(final String name) {
+			if(name == null) return null;
+			synchronized(headers) {
+				for(final Entry<String, String> entry : headers.entrySet()) {
+					if(name.equalsIgnoreCase(entry.getKey()))
+						return entry.getValue();
+				}
+			}
+			return null;
+		}
+		/**
+		 * @return copy of the headers, with lowercase names.
+		 */
+		protected Map<String, String> getHeaders() {
+			final Map<String, String> map = new LinkedHashMap<String, String>();
+			synchronized(headers) {
+				for(final Entry<String, String> entry : headers.entrySet())
+					map.put(entry.getKey().toLowerCase(Locale.US), entry.getValue());
+			}
+			return map;
+		}
+		protected List<Entry<String, String>> getHeaderEntries() {
+			synchronized(headers) {
+				return new ArrayList<Entry<String, String>>(headers.entrySet());
+			}
+		}
+
+
+		/**
+		 * @return true if sending the request more than once has no extra effect.
+		 */
+		public boolean isIdempotent() {
+			switch(method) {
+			case GET:
+			case HEAD:
+			case PUT:
+			case DELETE:
+			case OPTIONS:
+				return true;
+			default:
+				return false;
+			}
+		}
+		/**
+		 * @return true if the request can be sent again on a new connection.
+		 */
+		public boolean isRetryable() {
+			final httpBody tmp = this.body;
+			return isIdempotent() && (tmp == null || tmp.isRepeatable());
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * HTTP response received by a client. Close it, or read the body to the
+	 * end, to return the connection to the pool.
+	 */
+	public static class httpClientResponse implements Closeable {
+
+		private final int code;
+		private final String reason;
+		private final httpVersion version;
+		private final Properties headers;
+		private final boolean keepAlive;
+		private volatile InputStream body = null;
+
+
+		protected httpClientResponse(final int code, final String reason,
+				final httpVersion version, final Properties headers, final boolean keepAlive) {
+			this.code = code;
+			this.reason = reason;
+			this.version = version;
+			this.headers = headers;
+			this.keepAlive = keepAlive;
+		}
+		/**
+		 * Attaches the body, releasing the connection once it's read.
+		 */
+		protected void attach(final NanoHTTPclient client,
+				final httpClientConnection conn, final InputStream in) {
+			if(conn == null) {
+				this.body = in;
+				return;
+			}
+			// no body, connection is ready for the next request
+			if(in == null) {
+				client.release(conn, keepAlive);
+				return;
+			}
+			this.body = new httpClientBodyStream(client, conn, in, keepAlive);
+		}
+
+
+		public int getStatusCode() {
+			return code;
+		}
+		/**
+		 * @return httpStatus object, or null if the code isn't known.
+		 */
+		public httpStatus getStatus() {
+			return httpStatus.lookup(code);
+		}
+		public String getReason() {
+			return reason;
+		}
+		public httpVersion getVersion() {
+			return version;
+		}
+		public boolean isKeepAlive() {
+			return keepAlive;
+		}
+		/**
+		 * @param name header name (case insensitive).
+		 * @return header value, or null if not sent.
+		 */
+		public String getHeader(final String name) {
+			if(name == null) return null;
+			return (String) headers.get(name.toLowerCase(Locale.US));
+		}
+		/**
+		 * @return names of the received headers, in lowercase.
+		 */
+		public Set<String> getHeaderNames() {
+			return headers.stringPropertyNames();
+		}
+
+
+		/**
+		 * @return body stream, or null if the response has no body.
+		 */
+		public InputStream getBody() {
+			return body;
+		}
+		/**
+		 * Reads the whole body into memory.
+		 * @return body bytes, empty if there's no body.
+		 */
+		public byte[] readFully() throws IOException {
+			final InputStream in = this.body;
+			if(in == null) return new byte[0];
+			try {
+				final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				copy(in, buffer);
+				return buffer.toByteArray();
+			} finally {
+				safeClose(in);
+			}
+		}
+		public String readString() throws IOException {
+			return new String(readFully(), UTF8);
+		}
+
+
+		@Override
+		public void close() {
+			safeClose(body);
+		}
+
+
+	}
+
+
+	/**
+	 * Response body on a pooled connection. Releases the connection at end
+	 * of stream, or when closed early after skipping a small remainder.
+	 */
+	protected static class httpClientBodyStream extends FilterInputStream {
+
+		private final NanoHTTPclient client;
+		private final httpClientConnection conn;
+		private final boolean keepAlive;
+		private boolean released = false;
+
+
+		public httpClientBodyStream(final NanoHTTPclient client,
+				final httpClientConnection conn, final InputStream in, final boolean keepAlive) {
+			super(in);
+			this.client = client;
+			this.conn = conn;
+			this.keepAlive = keepAlive;
+		}
+
+
+		private void release(final boolean reusable) {
+			if(released) return;
+			released = true;
+			client.release(conn, reusable && keepAlive);
+		}
+		@Override
+		public int read() throws IOException {
+			if(released) return -1;
+			try {
+				final int b = in.read();
+				if(b < 0) release(true);
+				return b;
+			} catch (IOException e) {
+				release(false);
+				throw e;
+			}
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if(released) return -1;
+			try {
+				final int read = in.read(b, off, len);
+				if(read < 0) release(true);
+				return read;
+			} catch (IOException e) {
+				release(false);
+				throw e;
+			}
+		}
+		@Override
+		public void close() {
+			if(released) return;
+			// skip a small remainder to keep the connection
+			try {
+				final byte[] buff = new byte[8192];
+				long remaining = MAX_DISCARD_BODY;
+				while(remaining >= 0L) {
+					final int read = in.read(buff, 0, buff.length);
+					if(read < 0) {
+						release(true);
+						return;
+					}
+					remaining -= read;
+				}
+			} catch (IOException ignore) {}
+			release(false);
+		}
+
+
+	}
+
+
+}
@@ -1,7 +1,33 @@
 package com.poixson.nanosocket;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 
 public abstract class NanoHTTPcommon implements Closeable {
@@ -23,6 +49,7 @@ public abstract class NanoHTTPcommon implements Closeable {
 	public static final int SERVER_BACKLOG_CONNECTIONS = 5;
 
 	public static final String UTF8 = "UTF-8";
+	public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
 
 	// ------------------------------------------------------------------------------- //
 	// super object
@@ -71,6 +98,7 @@ public abstract class NanoHTTPcommon implements Closeable {
 	 */
 	public enum httpStatus {
 		CONTINUE                  (100, "Continue"),
+		SWITCHING_PROTOCOLS       (101, "Switching Protocols"),
 		OK                        (200, "OK"),
 		CREATED                   (201, "Created"),
 		ACCEPTED                  (202, "Accepted"),
@@ -93,9 +121,11 @@ public abstract class NanoHTTPcommon implements Closeable {
 		REQUEST_URI_TOO_LONG      (414, "Request-URI Too Long"),
 		UNSUPPORTED_MEDIA_TYPE    (415, "Unsupported Media Type"),
 		RANGE_NOT_SATISFIABLE     (416, "Requested Range Not Satisfiable"),
+		EXPECTATION_FAILED        (417, "Expectation Failed"),
 		LOCKED                    (423, "Locked"),
 		FAILED_DEPENDENCY         (424, "Failed Dependency"),
 		UPGRADE_REQUIRED          (426, "Upgrade Required"),
+		HEADERS_TOO_LARGE         (431, "Request Header Fields Too Large"),
 		INTERNAL_ERROR            (500, "Internal Server Error"),
 		NOT_IMPLEMENTED           (501, "Not Implemented"),
 		BAD_GATEWAY               (502, "Bad Gateway"),
@@ -114,6 +144,23 @@ public abstract class NanoHTTPcommon implements Closeable {
 		public String getDesc() {
 			return desc;
 		}
+		/**
+		 * @param value numeric status code.
+		 * @return httpStatus object, or null if not known.
+		 */
+		public static httpStatus lookup(int value) {
+			for(httpStatus status : httpStatus.values()) {
+				if(status.value == value)
+					return status;
+			}
+			return null;
+		}
+		/**
+		 * 1xx, 204 No Content and 304 Not Modified responses never have a body.
+		 */
+		public boolean allowsBody() {
+			return value >= 200 && value != 204 && value != 304;
+		}
 		@Override
 		public String toString() {
 			return Integer.toString(getValue())+" "+getDesc();
@@ -125,7 +172,9 @@ public abstract class NanoHTTPcommon implements Closeable {
 	 *
 	 */
 	public enum httpVersion {
-		HTTP_1_0("1.0"), HTTP_1_1("1.1");
+		HTTP_1_0("1.0"), HTTP_1_1("1.1"), HTTP_2_0("2.0");
+		// values() copies the array each call
+		private static final httpVersion[] ALL = values();
 		private final String versionStr;
 		httpVersion(String versionStr) {
 			this.versionStr = versionStr;
@@ -133,12 +182,24 @@ public abstract class NanoHTTPcommon implements Closeable {
 		public static httpVersion lookup(String str) {
 			if(str == null || str.isEmpty())
 				return null;
-			for(httpVersion v : httpVersion.values()) {
+			for(httpVersion v : ALL) {
 				if(str.equals(v.versionStr))
 					return v;
 			}
 			return null;
 		}
+		/**
+		 * @param str protocol from a request line, like HTTP/1.1
+		 */
+		public static httpVersion lookupProtocol(String str) {
+			if(str == null || !str.startsWith("HTTP/"))
+				return null;
+			for(httpVersion v : ALL) {
+				if(str.length() == 5 + v.versionStr.length() && str.endsWith(v.versionStr))
+					return v;
+			}
+			return null;
+		}
 	}
 
 
@@ -147,10 +208,12 @@ public abstract class NanoHTTPcommon implements Closeable {
 	 */
 	public enum httpMethod {
 		GET, PUT, POST, DELETE, HEAD, OPTIONS;
+		// values() copies the array each call
+		private static final httpMethod[] ALL = values();
 		public static httpMethod lookup(String str) {
 			if(str == null || str.isEmpty())
 				return null;
-			for(httpMethod m : httpMethod.values()) {
+			for(httpMethod m : ALL) {
 				if(m.toString().equalsIgnoreCase(str))
 					return m;
 			}
@@ -171,6 +234,7 @@ public abstract class NanoHTTPcommon implements Closeable {
 		JAVASCRIPT("text/javascript",         "js"),
 		CSS      ("text/css",                 "css"),
 		CSV      ("text/csv",                 "csv"),
+		EVENT_STREAM("text/event-stream"),
 		// binary
 		BINARY   ("application/octet-stream", "exe", "bin", "class"),
 		ZIP      ("application/zip",          "zip"),
@@ -235,6 +299,1435 @@ System.out.println(str);
 	}
 
 
+	// ------------------------------------------------------------------------------- //
+	// message bodies
+
+
+	/**
+	 * Body of an http message, with an explicit length when known.
+	 */
+	public static abstract class httpBody implements Closeable {
+
+		public static final long UNKNOWN_LENGTH = -1L;
+		protected static final int BUFFER_SIZE = 16 * 1024; // 16K
+
+
+		/**
+		 * @return length in bytes, or UNKNOWN_LENGTH.
+		 */
+		public abstract long length();
+		/**
+		 * Writes the full body to a stream.
+		 */
+		public abstract void writeTo(OutputStream out) throws IOException;
+		/**
+		 * Writes the full body to a channel. Bodies which can do better than
+		 * copying through a stream (buffers, files) override this.
+		 */
+		public void writeTo(WritableByteChannel channel) throws IOException {
+			writeTo(Channels.newOutputStream(channel));
+		}
+		/**
+		 * Buffers backed by this body, for gathering writes. The returned
+		 * buffers are independent views, and may be consumed by the caller.
+		 * @return buffers, or null if the body isn't held in memory.
+		 */
+		public ByteBuffer[] getBuffers() {
+			return null;
+		}
+		/**
+		 * @return true if the body can be written more than once.
+		 */
+		public boolean isRepeatable() {
+			return false;
+		}
+		/**
+		 * @return the body as a stream, for consumers which need to read it.
+		 */
+		public InputStream getInputStream() throws IOException {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			writeTo(buffer);
+			return new ByteArrayInputStream(buffer.toByteArray());
+		}
+		@Override
+		public void close() throws IOException {
+		}
+
+
+	}
+
+
+	/**
+	 * Body held in a byte array, or a slice of one.
+	 */
+	public static class httpBytesBody extends httpBody {
+
+		private final byte[] data;
+		private final int offset;
+		private final int len;
+
+
+		public httpBytesBody(final String str) {
+			this(encode(str));
+		}
+		public httpBytesBody(final byte[] data) {
+			this(data, 0, data.length);
+		}
+		public httpBytesBody(final byte[] data, final int offset, final int len) {
+			if(data == null) throw new NullPointerException();
+			if(offset < 0 || len < 0 || offset + len > data.length)
+				throw new IndexOutOfBoundsException();
+			this.data = data;
+			this.offset = offset;
+			this.len = len;
+		}
+		private static byte[] encode(final String str) {
+			try {
+				return str.getBytes(UTF8);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+
+		@Override
+		public long length() {
+			return len;
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			out.write(data, offset, len);
+		}
+		@Override
+		public void writeTo(final WritableByteChannel channel) throws IOException {
+			writeFully(channel, ByteBuffer.wrap(data, offset, len));
+		}
+		@Override
+		public ByteBuffer[] getBuffers() {
+			return new ByteBuffer[] { ByteBuffer.wrap(data, offset, len) };
+		}
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(data, offset, len);
+		}
+
+
+	}
+
+
+	/**
+	 * Body held in a heap or direct ByteBuffer. The remaining bytes between
+	 * position and limit are sent, the buffer itself is never modified.
+	 */
+	public static class httpBufferBody extends httpBody {
+
+		private final ByteBuffer buffer;
+
+
+		public httpBufferBody(final ByteBuffer buffer) {
+			if(buffer == null) throw new NullPointerException();
+			this.buffer = buffer.duplicate();
+		}
+
+
+		@Override
+		public long length() {
+			return buffer.remaining();
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			NanoHTTPcommon.write(out, buffer.duplicate());
+		}
+		@Override
+		public void writeTo(final WritableByteChannel channel) throws IOException {
+			writeFully(channel, buffer.duplicate());
+		}
+		@Override
+		public ByteBuffer[] getBuffers() {
+			return new ByteBuffer[] { buffer.duplicate() };
+		}
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+
+	}
+
+
+	/**
+	 * Region of a file. Written with FileChannel.transferTo() when sent
+	 * to a channel, which lets the OS use sendfile.
+	 */
+	public static class httpFileBody extends httpBody {
+
+		private final File file;
+		private final long position;
+		private final long len;
+
+
+		public httpFileBody(final File file) {
+			this(file, 0L, file.length());
+		}
+		public httpFileBody(final File file, final long position, final long len) {
+			if(file == null) throw new NullPointerException();
+			if(position < 0L || len < 0L) throw new IndexOutOfBoundsException();
+			this.file = file;
+			this.position = position;
+			this.len = len;
+		}
+
+
+		public File getFile() {
+			return file;
+		}
+		@Override
+		public long length() {
+			return len;
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			final InputStream in = getInputStream();
+			try {
+				copy(in, out);
+			} finally {
+				safeClose(in);
+			}
+		}
+		@Override
+		public void writeTo(final WritableByteChannel channel) throws IOException {
+			final FileInputStream in = new FileInputStream(file);
+			try {
+				final FileChannel fc = in.getChannel();
+				long pos = position;
+				long remaining = len;
+				while(remaining > 0L) {
+					final long sent = fc.transferTo(pos, remaining, channel);
+					if(sent <= 0L) {
+						if(pos >= fc.size())
+							throw new EOFException("File is shorter than expected: "+file.getPath());
+						continue;
+					}
+					pos += sent;
+					remaining -= sent;
+				}
+			} finally {
+				safeClose(in);
+			}
+		}
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+		@Override
+		public InputStream getInputStream() throws IOException {
+			final FileInputStream in = new FileInputStream(file);
+			try {
+				in.getChannel().position(position);
+			} catch (IOException e) {
+				safeClose(in);
+				throw e;
+			}
+			return new httpBoundedInputStream(in, len);
+		}
+
+
+	}
+
+
+	/**
+	 * Body made of several parts sent back to back.
+	 */
+	public static class httpCompositeBody extends httpBody {
+
+		private final httpBody[] parts;
+
+
+		public httpCompositeBody(final httpBody...parts) {
+			if(parts == null) throw new NullPointerException();
+			for(final httpBody part : parts) {
+				if(part == null) throw new NullPointerException();
+			}
+			this.parts = Arrays.copyOf(parts, parts.length);
+		}
+
+
+		@Override
+		public long length() {
+			long total = 0L;
+			for(final httpBody part : parts) {
+				final long len = part.length();
+				if(len < 0L) return UNKNOWN_LENGTH;
+				total += len;
+			}
+			return total;
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			for(final httpBody part : parts)
+				part.writeTo(out);
+		}
+		@Override
+		public void writeTo(final WritableByteChannel channel) throws IOException {
+			final ByteBuffer[] buffers = getBuffers();
+			if(buffers != null && channel instanceof GatheringByteChannel) {
+				writeFully((GatheringByteChannel) channel, buffers);
+				return;
+			}
+			for(final httpBody part : parts)
+				part.writeTo(channel);
+		}
+		@Override
+		public ByteBuffer[] getBuffers() {
+			final List<ByteBuffer> list = new ArrayList<ByteBuffer>(parts.length);
+			for(final httpBody part : parts) {
+				final ByteBuffer[] buffers = part.getBuffers();
+				if(buffers == null) return null;
+				list.addAll(Arrays.asList(buffers));
+			}
+			return list.toArray(new ByteBuffer[list.size()]);
+		}
+		@Override
+		public boolean isRepeatable() {
+			for(final httpBody part : parts) {
+				if(!part.isRepeatable())
+					return false;
+			}
+			return true;
+		}
+		@Override
+		public void close() throws IOException {
+			for(final httpBody part : parts)
+				safeClose(part);
+		}
+
+
+	}
+
+
+	/**
+	 * Callback which writes a body directly to the connection.
+	 */
+	public interface httpBodyWriter {
+		public void write(OutputStream out) throws IOException;
+	}
+	/**
+	 * Body generated by a callback while it's being sent.
+	 */
+	public static class httpWriterBody extends httpBody {
+
+		private final httpBodyWriter writer;
+		private final long len;
+
+
+		public httpWriterBody(final httpBodyWriter writer) {
+			this(writer, UNKNOWN_LENGTH);
+		}
+		/**
+		 * @param len exact number of bytes the writer will produce,
+		 *   or UNKNOWN_LENGTH.
+		 */
+		public httpWriterBody(final httpBodyWriter writer, final long len) {
+			if(writer == null) throw new NullPointerException();
+			this.writer = writer;
+			this.len = (len < 0L ? UNKNOWN_LENGTH : len);
+		}
+
+
+		@Override
+		public long length() {
+			return len;
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			writer.write(out);
+		}
+
+
+	}
+
+
+	/**
+	 * Body read from an InputStream, which is closed with the body.
+	 */
+	public static class httpStreamBody extends httpBody {
+
+		private final InputStream in;
+		private final long len;
+
+
+		/**
+		 * Length is only known for a ByteArrayInputStream, other streams
+		 * are sent chunked.
+		 */
+		public httpStreamBody(final InputStream in) {
+			this(in, (in instanceof ByteArrayInputStream) ? ((ByteArrayInputStream) in).available() : UNKNOWN_LENGTH);
+		}
+		public httpStreamBody(final InputStream in, final long len) {
+			if(in == null) throw new NullPointerException();
+			this.in = in;
+			this.len = (len < 0L ? UNKNOWN_LENGTH : len);
+		}
+
+
+		@Override
+		public long length() {
+			return len;
+		}
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			if(len < 0L) {
+				copy(in, out);
+				return;
+			}
+			final byte[] buff = new byte[(int) Math.min(BUFFER_SIZE, Math.max(len, 1L))];
+			long pending = len;
+			while(pending > 0L) {
+				final int read = in.read(buff, 0, (int) Math.min(buff.length, pending));
+				if(read < 0) throw new EOFException("Stream is shorter than expected");
+				out.write(buff, 0, read);
+				pending -= read;
+			}
+		}
+		@Override
+		public InputStream getInputStream() {
+			return in;
+		}
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+
+	}
+
+
+	/**
+	 * Limits reading to a fixed number of bytes from the wrapped stream.
+	 */
+	public static class httpBoundedInputStream extends FilterInputStream {
+
+		private long remaining;
+		// message bodies leave the connection open
+		private final boolean closeWrapped;
+
+
+		public httpBoundedInputStream(final InputStream in, final long len) {
+			this(in, len, true);
+		}
+		/**
+		 * @param closeWrapped false to leave the wrapped stream open when closed.
+		 */
+		public httpBoundedInputStream(final InputStream in, final long len, final boolean closeWrapped) {
+			super(in);
+			this.remaining = len;
+			this.closeWrapped = closeWrapped;
+		}
+
+
+		public long getRemaining() {
+			return remaining;
+		}
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0L) return -1;
+			final int b = in.read();
+			if(b >= 0) remaining--;
+			return b;
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if(remaining <= 0L) return -1;
+			final int read = in.read(b, off, (int) Math.min(len, remaining));
+			if(read > 0) remaining -= read;
+			return read;
+		}
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = in.skip(Math.min(n, remaining));
+			if(skipped > 0L) remaining -= skipped;
+			return skipped;
+		}
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		@Override
+		public void close() throws IOException {
+			if(closeWrapped)
+				in.close();
+		}
+
+
+	}
+
+
+	/**
+	 * Encodes everything written to it with chunked transfer encoding.
+	 * finish() writes the last chunk, without closing the wrapped stream.
+	 */
+	public static class httpChunkedOutputStream extends FilterOutputStream {
+
+		private static final byte[] CRLF = new byte[] { '\r', '\n' };
+		private static final byte[] LAST = new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+
+		public httpChunkedOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if(len == 0) return;
+			out.write(Integer.toHexString(len).getBytes(UTF8));
+			out.write(CRLF);
+			out.write(b, off, len);
+			out.write(CRLF);
+		}
+		public void finish() throws IOException {
+			out.write(LAST);
+		}
+		@Override
+		public void close() throws IOException {
+			finish();
+			flush();
+		}
+
+
+	}
+
+
+	/**
+	 * Write buffer for a connection. Small writes are collected and sent
+	 * together, flush() is left to the owner of the connection so responses
+	 * can be coalesced. Large in-memory writes are sent with a single
+	 * gathering write including anything already buffered.
+	 */
+	public static class httpOutputBuffer extends OutputStream {
+
+		public static final int DEFAULT_SIZE = 16 * 1024; // 16K
+
+		private final OutputStream out;
+		private final WritableByteChannel channel;
+		private final byte[] buffer;
+		private int count = 0;
+
+
+		/**
+		 * @param out stream to write to.
+		 * @param channel channel of the same connection, or null.
+		 * @param size buffer size in bytes.
+		 */
+		public httpOutputBuffer(final OutputStream out, final WritableByteChannel channel, final int size) {
+			if(out == null) throw new NullPointerException();
+			if(size < 1) throw new IllegalArgumentException("Buffer size must be at least 1");
+			this.out = out;
+			this.channel = channel;
+			this.buffer = new byte[size];
+		}
+
+
+		public int capacity() {
+			return buffer.length;
+		}
+		/**
+		 * @return number of bytes waiting to be flushed.
+		 */
+		public int size() {
+			return count;
+		}
+
+
+		@Override
+		public void write(final int b) throws IOException {
+			if(count >= buffer.length)
+				flushBuffer();
+			buffer[count++] = (byte) b;
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if(len > buffer.length - count) {
+				// too large to buffer, send everything together
+				if(len >= buffer.length) {
+					write(new ByteBuffer[] { ByteBuffer.wrap(b, off, len) });
+					return;
+				}
+				flushBuffer();
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+		public void write(final ByteBuffer src) throws IOException {
+			if(src.remaining() > buffer.length - count) {
+				write(new ByteBuffer[] { src });
+				return;
+			}
+			final int len = src.remaining();
+			src.get(buffer, count, len);
+			count += len;
+		}
+		/**
+		 * Writes the buffered bytes followed by the given buffers, with
+		 * a single gathering write if the channel supports it.
+		 */
+		public void write(final ByteBuffer[] srcs) throws IOException {
+			if(channel instanceof GatheringByteChannel) {
+				final ByteBuffer[] all = new ByteBuffer[srcs.length + 1];
+				all[0] = ByteBuffer.wrap(buffer, 0, count);
+				System.arraycopy(srcs, 0, all, 1, srcs.length);
+				count = 0;
+				writeFully((GatheringByteChannel) channel, all);
+				return;
+			}
+			flushBuffer();
+			for(final ByteBuffer src : srcs)
+				NanoHTTPcommon.write(out, src);
+		}
+		/**
+		 * Sends buffered bytes to the socket.
+		 */
+		public void flushBuffer() throws IOException {
+			if(count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			out.flush();
+		}
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				out.close();
+			}
+		}
+
+
+	}
+
+
+	/**
+	 * Flushes a stream, unless it's an httpOutputBuffer which is flushed
+	 * by the owner of the connection once there's nothing more to send.
+	 */
+	public static void deferredFlush(final OutputStream out) throws IOException {
+		if(out instanceof httpOutputBuffer) return;
+		out.flush();
+	}
+	/**
+	 * Writes the remaining bytes of a buffer to a stream.
+	 */
+	public static void write(final OutputStream out, final ByteBuffer src) throws IOException {
+		if(out instanceof httpOutputBuffer) {
+			((httpOutputBuffer) out).write(src);
+			return;
+		}
+		if(src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+			src.position(src.limit());
+			return;
+		}
+		final byte[] buff = new byte[Math.min(httpBody.BUFFER_SIZE, src.remaining())];
+		while(src.hasRemaining()) {
+			final int size = Math.min(buff.length, src.remaining());
+			src.get(buff, 0, size);
+			out.write(buff, 0, size);
+		}
+	}
+
+
+	/**
+	 * Copies a stream until end of file.
+	 * @return number of bytes copied.
+	 */
+	public static long copy(final InputStream in, final OutputStream out) throws IOException {
+		final byte[] buff = new byte[httpBody.BUFFER_SIZE];
+		long total = 0L;
+		int read;
+		while((read = in.read(buff)) >= 0) {
+			out.write(buff, 0, read);
+			total += read;
+		}
+		return total;
+	}
+	/**
+	 * Writes all remaining bytes of a buffer to a blocking channel.
+	 */
+	public static void writeFully(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+	/**
+	 * Writes all remaining bytes of the buffers to a blocking channel,
+	 * as few system calls as possible.
+	 */
+	public static void writeFully(final GatheringByteChannel channel, final ByteBuffer[] buffers) throws IOException {
+		int first = 0;
+		while(first < buffers.length) {
+			channel.write(buffers, first, buffers.length - first);
+			while(first < buffers.length && !buffers[first].hasRemaining())
+				first++;
+		}
+	}
+	/**
+	 * Writes as much of the buffers as a non-blocking channel takes,
+	 * in one call when the channel can gather.
+	 * @return number of bytes written.
+	 */
+	public static long write(final WritableByteChannel channel, final ByteBuffer[] buffers) throws IOException {
+		if(channel instanceof GatheringByteChannel)
+			return ((GatheringByteChannel) channel).write(buffers);
+		long total = 0L;
+		for(final ByteBuffer buffer : buffers) {
+			total += channel.write(buffer);
+			if(buffer.hasRemaining()) break;
+		}
+		return total;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// message parsing
+
+
+	/**
+	 * Buffered input for a connection, shared by header parsing and body
+	 * reading so no bytes are lost between the two. Kept for the life of
+	 * the connection.
+	 */
+	public static class httpInputBuffer extends InputStream {
+
+		public static final int DEFAULT_SIZE = 8 * 1024; // 8K
+		// lines remembered by the line cache, a power of 2
+		public static final int LINE_CACHE_SIZE = 32;
+		// longer lines aren't cached
+		public static final int MAX_CACHED_LINE = 256;
+
+		private final InputStream in;
+		private final byte[] buffer;
+		private int pos = 0;
+		private int count = 0;
+		// reused between lines
+		private byte[] line = new byte[256];
+		// recent short lines and their strings, null if not caching
+		private byte[][] cachedBytes = null;
+		private String[] cachedLines = null;
+
+		// minimum data rate, measured over time spent waiting on the socket
+		private volatile int minRate = 0;
+		private volatile long rateGrace = 0L;
+		private long waitTime = 0L;
+		private long waitBytes = 0L;
+		private boolean waitIdle = false;
+
+
+		public httpInputBuffer(final InputStream in) {
+			this(in, DEFAULT_SIZE);
+		}
+		public httpInputBuffer(final InputStream in, final int size) {
+			if(in == null) throw new NullPointerException();
+			if(size < 1) throw new IllegalArgumentException("Buffer size must be at least 1");
+			this.in = in;
+			this.buffer = new byte[size];
+		}
+
+
+		/**
+		 * @return number of bytes already read from the socket and
+		 *   waiting in the buffer.
+		 */
+		public int buffered() {
+			return count - pos;
+		}
+		/**
+		 * Takes whatever is waiting in the buffer, for when the connection
+		 * is handed over to another protocol.
+		 */
+		public byte[] drain() {
+			final byte[] result = new byte[count - pos];
+			System.arraycopy(buffer, pos, result, 0, result.length);
+			pos = 0;
+			count = 0;
+			return result;
+		}
+		/**
+		 * Adds bytes which were read from the connection elsewhere,
+		 * after those already buffered.
+		 */
+		public void append(final byte[] b, final int off, final int len) {
+			if(len > buffer.length - (count - pos))
+				throw new IllegalArgumentException("Not enough room in the buffer");
+			if(count + len > buffer.length) {
+				System.arraycopy(buffer, pos, buffer, 0, count - pos);
+				count -= pos;
+				pos = 0;
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+		/**
+		 * @return size of the buffer.
+		 */
+		public int capacity() {
+			return buffer.length;
+		}
+		/**
+		 * Remembers recent short lines, so a line read again, like a
+		 * header a keep-alive client sends with every request, gives the
+		 * same string without allocating a new one.
+		 */
+		public void setLineCache(final boolean enabled) {
+			if(!enabled) {
+				cachedBytes = null;
+				cachedLines = null;
+			} else
+			if(cachedLines == null) {
+				cachedBytes = new byte[LINE_CACHE_SIZE][];
+				cachedLines = new String[LINE_CACHE_SIZE];
+			}
+		}
+		private boolean fill() throws IOException {
+			pos = 0;
+			count = 0;
+			final int read = readSocket(buffer, 0, buffer.length);
+			if(read <= 0) return false;
+			count = read;
+			return true;
+		}
+
+
+		/**
+		 * Fails reads from a client which sends slower than a minimum rate,
+		 * to free connections held open by trickling a request in. Only time
+		 * spent waiting on the socket counts, not time spent by a handler.
+		 * @param bytesPerSecond minimum rate, or 0 to disable.
+		 * @param grace milliseconds of waiting before the rate is enforced.
+		 */
+		public void setMinRate(final int bytesPerSecond, final long grace) {
+			this.minRate = (bytesPerSecond < 0 ? 0 : bytesPerSecond);
+			this.rateGrace = (grace < 0L ? 0L : grace) * 1000000L;
+		}
+		/**
+		 * Starts measuring the rate again, for a new request. Waiting for its
+		 * first byte doesn't count, that's a keep-alive connection idling.
+		 */
+		public void resetRate() {
+			waitTime = 0L;
+			waitBytes = 0L;
+			waitIdle = (count - pos == 0);
+		}
+		private int readSocket(final byte[] b, final int off, final int len) throws IOException {
+			final int rate = this.minRate;
+			if(rate <= 0)
+				return in.read(b, off, len);
+			final long start = System.nanoTime();
+			final int read = in.read(b, off, len);
+			if(waitIdle) {
+				waitIdle = false;
+				return read;
+			}
+			waitTime += System.nanoTime() - start;
+			if(read > 0)
+				waitBytes += read;
+			if(waitTime > rateGrace && (waitBytes * 1000000000.0) / waitTime < rate)
+				throw new httpLimitException(httpStatus.REQUEST_TIMEOUT, "Client is sending too slowly");
+			return read;
+		}
+
+
+		/**
+		 * Reads a line terminated by LF or CRLF, without the terminator.
+		 * @return the line, or null at end of stream.
+		 */
+		public String readLine() throws IOException {
+			return readLine(0);
+		}
+		/**
+		 * Reads a line, failing as soon as it's longer than allowed rather
+		 * than buffering all of it.
+		 * @param max most bytes in the line, or 0 for no limit.
+		 * @return the line, or null at end of stream.
+		 * @throws httpLimitException if the line is too long.
+		 */
+		public String readLine(final int max) throws IOException {
+			int len = 0;
+			while(true) {
+				if(pos >= count && !fill()) {
+					if(len == 0) return null;
+					break;
+				}
+				// scan for end of line
+				int end = pos;
+				while(end < count && buffer[end] != '\n')
+					end++;
+				final int size = end - pos;
+				// allow for the CR
+				if(max > 0 && len + size > max + 1)
+					throw new httpLimitException(httpStatus.HEADERS_TOO_LARGE, "Line is longer than "+Integer.toString(max)+" bytes");
+				if(len + size > line.length)
+					line = Arrays.copyOf(line, Math.max(line.length * 2, len + size));
+				System.arraycopy(buffer, pos, line, len, size);
+				len += size;
+				if(end < count) {
+					pos = end + 1;
+					break;
+				}
+				pos = count;
+			}
+			if(len > 0 && line[len - 1] == '\r')
+				len--;
+			if(cachedLines != null && len <= MAX_CACHED_LINE)
+				return getCachedLine(len);
+			return new String(line, 0, len, UTF8);
+		}
+		private String getCachedLine(final int len) throws IOException {
+			int hash = len;
+			for(int i = 0; i < len; i++)
+				hash = (hash * 31) + line[i];
+			final int slot = (hash ^ (hash >>> 16)) & (LINE_CACHE_SIZE - 1);
+			final byte[] cached = cachedBytes[slot];
+			if(cached != null && cached.length == len) {
+				int i = 0;
+				while(i < len && cached[i] == line[i])
+					i++;
+				if(i == len)
+					return cachedLines[slot];
+			}
+			final String str = new String(line, 0, len, UTF8);
+			cachedBytes[slot] = Arrays.copyOf(line, len);
+			cachedLines[slot] = str;
+			return str;
+		}
+
+
+		@Override
+		public int read() throws IOException {
+			if(pos >= count && !fill())
+				return -1;
+			return buffer[pos++] & 0xFF;
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if(len == 0) return 0;
+			if(pos >= count) {
+				// large read, skip the buffer
+				if(len >= buffer.length)
+					return readSocket(b, off, len);
+				if(!fill())
+					return -1;
+			}
+			final int size = Math.min(len, count - pos);
+			System.arraycopy(buffer, pos, b, off, size);
+			pos += size;
+			return size;
+		}
+		@Override
+		public long skip(final long n) throws IOException {
+			if(n <= 0L) return 0L;
+			if(pos < count) {
+				final int size = (int) Math.min(n, count - pos);
+				pos += size;
+				return size;
+			}
+			return in.skip(n);
+		}
+		@Override
+		public int available() throws IOException {
+			return (count - pos) + in.available();
+		}
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+
+	}
+
+
+	/**
+	 * A client went past a size or rate limit.
+	 */
+	public static class httpLimitException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final httpStatus status;
+		public httpLimitException(final httpStatus status, final String msg) {
+			super(msg);
+			this.status = status;
+		}
+		/**
+		 * @return status to answer the client with.
+		 */
+		public httpStatus getStatus() {
+			return status;
+		}
+	}
+
+
+	/**
+	 * Input limited to a most number of bytes, failing once the limit
+	 * is passed rather than ending the stream.
+	 */
+	public static class httpLimitedInputStream extends FilterInputStream {
+
+		private final long max;
+		private long count = 0L;
+
+
+		public httpLimitedInputStream(final InputStream in, final long max) {
+			super(in);
+			this.max = max;
+		}
+
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if(b >= 0)
+				count(1);
+			return b;
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int read = super.read(b, off, len);
+			if(read > 0)
+				count(read);
+			return read;
+		}
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = super.skip(n);
+			if(skipped > 0L)
+				count(skipped);
+			return skipped;
+		}
+		private void count(final long bytes) throws httpLimitException {
+			count += bytes;
+			if(count > max)
+				throw new httpLimitException(httpStatus.REQUEST_ENTITY_TOO_LARGE, "Body is larger than "+Long.toString(max)+" bytes");
+		}
+
+
+	}
+
+
+	/**
+	 * Decodes a chunked transfer encoded body. Trailer headers are read
+	 * and discarded, leaving the connection at the start of the next message.
+	 */
+	public static class httpChunkedInputStream extends InputStream {
+
+		// chunk size lines only carry a size and extensions
+		public static final int MAX_CHUNK_LINE = 4096;
+		public static final int MAX_TRAILERS = 8 * 1024; // 8K
+
+		private final httpInputBuffer in;
+		private long remaining = 0L;
+		private boolean eof = false;
+
+
+		public httpChunkedInputStream(final httpInputBuffer in) {
+			if(in == null) throw new NullPointerException();
+			this.in = in;
+		}
+
+
+		private boolean nextChunk() throws IOException {
+			if(eof) return false;
+			String line = in.readLine(MAX_CHUNK_LINE);
+			if(line == null) throw new EOFException("Unexpected end of chunked body");
+			// CRLF after the previous chunk
+			if(line.isEmpty()) {
+				line = in.readLine(MAX_CHUNK_LINE);
+				if(line == null) throw new EOFException("Unexpected end of chunked body");
+			}
+			final int ext = line.indexOf(';');
+			final String size = (ext >= 0 ? line.substring(0, ext) : line).trim();
+			try {
+				remaining = Long.parseLong(size, 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: "+size);
+			}
+			if(remaining < 0L) throw new IOException("Invalid chunk size: "+size);
+			if(remaining == 0L) {
+				// skip trailers
+				readHeaders(in, null, 0, MAX_TRAILERS);
+				eof = true;
+				return false;
+			}
+			return true;
+		}
+
+
+		public boolean isFinished() {
+			return eof;
+		}
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			final int read = read(b, 0, 1);
+			return (read <= 0 ? -1 : b[0] & 0xFF);
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if(len == 0) return 0;
+			if(remaining <= 0L && !nextChunk())
+				return -1;
+			final int read = in.read(b, off, (int) Math.min(len, remaining));
+			if(read < 0) throw new EOFException("Unexpected end of chunked body");
+			remaining -= read;
+			return read;
+		}
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.buffered(), remaining);
+		}
+
+
+	}
+
+
+	/**
+	 * Reads header lines up to the blank line ending the header block.
+	 * Header names are stored lowercase, since they're case insensitive
+	 * and vary by client.
+	 * @param in connection input.
+	 * @param headers storage for the headers, or null to discard them.
+	 */
+	public static void readHeaders(final httpInputBuffer in, final Map<Object, Object> headers) throws IOException {
+		readHeaders(in, headers, 0, 0);
+	}
+	/**
+	 * Reads header lines, failing as soon as the block is larger than allowed.
+	 * @param maxCount most header lines, or 0 for no limit.
+	 * @param maxBytes most bytes in the header block, or 0 for no limit.
+	 * @throws httpLimitException if the header block is too large.
+	 */
+	public static void readHeaders(final httpInputBuffer in, final Map<Object, Object> headers,
+			final int maxCount, final int maxBytes) throws IOException {
+		readHeaders(in, headers, null, maxCount, maxBytes);
+	}
+	/**
+	 * @param lines also collects the raw header lines, or null.
+	 */
+	public static void readHeaders(final httpInputBuffer in, final Map<Object, Object> headers,
+			final httpHeaderLines lines, final int maxCount, final int maxBytes) throws IOException {
+		int count = 0;
+		int remaining = maxBytes;
+		String line = in.readLine(maxBytes);
+		while(line != null && line.trim().length() > 0) {
+			if(maxCount > 0 && ++count > maxCount)
+				throw new httpLimitException(httpStatus.HEADERS_TOO_LARGE, "More than "+Integer.toString(maxCount)+" header lines");
+			if(maxBytes > 0) {
+				remaining -= line.length() + 2;
+				if(remaining <= 0)
+					throw new httpLimitException(httpStatus.HEADERS_TOO_LARGE, "Headers are larger than "+Integer.toString(maxBytes)+" bytes");
+			}
+			if(headers != null)
+				putHeader(headers, line);
+			if(lines != null)
+				lines.add(line);
+			line = in.readLine(remaining);
+		}
+	}
+	/**
+	 * Adds a header line to a map of headers, with a lowercase name.
+	 */
+	public static void putHeader(final Map<Object, Object> headers, final String line) {
+		final int p = line.indexOf(':');
+		if(p < 0) return;
+		final String name  = line.substring(0, p).trim().toLowerCase(Locale.US);
+		final String value = line.substring(p+1).trim();
+		// repeated lengths are kept so conflicts can be refused
+		final Object previous = ("content-length".equals(name) ? headers.get(name) : null);
+		headers.put(name, (previous == null ? value : previous+", "+value));
+	}
+
+
+	/**
+	 * Raw header lines of a message. A connection keeps the lines of its
+	 * previous request, so a header block sent again unchanged doesn't
+	 * need to be parsed again.
+	 */
+	public static class httpHeaderLines {
+
+		private String[] lines = new String[16];
+		private int count = 0;
+
+
+		public void clear() {
+			Arrays.fill(lines, 0, count, null);
+			count = 0;
+		}
+		public void add(final String line) {
+			if(count == lines.length)
+				lines = Arrays.copyOf(lines, count * 2);
+			lines[count++] = line;
+		}
+		public int size() {
+			return count;
+		}
+		/**
+		 * @return true if both hold the same lines in the same order.
+		 */
+		public boolean matches(final httpHeaderLines other) {
+			if(other == null || other.count != this.count) return false;
+			for(int i = 0; i < count; i++) {
+				if(!lines[i].equals(other.lines[i]))
+					return false;
+			}
+			return true;
+		}
+		/**
+		 * Parses the lines into a map of headers.
+		 */
+		public void putAll(final Map<Object, Object> headers) {
+			for(int i = 0; i < count; i++)
+				putHeader(headers, lines[i]);
+		}
+
+
+	}
+
+
+	/**
+	 * Lowercase forms of common header names, so looking one up
+	 * doesn't allocate a new string.
+	 */
+	private static final Map<String, String> HEADER_KEYS = new HashMap<String, String>();
+	static {
+		final String[] names = {
+			"Accept", "Accept-Encoding", "Accept-Language", "Authorization",
+			"Cache-Control", "Connection", "Content-Length", "Content-Type",
+			"Cookie", "Expect", "Host", "HTTP2-Settings", "If-Modified-Since", "If-None-Match",
+			"Keep-Alive", "Last-Event-ID", "Range", "Referer", "Transfer-Encoding",
+			"Upgrade", "User-Agent"
+		};
+		for(final String name : names)
+			HEADER_KEYS.put(name, name.toLowerCase(Locale.US));
+	}
+	/**
+	 * @return lowercase header name, as headers are stored.
+	 */
+	public static String getHeaderKey(final String name) {
+		final String key = HEADER_KEYS.get(name);
+		return (key == null ? name.toLowerCase(Locale.US) : key);
+	}
+	/**
+	 * @return true if the header value has the token, ignoring case,
+	 *   for example "keep-alive" in a Connection header.
+	 */
+	public static boolean hasToken(final String value, final String token) {
+		if(value == null) return false;
+		final int last = value.length() - token.length();
+		for(int i = 0; i <= last; i++) {
+			if(value.regionMatches(true, i, token, 0, token.length()))
+				return true;
+		}
+		return false;
+	}
+	/**
+	 * Opens a stream for the body following a header block.
+	 * @param in connection input.
+	 * @param transferEncoding value of the Transfer-Encoding header.
+	 * @param contentLength value of the Content-Length header.
+	 * @param untilClose read until end of stream if no length is given,
+	 *   used for responses, otherwise there's no body.
+	 * @return body stream, or null if there's no body.
+	 */
+	public static InputStream openBody(final httpInputBuffer in, final String transferEncoding,
+			final String contentLength, final boolean untilClose) throws IOException {
+		if(transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked"))
+			return new httpChunkedInputStream(in);
+		if(contentLength != null) {
+			final long len = parseContentLength(contentLength);
+			if(len < 0L) throw new IOException("Invalid Content-Length: "+contentLength);
+			if(len == 0L) return null;
+			return new httpBoundedInputStream(in, len, false);
+		}
+		if(untilClose)
+			return in;
+		return null;
+	}
+
+
+	/**
+	 * Parses a Content-Length value, which may list the same length
+	 * more than once when the header was repeated.
+	 * @return length in bytes, or -1 if invalid or conflicting.
+	 */
+	public static long parseContentLength(final String value) {
+		if(value == null) return -1L;
+		long len = -1L;
+		for(final String part : value.split(",")) {
+			final String str = part.trim();
+			if(str.isEmpty() || str.length() > 18) return -1L;
+			for(int i = 0; i < str.length(); i++) {
+				if(str.charAt(i) < '0' || str.charAt(i) > '9')
+					return -1L;
+			}
+			final long next = Long.parseLong(str);
+			if(len >= 0L && len != next) return -1L;
+			len = next;
+		}
+		return len;
+	}
+
+
+	/**
+	 * Appends a header line to a header block being built.
+	 * @throws IllegalArgumentException if the name or value contain line breaks.
+	 */
+	public static void appendHeader(final StringBuilder head, final String name, final String value) {
+		if(name.indexOf('\r') >= 0 || name.indexOf('\n') >= 0 || name.indexOf(':') >= 0)
+			throw new IllegalArgumentException("Invalid header name: "+name);
+		final String str = (value == null ? "" : value);
+		if(str.indexOf('\r') >= 0 || str.indexOf('\n') >= 0)
+			throw new IllegalArgumentException("Invalid value for header: "+name);
+		head.append(name).append(": ").append(str).append("\r\n");
+	}
+
+
+	/**
+	 * Per-thread scratch space for building a header block, so sending
+	 * doesn't allocate a new builder and byte array every time. The
+	 * bytes are only valid until the same thread builds the next one.
+	 */
+	public static class httpHeadBuffer {
+
+		// larger buffers aren't kept after use
+		private static final int MAX_KEEP = 16 * 1024; // 16K
+
+		private static final ThreadLocal<httpHeadBuffer> local = new ThreadLocal<httpHeadBuffer>() {
+			@Override
+			protected httpHeadBuffer initialValue() {
+				return new httpHeadBuffer();
+			}
+		};
+
+		public final StringBuilder text = new StringBuilder(256);
+		private byte[] bytes = new byte[512];
+		private int length = 0;
+
+
+		/**
+		 * @return this thread's buffer, emptied.
+		 */
+		public static httpHeadBuffer get() {
+			httpHeadBuffer buffer = local.get();
+			if(buffer.text.capacity() > MAX_KEEP || buffer.bytes.length > MAX_KEEP) {
+				buffer = new httpHeadBuffer();
+				local.set(buffer);
+			}
+			buffer.text.setLength(0);
+			buffer.length = 0;
+			return buffer;
+		}
+
+
+		/**
+		 * Encodes the text, ascii directly and anything else as UTF-8.
+		 */
+		public void encode() {
+			final int len = text.length();
+			if(bytes.length < len)
+				bytes = new byte[Math.max(len, bytes.length * 2)];
+			for(int i = 0; i < len; i++) {
+				final char chr = text.charAt(i);
+				if(chr >= 0x80) {
+					try {
+						bytes = text.toString().getBytes(UTF8);
+					} catch (UnsupportedEncodingException e) {
+						throw new RuntimeException(e);
+					}
+					length = bytes.length;
+					return;
+				}
+				bytes[i] = (byte) chr;
+			}
+			length = len;
+		}
+		public byte[] getBytes() {
+			return bytes;
+		}
+		public int length() {
+			return length;
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Formats a timestamp for use in http headers.
+	 * @param time milliseconds since the epoch.
+	 * @return example: Thu, 02 Jan 2014 16:34:42 GMT
+	 */
+	public static String formatDate(final long time) {
+		final SimpleDateFormat gmtFormat =
+			new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return gmtFormat.format(new Date(time));
+	}
+	/**
+	 * Current time formatted for a Date header, formatted at most once a second.
+	 */
+	public static String currentDate() {
+		final long second = System.currentTimeMillis() / 1000L;
+		final httpCachedDate cached = cachedDate;
+		if(cached != null && cached.second == second)
+			return cached.text;
+		final String text = formatDate(second * 1000L);
+		cachedDate = new httpCachedDate(second, text);
+		return text;
+	}
+	private static volatile httpCachedDate cachedDate = null;
+	private static class httpCachedDate {
+		public final long second;
+		public final String text;
+		public httpCachedDate(final long second, final String text) {
+			this.second = second;
+			this.text   = text;
+		}
+	}
+	/**
+	 * Parses a date from an http header.
+	 * @param str formatted date, for example: Thu, 02 Jan 2014 16:34:42 GMT
+	 * @return milliseconds since the epoch, or -1 if invalid.
+	 */
+	public static long parseDate(final String str) {
+		if(str == null || str.isEmpty())
+			return -1L;
+		final SimpleDateFormat gmtFormat =
+			new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return gmtFormat.parse(str.trim()).getTime();
+		} catch (ParseException ignore) {
+			return -1L;
+		}
+	}
+
+
 	/**
 	 * Safely and silently close a Closeable object
 	 */
@@ -0,0 +1,277 @@
+package com.poixson.nanosocket;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPserver.httpCancelReason;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * Execution lane, a bulkhead for request handlers. Handlers or uri
+ * prefixes assigned to a lane with NanoHTTPserver.setLane() run on the
+ * lane's own threads, so a slow endpoint can only use up its own lane
+ * while the connection threads stay free for everything else.
+ * <p>
+ * When all of the lane's threads are busy and its queue is full, or a
+ * request isn't answered in time, the client gets 503 Service Unavailable
+ * right away.
+ * </p>
+ */
+public class NanoHTTPlane implements Closeable {
+
+	public static final long DEFAULT_TIMEOUT = 30000L;
+
+	private final String name;
+	private final ThreadPoolExecutor pool;
+	private final long timeout;
+
+	// stats
+	private volatile long countCompleted = 0L;
+	private volatile long countRejected = 0L;
+	private volatile long countTimedOut = 0L;
+	private volatile long countQueueNanos = 0L;
+	private volatile long countServiceNanos = 0L;
+
+
+	public NanoHTTPlane(final String name, final int concurrency, final int queueDepth) {
+		this(name, concurrency, queueDepth, DEFAULT_TIMEOUT);
+	}
+	/**
+	 * @param name lane name, used for thread names.
+	 * @param concurrency requests handled at once.
+	 * @param queueDepth requests which may wait for a thread, or 0 for none.
+	 * @param timeout most time to wait for a response, including time in
+	 *   the queue, in milliseconds. 0 waits forever.
+	 */
+	public NanoHTTPlane(final String name, final int concurrency, final int queueDepth, final long timeout) {
+		if(name == null || name.isEmpty()) throw new NullPointerException();
+		if(concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1");
+		if(queueDepth < 0) throw new IllegalArgumentException("Queue depth can't be negative");
+		this.name = name;
+		this.timeout = (timeout < 0L ? 0L : timeout);
+		final BlockingQueue<Runnable> queue = (queueDepth > 0
+			? new ArrayBlockingQueue<Runnable>(queueDepth)
+			: new SynchronousQueue<Runnable>());
+		this.pool = new ThreadPoolExecutor(
+			concurrency, concurrency,
+			60L, TimeUnit.SECONDS,
+			queue,
+			new ThreadFactory() {
+				private volatile int index = 0;
+				@Override
+				public Thread newThread(final Runnable task) {
+					final Thread thread = new Thread(task, "NanoHTTPlane:"+name+"["+Integer.toString(++index)+"]");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}
+		);
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+
+	public String getName() {
+		return name;
+	}
+	public long getTimeout() {
+		return timeout;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// execute
+
+
+	/**
+	 * Runs a handler on the lane and waits for its response.
+	 * @return the handler's response, or 503 if the lane is full or
+	 *   the handler took too long.
+	 */
+	public httpServerResponse execute(final httpServerRequest request, final Callable<httpServerResponse> handler) {
+		final httpLaneTask task = new httpLaneTask(handler);
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			countRejected++;
+			return unavailable(request, "Too many requests for "+name);
+		}
+		if(!task.await()) {
+			countTimedOut++;
+			request.cancel(httpCancelReason.TIMEOUT);
+			final httpServerResponse response = unavailable(request, "Timed out in "+name);
+			// the handler may still be reading the request body
+			response.setKeepAlive(false);
+			return response;
+		}
+		if(task.rejected) {
+			countRejected++;
+			return unavailable(request, name+" is closed");
+		}
+		if(task.error != null) {
+			if(task.error instanceof RuntimeException)
+				throw (RuntimeException) task.error;
+			throw new RuntimeException(task.error);
+		}
+		return task.result;
+	}
+
+
+	protected httpServerResponse unavailable(final httpServerRequest request, final String msg) {
+		final httpServerResponse response = new httpServerResponse(request,
+			httpStatus.SERVICE_UNAVAILABLE, NanoHTTPserver.DEFAULT_MIME, msg);
+		response.addHeader("Retry-After", "1");
+		response.setCacheTTL(0L);
+		return response;
+	}
+
+
+	private class httpLaneTask implements Runnable {
+
+		private final Callable<httpServerResponse> handler;
+		private final long queued = System.nanoTime();
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		// set before done is released
+		public volatile httpServerResponse result = null;
+		public volatile Exception error = null;
+		// dropped from the queue when the lane was closed
+		public volatile boolean rejected = false;
+
+		// guarded by this
+		private boolean abandoned = false;
+		private Thread runner = null;
+
+
+		public httpLaneTask(final Callable<httpServerResponse> handler) {
+			this.handler = handler;
+		}
+
+
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			synchronized(this) {
+				// timed out while queued
+				if(abandoned) return;
+				runner = Thread.currentThread();
+			}
+			countQueueNanos += (start - queued);
+			httpServerResponse response = null;
+			try {
+				response = handler.call();
+			} catch (Exception e) {
+				this.error = e;
+			} finally {
+				countServiceNanos += (System.nanoTime() - start);
+				countCompleted++;
+				synchronized(this) {
+					runner = null;
+					// clear a timeout interrupt before the thread is reused
+					Thread.interrupted();
+					if(abandoned) {
+						if(response != null)
+							NanoHTTPcommon.safeClose(response.getBody());
+					} else {
+						this.result = response;
+					}
+				}
+				done.countDown();
+			}
+		}
+
+
+		public void reject() {
+			rejected = true;
+			done.countDown();
+		}
+		/**
+		 * @return false if the timeout passed first.
+		 */
+		public boolean await() {
+			try {
+				if(timeout == 0L)
+					done.await();
+				else
+					done.await(timeout - ((System.nanoTime() - queued) / 1000000L), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized(this) {
+				if(done.getCount() == 0L) return true;
+				abandoned = true;
+				if(runner == null)
+					pool.remove(this);
+				else
+					runner.interrupt();
+			}
+			return false;
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// stats
+
+
+	/**
+	 * @return requests being handled now.
+	 */
+	public int getActive() {
+		return pool.getActiveCount();
+	}
+	/**
+	 * @return requests waiting for a thread.
+	 */
+	public int getQueued() {
+		return pool.getQueue().size();
+	}
+	public long totalCompleted() {
+		return countCompleted;
+	}
+	/**
+	 * @return requests turned away because the lane was full.
+	 */
+	public long totalRejected() {
+		return countRejected;
+	}
+	public long totalTimedOut() {
+		return countTimedOut;
+	}
+	/**
+	 * @return time requests spent waiting for a thread, in milliseconds.
+	 */
+	public long totalQueueTime() {
+		return countQueueNanos / 1000000L;
+	}
+	/**
+	 * @return time spent in handlers, in milliseconds.
+	 */
+	public long totalServiceTime() {
+		return countServiceNanos / 1000000L;
+	}
+
+
+	/**
+	 * Stops the lane threads. Requests still waiting get 503.
+	 */
+	@Override
+	public void close() {
+		for(final Runnable task : pool.shutdownNow())
+			((httpLaneTask) task).reject();
+	}
+
+
+}
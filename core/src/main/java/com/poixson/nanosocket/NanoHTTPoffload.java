@@ -0,0 +1,508 @@
+package com.poixson.nanosocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMethod;
+import com.poixson.nanosocket.NanoHTTPselector.httpSelectorHandler;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * Write scheduler for large responses, so slow clients don't hold a
+ * worker thread or the handler's resources for the whole transfer.
+ * <p>
+ * The worker writes the response into a spool, which keeps it in memory
+ * up to a threshold and spills the rest to a temp file, then closes the
+ * body and hands the spool and connection over. The spool is drained by
+ * the server's selector with non-blocking writes, after which a
+ * keep-alive connection goes back to a new worker thread.
+ * </p>
+ * Shaped connections and upgrades are always sent by the worker.
+ */
+public class NanoHTTPoffload {
+
+	// smaller responses are sent by the worker
+	public static final long DEFAULT_MIN_SIZE         = 64L * 1024L;        // 64K
+	// kept in memory per response, the rest goes to a temp file
+	public static final int  DEFAULT_MEMORY_THRESHOLD = 256 * 1024;         // 256K
+	// kept in memory by all spools together
+	public static final long DEFAULT_MAX_MEMORY       = 32L * 1024L * 1024L; // 32M
+	public static final int  BUFFER_SIZE              = 16 * 1024;          // 16K
+
+	private volatile long minSize = DEFAULT_MIN_SIZE;
+	private volatile int memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+	private volatile long maxMemory = DEFAULT_MAX_MEMORY;
+	private volatile File tempDir = null;
+	private volatile long timeout = NanoHTTPcommon.SOCKET_TIMEOUT;
+
+	// guarded by this
+	private long memory = 0L;
+	private int active = 0;
+
+	// stats
+	private volatile long countOffloaded = 0L;
+	private volatile long countSpilled = 0L;
+	private volatile long countCompleted = 0L;
+	private volatile long countFailed = 0L;
+	private volatile long countBytes = 0L;
+
+
+	public NanoHTTPoffload() {
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// config
+
+
+	/**
+	 * @param size responses with a body at least this large are offloaded,
+	 *   along with any of unknown length.
+	 */
+	public void setMinSize(final long size) {
+		this.minSize = (size < 0L ? 0L : size);
+	}
+	public long getMinSize() {
+		return minSize;
+	}
+	/**
+	 * @param threshold bytes of each response kept in memory before
+	 *   spilling to a temp file.
+	 */
+	public void setMemoryThreshold(final int threshold) {
+		this.memoryThreshold = (threshold < 0 ? 0 : threshold);
+	}
+	public int getMemoryThreshold() {
+		return memoryThreshold;
+	}
+	/**
+	 * @param max bytes held in memory by all spools together. Past
+	 *   this, spools go straight to temp files.
+	 */
+	public void setMaxMemory(final long max) {
+		this.maxMemory = (max < 0L ? 0L : max);
+	}
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+	/**
+	 * @param dir directory for temp files, or null for the system default.
+	 */
+	public void setTempDir(final File dir) {
+		this.tempDir = dir;
+	}
+	public File getTempDir() {
+		return tempDir;
+	}
+	/**
+	 * @param timeout close the connection when the client hasn't taken
+	 *   any data for this long, in milliseconds. 0 waits forever.
+	 */
+	public void setTimeout(final long timeout) {
+		this.timeout = (timeout < 0L ? 0L : timeout);
+	}
+	public long getTimeout() {
+		return timeout;
+	}
+
+
+	/**
+	 * @return true if the response is large enough to offload.
+	 */
+	public boolean accepts(final httpServerRequest request, final httpServerResponse response) {
+		if(response.getUpgrade() != null) return false;
+		if(httpMethod.HEAD.equals(request.getMethod())) return false;
+		if(!response.getStatus().allowsBody()) return false;
+		final httpBody body = response.getBody();
+		if(body == null) return false;
+		final long length = body.length();
+		return (length < 0L || length >= minSize);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// offload
+
+
+	/**
+	 * @return new spool to write a response into.
+	 */
+	public httpSpool spool() {
+		return new httpSpool();
+	}
+
+
+	/**
+	 * Hands a spooled response to the server's selector to be written.
+	 * @param index connection index, kept by the next worker.
+	 * @param socket connection socket, or null for a unix domain socket.
+	 * @param io channel to write through, the socket itself or a TLS layer over it.
+	 * @param leftover bytes already read past the request.
+	 * @param keepAlive give the connection back to a worker when done,
+	 *   otherwise close it.
+	 */
+	public void drain(final NanoHTTPserver server, final int index,
+			final Socket socket, final SocketChannel channel, final ByteChannel io,
+			final httpSpool spool, final byte[] leftover, final boolean keepAlive) throws IOException {
+		final NanoHTTPselector selector = server.getSelector();
+		final httpDrain drain = new httpDrain(server, selector, index, socket, channel, io, spool, leftover, keepAlive);
+		synchronized(this) {
+			active++;
+		}
+		try {
+			selector.register(channel, drain);
+		} catch (IOException e) {
+			drain.end();
+			throw e;
+		}
+		countOffloaded++;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// memory
+
+
+	private synchronized boolean reserve(final long bytes) {
+		if(memory + bytes > maxMemory) return false;
+		memory += bytes;
+		return true;
+	}
+	private synchronized void free(final long bytes) {
+		memory -= bytes;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// spool
+
+
+	/**
+	 * Response bytes, in memory up to the threshold and in a temp file
+	 * after that. Written by a worker, then read by the selector.
+	 */
+	public class httpSpool extends OutputStream {
+
+		private byte[] buffer = null;
+		private int count = 0;
+		private File path = null;
+		private RandomAccessFile file = null;
+		private long fileLength = 0L;
+		private boolean closed = false;
+
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if(closed) throw new IOException("Spool is closed");
+			if(len <= 0) return;
+			if(file == null) {
+				if(count + len <= memoryThreshold && ensure(count + len)) {
+					System.arraycopy(b, off, buffer, count, len);
+					count += len;
+					return;
+				}
+				spill();
+			}
+			file.write(b, off, len);
+			fileLength += len;
+		}
+		/**
+		 * Grows the buffer within the memory budget.
+		 */
+		private boolean ensure(final int need) {
+			final int capacity = (buffer == null ? 0 : buffer.length);
+			if(need <= capacity) return true;
+			final int grow = Math.min(
+				Math.max(need, Math.max(capacity * 2, BUFFER_SIZE)),
+				memoryThreshold
+			);
+			if(!reserve(grow - capacity)) return false;
+			final byte[] next = new byte[grow];
+			if(count > 0)
+				System.arraycopy(buffer, 0, next, 0, count);
+			buffer = next;
+			return true;
+		}
+		private void spill() throws IOException {
+			path = File.createTempFile("nanohttp-", ".spool", tempDir);
+			file = new RandomAccessFile(path, "rw");
+			countSpilled++;
+		}
+
+
+		/**
+		 * @return bytes in the spool.
+		 */
+		public long length() {
+			return count + fileLength;
+		}
+		public boolean isSpilled() {
+			return (file != null);
+		}
+
+
+		/**
+		 * @return buffer of the bytes held in memory.
+		 */
+		protected ByteBuffer getMemory() {
+			return (count == 0 ? null : ByteBuffer.wrap(buffer, 0, count));
+		}
+		/**
+		 * Frees the in-memory part once it's been written.
+		 */
+		protected void freeMemory() {
+			if(buffer == null) return;
+			free(buffer.length);
+			buffer = null;
+			count = 0;
+		}
+		/**
+		 * Reads the next part of the temp file.
+		 * @return false when there's nothing more.
+		 */
+		protected boolean read(final ByteBuffer dest, final long position) throws IOException {
+			if(file == null || position >= fileLength) return false;
+			dest.clear();
+			final int read = file.getChannel().read(dest, position);
+			dest.flip();
+			return (read > 0);
+		}
+
+
+		/**
+		 * Frees memory and deletes the temp file.
+		 */
+		@Override
+		public void close() {
+			if(closed) return;
+			closed = true;
+			freeMemory();
+			if(file != null) {
+				NanoHTTPcommon.safeClose(file);
+				file = null;
+				if(!path.delete())
+					path.deleteOnExit();
+			}
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// drain
+
+
+	/**
+	 * Writes a spool to a non-blocking connection on the selector thread.
+	 */
+	private class httpDrain implements httpSelectorHandler, Runnable {
+
+		private final NanoHTTPserver server;
+		private final NanoHTTPselector selector;
+		private final int index;
+		private final Socket socket;
+		private final SocketChannel channel;
+		private final ByteChannel io;
+		private final httpSpool spool;
+		private final byte[] leftover;
+		private final boolean keepAlive;
+
+		private SelectionKey key = null;
+		private ByteBuffer current = null;
+		private ByteBuffer fileBuffer = null;
+		private boolean memorySent = false;
+		private long filePosition = 0L;
+		private long lastProgress;
+		private boolean ended = false;
+
+
+		public httpDrain(final NanoHTTPserver server, final NanoHTTPselector selector, final int index,
+				final Socket socket, final SocketChannel channel, final ByteChannel io,
+				final httpSpool spool, final byte[] leftover, final boolean keepAlive) {
+			this.server    = server;
+			this.selector  = selector;
+			this.index     = index;
+			this.socket    = socket;
+			this.channel   = channel;
+			this.io        = io;
+			this.spool     = spool;
+			this.leftover  = leftover;
+			this.keepAlive = keepAlive;
+			this.lastProgress = System.currentTimeMillis();
+		}
+
+
+		@Override
+		public void onRegister(final SelectionKey key) throws IOException {
+			this.key = key;
+			// the next request is left unread until a worker takes over
+			key.interestOps(SelectionKey.OP_WRITE);
+			final long timeout = NanoHTTPoffload.this.timeout;
+			if(timeout > 0L)
+				selector.schedule(this, timeout);
+		}
+		@Override
+		public void onReadable() throws IOException {
+		}
+		@Override
+		public void onWritable() throws IOException {
+			if(ended) return;
+			while(true) {
+				if(current == null || !current.hasRemaining()) {
+					if(!next()) {
+						// a TLS layer may still hold the end
+						if(NanoHTTPtls.flush(io))
+							finish();
+						return;
+					}
+				}
+				final int written = io.write(current);
+				if(written > 0) {
+					countBytes += written;
+					lastProgress = System.currentTimeMillis();
+				}
+				// socket buffer full
+				if(current.hasRemaining()) return;
+			}
+		}
+		/**
+		 * Moves on to the next part of the spool.
+		 */
+		private boolean next() throws IOException {
+			if(!memorySent) {
+				memorySent = true;
+				current = spool.getMemory();
+				if(current != null) return true;
+			}
+			spool.freeMemory();
+			if(!spool.isSpilled()) return false;
+			if(fileBuffer == null)
+				fileBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+			if(!spool.read(fileBuffer, filePosition)) return false;
+			filePosition += fileBuffer.remaining();
+			current = fileBuffer;
+			return true;
+		}
+		@Override
+		public void onClose() {
+			if(end())
+				countFailed++;
+		}
+		/**
+		 * @return false if already ended.
+		 */
+		private boolean end() {
+			if(ended) return false;
+			ended = true;
+			spool.close();
+			synchronized(NanoHTTPoffload.this) {
+				active--;
+			}
+			return true;
+		}
+
+
+		/**
+		 * Everything was written, close or give the connection back.
+		 */
+		private void finish() {
+			end();
+			countCompleted++;
+			if(!keepAlive) {
+				selector.close(key);
+				return;
+			}
+			selector.release(key, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						server.resume(index, socket, channel, io, leftover);
+					} catch (IOException e) {
+						if(socket == null)
+							NanoHTTPcommon.safeClose(channel);
+						else
+							NanoHTTPcommon.safeClose(socket);
+					}
+				}
+			});
+		}
+
+
+		/**
+		 * Idle timer, closes the connection when the client stops reading.
+		 */
+		@Override
+		public void run() {
+			if(ended) return;
+			final long timeout = NanoHTTPoffload.this.timeout;
+			final long idle = System.currentTimeMillis() - lastProgress;
+			if(timeout > 0L && idle >= timeout) {
+				selector.close(key);
+				return;
+			}
+			selector.schedule(this, (timeout > 0L ? timeout - idle : NanoHTTPcommon.SOCKET_TIMEOUT));
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// stats
+
+
+	/**
+	 * @return responses being written now.
+	 */
+	public synchronized int getActive() {
+		return active;
+	}
+	/**
+	 * @return bytes held in memory by spools now.
+	 */
+	public synchronized long getMemory() {
+		return memory;
+	}
+	public long totalOffloaded() {
+		return countOffloaded;
+	}
+	/**
+	 * @return responses which didn't fit in memory and went to a temp file.
+	 */
+	public long totalSpilled() {
+		return countSpilled;
+	}
+	public long totalCompleted() {
+		return countCompleted;
+	}
+	/**
+	 * @return responses not fully written, because the client closed
+	 *   the connection or stopped reading.
+	 */
+	public long totalFailed() {
+		return countFailed;
+	}
+	/**
+	 * @return bytes written by the selector.
+	 */
+	public long totalBytes() {
+		return countBytes;
+	}
+
+
+}
@@ -0,0 +1,433 @@
+package com.poixson.nanosocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import com.poixson.nanosocket.NanoHTTPclient.httpClientRequest;
+import com.poixson.nanosocket.NanoHTTPclient.httpClientResponse;
+import com.poixson.nanosocket.NanoHTTPcommon.httpBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMethod;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStreamBody;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * Reverse proxy request handler. Forwards requests to a set of upstream
+ * servers over pooled keep-alive connections, streaming bodies both ways.
+ * <p>
+ * Upstreams which fail several requests in a row are ejected for a while
+ * and skipped by the balancer. Connection failures are answered with
+ * 502 Bad Gateway, timeouts with 504 Gateway Timeout.
+ * </p>
+ */
+public class NanoHTTPproxy implements httpIO, Closeable {
+
+	public static final int  DEFAULT_MAX_FAILS  = 3;
+	public static final long DEFAULT_EJECT_TIME = 10000L;
+
+	// headers which only apply to a single connection
+	protected static final Set<String> HOP_HEADERS = new HashSet<String>();
+	static {
+		HOP_HEADERS.add("connection");
+		HOP_HEADERS.add("keep-alive");
+		HOP_HEADERS.add("proxy-authenticate");
+		HOP_HEADERS.add("proxy-authorization");
+		HOP_HEADERS.add("proxy-connection");
+		HOP_HEADERS.add("te");
+		HOP_HEADERS.add("trailer");
+		HOP_HEADERS.add("transfer-encoding");
+		HOP_HEADERS.add("upgrade");
+		HOP_HEADERS.add("content-length");
+	}
+
+	/**
+	 * Upstream selection method.
+	 */
+	public enum httpBalance {
+		// upstream with the fewest requests in progress
+		LEAST_OUTSTANDING,
+		// the less busy of two random upstreams
+		TWO_CHOICES
+	}
+
+	private final List<httpUpstream> upstreams = new ArrayList<httpUpstream>();
+	private volatile httpBalance balance = httpBalance.LEAST_OUTSTANDING;
+	private volatile int maxFails = DEFAULT_MAX_FAILS;
+	private volatile long ejectTime = DEFAULT_EJECT_TIME;
+	private final Random random = new Random();
+	private int next = 0;
+
+	// stats
+	private volatile int countRequests = 0;
+	private volatile int countFailed = 0;
+	private volatile int countEjected = 0;
+
+
+	public NanoHTTPproxy() {
+	}
+	public NanoHTTPproxy(final httpBalance balance) {
+		setBalance(balance);
+	}
+
+
+	/**
+	 * Adds an upstream server to forward requests to.
+	 */
+	public httpUpstream addUpstream(final String host, final int port) {
+		return addUpstream(new NanoHTTPclient(host, port));
+	}
+	public httpUpstream addUpstream(final NanoHTTPclient client) {
+		if(client == null) throw new NullPointerException();
+		final httpUpstream upstream = new httpUpstream(client);
+		synchronized(upstreams) {
+			upstreams.add(upstream);
+		}
+		return upstream;
+	}
+	public List<httpUpstream> getUpstreams() {
+		synchronized(upstreams) {
+			return new ArrayList<httpUpstream>(upstreams);
+		}
+	}
+
+
+	public void setBalance(final httpBalance balance) {
+		if(balance == null) throw new NullPointerException();
+		this.balance = balance;
+	}
+	public httpBalance getBalance() {
+		return balance;
+	}
+	/**
+	 * Passive health checks. An upstream is ejected after this many
+	 * failed requests in a row.
+	 * @param maxFails failures before ejecting, or 0 to never eject.
+	 * @param ejectTime time in milliseconds to skip an ejected upstream.
+	 */
+	public void setEjection(final int maxFails, final long ejectTime) {
+		this.maxFails = (maxFails < 0 ? 0 : maxFails);
+		this.ejectTime = (ejectTime < 0L ? 0L : ejectTime);
+	}
+	public int getMaxFails() {
+		return maxFails;
+	}
+	public long getEjectTime() {
+		return ejectTime;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// forward requests
+
+
+	@Override
+	public httpServerResponse serve(final httpServerRequest request) {
+		final httpMethod method = request.getMethod();
+		if(method == null) return null;
+		countRequests++;
+		final httpClientRequest forward = getForward(request, method);
+		httpUpstream tried = null;
+		while(true) {
+			final httpUpstream upstream = choose(tried);
+			if(upstream == null)
+				return getError(request, httpStatus.BAD_GATEWAY, "No upstream available");
+			upstream.begin();
+			httpClientResponse response = null;
+			try {
+				response = upstream.client.execute(forward);
+			} catch (SocketTimeoutException e) {
+				upstream.end();
+				upstream.report(false);
+				countFailed++;
+				return getError(request, httpStatus.GATEWAY_TIMEOUT, "Upstream timed out");
+			} catch (IOException e) {
+				upstream.end();
+				upstream.report(false);
+				// another upstream, if the request can be sent again
+				if(tried == null && forward.isRetryable()) {
+					tried = upstream;
+					continue;
+				}
+				countFailed++;
+				return getError(request, httpStatus.BAD_GATEWAY, "Upstream failed");
+			}
+			final int code = response.getStatusCode();
+			upstream.report(code != 502 && code != 503 && code != 504);
+			return getResponse(request, response, upstream);
+		}
+	}
+
+
+	/**
+	 * Builds the upstream request, streaming the client's body.
+	 */
+	protected httpClientRequest getForward(final httpServerRequest request, final httpMethod method) {
+		httpBody body = null;
+		try {
+			final InputStream in = request.getBody();
+			if(in != null) {
+				long length = httpBody.UNKNOWN_LENGTH;
+				final String str = request.getHeader("Content-Length");
+				if(str != null) {
+					try {
+						length = Long.parseLong(str.trim());
+					} catch (NumberFormatException ignore) {}
+				}
+				body = new httpStreamBody(in, length);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		final String target = request.getRawUri();
+		final httpClientRequest forward = new httpClientRequest(method, (target == null ? "/" : target), body);
+		final Set<String> hop = getConnectionHeaders(request.getHeader("Connection"));
+		for(final String name : request.getHeaderNames()) {
+			if(HOP_HEADERS.contains(name) || hop.contains(name)) continue;
+			forward.addHeader(name, request.getHeader(name));
+		}
+		return forward;
+	}
+	/**
+	 * Builds the response to the client, streaming the upstream's body.
+	 * The upstream connection is released once the body has been sent.
+	 */
+	protected httpServerResponse getResponse(final httpServerRequest request,
+			final httpClientResponse response, final httpUpstream upstream) {
+		httpStatus status = response.getStatus();
+		// unknown status codes fall back to their class
+		if(status == null) {
+			final int code = response.getStatusCode();
+			status = httpStatus.lookup(code - (code % 100));
+			if(status == null)
+				status = httpStatus.BAD_GATEWAY;
+		}
+		httpBody body = null;
+		final InputStream in = response.getBody();
+		final long length = NanoHTTPcommon.parseContentLength(response.getHeader("Content-Length"));
+		// still outstanding until the body has been sent
+		if(in == null) {
+			upstream.end();
+			// HEAD answers with the length of the body it would have sent
+			if(length >= 0L && status.allowsBody())
+				body = new httpStreamBody(new ByteArrayInputStream(new byte[0]), length);
+		} else {
+			body = new httpStreamBody(new httpUpstreamStream(in, upstream), length);
+		}
+		final httpServerResponse result = new httpServerResponse(request, status, null, body);
+		if(length >= 0L && httpStatus.NOT_MODIFIED.equals(status))
+			result.addHeader("Content-Length", Long.toString(length));
+		final Set<String> hop = getConnectionHeaders(response.getHeader("Connection"));
+		for(final String name : response.getHeaderNames()) {
+			if(HOP_HEADERS.contains(name) || hop.contains(name)) continue;
+			if("date".equals(name) || "server".equals(name) || "accept-ranges".equals(name)) continue;
+			if("content-type".equals(name)) {
+				result.addHeader("Content-Type", response.getHeader(name));
+				continue;
+			}
+			result.addHeader(name, response.getHeader(name));
+		}
+		return result;
+	}
+	/**
+	 * @return header names listed in a Connection header, in lowercase.
+	 *   These only apply to that connection and aren't forwarded.
+	 */
+	protected static Set<String> getConnectionHeaders(final String connection) {
+		final Set<String> names = new HashSet<String>();
+		if(connection == null) return names;
+		for(final String part : connection.split(",")) {
+			final String name = part.trim().toLowerCase(Locale.US);
+			if(!name.isEmpty())
+				names.add(name);
+		}
+		return names;
+	}
+	protected httpServerResponse getError(final httpServerRequest request, final httpStatus status, final String msg) {
+		return new httpServerResponse(request, status, httpMime.PLAINTEXT, status.toString()+": "+msg);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// balancing
+
+
+	/**
+	 * Picks an upstream for the next request. Ejected upstreams are
+	 * only used when all of them are ejected.
+	 * @param skip upstream which already failed this request, or null.
+	 * @return upstream, or null if there are none to try.
+	 */
+	protected httpUpstream choose(final httpUpstream skip) {
+		final long now = System.currentTimeMillis();
+		final List<httpUpstream> healthy = new ArrayList<httpUpstream>();
+		final List<httpUpstream> all;
+		synchronized(upstreams) {
+			all = new ArrayList<httpUpstream>(upstreams);
+		}
+		for(final httpUpstream upstream : all) {
+			if(upstream == skip) continue;
+			if(upstream.isAvailable(now))
+				healthy.add(upstream);
+		}
+		final List<httpUpstream> list;
+		if(!healthy.isEmpty()) {
+			list = healthy;
+		} else {
+			if(skip != null) return null;
+			list = all;
+		}
+		final int size = list.size();
+		if(size == 0) return null;
+		if(size == 1) return list.get(0);
+		switch(balance) {
+		case TWO_CHOICES: {
+			final int a, b;
+			synchronized(random) {
+				a = random.nextInt(size);
+				b = (a + 1 + random.nextInt(size - 1)) % size;
+			}
+			final httpUpstream first  = list.get(a);
+			final httpUpstream second = list.get(b);
+			return (second.getOutstanding() < first.getOutstanding() ? second : first);
+		}
+		case LEAST_OUTSTANDING:
+		default: {
+			// start from a rotating index so ties are spread out
+			final int start;
+			synchronized(upstreams) {
+				start = (next++ & Integer.MAX_VALUE) % size;
+			}
+			httpUpstream best = null;
+			for(int i=0; i<size; i++) {
+				final httpUpstream upstream = list.get((start + i) % size);
+				if(best == null || upstream.getOutstanding() < best.getOutstanding())
+					best = upstream;
+			}
+			return best;
+		}
+		}
+	}
+
+
+	public int totalRequests() {
+		return countRequests;
+	}
+	public int totalFailed() {
+		return countFailed;
+	}
+	public int totalEjected() {
+		return countEjected;
+	}
+
+
+	/**
+	 * Closes idle connections to all upstreams.
+	 */
+	@Override
+	public void close() {
+		for(final httpUpstream upstream : getUpstreams())
+			upstream.client.close();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Upstream server and its health.
+	 */
+	public class httpUpstream {
+
+		public final NanoHTTPclient client;
+
+		private int outstanding = 0;
+		private int fails = 0;
+		private long ejectedUntil = 0L;
+
+
+		protected httpUpstream(final NanoHTTPclient client) {
+			this.client = client;
+		}
+
+
+		protected synchronized void begin() {
+			outstanding++;
+		}
+		protected synchronized void end() {
+			outstanding--;
+		}
+		/**
+		 * @param success false to count a failure towards ejection.
+		 */
+		protected synchronized void report(final boolean success) {
+			if(success) {
+				fails = 0;
+				return;
+			}
+			fails++;
+			final int max = maxFails;
+			if(max > 0 && fails >= max) {
+				fails = 0;
+				ejectedUntil = System.currentTimeMillis() + ejectTime;
+				countEjected++;
+			}
+		}
+
+
+		public synchronized int getOutstanding() {
+			return outstanding;
+		}
+		public synchronized boolean isAvailable(final long now) {
+			return (now >= ejectedUntil);
+		}
+		public boolean isEjected() {
+			return !isAvailable(System.currentTimeMillis());
+		}
+
+
+	}
+
+
+	/**
+	 * Upstream response body, ending the request when closed.
+	 */
+	protected static class httpUpstreamStream extends FilterInputStream {
+
+		private final httpUpstream upstream;
+		private boolean closed = false;
+
+
+		public httpUpstreamStream(final InputStream in, final httpUpstream upstream) {
+			super(in);
+			this.upstream = upstream;
+		}
+
+
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				upstream.end();
+			}
+			super.close();
+		}
+
+
+	}
+
+
+}
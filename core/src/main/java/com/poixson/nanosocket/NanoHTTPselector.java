@@ -0,0 +1,320 @@
+package com.poixson.nanosocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+
+/**
+ * Non-blocking pump for connections which have left the request/response
+ * cycle, such as WebSockets. A single thread waits on all of them, so
+ * idle connections don't each hold a worker thread.
+ * <p>
+ * Handlers and timers are called on the selector thread and must not block.
+ * </p>
+ */
+public class NanoHTTPselector implements Runnable, Closeable {
+
+	private final Selector selector;
+	private final Thread thread;
+
+	// tasks to run on the selector thread
+	private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+	// delayed tasks, soonest first
+	private final PriorityQueue<httpTimer> timers = new PriorityQueue<httpTimer>();
+	private long timerIndex = 0L;
+	private volatile boolean stopping = false;
+
+	// stats
+	private volatile int countRegistered = 0;
+
+
+	/**
+	 * Event callbacks for a registered channel.
+	 */
+	public interface httpSelectorHandler {
+		/**
+		 * Called on the selector thread once the channel is registered.
+		 */
+		public void onRegister(SelectionKey key) throws IOException;
+		public void onReadable() throws IOException;
+		public void onWritable() throws IOException;
+		/**
+		 * Called once when the channel is closed, for any reason.
+		 */
+		public void onClose();
+	}
+
+
+	/**
+	 * Starts the selector thread.
+	 * @param name thread name.
+	 */
+	public NanoHTTPselector(final String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// channels
+
+
+	/**
+	 * Switches a channel to non-blocking mode and registers it for reads.
+	 */
+	public void register(final SocketChannel channel, final httpSelectorHandler handler) throws IOException {
+		if(channel == null) throw new NullPointerException();
+		if(handler == null) throw new NullPointerException();
+		if(stopping) throw new ClosedChannelException();
+		channel.configureBlocking(false);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final SelectionKey key = channel.register(selector, SelectionKey.OP_READ, handler);
+					countRegistered++;
+					handler.onRegister(key);
+				} catch (IOException e) {
+					close(channel, handler);
+				}
+			}
+		});
+	}
+	/**
+	 * Turns write readiness events on or off, from any thread.
+	 */
+	public void setWritable(final SelectionKey key, final boolean writable) {
+		if(Thread.currentThread() == thread) {
+			updateWritable(key, writable);
+			return;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				updateWritable(key, writable);
+			}
+		});
+	}
+	private static void updateWritable(final SelectionKey key, final boolean writable) {
+		try {
+			final int ops = key.interestOps();
+			key.interestOps(writable ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE));
+		} catch (CancelledKeyException ignore) {}
+	}
+	/**
+	 * Closes a channel on the selector thread.
+	 */
+	public void close(final SelectionKey key) {
+		if(Thread.currentThread() == thread) {
+			close((SocketChannel) key.channel(), (httpSelectorHandler) key.attachment());
+			return;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				close((SocketChannel) key.channel(), (httpSelectorHandler) key.attachment());
+			}
+		});
+	}
+	/**
+	 * Stops watching a channel without closing it, switches it back to
+	 * blocking mode, then runs the task. Always runs later, on the
+	 * selector thread.
+	 */
+	public void release(final SelectionKey key, final Runnable then) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				final SocketChannel channel = (SocketChannel) key.channel();
+				key.cancel();
+				try {
+					// the key is only dropped by the next select
+					selector.selectNow();
+					countRegistered--;
+					channel.configureBlocking(true);
+				} catch (IOException e) {
+					e.printStackTrace();
+					NanoHTTPcommon.safeClose(channel);
+					return;
+				}
+				then.run();
+			}
+		});
+	}
+	private void close(final SocketChannel channel, final httpSelectorHandler handler) {
+		final SelectionKey key = channel.keyFor(selector);
+		if(key != null)
+			key.cancel();
+		if(channel.isOpen()) {
+			NanoHTTPcommon.safeClose(channel);
+			countRegistered--;
+			try {
+				handler.onClose();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Runs a task on the selector thread.
+	 */
+	public void execute(final Runnable task) {
+		synchronized(tasks) {
+			tasks.add(task);
+		}
+		selector.wakeup();
+	}
+	/**
+	 * Runs a task on the selector thread after a delay. One timer
+	 * serves every connection, rather than a thread or timer each.
+	 * @param delay time in milliseconds.
+	 */
+	public void schedule(final Runnable task, final long delay) {
+		if(task == null) throw new NullPointerException();
+		final long due = System.currentTimeMillis() + (delay < 0L ? 0L : delay);
+		synchronized(tasks) {
+			timers.add(new httpTimer(task, due, timerIndex++));
+		}
+		selector.wakeup();
+	}
+	public boolean isSelectorThread() {
+		return (Thread.currentThread() == thread);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// pump
+
+
+	@Override
+	public void run() {
+		while(!stopping) {
+			try {
+				selector.select(runTimers());
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			runTasks();
+			final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				final SelectionKey key = it.next();
+				it.remove();
+				final httpSelectorHandler handler = (httpSelectorHandler) key.attachment();
+				try {
+					if(!key.isValid()) continue;
+					if(key.isWritable())
+						handler.onWritable();
+					if(key.isValid() && key.isReadable())
+						handler.onReadable();
+				} catch (CancelledKeyException ignore) {
+				} catch (IOException e) {
+					close((SocketChannel) key.channel(), handler);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					close((SocketChannel) key.channel(), handler);
+				}
+			}
+		}
+		// close everything still registered
+		runTasks();
+		for(final SelectionKey key : selector.keys())
+			close((SocketChannel) key.channel(), (httpSelectorHandler) key.attachment());
+		NanoHTTPcommon.safeClose(selector);
+	}
+	private void runTasks() {
+		while(true) {
+			final Runnable task;
+			synchronized(tasks) {
+				if(tasks.isEmpty()) return;
+				task = tasks.removeFirst();
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Runs timers which are due.
+	 * @return time until the next timer, or 0 if there are none.
+	 */
+	private long runTimers() {
+		while(true) {
+			final httpTimer timer;
+			synchronized(tasks) {
+				timer = timers.peek();
+				if(timer == null) return 0L;
+				final long wait = timer.due - System.currentTimeMillis();
+				if(wait > 0L) return wait;
+				timers.poll();
+			}
+			try {
+				timer.task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * @return number of open channels.
+	 */
+	public int getRegistered() {
+		return countRegistered;
+	}
+
+
+	@Override
+	public void close() {
+		stopping = true;
+		selector.wakeup();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	private static class httpTimer implements Comparable<httpTimer> {
+
+		public final Runnable task;
+		public final long due;
+		// keeps timers with the same due time in order
+		public final long index;
+
+
+		public httpTimer(final Runnable task, final long due, final long index) {
+			this.task  = task;
+			this.due   = due;
+			this.index = index;
+		}
+
+
+		@Override
+		public int compareTo(final httpTimer other) {
+			if(due != other.due)
+				return (due < other.due ? -1 : 1);
+			return (index < other.index ? -1 : (index == other.index ? 0 : 1));
+		}
+
+
+	}
+
+
+}
@@ -1,31 +1,62 @@
 package com.poixson.nanosocket;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.poixson.nanosocket.NanoHTTPoffload.httpSpool;
+import com.poixson.nanosocket.NanoHTTPshaper.httpShapedConnection;
+import com.poixson.nanosocket.NanoHTTPtls.httpTLSChannel;
+import com.poixson.nanosocket.NanoHTTPtrace.httpAcceptEvent;
+import com.poixson.nanosocket.NanoHTTPtrace.httpHandlerEvent;
+import com.poixson.nanosocket.NanoHTTPtrace.httpRequestEvent;
+import com.poixson.nanosocket.NanoHTTPwatchdog.httpWatch;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -47,8 +78,13 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * <li>Supports file upload (since version 1.2, 2010)</li>
  * <li>Supports partial content (streaming)</li>
  * <li>Supports ETags</li>
- * <li>Never caches anything</li>
- * <li>Doesn't limit bandwidth, request time or simultaneous connections</li>
+ * <li>Never caches anything, unless the optional response cache is enabled</li>
+ * <li>Optionally limits bandwidth, see NanoHTTPshaper</li>
+ * <li>Optionally limits simultaneous connections, see setMaxConnections()</li>
+ * <li>Serves several listeners and name-based virtual hosts from one engine</li>
+ * <li>Optionally warms up the JIT before accepting connections, see NanoHTTPwarmup</li>
+ * <li>Optionally writes large responses to slow clients without a thread, see NanoHTTPoffload</li>
+ * <li>Optionally cancels requests when the client goes away or a deadline passes, see NanoHTTPwatchdog</li>
  * <li>Default code serves files and shows all HTTP parameters and headers</li>
  * <li>File server supports directory listing, index.html and index.htm</li>
  * <li>File server supports partial content (streaming)</li>
@@ -75,6 +111,15 @@ import java.util.concurrent.CopyOnWriteArraySet;
 public class NanoHTTPserver extends NanoHTTPcommon {
 
 	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+	// how often unix domain connections are checked for a read timeout
+	public static final long UNIX_CHECK_INTERVAL = 1000L;
+
+	private static final byte[] BUSY_BYTES = (
+		"HTTP/1.1 503 Service Unavailable\r\n" +
+		"Retry-After: 1\r\n" +
+		"Content-Length: 0\r\n" +
+		"Connection: close\r\n\r\n"
+	).getBytes(Charset.forName("US-ASCII"));
 
 	// run state
 	private volatile Boolean running = false;
@@ -82,15 +127,76 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 
 	// listen socket
 	private volatile ServerSocket socket = null;
+	private volatile boolean listenTCP = true;
+	private volatile String unixPath = null;
+	private volatile ServerSocketChannel unixSocket = null;
+	// more addresses to listen on, sharing the same workers and handlers
+	private final List<InetSocketAddress> listenAddresses = new CopyOnWriteArrayList<InetSocketAddress>();
+	private final List<ServerSocket> listenSockets = new CopyOnWriteArrayList<ServerSocket>();
 	private final Object serverLock = new Object();
 
 	// connections
 	private final Set<httpServerWorker> connections = new HashSet<httpServerWorker>();
+	private volatile int maxConnections = 0;
 	private volatile int countConnections = 0;
+	private volatile int countRefused = 0;
 	private volatile int countRequests = 0;
+	// unix domain connections, timed out by a selector timer
+	private final ConcurrentHashMap<SocketChannel, httpUnlockedChannel> unixChannels =
+		new ConcurrentHashMap<SocketChannel, httpUnlockedChannel>();
+	private boolean unixTimer = false;
+
+	// socket options
+	private volatile boolean tcpNoDelay = true;
+	private volatile int sendBufferSize = 0;
+	private volatile int receiveBufferSize = 0;
+	private volatile int writeBufferSize = httpOutputBuffer.DEFAULT_SIZE;
+
+	// request limits
+	private final httpLimits limits = new httpLimits();
+	// one request object per connection
+	private volatile boolean recycleRequests = false;
+
+	// protocols
+	private volatile boolean http2 = true;
+	private volatile NanoHTTPtls tls = null;
+	// egress bandwidth limits
+	private volatile NanoHTTPshaper shaper = null;
+	// run before the listeners are bound
+	private volatile NanoHTTPwarmup warmup = null;
+	// writes large responses off the worker threads
+	private volatile NanoHTTPoffload offload = null;
+	// cancels abandoned and overdue requests
+	private volatile NanoHTTPwatchdog watchdog = null;
+	// pump for upgraded connections, started on first use
+	private volatile NanoHTTPselector selector = null;
 
 	// request handlers
 	private final CopyOnWriteArraySet<httpIO> handlers = new CopyOnWriteArraySet<httpIO>();
+	// copy of the handlers, walked without an iterator for each request
+	private volatile httpIO[] handlerArray = new httpIO[0];
+	// virtual hosts by name, aliases share an entry
+	private final ConcurrentHashMap<String, httpVirtualHost> vhosts =
+		new ConcurrentHashMap<String, httpVirtualHost>();
+	private volatile httpResponseCache cache = null;
+	// bulkheads for slow handlers
+	private final ConcurrentHashMap<httpIO, NanoHTTPlane> handlerLanes =
+		new ConcurrentHashMap<httpIO, NanoHTTPlane>();
+	private final ConcurrentHashMap<String, NanoHTTPlane> routeLanes =
+		new ConcurrentHashMap<String, NanoHTTPlane>();
+	private volatile int autoETagSize = 0;
+
+	// request coalescing
+	public static final long DEFAULT_COALESCE_TIMEOUT = 5000L;
+	public static final int  DEFAULT_COALESCE_MAX_BODY = 1024 * 1024; // 1M
+	private final ConcurrentHashMap<httpFlightKey, httpFlight> flights =
+		new ConcurrentHashMap<httpFlightKey, httpFlight>();
+	private volatile long coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+	private volatile int coalesceMaxBody = DEFAULT_COALESCE_MAX_BODY;
+	private volatile long countCoalesced = 0L;
+
+	// uploads rejected by httpExpectIO
+	private volatile long countRejected = 0L;
 
 
 	// ------------------------------------------------------------------------------- //
@@ -126,15 +232,21 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 
 	public void start() throws IOException {
 		// already running
-		if(running || socket != null) return;
+		if(running || thread.isAlive()) return;
 		synchronized(serverLock) {
-			if(running || socket != null) return;
-			socket = new ServerSocket();
+			if(running || thread.isAlive()) return;
+			if(!listenTCP && unixPath == null && listenAddresses.isEmpty())
+				throw new IOException("No TCP port or unix socket to listen on");
+			if(unixPath != null && !NanoHTTPunix.isSupported())
+				throw new IOException("Unix domain sockets require Java 16 or newer");
+			// channel backed, so accepted sockets can use gathering writes and transferTo()
+			if(listenTCP)
+				socket = ServerSocketChannel.open().socket();
+			// start listener thread
+			setThreadName();
+			thread.setDaemon(true);
+			thread.start();
 		}
-		// start listener thread
-		setThreadName();
-		thread.setDaemon(true);
-		thread.start();
 	}
 	public void stop() {
 		safeClose(this);
@@ -142,7 +254,7 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 
 
 	public boolean isRunning() {
-		if(stopping || socket == null)
+		if(stopping || (socket == null && unixSocket == null && listenSockets.isEmpty()))
 			return false;
 		return running;
 	}
@@ -175,30 +287,74 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 				}
 				running = true;
 			}
-			System.out.println("Starting http server on "+(host==null ? "port " : host+":")+Integer.toString(port)+" ..");
+			// compile the hot paths before taking traffic
+			final NanoHTTPwarmup warmup = this.warmup;
+			if(warmup != null)
+				warmup.run(this);
+			if(stopping) return;
+			final NanoHTTPwatchdog watchdog = this.watchdog;
+			if(watchdog != null)
+				watchdog.start(this);
+			final String unixPath = this.unixPath;
+			if(listenTCP)
+				System.out.println("Starting http server on "+(host==null ? "port " : host+":")+Integer.toString(port)+" ..");
+			for(final InetSocketAddress address : listenAddresses)
+				System.out.println("Starting http server on "+describe(address)+" ..");
+			if(unixPath != null)
+				System.out.println("Starting http server on unix:"+unixPath+" ..");
+			// bind all listeners, each gets a thread
+			final List<Runnable> loops = new ArrayList<Runnable>();
+			final List<String> names = new ArrayList<String>();
+			// unix domain socket
+			if(unixPath != null) {
+				unixSocket = NanoHTTPunix.bind(unixPath, SERVER_BACKLOG_CONNECTIONS);
+				loops.add(new Runnable() {
+					@Override
+					public void run() {
+						runUnixLoop();
+					}
+				});
+				names.add(getThreadName()+":unix");
+			}
+			// additional addresses
+			for(final InetSocketAddress address : listenAddresses) {
+				final ServerSocket listen = ServerSocketChannel.open().socket();
+				listenSockets.add(listen);
+				if(receiveBufferSize > 0)
+					listen.setReceiveBufferSize(receiveBufferSize);
+				listen.bind(address, SERVER_BACKLOG_CONNECTIONS);
+				loops.add(new Runnable() {
+					@Override
+					public void run() {
+						runAcceptLoop(listen);
+					}
+				});
+				names.add(getThreadName()+"@"+describe(address));
+			}
 			// start listening
-			validateHostPort();
-			socket.bind(inet, SERVER_BACKLOG_CONNECTIONS);
-			// main listener loop
-			while(isRunning()) {
-				if(socket.isClosed()) break;
-				Socket accept = null;
-				try {
-					// wait for and accept connection
-					accept = socket.accept();
-					if(socket == null || stopping) throw new IOException();
-					Accept(accept);
-				} catch (IOException e) {
-					NanoHTTPserver.safeClose(accept);
-					e.printStackTrace();
-					try {
-						Thread.sleep(50);
-					} catch (InterruptedException ignore) {
-						break;
+			if(socket != null) {
+				validateHostPort();
+				// must be set before bind for windows larger than 64K
+				if(receiveBufferSize > 0)
+					socket.setReceiveBufferSize(receiveBufferSize);
+				socket.bind(inet, SERVER_BACKLOG_CONNECTIONS);
+				final ServerSocket listen = socket;
+				loops.add(new Runnable() {
+					@Override
+					public void run() {
+						runAcceptLoop(listen);
 					}
-					continue;
-				}
+				});
+				names.add(getThreadName());
+			}
+			// the last listener runs on this thread
+			final int last = loops.size() - 1;
+			for(int i = 0; i < last; i++) {
+				final Thread listener = new Thread(loops.get(i), names.get(i));
+				listener.setDaemon(true);
+				listener.start();
 			}
+			loops.get(last).run();
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
@@ -206,6 +362,61 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 			stop();
 		}
 	}
+	private static String describe(final InetSocketAddress address) {
+		if(address.getAddress() == null)
+			return address.getHostName()+":"+Integer.toString(address.getPort());
+		if(address.getAddress().isAnyLocalAddress())
+			return "port "+Integer.toString(address.getPort());
+		return address.getAddress().getHostAddress()+":"+Integer.toString(address.getPort());
+	}
+	/**
+	 * Accepts connections until the listener is closed.
+	 */
+	protected void runAcceptLoop(final ServerSocket listen) {
+		while(isRunning()) {
+			if(listen.isClosed()) break;
+			Socket accept = null;
+			try {
+				// wait for and accept connection
+				accept = listen.accept();
+				if(stopping) throw new IOException();
+				Accept(accept);
+			} catch (IOException e) {
+				NanoHTTPserver.safeClose(accept);
+				e.printStackTrace();
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ignore) {
+					break;
+				}
+				continue;
+			}
+		}
+	}
+	/**
+	 * Unix domain socket listener loop.
+	 */
+	protected void runUnixLoop() {
+		final ServerSocketChannel listen = unixSocket;
+		while(isRunning()) {
+			if(!listen.isOpen()) break;
+			SocketChannel accept = null;
+			try {
+				accept = listen.accept();
+				if(stopping) throw new IOException();
+				Accept(accept);
+			} catch (IOException e) {
+				NanoHTTPserver.safeClose(accept);
+				e.printStackTrace();
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ignore) {
+					break;
+				}
+				continue;
+			}
+		}
+	}
 	/**
 	 * Accept a connection, and create a new worker thread
 	 * @param accept The socket object which has been accepted.
@@ -213,13 +424,35 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	 */
 	protected void Accept(Socket accept) throws IOException {
 		if(stopping) throw new IOException();
+		final httpAcceptEvent trace = (NanoHTTPtrace.isAcceptEnabled() ? new httpAcceptEvent() : null);
+		if(trace != null)
+			trace.start();
 		InputStream  in  = null;
 		OutputStream out = null;
 		try {
+			// server full, TLS connections are closed without a handshake
+			if(refuse(this.tls == null ? accept.getOutputStream() : null)) {
+				safeClose(accept);
+				return;
+			}
 			accept.setSoTimeout(NanoHTTPserver.SOCKET_TIMEOUT);
+			accept.setTcpNoDelay(tcpNoDelay);
+			if(sendBufferSize > 0)
+				accept.setSendBufferSize(sendBufferSize);
 			// io streams
-			in  = accept.getInputStream();
-			out = accept.getOutputStream();
+			final NanoHTTPtls tmpTLS = this.tls;
+			final ByteChannel io;
+			if(tmpTLS == null) {
+				io  = accept.getChannel();
+				in  = accept.getInputStream();
+				out = accept.getOutputStream();
+			} else {
+				// handshake happens on first read, in the worker thread
+				final httpTLSChannel secure = tmpTLS.open(accept, http2);
+				io  = secure;
+				in  = Channels.newInputStream(secure);
+				out = Channels.newOutputStream(secure);
+			}
 			//if(in  == null) throw new IOException();
 			//if(out == null) throw new IOException();
 			// +1 connection
@@ -229,10 +462,15 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 				if(stopping) throw new IOException();
 				// new socket worker thread
 				final httpServerWorker worker =
-					createServerWorker(count, accept, in, out);
+					createServerWorker(count, accept, in, out, io);
 				if(worker == null) throw new IOException("Failed to create a socket worker");
 				connections.add(worker);
 			}
+			if(trace != null) {
+				trace.remote = String.valueOf(accept.getRemoteSocketAddress());
+				trace.connection = count;
+				trace.finish();
+			}
 		} catch (IOException e) {
 			safeClose(in);
 			safeClose(out);
@@ -242,13 +480,218 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	}
 
 
+	/**
+	 * Accept a unix domain socket connection. TLS and socket options
+	 * don't apply. Reads time out the same as on a TCP socket.
+	 * @param accept The channel which has been accepted.
+	 */
+	protected void Accept(final SocketChannel accept) throws IOException {
+		if(stopping) throw new IOException();
+		final httpAcceptEvent trace = (NanoHTTPtrace.isAcceptEnabled() ? new httpAcceptEvent() : null);
+		if(trace != null)
+			trace.start();
+		try {
+			final ByteChannel unlocked = openUnixChannel(accept);
+			final InputStream  in  = Channels.newInputStream(unlocked);
+			final OutputStream out = Channels.newOutputStream(unlocked);
+			// server full
+			if(refuse(out)) {
+				safeClose(accept);
+				return;
+			}
+			// +1 connection
+			final int count = incrementConnections();
+			if(stopping) throw new IOException();
+			synchronized(connections) {
+				if(stopping) throw new IOException();
+				// new socket worker thread
+				final httpServerWorker worker =
+					createServerWorker(count, accept, in, out, accept);
+				if(worker == null) throw new IOException("Failed to create a socket worker");
+				connections.add(worker);
+			}
+			if(trace != null) {
+				trace.remote = "unix:"+unixPath;
+				trace.connection = count;
+				trace.finish();
+			}
+		} catch (IOException e) {
+			safeClose(accept);
+			throw(e);
+		}
+	}
+
+
+	/**
+	 * Gives a connection back to a worker thread, once the offload
+	 * scheduler has written its response.
+	 * @param index connection index, kept by the new worker.
+	 * @param socket connection socket, or null for a unix domain socket.
+	 * @param io channel behind the streams, the socket or a TLS layer.
+	 * @param leftover bytes already read past the last request.
+	 */
+	protected void resume(final int index, final Socket socket, final SocketChannel channel,
+			final ByteChannel io, final byte[] leftover) throws IOException {
+		if(stopping) throw new IOException();
+		InputStream in;
+		final OutputStream out;
+		if(socket == null) {
+			final ByteChannel unlocked = openUnixChannel(channel);
+			in  = Channels.newInputStream(unlocked);
+			out = Channels.newOutputStream(unlocked);
+		} else
+		if(io == channel) {
+			// keeps the socket read timeout
+			in  = socket.getInputStream();
+			out = socket.getOutputStream();
+		} else {
+			in  = Channels.newInputStream(io);
+			out = Channels.newOutputStream(io);
+		}
+		if(leftover != null && leftover.length > 0)
+			in = new SequenceInputStream(new ByteArrayInputStream(leftover), in);
+		synchronized(connections) {
+			if(stopping) throw new IOException();
+			final httpServerWorker worker = (socket == null
+				? createServerWorker(index, channel, in, out, io)
+				: createServerWorker(index, socket, in, out, io));
+			if(worker == null) throw new IOException("Failed to create a socket worker");
+			connections.add(worker);
+		}
+	}
+
+
 	/**
 	 * Factory for socket worker thread.
 	 * Note: override this to use a custom worker.
+	 * @param io channel behind the streams, or null.
+	 */
+	protected httpServerWorker createServerWorker(final int index,
+			final Socket accept, final InputStream in, final OutputStream out, final ByteChannel io) {
+		return new httpServerWorker(index, this, accept, in, out, io);
+	}
+	/**
+	 * Factory for unix domain socket worker threads.
 	 */
 	protected httpServerWorker createServerWorker(final int index,
-			final Socket accept, final InputStream in, final OutputStream out) {
-		return new httpServerWorker(index, this, accept, in, out);
+			final SocketChannel accept, final InputStream in, final OutputStream out, final ByteChannel io) {
+		return new httpServerWorker(index, this, accept, in, out, io);
+	}
+
+
+	/**
+	 * Channel for the streams of a unix domain connection. The channel
+	 * has no read timeout like a TCP socket's, so a timer on the selector
+	 * closes it once a read has waited longer than SOCKET_TIMEOUT.
+	 */
+	protected ByteChannel openUnixChannel(final SocketChannel channel) throws IOException {
+		httpUnlockedChannel unlocked = unixChannels.get(channel);
+		if(unlocked == null) {
+			unlocked = new httpUnlockedChannel(channel);
+			unixChannels.put(channel, unlocked);
+		}
+		startUnixTimer();
+		return unlocked;
+	}
+	/**
+	 * An HTTP/2 connection over a unix socket only times out
+	 * while it has no open streams, the same as over TCP.
+	 */
+	protected void setUnixHTTP2(final SocketChannel channel, final NanoHTTP2 http2) {
+		final httpUnlockedChannel unlocked = unixChannels.get(channel);
+		if(unlocked != null)
+			unlocked.http2 = http2;
+	}
+	private void startUnixTimer() throws IOException {
+		final NanoHTTPselector selector;
+		synchronized(serverLock) {
+			if(unixTimer) return;
+			unixTimer = true;
+			selector = getSelector();
+		}
+		selector.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if(stopping) {
+					synchronized(serverLock) {
+						unixTimer = false;
+					}
+					return;
+				}
+				checkUnixChannels(System.currentTimeMillis());
+				selector.schedule(this, UNIX_CHECK_INTERVAL);
+			}
+		}, UNIX_CHECK_INTERVAL);
+	}
+	protected void checkUnixChannels(final long now) {
+		final Iterator<httpUnlockedChannel> it = unixChannels.values().iterator();
+		while(it.hasNext()) {
+			final httpUnlockedChannel unlocked = it.next();
+			if(!unlocked.isOpen()) {
+				it.remove();
+				continue;
+			}
+			unlocked.checkTimeout(now, SOCKET_TIMEOUT);
+		}
+	}
+
+
+	/**
+	 * Hides the channel type from Channels streams, so they don't hold
+	 * its blocking lock while blocked in a read, which would stall writes
+	 * from other threads, such as HTTP/2 streams.
+	 */
+	private static class httpUnlockedChannel implements ByteChannel {
+
+		private final ByteChannel channel;
+		// time the current read started, 0 while not reading
+		private volatile long readSince = 0L;
+		private volatile boolean timedOut = false;
+		// set once the connection switched to HTTP/2
+		private volatile NanoHTTP2 http2 = null;
+
+		public httpUnlockedChannel(final ByteChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Closes the channel if a read has waited too long.
+		 */
+		public void checkTimeout(final long now, final long timeout) {
+			final long since = this.readSince;
+			if(since == 0L || now - since < timeout) return;
+			final NanoHTTP2 tmpHTTP2 = this.http2;
+			if(tmpHTTP2 != null && tmpHTTP2.getOpenStreams() > 0) return;
+			timedOut = true;
+			safeClose(channel);
+		}
+
+		@Override
+		public int read(final ByteBuffer dst) throws IOException {
+			if(timedOut) throw new SocketTimeoutException("Read timed out");
+			readSince = System.currentTimeMillis();
+			try {
+				return channel.read(dst);
+			} catch (ClosedChannelException e) {
+				if(timedOut) throw new SocketTimeoutException("Read timed out");
+				throw e;
+			} finally {
+				readSince = 0L;
+			}
+		}
+		@Override
+		public int write(final ByteBuffer src) throws IOException {
+			return channel.write(src);
+		}
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
 	}
 
 
@@ -256,9 +699,13 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	private volatile String threadName = null;
 	private void setThreadName() {
 		final StringBuilder name = new StringBuilder("NanoHTTPserver");
-		if(host != null && !host.isEmpty())
-			name.append(":").append(host);
-		name.append(":").append(Integer.toString(port));
+		if(!listenTCP) {
+			name.append(":").append(unixPath);
+		} else {
+			if(host != null && !host.isEmpty())
+				name.append(":").append(host);
+			name.append(":").append(Integer.toString(port));
+		}
 		this.threadName = name.toString();
 		thread.setName(name.toString());
 	}
@@ -267,6 +714,237 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	}
 
 
+	// ------------------------------------------------------------------------------- //
+	// socket options
+
+
+	/**
+	 * Disables Nagle's algorithm on accepted sockets. Responses are already
+	 * collected into as few writes as possible, so this is on by default.
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+	/**
+	 * SO_SNDBUF for accepted sockets.
+	 * @param size buffer size in bytes, or 0 for the system default.
+	 */
+	public void setSendBufferSize(int size) {
+		this.sendBufferSize = (size < 0 ? 0 : size);
+	}
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+	/**
+	 * SO_RCVBUF for the listener, inherited by accepted sockets.
+	 * Must be set before start().
+	 * @param size buffer size in bytes, or 0 for the system default.
+	 */
+	public void setReceiveBufferSize(int size) {
+		this.receiveBufferSize = (size < 0 ? 0 : size);
+	}
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+	/**
+	 * Per-connection buffer used to coalesce response writes.
+	 * @param size buffer size in bytes.
+	 */
+	public void setWriteBufferSize(int size) {
+		if(size < 1) throw new IllegalArgumentException("Buffer size must be at least 1");
+		this.writeBufferSize = size;
+	}
+	public int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+
+
+	/**
+	 * Also listens on a unix domain socket, for processes on the same
+	 * host. Requires Java 16 or newer. Must be set before start().
+	 * @param path socket file to create, or null for none.
+	 */
+	public void setUnixSocket(String path) {
+		if(path != null && path.isEmpty()) path = null;
+		this.unixPath = path;
+	}
+	public String getUnixSocket() {
+		return unixPath;
+	}
+	/**
+	 * Also listens on another address, with the same workers, handlers
+	 * and limits. Must be set before start().
+	 * @param host IP address or hostname to bind to, or null for all.
+	 * @param port TCP port to listen on.
+	 */
+	public void addListener(final String host, final int port) {
+		if(port < 1 || port > MAX_PORT_NUMBER)
+			throw new IllegalArgumentException("Port number out of range");
+		listenAddresses.add(
+			(host == null || host.isEmpty())
+			? new InetSocketAddress(port)
+			: new InetSocketAddress(host, port)
+		);
+	}
+	/**
+	 * Listens on the TCP port, on by default. Turn this off to serve
+	 * only the unix domain socket or added listeners. Must be set
+	 * before start().
+	 */
+	public void setListenTCP(boolean listenTCP) {
+		this.listenTCP = listenTCP;
+	}
+	public boolean getListenTCP() {
+		return listenTCP;
+	}
+
+
+	/**
+	 * Reuses one request object per connection instead of allocating
+	 * one for every keep-alive request. Handlers must not keep the
+	 * request, its headers or body stream once serve() returns,
+	 * unless they call retain() on it. Handlers can also answer with
+	 * httpServerRequest.getResponse(), reused the same way. Off by default.
+	 */
+	public void setRecycleRequests(boolean recycle) {
+		this.recycleRequests = recycle;
+	}
+	public boolean getRecycleRequests() {
+		return recycleRequests;
+	}
+	/**
+	 * Warms up the server when started, before the listeners are bound.
+	 * @param warmup warm-up to run, or null for none.
+	 */
+	public void setWarmup(final NanoHTTPwarmup warmup) {
+		this.warmup = warmup;
+	}
+	public NanoHTTPwarmup getWarmup() {
+		return warmup;
+	}
+	/**
+	 * Hands large responses to a write scheduler, freeing the worker
+	 * thread and the handler's resources while a slow client reads.
+	 * @param offload scheduler to use, or null to send on the worker.
+	 */
+	public void setOffload(final NanoHTTPoffload offload) {
+		this.offload = offload;
+	}
+	public NanoHTTPoffload getOffload() {
+		return offload;
+	}
+	/**
+	 * Watches requests in flight, cancelling them when the client goes
+	 * away or their deadline passes. Must be set before start().
+	 * @param watchdog watchdog to use, or null for none.
+	 */
+	public void setWatchdog(final NanoHTTPwatchdog watchdog) {
+		this.watchdog = watchdog;
+	}
+	public NanoHTTPwatchdog getWatchdog() {
+		return watchdog;
+	}
+	/**
+	 * Size and rate limits for requests, applied while parsing.
+	 */
+	public httpLimits getLimits() {
+		return limits;
+	}
+	/**
+	 * Accepts HTTP/2 over cleartext, with prior knowledge or by
+	 * Upgrade: h2c from an HTTP/1.1 request. Over TLS it's offered
+	 * with ALPN instead.
+	 */
+	public void setHTTP2(boolean http2) {
+		this.http2 = http2;
+	}
+	public boolean getHTTP2() {
+		return http2;
+	}
+	/**
+	 * Serves HTTPS on the listen port, for connections accepted
+	 * from then on.
+	 * @param tls keys and session cache, or null for plain HTTP.
+	 */
+	public void setTLS(NanoHTTPtls tls) {
+		this.tls = tls;
+	}
+	public NanoHTTPtls getTLS() {
+		return tls;
+	}
+	/**
+	 * Limits the bandwidth of responses, for connections accepted
+	 * from then on.
+	 * @param shaper bandwidth limits, or null for none.
+	 */
+	public void setShaper(NanoHTTPshaper shaper) {
+		this.shaper = shaper;
+	}
+	public NanoHTTPshaper getShaper() {
+		return shaper;
+	}
+	/**
+	 * Shared non-blocking pump for connections upgraded to
+	 * other protocols, started on first use.
+	 */
+	public NanoHTTPselector getSelector() throws IOException {
+		synchronized(serverLock) {
+			if(selector == null)
+				selector = new NanoHTTPselector(getThreadName()+"-selector");
+			return selector;
+		}
+	}
+
+
+	/**
+	 * Most connections open at once, across all listeners. Connections
+	 * over the limit get 503 and are closed. Upgraded connections are
+	 * no longer counted.
+	 * @param max connection limit, or 0 for no limit.
+	 *   DEFAULT_MAX_CONNECTIONS suits a small embedded server.
+	 */
+	public void setMaxConnections(int max) {
+		this.maxConnections = (max < 0 ? 0 : max);
+	}
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	/**
+	 * @return number of open connections, including ones writing
+	 *   an offloaded response.
+	 */
+	public int getConnections() {
+		final NanoHTTPoffload offload = this.offload;
+		synchronized(connections) {
+			return connections.size() + (offload == null ? 0 : offload.getActive());
+		}
+	}
+	/**
+	 * Turns a connection away when the server is full.
+	 * @param out plain connection output, or null to just close.
+	 * @return true if the connection was refused.
+	 */
+	protected boolean refuse(final OutputStream out) {
+		final int max = this.maxConnections;
+		if(max <= 0) return false;
+		if(getConnections() < max) return false;
+		countRefused++;
+		if(out != null) {
+			try {
+				out.write(BUSY_BYTES);
+				out.flush();
+			} catch (IOException ignore) {}
+		}
+		return true;
+	}
+	public int totalRefused() {
+		return countRefused;
+	}
+
+
 	protected int incrementConnections() {
 		return ++countConnections;
 	}
@@ -279,6 +957,17 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	public int totalRequests() {
 		return countRequests;
 	}
+	/**
+	 * @return TLS handshakes completed, see NanoHTTPtls for details.
+	 */
+	public long totalHandshakes() {
+		final NanoHTTPtls tls = this.tls;
+		return (tls == null ? 0L : tls.totalHandshakes());
+	}
+	public long totalResumed() {
+		final NanoHTTPtls tls = this.tls;
+		return (tls == null ? 0L : tls.totalResumed());
+	}
 
 
 	// ------------------------------------------------------------------------------- //
@@ -294,9 +983,25 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 		try {
 			socket.close();
 		} catch (Exception ignore) {}
+		for(final ServerSocket listen : listenSockets)
+			safeClose(listen);
+		listenSockets.clear();
+		if(unixSocket != null) {
+			safeClose(unixSocket);
+			NanoHTTPunix.unlink(unixPath);
+			unixSocket = null;
+		}
 		try {
 			closeConnections();
 		} catch (Exception ignore) {}
+		synchronized(serverLock) {
+			if(watchdog != null)
+				watchdog.stop();
+			if(selector != null) {
+				selector.close();
+				selector = null;
+			}
+		}
 		socket = null;
 	}
 	/**
@@ -344,6 +1049,20 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	public interface httpIO {
 		public httpServerResponse serve(httpServerRequest request);
 	}
+	/**
+	 * Takes over a connection after its response has been sent,
+	 * for example a 101 Switching Protocols.
+	 */
+	public interface httpUpgrade {
+		/**
+		 * @param server server which accepted the connection.
+		 * @param channel connection, still in blocking mode.
+		 * @param io channel to read and write through, the socket itself
+		 *   or a TLS layer over it.
+		 * @param leftover bytes already read past the request.
+		 */
+		public void upgrade(NanoHTTPserver server, SocketChannel channel, ByteChannel io, byte[] leftover) throws IOException;
+	}
 
 
 	/**
@@ -351,19 +1070,31 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	 * @param request
 	 * @return response
 	 */
-	public httpServerResponse serve(httpServerRequest request) {
+	public httpServerResponse serve(final httpServerRequest request) {
+		// the whole route runs on a lane
+		final NanoHTTPlane lane = getRouteLane(request.getUri());
+		if(lane != null) {
+			return lane.execute(request, new Callable<httpServerResponse>() {
+				@Override
+				public httpServerResponse call() {
+					return serveHandlers(request, false);
+				}
+			});
+		}
+		return serveHandlers(request, true);
+	}
+	/**
+	 * @param lanes run handlers assigned to a lane on that lane,
+	 *   false if already on one.
+	 */
+	protected httpServerResponse serveHandlers(final httpServerRequest request, final boolean lanes) {
 		// find a handler to execute request
-		Iterator<httpIO> it = handlers.iterator();
+		final httpIO[] all = getHandlerArray(request);
 		httpServerResponse result = null;
-		while(it.hasNext()) {
-			final httpIO io;
-			try {
-				io = it.next();
-			} catch (Exception ignore) {
-				continue;
-			}
+		for(int i = 0; i < all.length; i++) {
+			final httpIO io = all[i];
 			try {
-				result = io.serve(request);
+				result = (lanes ? serveLane(io, request) : serve(io, request));
 			} catch (Exception ignore) {
 				result = null;
 				continue;
@@ -373,29 +1104,1292 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 		if(result == null)
 			result = new httpServerResponse(request,
 				httpStatus.NOT_FOUND, DEFAULT_MIME, "Resource not found!");
+		else
+		if(autoETagSize > 0)
+			result = applyAutoETag(request, result);
 		return result;
 	}
 	/**
-	 * Registers a request handler to listen for http requests.
-	 * @param handler httpIO request handler to be registered.
+	 * Passes a request to a single handler, on its lane if it has one.
 	 */
-	public void registerHandler(httpIO handler) {
-		this.handlers.add(handler);
+	protected httpServerResponse serveLane(final httpIO io, final httpServerRequest request) {
+		final NanoHTTPlane lane = (handlerLanes.isEmpty() ? null : handlerLanes.get(io));
+		if(lane == null)
+			return serve(io, request);
+		return lane.execute(request, new Callable<httpServerResponse>() {
+			@Override
+			public httpServerResponse call() {
+				return serve(io, request);
+			}
+		});
 	}
-
-
-	// ------------------------------------------------------------------------------- //
-
-
 	/**
-	 * Response exception
+	 * Passes a request to a single handler, checking validators first
+	 * if the handler supplies them.
 	 */
-	public static final class httpResponseException extends IOException {
-		private static final long serialVersionUID = 1L;
-		private final httpStatus status;
-		public httpResponseException(String msg) {
-			super(msg);
-			this.status = httpStatus.INTERNAL_ERROR;
+	protected httpServerResponse serve(httpIO io, httpServerRequest request) {
+		httpValidator validator = null;
+		if(io instanceof httpConditionalIO) {
+			validator = ((httpConditionalIO) io).getValidator(request);
+			if(validator != null && validator.isNotModified(request))
+				return validator.getNotModified(request);
+		}
+		final httpHandlerEvent trace = (NanoHTTPtrace.isHandlerEnabled() ? new httpHandlerEvent() : null);
+		if(trace != null)
+			trace.start();
+		httpServerResponse result = null;
+		try {
+			if(io instanceof httpCoalescedIO)
+				result = serveCoalesced(io, request);
+			else
+				result = io.serve(request);
+		} finally {
+			if(trace != null) {
+				trace.handler = io.getClass().getName();
+				trace.uri = request.getUri();
+				trace.handled = (result != null);
+				trace.finish();
+			}
+		}
+		if(result != null && validator != null)
+			validator.apply(result);
+		return result;
+	}
+
+
+	/**
+	 * Computes a strong ETag for responses without validators.
+	 * In-memory bodies are hashed in place, streamed bodies are hashed
+	 * while they're read into memory. Bodies larger than the limit, files
+	 * and writer callbacks are sent without an ETag.
+	 * @param maxSize largest body to hash, or 0 to disable.
+	 */
+	public void setAutoETag(int maxSize) {
+		this.autoETagSize = (maxSize < 0 ? 0 : maxSize);
+	}
+	protected httpServerResponse applyAutoETag(httpServerRequest request, httpServerResponse result) {
+		final httpMethod method = request.getMethod();
+		if(!httpMethod.GET.equals(method) && !httpMethod.HEAD.equals(method))
+			return result;
+		if(!httpStatus.OK.equals(result.getStatus())) return result;
+		if(result.getHeader("ETag") != null) return result;
+		final httpBody body = result.getBody();
+		if(body == null) return result;
+		final int maxSize = this.autoETagSize;
+		final long length = body.length();
+		if(length > maxSize) return result;
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("MD5");
+			final ByteBuffer[] buffers = body.getBuffers();
+			if(buffers != null) {
+				for(final ByteBuffer buffer : buffers)
+					digest.update(buffer);
+			} else
+			if(body instanceof httpStreamBody) {
+				final InputStream data = body.getInputStream();
+				final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				final byte[] buff = new byte[8192];
+				int read;
+				while((read = data.read(buff)) >= 0) {
+					digest.update(buff, 0, read);
+					buffer.write(buff, 0, read);
+					// too large, send the remaining stream as-is
+					if(buffer.size() > maxSize) {
+						result.setBody(new httpCompositeBody(
+							new httpBytesBody(buffer.toByteArray()),
+							new httpStreamBody(data, (length < 0L ? length : length - buffer.size()))
+						));
+						return result;
+					}
+				}
+				safeClose(data);
+				result.setBody(new httpBytesBody(buffer.toByteArray()));
+			} else {
+				return result;
+			}
+			final StringBuilder etag = new StringBuilder("\"");
+			for(final byte b : digest.digest())
+				etag.append(Character.forDigit((b >> 4) & 0xF, 16))
+					.append(Character.forDigit(b & 0xF, 16));
+			etag.append('"');
+			result.addHeader("ETag", etag.toString());
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return result;
+		} catch (IOException e) {
+			e.printStackTrace();
+			safeClose(body);
+			return new httpServerResponse(request,
+				httpStatus.INTERNAL_ERROR, DEFAULT_MIME, "");
+		}
+		if(httpValidator.matchesETag(request.getHeader("If-None-Match"), result.getHeader("ETag"))) {
+			safeClose(result.getBody());
+			final httpServerResponse notModified = new httpValidator(result.getHeader("ETag"), -1L)
+				.getNotModified(request);
+			return notModified;
+		}
+		return result;
+	}
+	/**
+	 * Registers a request handler to listen for http requests.
+	 * @param handler httpIO request handler to be registered.
+	 */
+	public void registerHandler(httpIO handler) {
+		synchronized(this.handlers) {
+			this.handlers.add(handler);
+			this.handlerArray = this.handlers.toArray(new httpIO[0]);
+		}
+	}
+	/**
+	 * @return handlers of the request's virtual host, or the server's
+	 *   handlers if it has none.
+	 */
+	protected Set<httpIO> getHandlers(final httpServerRequest request) {
+		final httpVirtualHost vhost = resolveVirtualHost(request);
+		return (vhost == null ? handlers : vhost.handlers);
+	}
+	/**
+	 * @return same as getHandlers(), as an array not to be modified.
+	 */
+	protected httpIO[] getHandlerArray(final httpServerRequest request) {
+		final httpVirtualHost vhost = resolveVirtualHost(request);
+		return (vhost == null ? handlerArray : vhost.handlerArray);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// virtual hosts
+
+
+	/**
+	 * Adds a name-based virtual host. Requests with a matching Host
+	 * header go to its handlers instead of the server's, which still
+	 * serve any other host. Listeners, threads, limits and the
+	 * response cache are shared by all hosts.
+	 * @param name host name, without the port.
+	 * @param aliases other names for the same host.
+	 */
+	public httpVirtualHost addVirtualHost(final String name, final String...aliases) {
+		final String key = normalizeHost(name);
+		if(key == null) throw new NullPointerException();
+		final httpVirtualHost vhost = new httpVirtualHost(key);
+		vhosts.put(key, vhost);
+		if(aliases != null) {
+			for(final String alias : aliases) {
+				final String aliasKey = normalizeHost(alias);
+				if(aliasKey != null)
+					vhosts.put(aliasKey, vhost);
+			}
+		}
+		return vhost;
+	}
+	public httpVirtualHost getVirtualHost(final String name) {
+		final String key = normalizeHost(name);
+		return (key == null ? null : vhosts.get(key));
+	}
+	/**
+	 * Finds the virtual host for a request by its Host header,
+	 * and remembers it in the request.
+	 * @return virtual host, or null if none matches.
+	 */
+	public httpVirtualHost resolveVirtualHost(final httpServerRequest request) {
+		if(vhosts.isEmpty()) return null;
+		final httpVirtualHost found = request.getVirtualHost();
+		if(found != null) return found;
+		final String key = normalizeHost(request.getHeader("Host"));
+		if(key == null) return null;
+		final httpVirtualHost vhost = vhosts.get(key);
+		request.setVirtualHost(vhost);
+		return vhost;
+	}
+	/**
+	 * @return lowercase host name without the port or a trailing dot.
+	 */
+	protected static String normalizeHost(final String host) {
+		if(host == null) return null;
+		String name = host.trim().toLowerCase(Locale.US);
+		if(name.startsWith("[")) {
+			// IPv6 literal
+			final int end = name.indexOf(']');
+			if(end > 0)
+				name = name.substring(0, end + 1);
+		} else {
+			final int pos = name.indexOf(':');
+			if(pos >= 0)
+				name = name.substring(0, pos);
+		}
+		if(name.endsWith("."))
+			name = name.substring(0, name.length() - 1);
+		return (name.isEmpty() ? null : name);
+	}
+
+
+	/**
+	 * Name-based virtual host, with its own handler chain.
+	 */
+	public static class httpVirtualHost {
+
+		private final String name;
+		private final CopyOnWriteArraySet<httpIO> handlers = new CopyOnWriteArraySet<httpIO>();
+		private volatile httpIO[] handlerArray = new httpIO[0];
+
+
+		public httpVirtualHost(final String name) {
+			if(name == null) throw new NullPointerException();
+			this.name = name;
+		}
+
+
+		public String getName() {
+			return name;
+		}
+
+
+		public void registerHandler(final httpIO handler) {
+			if(handler == null) throw new NullPointerException();
+			synchronized(handlers) {
+				handlers.add(handler);
+				handlerArray = handlers.toArray(new httpIO[0]);
+			}
+		}
+		public void unregisterHandler(final httpIO handler) {
+			synchronized(handlers) {
+				handlers.remove(handler);
+				handlerArray = handlers.toArray(new httpIO[0]);
+			}
+		}
+
+
+	}
+
+
+	/**
+	 * Runs a handler on its own lane, so it can't tie up the threads
+	 * of other handlers. Every request offered to the handler goes
+	 * through the lane, even ones it declines, so register it after
+	 * handlers which must stay fast or use setLane(prefix, lane).
+	 * @param lane lane to run on, or null to run on the connection thread.
+	 */
+	public void setLane(final httpIO handler, final NanoHTTPlane lane) {
+		if(handler == null) throw new NullPointerException();
+		if(lane == null)
+			handlerLanes.remove(handler);
+		else
+			handlerLanes.put(handler, lane);
+	}
+	/**
+	 * Runs all handlers for uris starting with the prefix on a lane.
+	 * The longest matching prefix wins.
+	 * @param lane lane to run on, or null to remove the route.
+	 */
+	public void setLane(final String prefix, final NanoHTTPlane lane) {
+		if(prefix == null) throw new NullPointerException();
+		if(lane == null)
+			routeLanes.remove(prefix);
+		else
+			routeLanes.put(prefix, lane);
+	}
+	protected NanoHTTPlane getRouteLane(final String uri) {
+		if(uri == null || routeLanes.isEmpty()) return null;
+		NanoHTTPlane found = null;
+		int foundLength = -1;
+		for(final Entry<String, NanoHTTPlane> entry : routeLanes.entrySet()) {
+			final String prefix = entry.getKey();
+			if(prefix.length() > foundLength && uri.startsWith(prefix)) {
+				found = entry.getValue();
+				foundLength = prefix.length();
+			}
+		}
+		return found;
+	}
+
+
+	/**
+	 * Enables the response cache in front of handler dispatch.
+	 * @param cache response cache, or null to disable.
+	 */
+	public void setResponseCache(httpResponseCache cache) {
+		this.cache = cache;
+	}
+	public httpResponseCache getResponseCache() {
+		return cache;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Request handler which can supply validators (ETag/Last-Modified) before
+	 * generating a response body. A matching conditional GET is answered with
+	 * 304 Not Modified without calling serve().
+	 */
+	public interface httpConditionalIO extends httpIO {
+		/**
+		 * @return validators for the requested resource, or null if unknown.
+		 */
+		public httpValidator getValidator(httpServerRequest request);
+	}
+
+
+	/**
+	 * Cache validators for a resource.
+	 */
+	public static class httpValidator {
+
+		private final String etag;
+		private final long lastModified;
+
+
+		/**
+		 * @param etag entity tag including quotes, for example "abc" or W/"abc"
+		 * @param lastModified last modified time in milliseconds, or -1 if unknown.
+		 */
+		public httpValidator(final String etag, final long lastModified) {
+			this.etag = (etag == null || etag.isEmpty() ? null : etag);
+			this.lastModified = lastModified;
+		}
+		public static httpValidator strong(final String tag) {
+			return new httpValidator("\""+tag+"\"", -1L);
+		}
+		public static httpValidator weak(final String tag) {
+			return new httpValidator("W/\""+tag+"\"", -1L);
+		}
+		public static httpValidator modified(final long lastModified) {
+			return new httpValidator(null, lastModified);
+		}
+
+
+		public String getETag() {
+			return etag;
+		}
+		public long getLastModified() {
+			return lastModified;
+		}
+
+
+		/**
+		 * Checks the conditional headers of a request against these validators.
+		 * If-None-Match takes precedence over If-Modified-Since.
+		 * @return true if the client copy is still valid.
+		 */
+		public boolean isNotModified(final httpServerRequest request) {
+			if(request == null) return false;
+			final httpMethod method = request.getMethod();
+			if(!httpMethod.GET.equals(method) && !httpMethod.HEAD.equals(method))
+				return false;
+			final String ifNoneMatch = request.getHeader("If-None-Match");
+			if(ifNoneMatch != null)
+				return matchesETag(ifNoneMatch, etag);
+			if(lastModified < 0L) return false;
+			final long ifModifiedSince = parseDate(request.getHeader("If-Modified-Since"));
+			if(ifModifiedSince < 0L) return false;
+			// header dates only have second precision
+			return (lastModified / 1000L) <= (ifModifiedSince / 1000L);
+		}
+		/**
+		 * Weak comparison of an If-None-Match header against an entity tag.
+		 */
+		public static boolean matchesETag(final String header, final String etag) {
+			if(header == null || etag == null) return false;
+			if("*".equals(header.trim())) return true;
+			final String tag = stripWeak(etag);
+			final StringTokenizer token = new StringTokenizer(header, ",");
+			while(token.hasMoreTokens()) {
+				if(tag.equals(stripWeak(token.nextToken().trim())))
+					return true;
+			}
+			return false;
+		}
+		private static String stripWeak(final String etag) {
+			if(etag.startsWith("W/"))
+				return etag.substring(2);
+			return etag;
+		}
+
+
+		/**
+		 * Adds the validator headers to a response, if not already set.
+		 */
+		public void apply(final httpServerResponse response) {
+			if(response == null) return;
+			if(etag != null && response.getHeader("ETag") == null)
+				response.addHeader("ETag", etag);
+			if(lastModified >= 0L && response.getHeader("Last-Modified") == null)
+				response.addHeader("Last-Modified", formatDate(lastModified));
+		}
+		/**
+		 * @return bodyless 304 Not Modified response.
+		 */
+		public httpServerResponse getNotModified(final httpServerRequest request) {
+			final httpServerResponse response = new httpServerResponse(
+				request,
+				httpStatus.NOT_MODIFIED,
+				null,
+				(InputStream) null
+			);
+			apply(response);
+			return response;
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Request handler which supplies its own warm-up requests,
+	 * see NanoHTTPwarmup.
+	 */
+	public interface httpWarmupIO extends httpIO {
+		/**
+		 * @return raw requests, or uris starting with / which are sent
+		 *   as a GET to the handler's virtual host.
+		 */
+		public String[] getWarmupRequests();
+	}
+	/**
+	 * @return warm-up requests declared by the handlers of the server
+	 *   and its virtual hosts.
+	 */
+	protected List<String> getWarmupRequests() {
+		final List<String> requests = new ArrayList<String>();
+		addWarmupRequests(requests, handlers, null);
+		for(final httpVirtualHost vhost : new HashSet<httpVirtualHost>(vhosts.values()))
+			addWarmupRequests(requests, vhost.handlers, vhost.getName());
+		return requests;
+	}
+	private static void addWarmupRequests(final List<String> requests,
+			final Set<httpIO> handlers, final String host) {
+		for(final httpIO io : handlers) {
+			if(!(io instanceof httpWarmupIO)) continue;
+			final String[] entries = ((httpWarmupIO) io).getWarmupRequests();
+			if(entries == null) continue;
+			for(final String entry : entries) {
+				if(entry != null)
+					requests.add(NanoHTTPwarmup.toRequest(entry, host));
+			}
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Request handler which can reject an upload from its headers alone,
+	 * for clients which send Expect: 100-continue and wait before sending
+	 * the body. Checked before any handler is served.
+	 */
+	public interface httpExpectIO extends httpIO {
+		/**
+		 * Checks auth, size, quota and such before the body is sent.
+		 * @return response rejecting the request, such as 401 or 413,
+		 *   or null to let the client send the body.
+		 */
+		public httpServerResponse expect(httpServerRequest request);
+	}
+
+
+	/**
+	 * Handles an Expect header. If no handler rejects the request,
+	 * 100 Continue is sent when the body is first read, so a handler
+	 * which answers without reading the body also saves the upload.
+	 * @param out connection output, for sending 100 Continue.
+	 * @return response rejecting the request, or null to serve it.
+	 */
+	protected httpServerResponse expect(final httpServerRequest request, final OutputStream out) {
+		final String expect = request.getHeader("Expect");
+		if(expect == null) return null;
+		// HTTP/1.0 clients don't wait, so it's ignored
+		if(httpVersion.HTTP_1_0.equals(request.getVersion())) return null;
+		httpServerResponse result = null;
+		if(request.isExpectContinue()) {
+			for(final httpIO io : getHandlers(request)) {
+				if(io instanceof httpExpectIO) {
+					result = ((httpExpectIO) io).expect(request);
+					if(result != null) break;
+				}
+			}
+			if(result == null) {
+				request.setContinue(out);
+				return null;
+			}
+			countRejected++;
+		} else {
+			result = new httpServerResponse(request, httpStatus.EXPECTATION_FAILED,
+				DEFAULT_MIME, "Unsupported expectation: "+expect);
+		}
+		// the client may still send the body, so it can't be skipped
+		if(!request.isBodyBuffered())
+			result.setKeepAlive(false);
+		return result;
+	}
+	/**
+	 * @return uploads rejected before the body was sent.
+	 */
+	public long totalRejected() {
+		return countRejected;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Marker for request handlers whose results may be shared between
+	 * concurrent identical GET/HEAD requests. Only one request runs the
+	 * handler while the others wait for its result. Requests carrying
+	 * credentials always run the handler, unless the response cache
+	 * varies on them, and results the cache wouldn't store, like ones
+	 * setting a cookie, aren't shared.
+	 */
+	public interface httpCoalescedIO extends httpIO {
+	}
+
+
+	/**
+	 * Runs a coalesced handler once per in-flight cache key.
+	 */
+	protected httpServerResponse serveCoalesced(final httpIO io, final httpServerRequest request) {
+		final httpResponseCache tmpCache = this.cache;
+		final String[] vary = (tmpCache == null ? null : tmpCache.getVaryHeaders());
+		final String key = httpResponseCache.getKey(request, vary);
+		if(key == null || httpResponseCache.isPrivate(request, vary))
+			return io.serve(request);
+		final httpFlightKey flightKey = new httpFlightKey(io, key);
+		final httpFlight flight = new httpFlight();
+		final httpFlight existing = this.flights.putIfAbsent(flightKey, flight);
+		// wait for the request already in flight
+		if(existing != null) {
+			if(existing.await(this.coalesceTimeout)) {
+				countCoalesced++;
+				return existing.getResponse(request);
+			}
+			// timed out or failed, run it ourselves
+			return io.serve(request);
+		}
+		// run the handler for everyone
+		try {
+			final httpServerResponse response = io.serve(request);
+			// private or too large to share, the others run the handler themselves
+			if(!flight.complete(response, this.coalesceMaxBody, vary))
+				return response;
+		} finally {
+			// wakes waiters if the handler failed
+			flight.finish();
+			this.flights.remove(flightKey, flight);
+		}
+		return flight.getResponse(request);
+	}
+	/**
+	 * Maximum time a coalesced request waits on an identical request
+	 * before running the handler itself.
+	 * @param ms time in milliseconds.
+	 */
+	public void setCoalesceTimeout(long ms) {
+		this.coalesceTimeout = (ms < 0L ? 0L : ms);
+	}
+	public long getCoalesceTimeout() {
+		return coalesceTimeout;
+	}
+	/**
+	 * Largest streamed result buffered to share with waiting requests.
+	 * Past this, each request runs the handler itself.
+	 * @param bytes size in bytes.
+	 */
+	public void setCoalesceMaxBody(int bytes) {
+		this.coalesceMaxBody = (bytes < 0 ? 0 : bytes);
+	}
+	public int getCoalesceMaxBody() {
+		return coalesceMaxBody;
+	}
+	/**
+	 * @return number of requests served from another request's result.
+	 */
+	public long totalCoalesced() {
+		return countCoalesced;
+	}
+
+
+	protected static class httpFlightKey {
+		private final httpIO io;
+		private final String key;
+		public httpFlightKey(final httpIO io, final String key) {
+			this.io  = io;
+			this.key = key;
+		}
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(io) * 31 + key.hashCode();
+		}
+		@Override
+		public boolean equals(final Object obj) {
+			if(!(obj instanceof httpFlightKey)) return false;
+			final httpFlightKey other = (httpFlightKey) obj;
+			return (this.io == other.io) && this.key.equals(other.key);
+		}
+	}
+
+
+	/**
+	 * A handler result shared with waiting requests. The body is buffered
+	 * so each request gets its own response wrapper.
+	 */
+	protected static class httpFlight {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile boolean done = false;
+		private volatile boolean failed = true;
+		private volatile httpStatus status = null;
+		private volatile httpMime mime = null;
+		private volatile Map<String, String> headers = null;
+		private volatile long cacheTTL = -1L;
+		private volatile httpBody body = null;
+
+
+		/**
+		 * @param maxBody largest streamed body to buffer.
+		 * @param vary request headers the result may vary on.
+		 * @return false if the response is private or its body is too
+		 *   large to share, the response is then only for the request
+		 *   which ran the handler.
+		 */
+		public boolean complete(final httpServerResponse response, final int maxBody, final String[] vary) {
+			if(response != null) {
+				// same rules as the response cache
+				if(!httpResponseCache.isStorable(response, vary)) return false;
+				final httpBody tmpBody = response.body;
+				// in-memory and file bodies can be shared as-is
+				if(tmpBody == null || tmpBody.isRepeatable()) {
+					this.body = tmpBody;
+				} else {
+					final long length = tmpBody.length();
+					if(length > maxBody) return false;
+					// only a stream can be read part way, other bodies
+					// of unknown length would be buffered in full first
+					if(length < 0L && !(tmpBody instanceof httpStreamBody)) return false;
+					try {
+						final InputStream in = tmpBody.getInputStream();
+						final byte[] data = readUpTo(in, maxBody);
+						// put back what was read for the caller
+						if(data.length > maxBody) {
+							response.body = new httpStreamBody(
+								new SequenceInputStream(new ByteArrayInputStream(data), in) {
+									@Override
+									public void close() throws IOException {
+										safeClose(tmpBody);
+									}
+								}
+							);
+							return false;
+						}
+						safeClose(tmpBody);
+						this.body = new httpBytesBody(data);
+					} catch (IOException e) {
+						safeClose(tmpBody);
+						e.printStackTrace();
+						return true;
+					}
+				}
+				this.status = response.status;
+				this.mime = response.mime;
+				synchronized(response.headers) {
+					this.headers = new HashMap<String, String>(response.headers);
+				}
+				this.cacheTTL = response.cacheTTL;
+			}
+			this.failed = false;
+			return true;
+		}
+		public void finish() {
+			this.done = true;
+			this.latch.countDown();
+		}
+		/**
+		 * @return true if the result is available, false on timeout.
+		 */
+		public boolean await(final long timeout) {
+			if(done) return !failed;
+			try {
+				if(!latch.await(timeout, TimeUnit.MILLISECONDS))
+					return false;
+			} catch (InterruptedException ignore) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return !failed;
+		}
+
+
+		/**
+		 * @return a new response for the given request, or null if the
+		 *   handler didn't handle the request.
+		 */
+		public httpServerResponse getResponse(final httpServerRequest request) {
+			if(failed) throw new IllegalStateException("Coalesced request failed");
+			if(status == null) return null;
+			final httpServerResponse response = new httpServerResponse(
+				request,
+				status,
+				mime,
+				body
+			);
+			for(final Entry<String, String> entry : headers.entrySet())
+				response.addHeader(entry.getKey(), entry.getValue());
+			response.setCacheTTL(cacheTTL);
+			return response;
+		}
+
+
+		/**
+		 * @return the stream's bytes, or max + 1 bytes if it's longer.
+		 */
+		private static byte[] readUpTo(final InputStream in, final int max) throws IOException {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			final byte[] buff = new byte[8192];
+			while(buffer.size() <= max) {
+				final int read = in.read(buff, 0, Math.min(buff.length, max + 1 - buffer.size()));
+				if(read < 0) break;
+				buffer.write(buff, 0, read);
+			}
+			return buffer.toByteArray();
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Optional cache of fully serialized responses, checked before handler
+	 * dispatch. Only GET and HEAD requests are cached, keyed on the decoded
+	 * uri, query string, method and any selected Vary headers. Bodies of
+	 * unknown length, or larger than the cache, are never cached.
+	 */
+	public static class httpResponseCache {
+
+		public static final long DEFAULT_TTL = 5000L;
+		public static final int DEFAULT_MAX_ENTRIES = 1000;
+		public static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L; // 16M
+		// background refreshes of stale entries
+		public static final int REVALIDATE_THREADS = 2;
+		public static final int REVALIDATE_QUEUE   = 100;
+
+		private final long ttl;
+		private final int maxEntries;
+		private final long maxBytes;
+		private volatile long staleTime = 0L;
+		private volatile String[] vary = new String[0];
+
+		// access ordered, eldest entry is evicted first
+		private final LinkedHashMap<String, httpCacheEntry> entries =
+			new LinkedHashMap<String, httpCacheEntry>(16, 0.75f, true);
+		private long countBytes = 0L;
+		private final ThreadPoolExecutor revalidatePool;
+
+		// stats
+		private volatile long countHits = 0L;
+		private volatile long countMisses = 0L;
+
+
+		public httpResponseCache() {
+			this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+		}
+		/**
+		 * @param ttl default time to live in milliseconds.
+		 * @param maxEntries maximum number of cached responses.
+		 * @param maxBytes maximum total size of cached responses.
+		 */
+		public httpResponseCache(final long ttl, final int maxEntries, final long maxBytes) {
+			if(ttl < 0L) throw new IllegalArgumentException("ttl cannot be negative");
+			if(maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+			if(maxBytes < 1L) throw new IllegalArgumentException("maxBytes must be at least 1");
+			this.ttl = ttl;
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+			this.revalidatePool = new ThreadPoolExecutor(
+				REVALIDATE_THREADS, REVALIDATE_THREADS,
+				60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(REVALIDATE_QUEUE),
+				new ThreadFactory() {
+					private volatile int index = 0;
+					@Override
+					public Thread newThread(final Runnable task) {
+						final Thread thread = new Thread(task, "NanoHTTPcache:revalidate["+Integer.toString(++index)+"]");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}
+			);
+			this.revalidatePool.allowCoreThreadTimeOut(true);
+		}
+
+
+		/**
+		 * Allows an expired entry to be served for this long while a
+		 * background request refreshes it.
+		 * @param ms stale-while-revalidate time in milliseconds.
+		 */
+		public void setStaleWhileRevalidate(final long ms) {
+			this.staleTime = (ms < 0L ? 0L : ms);
+		}
+		/**
+		 * Request headers which select between variants of a response.
+		 * @param names header names (case insensitive).
+		 */
+		public void setVaryHeaders(final String...names) {
+			if(names == null) {
+				this.vary = new String[0];
+				return;
+			}
+			final String[] tmp = new String[names.length];
+			for(int i = 0; i < names.length; i++)
+				tmp[i] = names[i].toLowerCase(Locale.US);
+			this.vary = tmp;
+		}
+		public String[] getVaryHeaders() {
+			return this.vary;
+		}
+
+
+		/**
+		 * Builds the cache key for a request. Keys start with the decoded uri
+		 * so invalidate() can drop a whole path prefix.
+		 * @return cache key, or null if the request can't be cached.
+		 */
+		public String getKey(final httpServerRequest request) {
+			return getKey(request, this.vary);
+		}
+		public static String getKey(final httpServerRequest request, final String[] vary) {
+			if(request == null) return null;
+			final httpMethod method = request.getMethod();
+			if(!httpMethod.GET.equals(method) && !httpMethod.HEAD.equals(method))
+				return null;
+			final String uri = request.getUri();
+			if(uri == null) return null;
+			final StringBuilder key = new StringBuilder(uri);
+			final String query = request.getQueryString();
+			if(query != null && !query.isEmpty())
+				key.append('?').append(query);
+			key.append('\n').append(method.toString());
+			// virtual hosts share the cache
+			final httpVirtualHost vhost = request.getVirtualHost();
+			if(vhost != null)
+				key.append("\nhost=").append(vhost.getName());
+			if(vary != null) {
+				for(final String name : vary) {
+					final String value = request.getHeader(name);
+					key.append('\n').append(name).append('=');
+					if(value != null)
+						key.append(value);
+				}
+			}
+			return key.toString();
+		}
+
+
+		/**
+		 * Requests with credentials get their own answers, unless the
+		 * credentials are part of the key.
+		 */
+		protected boolean isPrivate(final httpServerRequest request) {
+			return isPrivate(request, this.vary);
+		}
+		public static boolean isPrivate(final httpServerRequest request, final String[] vary) {
+			if(request.getHeader("Authorization") != null && !isVaryHeader(vary, "authorization")) return true;
+			if(request.getHeader("Cookie") != null && !isVaryHeader(vary, "cookie")) return true;
+			return false;
+		}
+		/**
+		 * @return false if the response forbids shared caching, or
+		 *   varies on a header that isn't part of the key.
+		 */
+		protected boolean isStorable(final httpServerResponse response) {
+			return isStorable(response, this.vary);
+		}
+		public static boolean isStorable(final httpServerResponse response, final String[] vary) {
+			if(response.getHeader("Set-Cookie") != null) return false;
+			final String control = response.getHeader("Cache-Control");
+			if(control != null) {
+				for(final String part : control.split(",")) {
+					final String directive = part.trim().toLowerCase(Locale.US);
+					if(directive.startsWith("private")
+					|| directive.startsWith("no-store")
+					|| directive.startsWith("no-cache"))
+						return false;
+				}
+			}
+			final String varies = response.getHeader("Vary");
+			if(varies != null) {
+				for(final String part : varies.split(",")) {
+					final String name = part.trim().toLowerCase(Locale.US);
+					if(name.isEmpty()) continue;
+					if("*".equals(name) || !isVaryHeader(vary, name))
+						return false;
+				}
+			}
+			return true;
+		}
+		private static boolean isVaryHeader(final String[] vary, final String name) {
+			if(vary == null) return false;
+			for(final String entry : vary) {
+				if(entry.equals(name))
+					return true;
+			}
+			return false;
+		}
+
+
+		/**
+		 * Writes a cached response directly to the socket. Only requests
+		 * keeping the connection open like the cached response are served.
+		 * @return true if the response was served from cache.
+		 */
+		public boolean send(final NanoHTTPserver server,
+				final httpServerRequest request, final OutputStream out) throws IOException {
+			final String key = getKey(request);
+			if(key == null) return false;
+			if(!request.isKeepAlive() || isPrivate(request)) return false;
+			final long now = System.currentTimeMillis();
+			final httpCacheEntry entry;
+			synchronized(entries) {
+				entry = entries.get(key);
+				if(entry != null && now >= entry.stale) {
+					removeEntry(key);
+					countMisses++;
+					return false;
+				}
+				if(entry == null) {
+					countMisses++;
+					return false;
+				}
+				countHits++;
+			}
+			// stale, refresh in the background
+			if(now >= entry.expires)
+				revalidate(server, request, entry);
+			// client copy is still valid
+			if(entry.validator != null && entry.validator.isNotModified(request)) {
+				entry.validator.getNotModified(request).send(out);
+				return true;
+			}
+			// same bytes with the current date
+			if(entry.dateStart < 0) {
+				out.write(entry.data);
+			} else {
+				out.write(entry.data, 0, entry.dateStart);
+				out.write(currentDate().getBytes(UTF8));
+				out.write(entry.data, entry.dateEnd, entry.data.length - entry.dateEnd);
+			}
+			deferredFlush(out);
+			return true;
+		}
+		/**
+		 * Serializes a response, caching it if allowed, and writes it to the socket.
+		 */
+		public void sendAndStore(final httpServerRequest request, final httpServerResponse response,
+				final OutputStream out, final WritableByteChannel channel) throws IOException {
+			final byte[] data = store(request, response);
+			if(data == null) {
+				response.send(out, channel);
+				return;
+			}
+			out.write(data);
+			deferredFlush(out);
+		}
+		/**
+		 * Serializes and caches a response.
+		 * @return serialized response, or null if the response can't be cached
+		 *   and still needs to be sent.
+		 */
+		protected byte[] store(final httpServerRequest request, final httpServerResponse response) {
+			if(response == null) return null;
+			final String key = getKey(request);
+			if(key == null) return null;
+			if(!httpStatus.OK.equals(response.getStatus())) return null;
+			if(isPrivate(request) || !isStorable(response)) return null;
+			final long entryTTL = (response.getCacheTTL() < 0L ? this.ttl : response.getCacheTTL());
+			if(entryTTL <= 0L) return null;
+			// only bodies known to fit are serialized, the rest are
+			// sent as they are, keeping transferTo() and spooling
+			final httpBody body = response.getBody();
+			if(body != null) {
+				final long length = body.length();
+				if(length < 0L || length > this.maxBytes) return null;
+			}
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			response.send(buffer);
+			final byte[] data = buffer.toByteArray();
+			// already serialized, must be sent by the caller, a failed send
+			// has closed the body and isn't kept alive, so it's never cached
+			if(response.isSendFailed() || response.isChunked() || !response.isKeepAlive()
+					|| data.length > this.maxBytes)
+				return data;
+			final long now = System.currentTimeMillis();
+			final String etag = response.getHeader("ETag");
+			final long lastModified = parseDate(response.getHeader("Last-Modified"));
+			final int dateStart = findDate(data);
+			final httpCacheEntry entry = new httpCacheEntry(
+				data,
+				dateStart,
+				(dateStart < 0 ? -1 : findLineEnd(data, dateStart)),
+				now + entryTTL,
+				now + entryTTL + this.staleTime,
+				(etag == null && lastModified < 0L) ? null : new httpValidator(etag, lastModified)
+			);
+			synchronized(entries) {
+				removeEntry(key);
+				entries.put(key, entry);
+				countBytes += data.length;
+				// evict least recently used
+				final Iterator<Entry<String, httpCacheEntry>> it = entries.entrySet().iterator();
+				while(it.hasNext() && (entries.size() > this.maxEntries || countBytes > this.maxBytes)) {
+					final httpCacheEntry eldest = it.next().getValue();
+					countBytes -= eldest.data.length;
+					it.remove();
+				}
+			}
+			return data;
+		}
+		/**
+		 * @return offset of the Date header value, or -1 if there isn't one.
+		 */
+		private static int findDate(final byte[] data) {
+			final byte[] name = { '\r', '\n', 'D', 'a', 't', 'e', ':', ' ' };
+			for(int i = 0; i + name.length <= data.length; i++) {
+				// end of the headers
+				if(data[i] == '\r' && i + 3 < data.length
+				&& data[i+1] == '\n' && data[i+2] == '\r' && data[i+3] == '\n')
+					return -1;
+				int j = 0;
+				while(j < name.length && data[i+j] == name[j])
+					j++;
+				if(j == name.length)
+					return i + name.length;
+			}
+			return -1;
+		}
+		private static int findLineEnd(final byte[] data, final int offset) {
+			for(int i = offset; i < data.length; i++) {
+				if(data[i] == '\r')
+					return i;
+			}
+			return data.length;
+		}
+		// must hold the entries lock
+		private void removeEntry(final String key) {
+			final httpCacheEntry old = entries.remove(key);
+			if(old != null)
+				countBytes -= old.data.length;
+		}
+
+
+		/**
+		 * Runs the handlers again for a stale entry, one refresh at a time.
+		 */
+		protected void revalidate(final NanoHTTPserver server,
+				final httpServerRequest request, final httpCacheEntry entry) {
+			if(server == null) return;
+			synchronized(entry) {
+				if(entry.revalidating) return;
+				entry.revalidating = true;
+			}
+			// used after the connection has moved on
+			request.retain();
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final httpServerResponse response = server.serve(request);
+						if(store(request, response) == null)
+							safeClose(response.getBody());
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						synchronized(entry) {
+							entry.revalidating = false;
+						}
+					}
+				}
+			};
+			try {
+				revalidatePool.execute(task);
+			} catch (RejectedExecutionException ignore) {
+				// too many refreshes queued, try again on a later hit
+				synchronized(entry) {
+					entry.revalidating = false;
+				}
+			}
+		}
+
+
+		/**
+		 * Drops all cached responses with a key starting with the given prefix.
+		 * @param prefix decoded uri prefix, for example "/api/users"
+		 * @return number of entries removed.
+		 */
+		public int invalidate(final String prefix) {
+			if(prefix == null) return 0;
+			int count = 0;
+			synchronized(entries) {
+				final Iterator<Entry<String, httpCacheEntry>> it = entries.entrySet().iterator();
+				while(it.hasNext()) {
+					final Entry<String, httpCacheEntry> entry = it.next();
+					if(entry.getKey().startsWith(prefix)) {
+						countBytes -= entry.getValue().data.length;
+						it.remove();
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+		public void clear() {
+			synchronized(entries) {
+				entries.clear();
+				countBytes = 0L;
+			}
+		}
+
+
+		public int size() {
+			synchronized(entries) {
+				return entries.size();
+			}
+		}
+		public long getSizeBytes() {
+			synchronized(entries) {
+				return countBytes;
+			}
+		}
+		public long getHits() {
+			return countHits;
+		}
+		public long getMisses() {
+			return countMisses;
+		}
+
+
+		protected static class httpCacheEntry {
+			public final byte[] data;
+			// Date header value, rewritten when sent
+			public final int dateStart;
+			public final int dateEnd;
+			public final long expires;
+			public final long stale;
+			public final httpValidator validator;
+			public boolean revalidating = false;
+			public httpCacheEntry(final byte[] data, final int dateStart, final int dateEnd,
+					final long expires, final long stale, final httpValidator validator) {
+				this.data = data;
+				this.dateStart = dateStart;
+				this.dateEnd = dateEnd;
+				this.expires = expires;
+				this.stale = stale;
+				this.validator = validator;
+			}
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Size and rate limits for incoming requests. Requests breaking one are
+	 * answered with its status and the connection is closed.
+	 */
+	public static class httpLimits {
+
+		public static final int  DEFAULT_MAX_REQUEST_LINE = 8 * 1024; // 8K
+		public static final int  DEFAULT_MAX_HEADERS      = 100;
+		public static final int  DEFAULT_MAX_HEADER_BYTES = 64 * 1024; // 64K
+		public static final int  DEFAULT_MIN_RATE         = 128; // bytes per second
+		public static final long DEFAULT_RATE_GRACE       = SOCKET_TIMEOUT;
+
+		private volatile int maxRequestLine = DEFAULT_MAX_REQUEST_LINE;
+		private volatile int maxHeaders = DEFAULT_MAX_HEADERS;
+		private volatile int maxHeaderBytes = DEFAULT_MAX_HEADER_BYTES;
+		private volatile long maxBody = 0L;
+		private volatile int minRate = DEFAULT_MIN_RATE;
+		private volatile long rateGrace = DEFAULT_RATE_GRACE;
+
+
+		/**
+		 * Longest request line, failing with 414 Request-URI Too Long.
+		 * @param bytes most bytes, or 0 for no limit.
+		 */
+		public void setMaxRequestLine(final int bytes) {
+			this.maxRequestLine = (bytes < 0 ? 0 : bytes);
+		}
+		public int getMaxRequestLine() {
+			return maxRequestLine;
+		}
+		/**
+		 * Most header lines and bytes in the header block,
+		 * failing with 431 Request Header Fields Too Large.
+		 * @param count most header lines, or 0 for no limit.
+		 * @param bytes most bytes, or 0 for no limit.
+		 */
+		public void setMaxHeaders(final int count, final int bytes) {
+			this.maxHeaders = (count < 0 ? 0 : count);
+			this.maxHeaderBytes = (bytes < 0 ? 0 : bytes);
+		}
+		public int getMaxHeaders() {
+			return maxHeaders;
+		}
+		public int getMaxHeaderBytes() {
+			return maxHeaderBytes;
+		}
+		/**
+		 * Largest request body, failing with 413 Request Entity Too Large.
+		 * A Content-Length over the limit fails before the body is read,
+		 * a chunked body once the limit is passed.
+		 * @param bytes most bytes, or 0 for no limit.
+		 */
+		public void setMaxBody(final long bytes) {
+			this.maxBody = (bytes < 0L ? 0L : bytes);
+		}
+		public long getMaxBody() {
+			return maxBody;
+		}
+		/**
+		 * Slowest a client may send a request, failing with 408 Request
+		 * Timeout. Only time spent waiting on the socket counts.
+		 * @param bytesPerSecond minimum rate, or 0 to disable.
+		 * @param grace milliseconds of waiting before the rate is enforced.
+		 */
+		public void setMinRate(final int bytesPerSecond, final long grace) {
+			this.minRate = (bytesPerSecond < 0 ? 0 : bytesPerSecond);
+			this.rateGrace = (grace < 0L ? 0L : grace);
+		}
+		public int getMinRate() {
+			return minRate;
+		}
+		public long getRateGrace() {
+			return rateGrace;
+		}
+
+
+	}
+
+
+	/**
+	 * Response exception
+	 */
+	public static final class httpResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final httpStatus status;
+		public httpResponseException(String msg) {
+			super(msg);
+			this.status = httpStatus.INTERNAL_ERROR;
 		}
 		public httpResponseException(httpStatus status, String msg) {
 			super(msg);
@@ -413,12 +2407,41 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 			return status;
 		}
 		public httpServerResponse getResponse(httpServerRequest request) {
-			if(request == null) return null;
+			if(request == null)
+				return new httpServerResponse(this.getStatus(), DEFAULT_MIME, this.getMessage());
 			return new httpServerResponse(request, this.getStatus(), DEFAULT_MIME, this.getMessage());
 		}
 	}
 
 
+	/**
+	 * Why a request was cancelled.
+	 */
+	public enum httpCancelReason {
+		// the client closed the connection or reset the stream
+		DISCONNECTED,
+		// the request's deadline passed
+		TIMEOUT,
+		// cancelled by a handler or the application
+		CANCELLED
+	}
+	/**
+	 * Thrown by httpServerRequest.checkCancelled(), and from streams
+	 * of a cancelled request.
+	 */
+	public static class httpCancelledException extends InterruptedIOException {
+		private static final long serialVersionUID = 1L;
+		private final httpCancelReason reason;
+		public httpCancelledException(final httpCancelReason reason) {
+			super("Request cancelled: "+reason.toString());
+			this.reason = reason;
+		}
+		public httpCancelReason getReason() {
+			return reason;
+		}
+	}
+
+
 	// ------------------------------------------------------------------------------- //
 
 
@@ -427,26 +2450,73 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 	 */
 	public static class httpServerWorker extends Thread implements Closeable {
 
+		// unread request body to skip before closing the connection instead
+		public static final long MAX_DISCARD_BODY = 64L * 1024L; // 64K
+
 		private final NanoHTTPserver parent;
 		private final int index;
+		// null for unix domain sockets
 		private final Socket socket;
+		private final SocketChannel channel;
+		// channel behind the streams, the socket or a TLS layer
+		private final ByteChannel io;
+		// responses are written through this, io or a shaper over it
+		private final WritableByteChannel writeIO;
+		// null if not shaped
+		private final httpShapedConnection shaped;
 		private final InputStream in;
-		private final OutputStream out;
+		private final httpOutputBuffer out;
+		private final httpInputBuffer reader;
+		// null without a watchdog
+		private final httpWatch watch;
 
 		// requests
 		private volatile int countRequests = 0;
+		// connection was handed to an httpUpgrade
+		private volatile boolean detached = false;
 
 
 		public httpServerWorker(final int index, final NanoHTTPserver parent,
 				final Socket accept, final InputStream in, final OutputStream out) {
-			if(accept == null) throw new NullPointerException();
+			this(index, parent, accept, in, out, accept.getChannel());
+		}
+		public httpServerWorker(final int index, final NanoHTTPserver parent,
+				final Socket accept, final InputStream in, final OutputStream out, final ByteChannel io) {
+			// only set when accepted by a ServerSocketChannel
+			this(index, parent, accept, accept.getChannel(), in, out, io);
+		}
+		/**
+		 * Worker for a unix domain socket, which has no Socket object.
+		 */
+		public httpServerWorker(final int index, final NanoHTTPserver parent,
+				final SocketChannel accept, final InputStream in, final OutputStream out, final ByteChannel io) {
+			this(index, parent, null, accept, in, out, io);
+		}
+		private httpServerWorker(final int index, final NanoHTTPserver parent,
+				final Socket socket, final SocketChannel channel,
+				final InputStream in, final OutputStream out, final ByteChannel io) {
+			if(socket == null && channel == null) throw new NullPointerException();
 			if(in  == null) throw new NullPointerException();
 			if(out == null) throw new NullPointerException();
 			this.index = index;
 			this.parent = parent;
-			this.socket = accept;
+			this.socket = socket;
+			this.channel = channel;
+			this.io = io;
 			this.in  = in;
-			this.out = out;
+			final NanoHTTPshaper shaper = parent.getShaper();
+			if(shaper == null) {
+				this.shaped = null;
+				this.writeIO = io;
+				this.out = new httpOutputBuffer(out, io, parent.getWriteBufferSize());
+			} else {
+				this.shaped = shaper.open(out, io);
+				this.writeIO = shaped.getChannel();
+				this.out = new httpOutputBuffer(shaped.getStream(), writeIO, parent.getWriteBufferSize());
+			}
+			this.reader = new httpInputBuffer(in);
+			final NanoHTTPwatchdog watchdog = parent.getWatchdog();
+			this.watch = (watchdog == null ? null : watchdog.open(socket, channel, io, reader));
 			// thread name
 			{
 				final StringBuilder name = new StringBuilder();
@@ -467,19 +2537,113 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 //			final httpSession session = new httpServerSession(tempFiles, in, out);
 			httpServerRequest request = null;
 			httpServerResponse result = null;
-			while(!socket.isClosed()) {
+			httpRequestEvent trace = null;
+			// finished request, to be reused for the next one
+			httpServerRequest spare = null;
+			final boolean recycle = parent.getRecycleRequests();
+			// repeated header lines give the same strings
+			if(recycle)
+				reader.setLineCache(true);
+			while(!isSocketClosed()) {
 				try {
 					// wait for then parse the headers and load data key/value pairs
-					request = new httpServerRequest(in);
+					if(spare != null && !spare.isRetained()) {
+						final httpServerRequest next = spare;
+						spare = null;
+						next.recycle();
+						request = next;
+					} else {
+						spare = null;
+						request = new httpServerRequest(reader, parent.getLimits());
+					}
+					// switch to HTTP/2 for the rest of the connection
+					if(parent.getHTTP2() && isHTTP2(request)) {
+						final NanoHTTP2 http2 = new NanoHTTP2(parent, this, reader, out, request);
+						if(socket == null)
+							parent.setUnixHTTP2(channel, http2);
+						request = null;
+						http2.run();
+						break;
+					}
+					trace = (NanoHTTPtrace.isRequestEnabled() ? new httpRequestEvent() : null);
+					if(trace != null) {
+						trace.start();
+						trace.parseTime = request.getParseTime();
+					}
+					// virtual host, needed for the cache key
+					parent.resolveVirtualHost(request);
+					// answer Expect: 100-continue, or reject the upload before it's sent
+					result = parent.expect(request, out);
+					// serve from cache
+					final httpResponseCache cache = parent.getResponseCache();
+					if(shaped != null)
+						shaped.classify(request, null);
+					if(result == null && cache != null && cache.send(parent, request, out)) {
+						incrementRequests();
+						if(trace != null) {
+							trace.dispatched();
+							finishTrace(trace, request, httpStatus.OK);
+							trace = null;
+						}
+						// skip whatever the client sent with the request
+						if(!request.discardBody(MAX_DISCARD_BODY)) {
+							request = null;
+							break;
+						}
+						flush();
+						if(recycle)
+							spare = request;
+						request = null;
+						continue;
+					}
 					// find a handler to execute request
-					result = parent.serve(request);
+					if(result == null) {
+						if(watch != null)
+							watch.begin(request, request.isBodyBuffered());
+						try {
+							result = parent.serve(request);
+						} finally {
+							// stop watching for the close before anything is sent
+							if(watch != null && !watch.sending())
+								request.cancel(httpCancelReason.DISCONNECTED);
+						}
+					}
+					if(trace != null)
+						trace.dispatched();
+					// cancelled while the handler ran
+					if(request.isCancelled()) {
+						if(result != null)
+							NanoHTTPserver.safeClose(result.getBody());
+						// nobody left to answer
+						if(httpCancelReason.DISCONNECTED.equals(request.getCancelReason())) {
+							request = null;
+							result = null;
+							break;
+						}
+						result = new httpServerResponse(request,
+							httpStatus.SERVICE_UNAVAILABLE, DEFAULT_MIME, "Request cancelled");
+						result.setCacheTTL(0L);
+						result.setKeepAlive(false);
+					}
+					// the client broke a limit while the handler read the body
+					final httpLimitException failure = request.getLimitFailure();
+					if(failure != null) {
+						if(result != null)
+							NanoHTTPserver.safeClose(result.getBody());
+						throw new httpResponseException(failure.getStatus(), failure.getMessage(), failure);
+					}
 				} catch (SocketTimeoutException ignore) {
 					request = null;
 					result = null;
 					break;
+				} catch (EOFException ignore) {
+					request = null;
+					result = null;
+					break;
 				} catch (NanoHTTPserver.httpResponseException e) {
 					result = e.getResponse(request);
-					e.printStackTrace();
+					// clients can trigger these at will, keep it to a line
+					System.out.println("Refused request: "+e.getStatus().toString()+" - "+e.getMessage());
 					break;
 				} catch (Exception e) {
 					// When the socket is closed by the client, we throw our own SocketException
@@ -493,49 +2657,204 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 				if(request == null || result == null) break;
 				// +1 request
 				incrementRequests();
-				if(result.isChunked()) break;
+				// large response, written without this thread
+				if(offload(request, result)) {
+					if(trace != null) {
+						finishTrace(trace, request, result.getStatus());
+						trace = null;
+					}
+					request = null;
+					result = null;
+					break;
+				}
 				// send the result
-				send(result);
+				send(request, result);
+				if(watch != null)
+					watch.end();
+				if(trace != null) {
+					finishTrace(trace, request, result.getStatus());
+					trace = null;
+				}
+				// hand the connection over, leaving the socket open
+				if(result.getUpgrade() != null) {
+					detach(result.getUpgrade());
+					request = null;
+					result = null;
+					break;
+				}
+				// skip whatever the handler didn't read
+				if(result.isKeepAlive() && !request.discardBody(MAX_DISCARD_BODY))
+					result.setKeepAlive(false);
+				if(!result.isKeepAlive()) {
+					request = null;
+					result = null;
+					break;
+				}
+				if(recycle)
+					spare = request;
 				request = null;
 				result = null;
+				flush();
 			}
-			if(request != null) {
-				if(result == null) {
-					result = new httpServerResponse(
-						request,
-						httpStatus.INTERNAL_ERROR,
-						NanoHTTPserver.DEFAULT_MIME,
-						""
-					);
-				}
-				// send the result
-				if(result != null)
-					send(result);
+			if(request != null && result == null) {
+				result = new httpServerResponse(
+					request,
+					httpStatus.INTERNAL_ERROR,
+					NanoHTTPserver.DEFAULT_MIME,
+					""
+				);
+			}
+			// send the error, then close
+			if(result != null) {
+				result.setKeepAlive(false);
+				send(result);
 			}
 			request = null;
 			result = null;
 			// close
 			NanoHTTPserver.safeClose(this);
 		}
+		private void finishTrace(final httpRequestEvent trace,
+				final httpServerRequest request, final httpStatus status) {
+			final httpMethod method = request.getMethod();
+			trace.method = (method == null ? null : method.toString());
+			trace.uri = request.getUri();
+			trace.status = (status == null ? 0 : status.getValue());
+			trace.connection = index;
+			trace.request = countRequests;
+			trace.finish();
+		}
+		/**
+		 * h2c upgrades are for cleartext only, TLS connections agree
+		 * on HTTP/2 with ALPN then send the preface.
+		 */
+		protected boolean isHTTP2(final httpServerRequest request) {
+			if(io instanceof httpTLSChannel)
+				return request.isHTTP2Preface();
+			return NanoHTTP2.isHTTP2(request);
+		}
+		/**
+		 * Flushes pending responses, unless another pipelined request
+		 * is already waiting so the responses can share a write.
+		 */
+		protected void flush() {
+			try {
+				if(out.size() > 0 && reader.buffered() > 0)
+					return;
+				out.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		/**
+		 * Passes the connection to an upgrade handler. The worker ends
+		 * without closing the socket.
+		 */
+		protected void detach(final httpUpgrade upgrade) {
+			try {
+				out.flush();
+				if(channel == null || io == null) throw new IOException("Connection has no channel to upgrade");
+				final byte[] leftover = reader.drain();
+				detached = true;
+				upgrade.upgrade(parent, channel, io, leftover);
+			} catch (Exception e) {
+				e.printStackTrace();
+				detached = false;
+			}
+		}
 		public void send(httpServerResponse result) {
 			if(result == null) return;
 			try {
-				result.send(out);
+				result.send(out, writeIO);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		/**
+		 * Sends the result, storing it in the response cache if enabled.
+		 */
+		public void send(httpServerRequest request, httpServerResponse result) {
+			if(result == null) return;
+			if(shaped != null)
+				shaped.classify(request, result);
+			final httpResponseCache cache = parent.getResponseCache();
+			if(cache == null || request == null) {
+				send(result);
+				return;
+			}
+			try {
+				cache.sendAndStore(request, result, out, writeIO);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
 
 
+		/**
+		 * Spools a large response and hands it to the offload scheduler
+		 * along with the connection, so this thread and the response
+		 * body are freed while the client reads.
+		 * @return true if the worker is done with the connection.
+		 */
+		protected boolean offload(final httpServerRequest request, final httpServerResponse result) {
+			final NanoHTTPoffload offload = parent.getOffload();
+			if(offload == null || shaped != null || channel == null || io == null) return false;
+			if(!offload.accepts(request, result)) return false;
+			// the rest of the upload is read here, the next worker starts at the next request
+			if(result.isKeepAlive() && !request.discardBody(MAX_DISCARD_BODY))
+				result.setKeepAlive(false);
+			final httpSpool spool = offload.spool();
+			try {
+				final httpResponseCache cache = parent.getResponseCache();
+				if(cache == null)
+					result.send(spool, null);
+				else
+					cache.sendAndStore(request, result, spool, null);
+				// responses to earlier pipelined requests go first
+				out.flush();
+				final byte[] leftover = reader.drain();
+				if(watch != null)
+					watch.end();
+				detached = true;
+				offload.drain(parent, index, socket, channel, io, spool, leftover, result.isKeepAlive());
+			} catch (IOException e) {
+				e.printStackTrace();
+				spool.close();
+				// closed by the worker
+				detached = false;
+			}
+			return true;
+		}
+
+
 		@Override
 		public void close() throws IOException {
-			NanoHTTPserver.safeClose(socket);
-			NanoHTTPserver.safeClose(in);
-			NanoHTTPserver.safeClose(out);
+			if(watch != null)
+				watch.close();
+			if(!detached) {
+				try {
+					if(!isSocketClosed())
+						out.flush();
+				} catch (IOException ignore) {}
+				// sends close_notify, while the socket is still open
+				if(io instanceof httpTLSChannel)
+					NanoHTTPserver.safeClose(io);
+				if(socket == null)
+					NanoHTTPserver.safeClose(channel);
+				else
+					NanoHTTPserver.safeClose(socket);
+				NanoHTTPserver.safeClose(in);
+				NanoHTTPserver.safeClose(out);
+			}
 			parent.unregisterWorker(this);
 		}
 		public boolean isClosed() {
-			return socket.isClosed() || !Thread.currentThread().isAlive();
+			return detached || isSocketClosed() || !Thread.currentThread().isAlive();
+		}
+		private boolean isSocketClosed() {
+			if(socket == null)
+				return !channel.isOpen();
+			return socket.isClosed();
 		}
 
 
@@ -556,29 +2875,177 @@ public class NanoHTTPserver extends NanoHTTPcommon {
 
 	public static class httpServerRequest {
 
-		public final BufferedReader reader;
+		private static final byte[] CONTINUE_BYTES =
+			"HTTP/1.1 100 Continue\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+		public final httpInputBuffer in;
 
 		private final Properties pre     = new Properties();
 		private final Properties query   = new Properties();
 		private final Properties headers = new Properties();
 //		private final Properties files   = new Properties();
+		// raw lines the maps above were parsed from, a request
+		// repeating them on the same connection isn't parsed again
+		private String requestLine = null;
+		private httpHeaderLines headerLines = new httpHeaderLines();
+		private httpHeaderLines readLines   = new httpHeaderLines();
+		// reusable response, reset on first use for each request
+		private httpServerResponse response = null;
+		private boolean responseReset = false;
+
+		// time from the request line to the end of the headers
+		private long parseTime = 0L;
+		// request body, opened on first use
+		private InputStream body = null;
+		private boolean bodyOpened = false;
+		private final httpLimits limits;
+		// limit broken while reading the body
+		private volatile httpLimitException limitFailure = null;
+		// client waits for 100 Continue before sending the body
+		private volatile boolean expectContinue = false;
+		// set once the server has matched the Host header
+		private volatile httpVirtualHost vhost = null;
+		private volatile OutputStream continueOut = null;
+		// kept past serve(), can't be recycled
+		private volatile boolean retained = false;
+		// cancellation
+		private volatile httpCancelReason cancelled = null;
+		private volatile long deadline = 0L;
+		private List<Runnable> cancelListeners = null;
 
 
 		/**
 		 * Decodes the sent headers and loads the data into Key/value pairs
 		 */
 		public httpServerRequest(InputStream in) throws IOException {
-			reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			this(in instanceof httpInputBuffer ? (httpInputBuffer) in : new httpInputBuffer(in));
+		}
+		/**
+		 * Decodes the sent headers from an input buffer which is kept for the
+		 * life of the connection, so pipelined requests aren't lost in its buffer.
+		 */
+		public httpServerRequest(httpInputBuffer in) throws IOException {
+			this(in, null);
+		}
+		/**
+		 * Decodes the sent headers, failing as soon as the request breaks
+		 * a limit rather than buffering all of it.
+		 * @param limits request limits, or null for none.
+		 */
+		public httpServerRequest(httpInputBuffer in, httpLimits limits) throws IOException {
+			this.in = in;
+			this.limits = limits;
+			parse();
+		}
+		/**
+		 * Reuses this object for the next request on the same connection.
+		 * Anything the previous request returned, like its body stream,
+		 * must no longer be used.
+		 * @throws IllegalStateException if the request was retained.
+		 */
+		public void recycle() throws IOException {
+			if(retained) throw new IllegalStateException("Request was retained");
+			if(in == null) throw new IllegalStateException("Request has no connection");
+			parseTime = 0L;
+			body = null;
+			bodyOpened = false;
+			limitFailure = null;
+			expectContinue = false;
+			continueOut = null;
+			vhost = null;
+			synchronized(this) {
+				cancelled = null;
+				cancelListeners = null;
+			}
+			deadline = 0L;
+			responseReset = false;
+			parse();
+		}
+		/**
+		 * Marks the request as still in use after serve() has returned,
+		 * for example by a background task, so it won't be recycled.
+		 */
+		public void retain() {
+			this.retained = true;
+		}
+		public boolean isRetained() {
+			return retained;
+		}
+		/**
+		 * Response kept with the request, reused for each request on the
+		 * connection when requests are recycled. It's reset by the first
+		 * call for each request, and can't be used after serve() returns
+		 * unless the request was retained.
+		 * @return response with OK status and no body.
+		 */
+		public httpServerResponse getResponse() {
+			if(response == null) {
+				response = new httpServerResponse(this, httpStatus.OK, null, (httpBody) null);
+			} else
+			if(!responseReset) {
+				response.reset(this);
+			}
+			responseReset = true;
+			return response;
+		}
+		private void parse() throws IOException {
 //			// decode the header into java properties
+			if(limits != null)
+				in.setMinRate(limits.getMinRate(), limits.getRateGrace());
+			in.resetRate();
 
 			// read the request line
-			final StringTokenizer token;
+			final long parseStart;
 			{
-				final String line = reader.readLine();
-				if(line == null) return;
-System.out.println(line);
-				token = new StringTokenizer(line);
+				final String line;
+				try {
+					line = in.readLine(limits == null ? 0 : limits.getMaxRequestLine());
+				} catch (httpLimitException e) {
+					throw new NanoHTTPserver.httpResponseException(
+						(httpStatus.HEADERS_TOO_LARGE.equals(e.getStatus()) ? httpStatus.REQUEST_URI_TOO_LONG : e.getStatus()),
+						e.getMessage(), e
+					);
+				}
+				// connection closed by client
+				if(line == null) throw new EOFException();
+				parseStart = System.nanoTime();
+				if(!line.equals(requestLine)) {
+					requestLine = null;
+					pre.clear();
+					query.clear();
+					parseRequestLine(new StringTokenizer(line));
+					requestLine = line;
+				}
+			}
+			// If there's another token, it's protocol version,
+			// followed by HTTP headers. Ignore version but parse headers.
+			// NOTE: this now forces header names lowercase since they are
+			// case insensitive and vary by client.
+			if(pre.containsKey("version")) {
+				readLines.clear();
+				try {
+					if(limits == null)
+						readHeaders(in, null, readLines, 0, 0);
+					else
+						readHeaders(in, null, readLines, limits.getMaxHeaders(), limits.getMaxHeaderBytes());
+				} catch (httpLimitException e) {
+					throw new NanoHTTPserver.httpResponseException(e.getStatus(), e.getMessage(), e);
+				}
+				if(!readLines.matches(headerLines)) {
+					headers.clear();
+					readLines.putAll(headers);
+					final httpHeaderLines swap = headerLines;
+					headerLines = readLines;
+					readLines = swap;
+				}
+			} else {
+				headers.clear();
+				headerLines.clear();
 			}
+			parseTime = System.nanoTime() - parseStart;
+			checkHeaders();
+		}
+		private void parseRequestLine(final StringTokenizer token) throws IOException {
 			if(!token.hasMoreTokens())
 				throw new NanoHTTPserver.httpResponseException(
 					httpStatus.BAD_REQUEST,
@@ -590,31 +3057,36 @@ System.out.println(line);
 					httpStatus.BAD_REQUEST,
 					"BAD REQUEST: Missing URI. Usage: GET /example/file.html"
 				);
-			String uri = token.nextToken();
-			// decode parameters from the URI
-			final int qmi = uri.indexOf('?');
-			if(qmi >= 0) {
-				decodeQuery(uri.substring(qmi+1), query);
-				uri = decodePercent(uri.substring(0, qmi));
-			} else {
-				uri = decodePercent(uri);
+			setTarget(token.nextToken());
+			if(token.hasMoreTokens())
+				pre.put("version", token.nextToken());
+		}
+		private void checkHeaders() throws IOException {
+			if(!httpVersion.HTTP_1_0.equals(getVersion())) {
+				final String expect = getHeader("Expect");
+				this.expectContinue = (expect != null && "100-continue".equalsIgnoreCase(expect.trim()));
 			}
-			pre.put("uri", uri);
-			// If there's another token, it's protocol version,
-			// followed by HTTP headers. Ignore version but parse headers.
-			// NOTE: this now forces header names lowercase since they are
-			// case insensitive and vary by client.
-			if(token.hasMoreTokens()) {
-				String line = reader.readLine();
-				while(line != null && line.trim().length() > 0) {
-					final int p = line.indexOf(':');
-					if(p >= 0)
-						headers.put(
-							line.substring(0, p).trim().toLowerCase(Locale.US),
-							line.substring(p+1).trim()
-						);
-					line = reader.readLine();
-				}
+			// the body must have exactly one length, or the next request can't be found
+			final String length = getHeader("Content-Length");
+			if(length != null) {
+				if(getHeader("Transfer-Encoding") != null)
+					throw new NanoHTTPserver.httpResponseException(
+						httpStatus.BAD_REQUEST,
+						"BAD REQUEST: Content-Length with Transfer-Encoding"
+					);
+				final long len = parseContentLength(length);
+				if(len < 0L)
+					throw new NanoHTTPserver.httpResponseException(
+						httpStatus.BAD_REQUEST,
+						"BAD REQUEST: Invalid Content-Length"
+					);
+				// refuse a body known to be too large before it's read
+				final long maxBody = (limits == null ? 0L : limits.getMaxBody());
+				if(maxBody > 0L && len > maxBody)
+					throw new NanoHTTPserver.httpResponseException(
+						httpStatus.REQUEST_ENTITY_TOO_LARGE,
+						"Body is larger than "+Long.toString(maxBody)+" bytes"
+					);
 			}
 //			} catch () {
 //				throw new ResponseException(httpStatus.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: "+e.getMessage(), e);
@@ -627,6 +3099,39 @@ System.out.println(line);
 //headers.put("remote-addr", remoteIp);
 //headers.put("http-client-ip", remoteIp);
 		}
+		/**
+		 * Request decoded from an HTTP/2 header block.
+		 * @param method request method from the :method pseudo header.
+		 * @param target request target from the :path pseudo header.
+		 * @param headers header fields, with lowercase names.
+		 * @param body request body, or null if the stream ended with the headers.
+		 */
+		public httpServerRequest(final String method, final String target,
+				final Map<String, String> headers, final InputStream body) {
+			this.in = null;
+			this.limits = null;
+			this.pre.put("method", method);
+			this.pre.put("version", "HTTP/2.0");
+			setTarget(target);
+			this.headers.putAll(headers);
+			this.body = body;
+			this.bodyOpened = true;
+		}
+		/**
+		 * Decodes parameters from the request target.
+		 */
+		private void setTarget(String uri) {
+			pre.put("target", uri);
+			final int qmi = uri.indexOf('?');
+			if(qmi >= 0) {
+				pre.put("query", uri.substring(qmi+1));
+				decodeQuery(uri.substring(qmi+1), query);
+				uri = decodePercent(uri.substring(0, qmi));
+			} else {
+				uri = decodePercent(uri);
+			}
+			pre.put("uri", uri);
+		}
 
 
 		/**
@@ -639,6 +3144,311 @@ System.out.println(line);
 				return null;
 			return httpMethod.lookup(str);
 		}
+		/**
+		 * @return true if this is the start of the HTTP/2 connection preface.
+		 */
+		public boolean isHTTP2Preface() {
+			return "PRI".equals(this.pre.get("method"))
+				&& "*".equals(this.pre.get("target"))
+				&& "HTTP/2.0".equals(this.pre.get("version"));
+		}
+		/**
+		 * Request body, limited to the Content-Length or decoded from
+		 * chunked transfer encoding.
+		 * @return body stream, or null if the request has no body.
+		 */
+		public InputStream getBody() throws IOException {
+			if(!bodyOpened) {
+				bodyOpened = true;
+				final InputStream tmp = openBody(
+					in,
+					getHeader("Transfer-Encoding"),
+					getHeader("Content-Length"),
+					false
+				);
+				if(tmp != null && (limits != null || expectContinue)) {
+					final long maxBody = (limits == null ? 0L : limits.getMaxBody());
+					body = new httpRequestBodyStream(maxBody > 0L ? new httpLimitedInputStream(tmp, maxBody) : tmp);
+				} else {
+					body = tmp;
+				}
+			}
+			return body;
+		}
+		/**
+		 * @return true while the client waits for 100 Continue
+		 *   before sending the body.
+		 */
+		public boolean isExpectContinue() {
+			return expectContinue;
+		}
+		/**
+		 * Sends 100 Continue to this output when the body is first read.
+		 */
+		public void setContinue(final OutputStream out) {
+			this.continueOut = out;
+		}
+		private void sendContinue() throws IOException {
+			if(!expectContinue) return;
+			expectContinue = false;
+			final OutputStream out = continueOut;
+			if(out == null) return;
+			out.write(CONTINUE_BYTES);
+			out.flush();
+		}
+		/**
+		 * @return limit the client broke while the body was read, or null.
+		 */
+		public httpLimitException getLimitFailure() {
+			return limitFailure;
+		}
+		/**
+		 * Notes a broken limit, so the worker can answer with its status
+		 * whatever the handler made of the exception.
+		 */
+		private class httpRequestBodyStream extends FilterInputStream {
+			public httpRequestBodyStream(final InputStream in) {
+				super(in);
+			}
+			@Override
+			public int read() throws IOException {
+				sendContinue();
+				try {
+					return super.read();
+				} catch (httpLimitException e) {
+					limitFailure = e;
+					throw e;
+				}
+			}
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException {
+				sendContinue();
+				try {
+					return super.read(b, off, len);
+				} catch (httpLimitException e) {
+					limitFailure = e;
+					throw e;
+				}
+			}
+			@Override
+			public long skip(final long n) throws IOException {
+				sendContinue();
+				try {
+					return super.skip(n);
+				} catch (httpLimitException e) {
+					limitFailure = e;
+					throw e;
+				}
+			}
+		}
+		/**
+		 * Skips any part of the body the handler didn't read, so the next
+		 * request on the connection starts in the right place.
+		 * @param max most bytes to skip before giving up.
+		 * @return true if the connection can be reused.
+		 */
+		public boolean discardBody(long max) {
+			// the client won't send the body after a final response, unless
+			// it stopped waiting, so the connection is only kept if it's all here
+			if(expectContinue) {
+				expectContinue = false;
+				if(!isBodyBuffered()) return false;
+			}
+			try {
+				final InputStream tmp = getBody();
+				if(tmp == null) return true;
+				final byte[] buff = new byte[8192];
+				long remaining = max;
+				while(remaining >= 0L) {
+					final int read = tmp.read(buff, 0, buff.length);
+					if(read < 0) return true;
+					remaining -= read;
+				}
+				return false;
+			} catch (IOException ignore) {
+				return false;
+			}
+		}
+		// ------------------------------------------------------------------------------- //
+		// cancellation
+
+
+		/**
+		 * Cancels the request, telling handlers and streaming bodies to
+		 * stop. Callbacks run on the calling thread.
+		 * @return false if it was already cancelled.
+		 */
+		public boolean cancel(final httpCancelReason reason) {
+			if(reason == null) throw new NullPointerException();
+			final List<Runnable> listeners;
+			synchronized(this) {
+				if(cancelled != null) return false;
+				cancelled = reason;
+				listeners = cancelListeners;
+				cancelListeners = null;
+			}
+			if(listeners != null) {
+				for(final Runnable listener : listeners) {
+					try {
+						listener.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			return true;
+		}
+		public boolean isCancelled() {
+			return (cancelled != null);
+		}
+		/**
+		 * @return why the request was cancelled, or null if it wasn't.
+		 */
+		public httpCancelReason getCancelReason() {
+			return cancelled;
+		}
+		/**
+		 * For long running handlers and streaming bodies.
+		 * @throws httpCancelledException if the request was cancelled.
+		 */
+		public void checkCancelled() throws httpCancelledException {
+			final httpCancelReason reason = cancelled;
+			if(reason != null)
+				throw new httpCancelledException(reason);
+		}
+		/**
+		 * Runs a callback when the request is cancelled, right away if it
+		 * already was. Callbacks may run on the watchdog's selector thread
+		 * and must not block.
+		 */
+		public void onCancel(final Runnable listener) {
+			if(listener == null) throw new NullPointerException();
+			synchronized(this) {
+				if(cancelled == null) {
+					if(cancelListeners == null)
+						cancelListeners = new ArrayList<Runnable>(2);
+					cancelListeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+		/**
+		 * @return time the request must be answered by, in milliseconds
+		 *   since the epoch, or 0 for none.
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+		/**
+		 * Sets or moves the deadline, enforced by the server's watchdog.
+		 * @param deadline time in milliseconds since the epoch, or 0 for none.
+		 */
+		public void setDeadline(final long deadline) {
+			this.deadline = (deadline < 0L ? 0L : deadline);
+		}
+		/**
+		 * @return milliseconds left until the deadline, 0 once it's passed,
+		 *   or Long.MAX_VALUE if there is none.
+		 */
+		public long getTimeRemaining() {
+			final long tmp = deadline;
+			if(tmp == 0L) return Long.MAX_VALUE;
+			final long remaining = tmp - System.currentTimeMillis();
+			return (remaining < 0L ? 0L : remaining);
+		}
+
+
+		/**
+		 * @return true if there's no body, or all of it has already arrived.
+		 */
+		private boolean isBodyBuffered() {
+			final String encoding = getHeader("Transfer-Encoding");
+			if(encoding != null && encoding.toLowerCase(Locale.US).contains("chunked"))
+				return false;
+			final String length = getHeader("Content-Length");
+			if(length == null) return true;
+			final long len = parseContentLength(length);
+			return (len >= 0L && len <= in.buffered());
+		}
+		/**
+		 * @return nanoseconds spent parsing the request headers.
+		 */
+		public long getParseTime() {
+			return parseTime;
+		}
+		/**
+		 * HTTP protocol version of the request.
+		 * @return httpVersion object, or HTTP_1_0 if not sent or unknown.
+		 */
+		public httpVersion getVersion() {
+			final httpVersion version = httpVersion.lookupProtocol((String) this.pre.get("version"));
+			return (version == null ? httpVersion.HTTP_1_0 : version);
+		}
+		/**
+		 * HTTP/1.1 connections are persistent unless the client asks to close,
+		 * HTTP/1.0 connections only if the client asks for keep-alive.
+		 */
+		public boolean isKeepAlive() {
+			final String connection = getHeader("Connection");
+			if(httpVersion.HTTP_1_0.equals(getVersion()))
+				return hasToken(connection, "keep-alive");
+			return !hasToken(connection, "close");
+		}
+		/**
+		 * Decoded request URI, without the query string.
+		 * @return uri path, or null if the request line was empty.
+		 */
+		public String getUri() {
+			return (String) this.pre.get("uri");
+		}
+		/**
+		 * Request target exactly as sent by the client, with the query string.
+		 * @return raw uri, or null if the request line was empty.
+		 */
+		public String getRawUri() {
+			return (String) this.pre.get("target");
+		}
+		/**
+		 * Raw query string, as sent by the client.
+		 * @return query string without the leading ?, or null if none.
+		 */
+		public String getQueryString() {
+			return (String) this.pre.get("query");
+		}
+		/**
+		 * Decoded query parameter.
+		 * @param key name of the parameter.
+		 * @return parameter value, or null if not set.
+		 */
+		public String getQuery(String key) {
+			if(key == null) return null;
+			return (String) this.query.get(key);
+		}
+		/**
+		 * Request header value.
+		 * @param name header name (case insensitive).
+		 * @return header value, or null if not sent.
+		 */
+		public String getHeader(String name) {
+			if(name == null) return null;
+			return (String) this.headers.get(getHeaderKey(name));
+		}
+		/**
+		 * @return virtual host the request was matched to, or null.
+		 */
+		public httpVirtualHost getVirtualHost() {
+			return vhost;
+		}
+		public void setVirtualHost(final httpVirtualHost vhost) {
+			this.vhost = vhost;
+		}
+		/**
+		 * @return names of the sent headers, in lowercase.
+		 */
+		public Set<String> getHeaderNames() {
+			return this.headers.stringPropertyNames();
+		}
 
 
 		/**
@@ -699,6 +3509,9 @@ System.out.println(line);
 	 */
 	public static class httpServerResponse {
 
+		// headers and body are copied into one write below this size
+		public static final int SMALL_RESPONSE_SIZE = 16 * 1024; // 16K
+
 //		private final httpServerRequest request;
 
 		// HTTP status code after processing, e.g. "200 OK", HTTP_OK
@@ -706,16 +3519,26 @@ System.out.println(line);
 		// MIME type of content, e.g. "text/html"
 		private volatile httpMime mime = null; // NanoHTTPserver.DEFAULT_MIME
 		// Request method used for this request.
-		private final httpMethod method;
+		private volatile httpMethod method;
+		// Request protocol version.
+		private volatile httpVersion version;
 
 		// Headers for the HTTP response. Use addHeader() to add lines.
 		private final Map<String, String> headers = new HashMap<String, String>();
 		// Data of the response.
-		private volatile InputStream data = null;
+		private volatile httpBody body = null;
 		// Send data in chunked mode (rather than fixed length)
 		private volatile boolean chunked = false;
+		// Keep the connection open after sending
+		private volatile boolean keepAlive = true;
 		// basic http authentication
 		private volatile httpBasicAuth basicAuth = null;
+		// time to keep in the response cache (-1 uses the cache default)
+		private volatile long cacheTTL = -1L;
+		// takes over the connection after sending
+		private volatile httpUpgrade upgrade = null;
+		// send() couldn't write all of the response
+		private volatile boolean sendFailed = false;
 
 
 		/**
@@ -725,33 +3548,69 @@ System.out.println(line);
 			this(request, httpStatus.OK, httpMime.PLAINTEXT, msg);
 		}
 		/**
-		 * Convenience method that makes an InputStream out of given text.
+		 * Convenience method that makes a body out of given text.
 		 */
 		public httpServerResponse(httpServerRequest request, httpStatus status, httpMime mime, String msg) {
-			this(request, status, mime, (InputStream) null);
-			if(msg != null) {
-				try {
-					this.data = new ByteArrayInputStream(
-						msg.getBytes(NanoHTTPserver.UTF8)
-					);
-				} catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-				}
-			}
+			this(request, status, mime, (msg == null ? null : new httpBytesBody(msg)));
+		}
+		/**
+		 * Convenience method that sends a byte array.
+		 */
+		public httpServerResponse(httpServerRequest request, httpStatus status, httpMime mime, byte[] data) {
+			this(request, status, mime, (data == null ? null : new httpBytesBody(data)));
 		}
 		/**
-		 * Basic constructor.
+		 * Sends a stream. Only a ByteArrayInputStream has a known length,
+		 * other streams are sent chunked.
 		 */
 		public httpServerResponse(httpServerRequest request, httpStatus status, httpMime mime, InputStream data) {
+			this(request, status, mime, (data == null ? null : new httpStreamBody(data)));
+		}
+		/**
+		 * Response to a request which couldn't be parsed. The connection
+		 * is closed after sending it.
+		 */
+		public httpServerResponse(httpStatus status, httpMime mime, String msg) {
+			this.method = null;
+			this.version = httpVersion.HTTP_1_1;
+			this.keepAlive = false;
+			this.status = status;
+			if(mime != null)
+				this.mime = mime;
+			if(msg != null)
+				this.body = new httpBytesBody(msg);
+		}
+		public httpServerResponse(httpServerRequest request, httpStatus status, httpMime mime, httpBody body) {
 			if(request == null) throw new NullPointerException("request cannot be null");
 //			this.request = request;
 			this.method = request.getMethod();
+			this.version = request.getVersion();
+			this.keepAlive = request.isKeepAlive();
 			if(status != null)
 				this.status = status;
 			if(mime != null)
 				this.mime = mime;
-			if(data != null)
-				this.data = data;
+			if(body != null)
+				this.body = body;
+		}
+		/**
+		 * Clears the response for another request on the same connection.
+		 */
+		protected void reset(final httpServerRequest request) {
+			this.method = request.getMethod();
+			this.version = request.getVersion();
+			this.keepAlive = request.isKeepAlive();
+			this.status = httpStatus.OK;
+			this.mime = null;
+			this.body = null;
+			this.chunked = false;
+			this.basicAuth = null;
+			this.cacheTTL = -1L;
+			this.upgrade = null;
+			this.sendFailed = false;
+			synchronized(this.headers) {
+				this.headers.clear();
+			}
 		}
 
 
@@ -759,90 +3618,173 @@ System.out.println(line);
 		 * Sends given response to the socket.
 		 */
 		public void send(OutputStream out) {
+			send(out, null);
+		}
+		/**
+		 * Sends given response to the socket, writing directly to the channel
+		 * when the body supports it.
+		 * @param out socket output stream.
+		 * @param channel socket channel, or null if not available.
+		 */
+		public void send(OutputStream out, WritableByteChannel channel) {
 			if(out == null) throw new NullPointerException();
 			// local copies
 			final httpStatus tmpStatus = this.status;
 			final httpMime tmpMime = this.mime == null ? NanoHTTPserver.DEFAULT_MIME : this.mime;
-			final Map<String, String> tmpHeaders = new HashMap<String, String>(this.headers);
-			final InputStream tmpData = this.data;
-			final boolean tmpChunked = this.chunked;
-			final httpBasicAuth tmpBasicAuth = (this.basicAuth == null ? null : this.basicAuth.clone());
+			final httpBody tmpBody = this.body;
+			final httpBasicAuth tmpBasicAuth = this.basicAuth;
 			// validate data
 			if(tmpStatus == null) throw new Error("send(): Status can't be null.");
-			// build http headers
-			final String EOL = "\r\n";
-			final PrintWriter pw = new PrintWriter(out);
 			try {
-				pw.print("HTTP/1.1 "+tmpStatus.toString()+EOL);
+				final boolean hasBody = tmpStatus.allowsBody();
+				// with no body, an upgrade handler may stream one after the headers
+				final boolean streamed = (hasBody && tmpBody == null && this.upgrade != null);
+				final long length = (hasBody && tmpBody != null ? tmpBody.length()
+						: (streamed ? httpBody.UNKNOWN_LENGTH : 0L));
+				// unknown length is sent chunked, or until close for HTTP/1.0
+				boolean tmpChunked = hasBody && (this.chunked || length < 0L);
+				boolean tmpKeepAlive = this.keepAlive;
+				if(tmpChunked && httpVersion.HTTP_1_0.equals(this.version)) {
+					tmpChunked = false;
+					if(length < 0L)
+						tmpKeepAlive = false;
+				}
+				this.chunked = tmpChunked;
+				this.keepAlive = tmpKeepAlive;
+				// build http headers
+				final String EOL = "\r\n";
+				final httpHeadBuffer headBuffer = httpHeadBuffer.get();
+				final StringBuilder head = headBuffer.text;
+				head.append("HTTP/1.1 ").append(tmpStatus.getValue()).append(' ').append(tmpStatus.getDesc()).append(EOL);
+				synchronized(this.headers) {
 				// date/time
-				if(tmpHeaders.get("Date") == null)
-					pw.print("Date: "+getDateTime()+EOL);
+				if(this.headers.get("Date") == null)
+					head.append("Date: ").append(getDateTime()).append(EOL);
 				// server software
-				pw.print("Server: NanoHTTPlib/"+NanoHTTPserver.version+EOL);
+				head.append("Server: NanoHTTPlib/").append(NanoHTTPserver.version).append(EOL);
 				// basic auth
 				if(tmpBasicAuth != null)
-					pw.print("WWW-Authenticate: Basic realm=\""+tmpBasicAuth.getRealm()+"\""+EOL);
-				// HEAD method safety
-				if(httpMethod.HEAD.equals(this.method))
-					data = null;
+					head.append("WWW-Authenticate: Basic realm=\"").append(tmpBasicAuth.getRealm()).append("\"").append(EOL);
 				// content size
-				int pending = -1;
-				if(!tmpChunked && tmpData != null) {
-					pending = tmpData.available();
-					pw.print("Accept-Ranges: bytes"+EOL);
-					pw.print("Content-Length: "+Integer.toString(pending)+EOL);
-					pw.print("Connection: keep-alive"+EOL);
-//					pw.print("Content-MD5: "+MD5(data)+EOL);
-				} else {
-					chunked = true;
-					pw.print("Transfer-Encoding: chunked"+EOL);
-					pw.print("Connection: close"+EOL);
+				if(hasBody) {
+					if(tmpChunked) {
+						head.append("Transfer-Encoding: chunked").append(EOL);
+					} else
+					if(length >= 0L) {
+						head.append("Accept-Ranges: bytes").append(EOL);
+						head.append("Content-Length: ").append(length).append(EOL);
+					}
+					// content type
+					if(!this.headers.containsKey("Content-Type"))
+						head.append("Content-Type: ").append(tmpMime.toString()).append(EOL);
 				}
-				// content type
-				pw.print("Content-Type: "+tmpMime.toString()+EOL);
+				if(!this.headers.containsKey("Connection"))
+					head.append("Connection: ").append(tmpKeepAlive ? "keep-alive" : "close").append(EOL);
 				// custom headers
-				if(!tmpHeaders.isEmpty()) {
-					for(Entry<String, String> entry : tmpHeaders.entrySet())
-						pw.print(entry.getKey()+": "+entry.getValue()+EOL);
+				if(!this.headers.isEmpty()) {
+					for(Entry<String, String> entry : this.headers.entrySet())
+						appendHeader(head, entry.getKey(), entry.getValue());
+				}
 				}
 				// headers finished
-				pw.print(EOL);
-				pw.flush();
-				// send data
-				if(pending > 0) {
-					final byte[] CRLF = EOL.getBytes();
-					final int BUFFER_SIZE = 16 * 1024; // 16K
-					final byte[] buff = new byte[BUFFER_SIZE];
-					int read;
-					// buffer and send in chunks
-					if(tmpChunked) {
-						while((read = data.read(buff)) > 0) {
-							out.write(String.format("%x"+EOL, read).getBytes());
-							out.write(buff, 0, read);
-							out.write(CRLF);
-						}
-						out.write(String.format("0"+EOL+EOL).getBytes());
-
-					// fixed buffer, all fits at once
-					} else {
-						while(pending > 0) {
-							final int size = (pending > BUFFER_SIZE) ? BUFFER_SIZE : pending;
-							read = data.read(buff, 0, size);
-							if(read <= 0) break;
-							out.write(buff, 0, read);
-							pending -= read;
-						}
-					}
-					out.flush();
+				head.append(EOL);
+				headBuffer.encode();
+				final byte[] headBytes = headBuffer.getBytes();
+				final int headLength = headBuffer.length();
+				// HEAD method safety
+				if(!hasBody || tmpBody == null || httpMethod.HEAD.equals(this.method)) {
+					out.write(headBytes, 0, headLength);
+					deferredFlush(out);
+					return;
 				}
+				// send data
+				writeBody(out, channel, headBytes, headLength, tmpBody, tmpChunked);
 			} catch (Exception e) {
 			//} catch (IOException e) {
 				// Couldn't write? No can do.
+				this.keepAlive = false;
+				this.sendFailed = true;
 				e.printStackTrace();
 			} finally {
 //				NanoHTTPserver.safeClose(out);
-				NanoHTTPserver.safeClose(data);
+				NanoHTTPserver.safeClose(tmpBody);
+			}
+		}
+		/**
+		 * Picks the fastest way to write the body for its type. Headers and
+		 * in-memory bodies are sent with a single write where possible.
+		 * Writes to an httpOutputBuffer are left for the connection to flush.
+		 */
+		protected void writeBody(final OutputStream out, final WritableByteChannel channel,
+				final byte[] headBytes, final int headLength, final httpBody body, final boolean chunked) throws IOException {
+			// buffer and send in chunks
+			if(chunked) {
+				out.write(headBytes, 0, headLength);
+				final httpChunkedOutputStream chunks = new httpChunkedOutputStream(out);
+				body.writeTo(chunks);
+				chunks.finish();
+				deferredFlush(out);
+				return;
+			}
+			// in-memory body fitting the connection write buffer
+			if(body instanceof httpBytesBody && out instanceof httpOutputBuffer) {
+				final httpOutputBuffer buffer = (httpOutputBuffer) out;
+				if(headLength + body.length() <= buffer.capacity() - buffer.size()) {
+					buffer.write(headBytes, 0, headLength);
+					body.writeTo(buffer);
+					return;
+				}
+			}
+			final ByteBuffer[] buffers = body.getBuffers();
+			if(buffers != null) {
+				final long total = headLength + body.length();
+				// connection write buffer
+				if(out instanceof httpOutputBuffer) {
+					final httpOutputBuffer buffer = (httpOutputBuffer) out;
+					if(total <= buffer.capacity() - buffer.size()) {
+						buffer.write(headBytes, 0, headLength);
+						for(final ByteBuffer src : buffers)
+							buffer.write(src);
+					} else {
+						// anything pending, headers and body in a single gathering write
+						final ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+						all[0] = ByteBuffer.wrap(headBytes, 0, headLength);
+						System.arraycopy(buffers, 0, all, 1, buffers.length);
+						buffer.write(all);
+					}
+					return;
+				}
+				// headers and body in a single gathering write
+				if(channel instanceof GatheringByteChannel) {
+					final ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+					all[0] = ByteBuffer.wrap(headBytes, 0, headLength);
+					System.arraycopy(buffers, 0, all, 1, buffers.length);
+					writeFully((GatheringByteChannel) channel, all);
+					return;
+				}
+				// small body, copy after the headers
+				if(total <= SMALL_RESPONSE_SIZE) {
+					final byte[] all = new byte[(int) total];
+					System.arraycopy(headBytes, 0, all, 0, headLength);
+					final ByteBuffer dest = ByteBuffer.wrap(all, headLength, all.length - headLength);
+					for(final ByteBuffer src : buffers)
+						dest.put(src);
+					out.write(all);
+					out.flush();
+					return;
+				}
 			}
+			// files are sent with transferTo()
+			if(channel != null && body instanceof httpFileBody) {
+				out.write(headBytes, 0, headLength);
+				// must reach the socket before the channel write
+				out.flush();
+				body.writeTo(channel);
+				return;
+			}
+			out.write(headBytes, 0, headLength);
+			body.writeTo(out);
+			deferredFlush(out);
 		}
 
 
@@ -852,16 +3794,108 @@ System.out.println(line);
 		 * @return example: Thu, 02 Jan 2014 16:34:42 GMT
 		 */
 		private final String getDateTime() {
-			final SimpleDateFormat gmtFormat =
-				new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-			gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-			return gmtFormat.format(new Date());
+			return currentDate();
 		}
 
 
 		public boolean isChunked() {
 			return chunked;
 		}
+		/**
+		 * @return false if the connection should be closed after sending.
+		 */
+		public boolean isKeepAlive() {
+			return keepAlive;
+		}
+		public void setKeepAlive(boolean keepAlive) {
+			this.keepAlive = keepAlive;
+		}
+		/**
+		 * @return true if send() failed part way through the response.
+		 */
+		public boolean isSendFailed() {
+			return sendFailed;
+		}
+
+
+		public httpBody getBody() {
+			return body;
+		}
+		public void setBody(httpBody body) {
+			this.body = body;
+		}
+
+
+		public httpStatus getStatus() {
+			return status;
+		}
+		public void setStatus(httpStatus status) {
+			if(status == null) throw new NullPointerException();
+			this.status = status;
+		}
+		public httpMime getMime() {
+			return mime;
+		}
+		public void setMime(httpMime mime) {
+			this.mime = mime;
+		}
+		public httpMethod getMethod() {
+			return method;
+		}
+
+
+		/**
+		 * Adds a custom header line to the response.
+		 */
+		public void addHeader(String name, String value) {
+			if(name == null || name.isEmpty()) throw new NullPointerException();
+			synchronized(headers) {
+				headers.put(name, value);
+			}
+		}
+		public String getHeader(String name) {
+			if(name == null) return null;
+			synchronized(headers) {
+				for(Entry<String, String> entry : headers.entrySet()) {
+					if(name.equalsIgnoreCase(entry.getKey()))
+						return entry.getValue();
+				}
+			}
+			return null;
+		}
+		/**
+		 * @return copy of the custom headers.
+		 */
+		public Map<String, String> getHeaders() {
+			synchronized(headers) {
+				return new HashMap<String, String>(headers);
+			}
+		}
+
+
+		/**
+		 * Time this response may be served from the response cache.
+		 * @param ms time to live in milliseconds, 0 to never cache,
+		 *   or -1 to use the cache default.
+		 */
+		public void setCacheTTL(long ms) {
+			this.cacheTTL = ms;
+		}
+		public long getCacheTTL() {
+			return cacheTTL;
+		}
+
+
+		/**
+		 * Hands the connection to another protocol once this
+		 * response has been sent.
+		 */
+		public void setUpgrade(httpUpgrade upgrade) {
+			this.upgrade = upgrade;
+		}
+		public httpUpgrade getUpgrade() {
+			return upgrade;
+		}
 
 
 	}
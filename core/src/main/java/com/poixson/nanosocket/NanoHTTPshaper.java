@@ -0,0 +1,516 @@
+package com.poixson.nanosocket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * Egress bandwidth shaping with token buckets.
+ * <p>
+ * Response writes are limited by a global budget, a per-connection cap
+ * and optional traffic classes picked by uri prefix or mime type. Each
+ * class is interactive or bulk. Interactive writes always take from the
+ * global budget, while bulk writes wait until it's above a reserve, so
+ * large downloads use only what the interactive traffic leaves over.
+ * </p>
+ * Writes are metered in slices of at most QUANTUM bytes, so a bulk
+ * transfer never holds the budget for long. Connections handed to an
+ * httpUpgrade aren't shaped.
+ */
+public class NanoHTTPshaper {
+
+	public static final int  QUANTUM = 16 * 1024; // 16K
+	// unclassified bodies this large are bulk
+	public static final long DEFAULT_BULK_SIZE = 1024L * 1024L; // 1M
+
+	public enum httpPriority {
+		INTERACTIVE,
+		BULK
+	}
+
+	// unclassified traffic
+	public final httpTrafficClass interactive = new httpTrafficClass("interactive", httpPriority.INTERACTIVE, null);
+	public final httpTrafficClass bulk        = new httpTrafficClass("bulk",        httpPriority.BULK,        null);
+
+	private volatile httpTokenBucket global = null;
+	private volatile long connectionRate  = 0L;
+	private volatile long connectionBurst = 0L;
+	private volatile long bulkSize = DEFAULT_BULK_SIZE;
+
+	private final Map<String, httpTrafficClass> routes = new ConcurrentHashMap<String, httpTrafficClass>();
+	private final Map<httpMime, httpTrafficClass> mimes = new ConcurrentHashMap<httpMime, httpTrafficClass>();
+
+	// stats
+	private volatile long countWaitNanos = 0L;
+
+
+	public NanoHTTPshaper() {
+	}
+
+
+	/**
+	 * Budget shared by all shaped connections.
+	 * @param rate bytes per second, or 0 for no limit.
+	 */
+	public void setGlobalRate(final long rate) {
+		setGlobalRate(rate, defaultBurst(rate));
+	}
+	/**
+	 * @param burst bytes which may be sent at once after an idle period.
+	 */
+	public void setGlobalRate(final long rate, final long burst) {
+		this.global = (rate > 0L ? new httpTokenBucket(rate, burst) : null);
+	}
+	public long getGlobalRate() {
+		final httpTokenBucket global = this.global;
+		return (global == null ? 0L : global.getRate());
+	}
+	/**
+	 * Cap for each connection, applied to connections accepted from then on.
+	 * @param rate bytes per second, or 0 for no limit.
+	 */
+	public void setConnectionRate(final long rate) {
+		setConnectionRate(rate, defaultBurst(rate));
+	}
+	public void setConnectionRate(final long rate, final long burst) {
+		this.connectionRate  = (rate < 0L ? 0L : rate);
+		this.connectionBurst = burst;
+	}
+	public long getConnectionRate() {
+		return connectionRate;
+	}
+	/**
+	 * Unclassified responses with a body at least this large are bulk.
+	 * @param bytes body size, or 0 to leave them interactive.
+	 */
+	public void setBulkSize(final long bytes) {
+		this.bulkSize = (bytes < 0L ? 0L : bytes);
+	}
+	public long getBulkSize() {
+		return bulkSize;
+	}
+
+
+	private static long defaultBurst(final long rate) {
+		return Math.max(rate / 10L, 2L * QUANTUM);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// traffic classes
+
+
+	/**
+	 * Creates a traffic class, to be assigned with addRoute() or addMime().
+	 * @param rate bytes per second shared by the class, or 0 for no limit.
+	 */
+	public httpTrafficClass createClass(final String name, final httpPriority priority, final long rate) {
+		if(name == null || priority == null) throw new NullPointerException();
+		return new httpTrafficClass(name, priority,
+			(rate > 0L ? new httpTokenBucket(rate, defaultBurst(rate)) : null));
+	}
+	/**
+	 * Responses to uris starting with the prefix use this class.
+	 * The longest matching prefix wins, and routes win over mime types.
+	 */
+	public void addRoute(final String prefix, final httpTrafficClass cls) {
+		if(prefix == null || cls == null) throw new NullPointerException();
+		routes.put(prefix, cls);
+	}
+	public void addMime(final httpMime mime, final httpTrafficClass cls) {
+		if(mime == null || cls == null) throw new NullPointerException();
+		mimes.put(mime, cls);
+	}
+
+
+	/**
+	 * Picks the traffic class for a response.
+	 * @param response response being sent, or null if not known yet.
+	 */
+	public httpTrafficClass classify(final httpServerRequest request, final httpServerResponse response) {
+		// longest route prefix
+		final String uri = (request == null ? null : request.getUri());
+		if(uri != null && !routes.isEmpty()) {
+			httpTrafficClass found = null;
+			int foundLength = -1;
+			for(final Entry<String, httpTrafficClass> entry : routes.entrySet()) {
+				final String prefix = entry.getKey();
+				if(prefix.length() > foundLength && uri.startsWith(prefix)) {
+					found = entry.getValue();
+					foundLength = prefix.length();
+				}
+			}
+			if(found != null)
+				return found;
+		}
+		if(response == null)
+			return interactive;
+		// mime type
+		final httpMime mime = response.getMime();
+		if(mime != null) {
+			final httpTrafficClass found = mimes.get(mime);
+			if(found != null)
+				return found;
+		}
+		// large body
+		final long bulkSize = this.bulkSize;
+		final httpBody body = response.getBody();
+		if(bulkSize > 0L && body != null && body.length() >= bulkSize)
+			return bulk;
+		return interactive;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// connections
+
+
+	/**
+	 * Shapes the output of a connection.
+	 * @param out connection output stream.
+	 * @param channel channel of the same connection, or null.
+	 */
+	public httpShapedConnection open(final OutputStream out, final WritableByteChannel channel) {
+		final long rate = this.connectionRate;
+		final httpTokenBucket bucket = (rate > 0L ? new httpTokenBucket(rate, connectionBurst) : null);
+		return new httpShapedConnection(out, channel, bucket);
+	}
+
+
+	/**
+	 * Waits until a slice may be sent.
+	 */
+	protected void acquire(final httpTokenBucket connection, final httpTrafficClass cls, final int bytes)
+			throws IOException {
+		long wait = 0L;
+		if(connection != null)
+			wait = connection.take(bytes);
+		if(cls.bucket != null)
+			wait = Math.max(wait, cls.bucket.take(bytes));
+		pause(wait);
+		final httpTokenBucket global = this.global;
+		if(global != null) {
+			if(httpPriority.INTERACTIVE.equals(cls.priority)) {
+				pause(global.take(bytes));
+			} else {
+				while(true) {
+					wait = global.takeAboveReserve(bytes);
+					if(wait == 0L) break;
+					pause(wait);
+				}
+			}
+		}
+		cls.countBytes += bytes;
+	}
+	private void pause(final long nanos) throws IOException {
+		if(nanos <= 0L) return;
+		countWaitNanos += nanos;
+		try {
+			Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+
+	/**
+	 * @return total time writes have waited for tokens, in milliseconds.
+	 */
+	public long totalWaitTime() {
+		return countWaitNanos / 1000000L;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Token bucket which may go into debt. A taker gets its bytes
+	 * immediately and waits for the debt to be paid off, so takers
+	 * are served in the order they arrive.
+	 */
+	public static class httpTokenBucket {
+
+		private final long rate;
+		private final long burst;
+		// bulk takers leave this much for interactive traffic
+		private final long reserve;
+
+		private double tokens;
+		private long last = System.nanoTime();
+
+
+		/**
+		 * @param rate bytes per second.
+		 * @param burst most tokens kept while idle.
+		 */
+		public httpTokenBucket(final long rate, final long burst) {
+			if(rate < 1L) throw new IllegalArgumentException("Rate must be at least 1");
+			this.rate    = rate;
+			this.burst   = Math.max(burst, 2L * QUANTUM);
+			this.reserve = Math.max(this.burst / 2L, QUANTUM);
+			this.tokens  = this.burst;
+		}
+
+
+		/**
+		 * @return nanoseconds to wait before sending.
+		 */
+		public synchronized long take(final long bytes) {
+			refill();
+			tokens -= bytes;
+			return (tokens >= 0.0 ? 0L : toNanos(-tokens));
+		}
+		/**
+		 * Takes only while the bucket is above the reserve.
+		 * @return 0 if taken, or nanoseconds to wait before trying again.
+		 */
+		public synchronized long takeAboveReserve(final long bytes) {
+			refill();
+			if(tokens < reserve)
+				return Math.max(toNanos(reserve - tokens), 1000000L);
+			tokens -= bytes;
+			return 0L;
+		}
+		private void refill() {
+			final long now = System.nanoTime();
+			final long elapsed = now - last;
+			last = now;
+			if(elapsed > 0L)
+				tokens = Math.min((double) burst, tokens + ((double) elapsed * rate / 1000000000.0));
+		}
+		private long toNanos(final double bytes) {
+			return (long) (bytes * 1000000000.0 / rate);
+		}
+
+
+		public long getRate() {
+			return rate;
+		}
+		public long getBurst() {
+			return burst;
+		}
+
+
+	}
+
+
+	/**
+	 * Traffic sharing a priority and an optional rate limit.
+	 */
+	public static class httpTrafficClass {
+
+		public final String name;
+		public final httpPriority priority;
+		// null for no limit
+		protected final httpTokenBucket bucket;
+
+		// stats
+		private volatile long countBytes = 0L;
+
+
+		protected httpTrafficClass(final String name, final httpPriority priority, final httpTokenBucket bucket) {
+			this.name     = name;
+			this.priority = priority;
+			this.bucket   = bucket;
+		}
+
+
+		/**
+		 * @return bytes sent in this class.
+		 */
+		public long totalBytes() {
+			return countBytes;
+		}
+
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+
+	}
+
+
+	/**
+	 * Shaped output of one connection. The stream and the channel share
+	 * the connection cap and the current traffic class.
+	 */
+	public class httpShapedConnection {
+
+		private final httpTokenBucket bucket;
+		private final OutputStream stream;
+		private final GatheringByteChannel channel;
+
+		private volatile httpTrafficClass cls = interactive;
+
+
+		protected httpShapedConnection(final OutputStream out, final WritableByteChannel channel,
+				final httpTokenBucket bucket) {
+			if(out == null) throw new NullPointerException();
+			this.bucket  = bucket;
+			this.stream  = new httpShapedStream(out);
+			this.channel = (channel == null ? null : new httpShapedChannel(channel));
+		}
+
+
+		public OutputStream getStream() {
+			return stream;
+		}
+		/**
+		 * @return shaped channel, or null if the connection has none.
+		 */
+		public GatheringByteChannel getChannel() {
+			return channel;
+		}
+
+
+		/**
+		 * Sets the class for the response about to be sent.
+		 */
+		public void setTrafficClass(final httpTrafficClass cls) {
+			this.cls = (cls == null ? interactive : cls);
+		}
+		public httpTrafficClass getTrafficClass() {
+			return cls;
+		}
+		/**
+		 * Sets the class picked by classify().
+		 */
+		public void classify(final httpServerRequest request, final httpServerResponse response) {
+			setTrafficClass(NanoHTTPshaper.this.classify(request, response));
+		}
+
+
+		private void acquire(final int bytes) throws IOException {
+			NanoHTTPshaper.this.acquire(bucket, cls, bytes);
+		}
+
+
+		private class httpShapedStream extends OutputStream {
+
+			private final OutputStream out;
+
+			public httpShapedStream(final OutputStream out) {
+				this.out = out;
+			}
+
+			@Override
+			public void write(final int b) throws IOException {
+				acquire(1);
+				out.write(b);
+			}
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+				int pos = off;
+				final int end = off + len;
+				while(pos < end) {
+					final int size = Math.min(end - pos, QUANTUM);
+					acquire(size);
+					out.write(b, pos, size);
+					pos += size;
+				}
+			}
+			@Override
+			public void flush() throws IOException {
+				out.flush();
+			}
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+
+		}
+
+
+		private class httpShapedChannel implements GatheringByteChannel {
+
+			private final WritableByteChannel channel;
+
+			public httpShapedChannel(final WritableByteChannel channel) {
+				this.channel = channel;
+			}
+
+			@Override
+			public int write(final ByteBuffer src) throws IOException {
+				final int size = Math.min(src.remaining(), QUANTUM);
+				if(size == 0) return 0;
+				acquire(size);
+				final int limit = src.limit();
+				src.limit(src.position() + size);
+				try {
+					return channel.write(src);
+				} finally {
+					src.limit(limit);
+				}
+			}
+			@Override
+			public long write(final ByteBuffer[] srcs) throws IOException {
+				return write(srcs, 0, srcs.length);
+			}
+			/**
+			 * Gathers up to one slice from the buffers.
+			 */
+			@Override
+			public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+				if(!(channel instanceof GatheringByteChannel)) {
+					for(int i = offset; i < offset + length; i++) {
+						if(srcs[i].hasRemaining())
+							return write(srcs[i]);
+					}
+					return 0L;
+				}
+				// find the buffers within one slice
+				int size = 0;
+				int count = 0;
+				ByteBuffer cut = null;
+				int cutLimit = 0;
+				for(int i = offset; i < offset + length && size < QUANTUM; i++) {
+					final ByteBuffer src = srcs[i];
+					count++;
+					if(size + src.remaining() > QUANTUM) {
+						cut = src;
+						cutLimit = src.limit();
+						src.limit(src.position() + (QUANTUM - size));
+					}
+					size += src.remaining();
+				}
+				if(size == 0) return 0L;
+				acquire(size);
+				try {
+					return ((GatheringByteChannel) channel).write(srcs, offset, count);
+				} finally {
+					if(cut != null)
+						cut.limit(cutLimit);
+				}
+			}
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+
+		}
+
+
+	}
+
+
+}
@@ -0,0 +1,688 @@
+package com.poixson.nanosocket;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMethod;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPselector.httpSelectorHandler;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+import com.poixson.nanosocket.NanoHTTPserver.httpUpgrade;
+
+
+/**
+ * Server-Sent Events broadcast hub. Clients subscribe to a topic with a
+ * GET request below the hub's path, and the connection is then handed to
+ * the server's selector so subscribers don't hold worker threads.
+ * <p>
+ * Each event is encoded once and the same bytes are written to every
+ * subscriber. Recent events are kept for each topic, so a client which
+ * reconnects with a Last-Event-ID header can catch up.
+ * </p>
+ * Topics are made by publish() or addTopic(), subscribing to any other
+ * is answered 404 Not Found. A topic with no subscribers and no events
+ * kept for replay is dropped, unless it was added with addTopic().
+ */
+public class NanoHTTPsse implements httpIO, Closeable {
+
+	public static final long DEFAULT_HEARTBEAT  = 15000L;
+	public static final int  DEFAULT_REPLAY     = 100;
+	public static final int  DEFAULT_MAX_QUEUED = 256 * 1024;
+
+	private static final int READ_BUFFER_SIZE = 512;
+
+	// comment line to keep idle connections open
+	protected static final httpEvent HEARTBEAT = new httpEvent(null, new byte[] { ':', '\n', '\n' });
+
+	/**
+	 * What to do with a subscriber whose queue is full.
+	 */
+	public enum httpOverflow {
+		// skip events until the subscriber catches up
+		DROP,
+		// close the connection, the client reconnects and replays
+		DISCONNECT
+	}
+
+	private final String path;
+	private final Map<String, httpTopic> topics = new HashMap<String, httpTopic>();
+
+	private volatile long heartbeat = DEFAULT_HEARTBEAT;
+	private volatile int replaySize = DEFAULT_REPLAY;
+	private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+	private volatile httpOverflow overflow = httpOverflow.DROP;
+
+	private volatile NanoHTTPselector selector = null;
+	private volatile int heartbeatIndex = 0;
+	private volatile boolean closed = false;
+
+	// stats
+	private volatile long countEvents = 0L;
+	private volatile long countDropped = 0L;
+	private volatile long countDisconnected = 0L;
+
+
+	/**
+	 * @param path uri prefix, the rest of the uri names the topic.
+	 */
+	public NanoHTTPsse(final String path) {
+		if(path == null) throw new NullPointerException();
+		this.path = path;
+	}
+
+
+	/**
+	 * Time between heartbeat comments on idle connections.
+	 * @param ms interval in milliseconds, or 0 to disable.
+	 */
+	public void setHeartbeat(final long ms) {
+		this.heartbeat = (ms < 0L ? 0L : ms);
+		scheduleHeartbeat();
+	}
+	public long getHeartbeat() {
+		return heartbeat;
+	}
+	/**
+	 * Number of recent events kept per topic for replay.
+	 */
+	public void setReplaySize(final int events) {
+		this.replaySize = (events < 0 ? 0 : events);
+	}
+	public int getReplaySize() {
+		return replaySize;
+	}
+	/**
+	 * Most outgoing bytes to queue for a subscriber which isn't keeping up.
+	 */
+	public void setMaxQueued(final int bytes) {
+		if(bytes < 1) throw new IllegalArgumentException("Size must be at least 1");
+		this.maxQueued = bytes;
+	}
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+	public void setOverflow(final httpOverflow overflow) {
+		if(overflow == null) throw new NullPointerException();
+		this.overflow = overflow;
+	}
+	public httpOverflow getOverflow() {
+		return overflow;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// subscribe
+
+
+	@Override
+	public httpServerResponse serve(final httpServerRequest request) {
+		if(!httpMethod.GET.equals(request.getMethod())) return null;
+		final String uri = request.getUri();
+		if(uri == null || !uri.startsWith(path)) return null;
+		final String name = uri.substring(path.length());
+		if(closed || !allowSubscribe(request, name)) {
+			return new httpServerResponse(
+				request, httpStatus.FORBIDDEN, NanoHTTPserver.DEFAULT_MIME,
+				httpStatus.FORBIDDEN.toString()
+			);
+		}
+		// clients can't make new topics
+		if(getTopic(name, false) == null) {
+			return new httpServerResponse(
+				request, httpStatus.NOT_FOUND, NanoHTTPserver.DEFAULT_MIME,
+				httpStatus.NOT_FOUND.toString()
+			);
+		}
+		final String lastEventId = request.getHeader("Last-Event-ID");
+		// no body, the subscriber streams it once detached
+		final httpServerResponse response = new httpServerResponse(
+			request, httpStatus.OK, httpMime.EVENT_STREAM, (httpBody) null
+		);
+		response.addHeader("Cache-Control", "no-cache");
+		response.setCacheTTL(0L);
+		response.setUpgrade(new httpUpgrade() {
+			@Override
+			public void upgrade(final NanoHTTPserver server, final SocketChannel channel,
+					final ByteChannel io, final byte[] leftover) throws IOException {
+				subscribe(server.getSelector(), channel, io, name, response.isChunked(), lastEventId);
+			}
+		});
+		return response;
+	}
+	/**
+	 * Override to restrict who may subscribe to a topic.
+	 */
+	protected boolean allowSubscribe(final httpServerRequest request, final String topic) {
+		return true;
+	}
+
+
+	/**
+	 * Adds a connection as a subscriber, once the response headers have been sent.
+	 * @param io channel to write through, the socket itself or a TLS layer over it.
+	 * @param chunked frame events with chunked transfer encoding.
+	 * @param lastEventId last event the client received, or null.
+	 */
+	public void subscribe(final NanoHTTPselector selector, final SocketChannel channel, final ByteChannel io,
+			final String topic, final boolean chunked, final String lastEventId) throws IOException {
+		startHeartbeat(selector);
+		final httpSubscriber subscriber = new httpSubscriber(
+			selector, io, topic, chunked, lastEventId, maxQueued
+		);
+		selector.register(channel, subscriber);
+	}
+
+
+	/**
+	 * Adds a topic which clients can subscribe to before anything is
+	 * published, kept until the hub is closed.
+	 */
+	public void addTopic(final String name) {
+		if(name == null) throw new NullPointerException();
+		while(true) {
+			final httpTopic topic = getTopic(name, true);
+			synchronized(topic) {
+				// dropped in between
+				if(topic.removed) continue;
+				topic.pinned = true;
+				return;
+			}
+		}
+	}
+	/**
+	 * @param create add the topic if it doesn't exist.
+	 * @return topic, or null if it doesn't exist.
+	 */
+	protected httpTopic getTopic(final String name, final boolean create) {
+		synchronized(topics) {
+			httpTopic topic = topics.get(name);
+			if(topic == null && create) {
+				topic = new httpTopic(name);
+				topics.put(name, topic);
+			}
+			return topic;
+		}
+	}
+	/**
+	 * Drops a topic once it has no subscribers and nothing to replay.
+	 */
+	protected void dropIdle(final httpTopic topic) {
+		// not nested, subscribers may close while a topic is locked
+		synchronized(topic) {
+			if(topic.removed || !topic.isIdle()) return;
+			topic.removed = true;
+		}
+		synchronized(topics) {
+			if(topics.get(topic.name) == topic)
+				topics.remove(topic.name);
+		}
+	}
+	/**
+	 * Adds a subscriber to a topic, adding the topic again if it was
+	 * dropped since the subscription was accepted.
+	 */
+	private httpTopic join(final String name, final httpSubscriber subscriber, final String lastEventId) {
+		while(true) {
+			final httpTopic topic = getTopic(name, true);
+			if(topic.add(subscriber, lastEventId))
+				return topic;
+		}
+	}
+	private List<httpTopic> getTopics() {
+		synchronized(topics) {
+			return new ArrayList<httpTopic>(topics.values());
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// publish
+
+
+	/**
+	 * Sends an event to all subscribers of a topic, numbering it
+	 * for replay.
+	 * @param event event type, or null for the default "message".
+	 * @return number of subscribers the event was queued for.
+	 */
+	public int publish(final String topic, final String event, final String data) {
+		return publish(topic, null, event, data);
+	}
+	/**
+	 * Sends an event to all subscribers of a topic.
+	 * @param id event id, or null to number it.
+	 * @param event event type, or null for the default "message".
+	 * @return number of subscribers the event was queued for.
+	 */
+	public int publish(final String topic, final String id, final String event, final String data) {
+		if(topic == null) throw new NullPointerException();
+		if(data == null) throw new NullPointerException();
+		while(true) {
+			final httpTopic entry = getTopic(topic, true);
+			int count = 0;
+			synchronized(entry) {
+				// dropped in between
+				if(entry.removed) continue;
+				final String eventId = (id == null ? Long.toString(++entry.nextId) : id);
+				final httpEvent encoded = new httpEvent(eventId, encodeEvent(eventId, event, data));
+				countEvents++;
+				entry.store(encoded, replaySize);
+				for(final httpSubscriber subscriber : entry.getSubscribers()) {
+					if(subscriber.offer(encoded))
+						count++;
+				}
+			}
+			// without replay, a topic nobody listens to isn't kept
+			if(count == 0)
+				dropIdle(entry);
+			return count;
+		}
+	}
+
+
+	/**
+	 * Encodes an event in the text/event-stream format.
+	 */
+	public static byte[] encodeEvent(final String id, final String event, final String data) {
+		final StringBuilder str = new StringBuilder(data.length() + 32);
+		if(id != null)
+			str.append("id: ").append(stripLines(id)).append('\n');
+		if(event != null)
+			str.append("event: ").append(stripLines(event)).append('\n');
+		// each line of data is a field of its own
+		final String lines = data.replace("\r\n", "\n").replace('\r', '\n');
+		int pos = 0;
+		while(true) {
+			final int end = lines.indexOf('\n', pos);
+			str.append("data: ").append(end < 0 ? lines.substring(pos) : lines.substring(pos, end)).append('\n');
+			if(end < 0) break;
+			pos = end + 1;
+		}
+		str.append('\n');
+		try {
+			return str.toString().getBytes(NanoHTTPserver.UTF8);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	private static String stripLines(final String value) {
+		return value.replace('\r', ' ').replace('\n', ' ');
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// heartbeat
+
+
+	private void startHeartbeat(final NanoHTTPselector selector) {
+		synchronized(topics) {
+			if(this.selector != null) return;
+			this.selector = selector;
+		}
+		scheduleHeartbeat();
+	}
+	/**
+	 * Starts a new heartbeat timer, the previous one stops itself.
+	 */
+	private void scheduleHeartbeat() {
+		final NanoHTTPselector selector = this.selector;
+		if(selector == null) return;
+		final long interval = this.heartbeat;
+		final int index = ++heartbeatIndex;
+		if(interval <= 0L) return;
+		selector.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if(closed || index != heartbeatIndex) return;
+				sendHeartbeat(interval);
+				selector.schedule(this, interval);
+			}
+		}, interval);
+	}
+	/**
+	 * Sends a comment to subscribers which haven't been sent anything lately.
+	 */
+	protected void sendHeartbeat(final long interval) {
+		final long idle = System.currentTimeMillis() - (interval / 2L);
+		for(final httpTopic topic : getTopics()) {
+			for(final httpSubscriber subscriber : topic.getSubscribers()) {
+				if(subscriber.lastSent <= idle)
+					subscriber.offer(HEARTBEAT);
+			}
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// stats
+
+
+	/**
+	 * @return number of connected subscribers.
+	 */
+	public int getSubscribers() {
+		int count = 0;
+		for(final httpTopic topic : getTopics()) {
+			synchronized(topic) {
+				count += topic.subscribers.size();
+			}
+		}
+		return count;
+	}
+	public int getSubscribers(final String topic) {
+		final httpTopic entry;
+		synchronized(topics) {
+			entry = topics.get(topic);
+		}
+		if(entry == null) return 0;
+		synchronized(entry) {
+			return entry.subscribers.size();
+		}
+	}
+	public long totalEvents() {
+		return countEvents;
+	}
+	/**
+	 * @return events skipped for slow subscribers.
+	 */
+	public long totalDropped() {
+		return countDropped;
+	}
+	/**
+	 * @return slow subscribers which were disconnected.
+	 */
+	public long totalDisconnected() {
+		return countDisconnected;
+	}
+
+
+	/**
+	 * Disconnects all subscribers.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for(final httpTopic topic : getTopics()) {
+			for(final httpSubscriber subscriber : topic.getSubscribers())
+				subscriber.close();
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Encoded event, shared by all subscribers.
+	 */
+	protected static class httpEvent {
+
+		public final String id;
+		private final ByteBuffer plain;
+		private volatile ByteBuffer chunked = null;
+
+
+		public httpEvent(final String id, final byte[] data) {
+			this.id = id;
+			this.plain = ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+
+
+		/**
+		 * @return new view of the shared bytes.
+		 */
+		public ByteBuffer getBuffer(final boolean chunked) {
+			if(!chunked)
+				return plain.duplicate();
+			ByteBuffer buffer = this.chunked;
+			if(buffer == null) {
+				// the same chunk framing suits every subscriber
+				final int len = plain.remaining();
+				final byte[] head = (Integer.toHexString(len)+"\r\n").getBytes();
+				final ByteBuffer tmp = ByteBuffer.allocate(head.length + len + 2);
+				tmp.put(head);
+				tmp.put(plain.duplicate());
+				tmp.put((byte) '\r').put((byte) '\n');
+				tmp.flip();
+				buffer = tmp.asReadOnlyBuffer();
+				this.chunked = buffer;
+			}
+			return buffer.duplicate();
+		}
+
+
+	}
+
+
+	/**
+	 * Subscribers and recent events for a topic.
+	 */
+	protected static class httpTopic {
+
+		public final String name;
+		private final Set<httpSubscriber> subscribers = new LinkedHashSet<httpSubscriber>();
+		private final LinkedList<httpEvent> recent = new LinkedList<httpEvent>();
+		private long nextId = 0L;
+		// kept while idle, see addTopic()
+		private boolean pinned = false;
+		// no longer in the hub's map
+		private boolean removed = false;
+
+
+		public httpTopic(final String name) {
+			this.name = name;
+		}
+
+
+		private void store(final httpEvent event, final int size) {
+			recent.add(event);
+			while(recent.size() > size)
+				recent.removeFirst();
+		}
+		/**
+		 * @return copy of the subscribers, so they can close while being sent to.
+		 */
+		public synchronized httpSubscriber[] getSubscribers() {
+			return subscribers.toArray(new httpSubscriber[subscribers.size()]);
+		}
+		/**
+		 * @return true if the topic can be dropped.
+		 */
+		public synchronized boolean isIdle() {
+			return !pinned && subscribers.isEmpty() && recent.isEmpty();
+		}
+		/**
+		 * Replays missed events and adds the subscriber, so no event
+		 * can be published in between.
+		 * @return false if the topic was dropped.
+		 */
+		public synchronized boolean add(final httpSubscriber subscriber, final String lastEventId) {
+			if(removed) return false;
+			if(lastEventId != null && !recent.isEmpty()) {
+				// resume after the last event received, or send everything kept
+				// if it's too old to find
+				int start = 0;
+				final String last = lastEventId.trim();
+				int index = 0;
+				for(final httpEvent event : recent) {
+					index++;
+					if(last.equals(event.id))
+						start = index;
+				}
+				int pos = 0;
+				for(final httpEvent event : recent) {
+					if(pos++ >= start)
+						subscriber.offer(event);
+				}
+			}
+			subscribers.add(subscriber);
+			return true;
+		}
+		public synchronized void remove(final httpSubscriber subscriber) {
+			subscribers.remove(subscriber);
+		}
+
+
+	}
+
+
+	/**
+	 * Connection streaming events to a client.
+	 */
+	protected class httpSubscriber implements httpSelectorHandler {
+
+		private final NanoHTTPselector selector;
+		private final ByteChannel io;
+		private final String topicName;
+		private volatile httpTopic topic = null;
+		private final boolean chunked;
+		private final String lastEventId;
+		private final int maxQueued;
+		private volatile SelectionKey key = null;
+
+		private final LinkedList<ByteBuffer> queue = new LinkedList<ByteBuffer>();
+		private long queued = 0L;
+		private volatile long lastSent;
+		private volatile boolean closed = false;
+
+
+		public httpSubscriber(final NanoHTTPselector selector, final ByteChannel io,
+				final String topic, final boolean chunked, final String lastEventId,
+				final int maxQueued) {
+			this.selector    = selector;
+			this.io          = io;
+			this.topicName   = topic;
+			this.chunked     = chunked;
+			this.lastEventId = lastEventId;
+			this.maxQueued   = maxQueued;
+			this.lastSent    = System.currentTimeMillis();
+		}
+
+
+		@Override
+		public void onRegister(final SelectionKey key) throws IOException {
+			this.key = key;
+			this.topic = join(topicName, this, lastEventId);
+		}
+		@Override
+		public void onReadable() throws IOException {
+			// clients don't send anything, only watch for the close
+			final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			while(true) {
+				final int read = io.read(buffer);
+				if(read < 0) throw new EOFException();
+				if(read == 0) break;
+				buffer.clear();
+			}
+		}
+		@Override
+		public void onWritable() throws IOException {
+			synchronized(queue) {
+				if(!queue.isEmpty()) {
+					final ByteBuffer[] buffers = queue.toArray(new ByteBuffer[queue.size()]);
+					queued -= NanoHTTPcommon.write(io, buffers);
+					while(!queue.isEmpty() && !queue.getFirst().hasRemaining())
+						queue.removeFirst();
+				}
+				if(queue.isEmpty() && NanoHTTPtls.flush(io))
+					selector.setWritable(key, false);
+			}
+		}
+		@Override
+		public void onClose() {
+			closed = true;
+			final httpTopic tmpTopic = this.topic;
+			if(tmpTopic != null) {
+				tmpTopic.remove(this);
+				dropIdle(tmpTopic);
+			}
+			synchronized(queue) {
+				queue.clear();
+				queued = 0L;
+			}
+		}
+
+
+		/**
+		 * Writes an event now if nothing is queued, otherwise adds it
+		 * to the queue for the selector to write.
+		 * @return false if the event was dropped.
+		 */
+		protected boolean offer(final httpEvent event) {
+			final SelectionKey key = this.key;
+			final ByteBuffer buffer = event.getBuffer(chunked);
+			synchronized(queue) {
+				if(closed || key == null) return false;
+				if(queued + buffer.remaining() > maxQueued) {
+					// heartbeats don't count, the subscriber is busy anyway
+					if(event == HEARTBEAT) return false;
+					if(httpOverflow.DISCONNECT.equals(overflow)) {
+						countDisconnected++;
+						close();
+					} else {
+						countDropped++;
+					}
+					return false;
+				}
+				// a TLS layer may hold back the end of the event
+				boolean held = false;
+				try {
+					if(queue.isEmpty()) {
+						io.write(buffer);
+						held = !NanoHTTPtls.flush(io);
+					}
+				} catch (IOException e) {
+					close();
+					return false;
+				}
+				if(buffer.hasRemaining()) {
+					queue.add(buffer);
+					queued += buffer.remaining();
+					selector.setWritable(key, true);
+				} else
+				if(held) {
+					selector.setWritable(key, true);
+				}
+				lastSent = System.currentTimeMillis();
+			}
+			return true;
+		}
+
+
+		/**
+		 * @return outgoing bytes waiting for the client.
+		 */
+		public long getQueued() {
+			synchronized(queue) {
+				return queued;
+			}
+		}
+		public void close() {
+			// stop offering before the selector gets to it
+			closed = true;
+			final SelectionKey key = this.key;
+			if(key != null)
+				selector.close(key);
+		}
+
+
+	}
+
+
+}
@@ -0,0 +1,593 @@
+package com.poixson.nanosocket;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+
+/**
+ * TLS for server connections, built on SSLEngine so the same connection
+ * can be used by a blocking worker thread and later by the selector.
+ * <p>
+ * Sessions are cached by the SSLContext, so returning clients skip the
+ * full handshake. Newer JDKs also resume from stateless session tickets.
+ * ALPN offers h2 when HTTP/2 is enabled, on JDKs which support it.
+ * </p>
+ */
+public class NanoHTTPtls {
+
+	public static final int DEFAULT_SESSION_CACHE   = 10000;
+	public static final int DEFAULT_SESSION_TIMEOUT = 3600; // seconds
+
+	public static final String ALPN_HTTP_1_1 = "http/1.1";
+	public static final String ALPN_H2       = "h2";
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLContext context;
+
+	// stats
+	private volatile long countHandshakes = 0L;
+	private volatile long countResumed = 0L;
+	private volatile long countFailed = 0L;
+	private volatile long handshakeTime = 0L;
+
+
+	public NanoHTTPtls(final SSLContext context) {
+		if(context == null) throw new NullPointerException();
+		this.context = context;
+	}
+	/**
+	 * @param keystore path to a PKCS12 or JKS keystore.
+	 */
+	public NanoHTTPtls(final String keystore, final String password)
+			throws IOException, GeneralSecurityException {
+		this(createContext(keystore, password));
+	}
+
+
+	/**
+	 * Loads a keystore file holding the server's key and certificate.
+	 * Files ending in .jks are loaded as JKS, anything else as PKCS12.
+	 */
+	public static SSLContext createContext(final String keystore, final String password)
+			throws IOException, GeneralSecurityException {
+		if(keystore == null) throw new NullPointerException();
+		final char[] pass = (password == null ? new char[0] : password.toCharArray());
+		final KeyStore store = KeyStore.getInstance(
+			keystore.toLowerCase().endsWith(".jks") ? "JKS" : "PKCS12"
+		);
+		final InputStream in = new FileInputStream(keystore);
+		try {
+			store.load(in, pass);
+		} finally {
+			NanoHTTPcommon.safeClose(in);
+		}
+		return createContext(store, pass);
+	}
+	public static SSLContext createContext(final KeyStore store, final char[] password)
+			throws GeneralSecurityException {
+		final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		factory.init(store, password);
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(factory.getKeyManagers(), null, null);
+		setSessionCache(context, DEFAULT_SESSION_CACHE, DEFAULT_SESSION_TIMEOUT);
+		return context;
+	}
+	/**
+	 * Sizes the server session cache used for resumption.
+	 * @param size most sessions to keep, or 0 for no limit.
+	 * @param timeout seconds a session can be resumed.
+	 */
+	public static void setSessionCache(final SSLContext context, final int size, final int timeout) {
+		final SSLSessionContext sessions = context.getServerSessionContext();
+		if(sessions == null) return;
+		sessions.setSessionCacheSize(size);
+		sessions.setSessionTimeout(timeout);
+	}
+	/**
+	 * Stateless session tickets let clients resume without a cache entry,
+	 * on JDK 13 and newer. This is a JVM wide setting, read when TLS is
+	 * first used.
+	 */
+	public static void setSessionTickets(final boolean enabled) {
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(enabled));
+	}
+
+
+	public SSLContext getContext() {
+		return context;
+	}
+
+
+	/**
+	 * Starts TLS on an accepted connection. The handshake runs on
+	 * first use, in the worker thread.
+	 * @param http2 offer h2 with ALPN.
+	 */
+	public httpTLSChannel open(final Socket socket, final boolean http2) throws IOException {
+		final SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		setApplicationProtocols(
+			engine,
+			(http2 ? new String[] { ALPN_H2, ALPN_HTTP_1_1 } : new String[] { ALPN_HTTP_1_1 })
+		);
+		return new httpTLSChannel(engine, socket);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// alpn
+
+
+	/**
+	 * ALPN arrived in Java 9, so it's only used when available.
+	 * @return true if the protocols were set.
+	 */
+	public static boolean setApplicationProtocols(final SSLEngine engine, final String[] protocols) {
+		try {
+			final Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+			final SSLParameters params = engine.getSSLParameters();
+			method.invoke(params, (Object) protocols);
+			engine.setSSLParameters(params);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	/**
+	 * @return protocol chosen with ALPN, or null if none.
+	 */
+	public static String getApplicationProtocol(final SSLEngine engine) {
+		try {
+			final Method method = SSLEngine.class.getMethod("getApplicationProtocol");
+			final String protocol = (String) method.invoke(engine);
+			return (protocol == null || protocol.isEmpty() ? null : protocol);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+
+	/**
+	 * Writes out encrypted data held back by a non-blocking TLS channel.
+	 * @return true once nothing is held back, always true for other channels.
+	 */
+	public static boolean flush(final ByteChannel channel) throws IOException {
+		if(channel instanceof httpTLSChannel)
+			return ((httpTLSChannel) channel).flush();
+		return true;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// stats
+
+
+	public long totalHandshakes() {
+		return countHandshakes;
+	}
+	/**
+	 * @return handshakes which resumed an earlier session.
+	 */
+	public long totalResumed() {
+		return countResumed;
+	}
+	public long totalFailed() {
+		return countFailed;
+	}
+	/**
+	 * @return time spent in completed handshakes, in milliseconds.
+	 */
+	public long totalHandshakeTime() {
+		return handshakeTime;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Encrypted connection. Blocks like the socket while it's in blocking
+	 * mode, honoring its read timeout. Once the socket channel is switched
+	 * to non-blocking, reads return 0 when no full record is available and
+	 * writes hold back what the socket won't take, see flush().
+	 * <p>
+	 * Records are decrypted straight into the caller's buffer when it has
+	 * room, and encrypted straight from the caller's buffers.
+	 * </p>
+	 */
+	public class httpTLSChannel implements ByteChannel, GatheringByteChannel {
+
+		private final SSLEngine engine;
+		private final Socket socket;
+		private final SocketChannel channel;
+		private final InputStream  socketIn;
+		private final OutputStream socketOut;
+
+		// received and not yet decrypted, kept ready for writing
+		private ByteBuffer netIn;
+		// encrypted and not yet sent, kept ready for reading
+		private ByteBuffer netOut;
+		// decrypted and not yet read, kept ready for reading
+		private ByteBuffer appIn;
+
+		private final Object readLock  = new Object();
+		private final Object writeLock = new Object();
+		private volatile boolean handshaken = false;
+		private volatile boolean closed = false;
+
+
+		public httpTLSChannel(final SSLEngine engine, final Socket socket) throws IOException {
+			this.engine = engine;
+			this.socket = socket;
+			this.channel = socket.getChannel();
+			this.socketIn  = socket.getInputStream();
+			this.socketOut = socket.getOutputStream();
+			final SSLSession session = engine.getSession();
+			this.netIn  = ByteBuffer.allocate(session.getPacketBufferSize());
+			this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			this.netOut.flip();
+			this.appIn  = ByteBuffer.allocate(session.getApplicationBufferSize());
+			this.appIn.flip();
+		}
+
+
+		/**
+		 * Runs the handshake, if it hasn't been already. Must be called
+		 * in blocking mode.
+		 */
+		public void handshake() throws IOException {
+			if(handshaken) return;
+			synchronized(readLock) {
+				synchronized(writeLock) {
+					if(handshaken) return;
+					if(closed) throw new ClosedChannelException();
+					final long start = System.currentTimeMillis();
+					try {
+						doHandshake();
+					} catch (IOException e) {
+						countFailed++;
+						throw e;
+					}
+					handshaken = true;
+					countHandshakes++;
+					handshakeTime += (System.currentTimeMillis() - start);
+					// a resumed session was created by an earlier handshake
+					if(engine.getSession().getCreationTime() < start)
+						countResumed++;
+				}
+			}
+		}
+		private void doHandshake() throws IOException {
+			engine.beginHandshake();
+			while(true) {
+				final HandshakeStatus status = engine.getHandshakeStatus();
+				switch(status) {
+				case NEED_TASK:
+					runTasks();
+					break;
+				case NEED_WRAP:
+					wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+					flushNet();
+					break;
+				case NEED_UNWRAP: {
+					appIn.compact();
+					netIn.flip();
+					final SSLEngineResult result;
+					try {
+						result = engine.unwrap(netIn, appIn);
+					} finally {
+						netIn.compact();
+						appIn.flip();
+					}
+					switch(result.getStatus()) {
+					case BUFFER_UNDERFLOW:
+						if(readNet() < 0) throw new SSLException("Connection closed during handshake");
+						break;
+					case BUFFER_OVERFLOW: {
+						final ByteBuffer bigger = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize() + appIn.remaining());
+						bigger.put(appIn);
+						bigger.flip();
+						appIn = bigger;
+						break;
+					}
+					case CLOSED:
+						throw new SSLException("Connection closed during handshake");
+					default:
+						break;
+					}
+					break;
+				}
+				case FINISHED:
+				case NOT_HANDSHAKING:
+					flushNet();
+					return;
+				default:
+					throw new SSLException("Unexpected handshake status: "+status.toString());
+				}
+			}
+		}
+		private void runTasks() {
+			while(true) {
+				final Runnable task = engine.getDelegatedTask();
+				if(task == null) break;
+				task.run();
+			}
+		}
+
+
+		/**
+		 * @return protocol chosen with ALPN, or null if none.
+		 */
+		public String getApplicationProtocol() {
+			return NanoHTTPtls.getApplicationProtocol(engine);
+		}
+		public SSLSession getSession() {
+			return engine.getSession();
+		}
+		public SocketChannel getSocketChannel() {
+			return channel;
+		}
+
+
+		// ------------------------------------------------------------------------------- //
+		// read
+
+
+		@Override
+		public int read(final ByteBuffer dst) throws IOException {
+			handshake();
+			synchronized(readLock) {
+				if(!dst.hasRemaining()) return 0;
+				// left over from a record which didn't fit
+				if(appIn.hasRemaining())
+					return copy(appIn, dst);
+				while(true) {
+					if(closed) throw new ClosedChannelException();
+					netIn.flip();
+					SSLEngineResult result;
+					boolean direct = true;
+					try {
+						result = engine.unwrap(netIn, dst);
+						if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+							direct = false;
+							appIn.clear();
+							try {
+								result = engine.unwrap(netIn, appIn);
+							} finally {
+								appIn.flip();
+							}
+						}
+					} finally {
+						netIn.compact();
+					}
+					switch(result.getStatus()) {
+					case CLOSED:
+						if(!direct && appIn.hasRemaining())
+							return copy(appIn, dst);
+						return (direct && result.bytesProduced() > 0 ? result.bytesProduced() : -1);
+					case BUFFER_UNDERFLOW: {
+						// record is bigger than the buffer
+						if(!netIn.hasRemaining())
+							netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+						final int read = readNet();
+						if(read < 0) return -1;
+						if(read == 0) return 0;
+						continue;
+					}
+					case BUFFER_OVERFLOW:
+						// nothing was decrypted, the record needs a bigger buffer
+						appIn = ByteBuffer.allocate(Math.max(engine.getSession().getApplicationBufferSize(), appIn.capacity() * 2));
+						appIn.flip();
+						continue;
+					default:
+						break;
+					}
+					handlePostHandshake(result.getHandshakeStatus());
+					if(!direct && appIn.hasRemaining())
+						return copy(appIn, dst);
+					if(direct && result.bytesProduced() > 0)
+						return result.bytesProduced();
+				}
+			}
+		}
+		/**
+		 * Answers messages sent after the handshake, such as a key update.
+		 */
+		private void handlePostHandshake(final HandshakeStatus status) throws IOException {
+			if(status == HandshakeStatus.NEED_TASK) {
+				runTasks();
+			} else
+			if(status == HandshakeStatus.NEED_WRAP) {
+				synchronized(writeLock) {
+					wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+					flushNet();
+				}
+			}
+		}
+		private int readNet() throws IOException {
+			if(channel != null && !channel.isBlocking())
+				return channel.read(netIn);
+			// socket stream honors the read timeout
+			final int read = socketIn.read(netIn.array(), netIn.arrayOffset()+netIn.position(), netIn.remaining());
+			if(read > 0)
+				netIn.position(netIn.position() + read);
+			return read;
+		}
+
+
+		// ------------------------------------------------------------------------------- //
+		// write
+
+
+		@Override
+		public int write(final ByteBuffer src) throws IOException {
+			return (int) write(new ByteBuffer[] { src }, 0, 1);
+		}
+		@Override
+		public long write(final ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+		@Override
+		public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+			handshake();
+			synchronized(writeLock) {
+				if(closed) throw new ClosedChannelException();
+				// still waiting on a slow peer
+				if(netOut.hasRemaining() && !flushNet()) return 0L;
+				long total = 0L;
+				while(hasRemaining(srcs, offset, length)) {
+					final long consumed = wrap(srcs, offset, length);
+					if(consumed == 0L && !netOut.hasRemaining())
+						throw new SSLException("Renegotiation is not supported");
+					total += consumed;
+					if(!flushNet()) break;
+				}
+				return total;
+			}
+		}
+		/**
+		 * Sends encrypted data held back in non-blocking mode.
+		 * @return true once everything has been sent.
+		 */
+		public boolean flush() throws IOException {
+			synchronized(writeLock) {
+				return (!netOut.hasRemaining() || flushNet());
+			}
+		}
+		/**
+		 * Encrypts into the empty outgoing buffer.
+		 * @return bytes consumed.
+		 */
+		private long wrap(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+			while(true) {
+				netOut.clear();
+				final SSLEngineResult result;
+				try {
+					result = engine.wrap(srcs, offset, length, netOut);
+				} finally {
+					netOut.flip();
+				}
+				switch(result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					// nothing was encrypted, the record needs a bigger buffer
+					netOut = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(), netOut.capacity() * 2));
+					continue;
+				case CLOSED:
+					if(result.bytesProduced() == 0)
+						throw new ClosedChannelException();
+					break;
+				default:
+					break;
+				}
+				if(result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+					runTasks();
+				return result.bytesConsumed();
+			}
+		}
+		/**
+		 * @return true if everything was sent, always in blocking mode.
+		 */
+		private boolean flushNet() throws IOException {
+			if(!netOut.hasRemaining()) return true;
+			if(channel != null && !channel.isBlocking()) {
+				channel.write(netOut);
+				return !netOut.hasRemaining();
+			}
+			socketOut.write(netOut.array(), netOut.arrayOffset()+netOut.position(), netOut.remaining());
+			netOut.position(netOut.limit());
+			return true;
+		}
+
+
+		// ------------------------------------------------------------------------------- //
+
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+		/**
+		 * Sends close_notify, then closes the socket.
+		 */
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			closed = true;
+			try {
+				engine.closeOutbound();
+				synchronized(writeLock) {
+					if(handshaken && (channel == null || channel.isBlocking())) {
+						wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+						flushNet();
+					}
+				}
+			} catch (IOException ignore) {
+			} finally {
+				NanoHTTPcommon.safeClose(socket);
+			}
+		}
+
+
+	}
+
+
+	private static int copy(final ByteBuffer src, final ByteBuffer dst) {
+		final int len = Math.min(src.remaining(), dst.remaining());
+		if(len == src.remaining()) {
+			dst.put(src);
+		} else {
+			final ByteBuffer slice = src.duplicate();
+			slice.limit(slice.position() + len);
+			dst.put(slice);
+			src.position(src.position() + len);
+		}
+		return len;
+	}
+	/**
+	 * @param buffer buffer ready for writing.
+	 * @return larger buffer holding the same data, ready for writing.
+	 */
+	private static ByteBuffer grow(final ByteBuffer buffer, final int size) {
+		final ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+	private static boolean hasRemaining(final ByteBuffer[] buffers, final int offset, final int length) {
+		for(int i=offset; i<offset+length; i++) {
+			if(buffers[i].hasRemaining())
+				return true;
+		}
+		return false;
+	}
+
+
+}
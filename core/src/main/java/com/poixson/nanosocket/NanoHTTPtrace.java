@@ -0,0 +1,100 @@
+package com.poixson.nanosocket;
+
+
+/**
+ * Per-request phase tracing.
+ * <p>
+ * This is the fallback for older JDKs, where tracing is always disabled.
+ * On Java 11+ the multi-release jar replaces this class with one that
+ * emits JDK Flight Recorder events. Both versions must keep the same
+ * public fields and methods.
+ * </p>
+ * Each event type is only created while a recording has it enabled, so
+ * tracing costs nothing unless a recording is running.
+ */
+public final class NanoHTTPtrace {
+
+	public static final long DEFAULT_THRESHOLD = 20L; // ms
+
+	private static volatile long threshold = DEFAULT_THRESHOLD * 1000000L;
+
+
+	private NanoHTTPtrace() {
+	}
+
+
+	/**
+	 * @return true if a recording is active for any of the events.
+	 */
+	public static boolean isEnabled() {
+		return false;
+	}
+	public static boolean isAcceptEnabled() {
+		return false;
+	}
+	public static boolean isRequestEnabled() {
+		return false;
+	}
+	public static boolean isHandlerEnabled() {
+		return false;
+	}
+
+
+	/**
+	 * Only requests and handler calls taking at least this long are recorded.
+	 * @param ms threshold in milliseconds.
+	 */
+	public static void setThreshold(final long ms) {
+		threshold = (ms < 0L ? 0L : ms) * 1000000L;
+	}
+	public static long getThreshold() {
+		return threshold / 1000000L;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Time taken to set up an accepted connection.
+	 */
+	public static class httpAcceptEvent {
+		public String remote;
+		public int connection;
+		public void start() {}
+		public void finish() {}
+	}
+
+
+	/**
+	 * Phases of a single request. The event spans handler dispatch and
+	 * sending, header parsing happens before it starts.
+	 */
+	public static class httpRequestEvent {
+		public String method;
+		public String uri;
+		public int status;
+		public int connection;
+		public int request;
+		public long parseTime;
+		public long dispatchTime;
+		public long sendTime;
+		public void start() {}
+		public void dispatched() {}
+		public void finish() {}
+	}
+
+
+	/**
+	 * A single httpIO.serve() call.
+	 */
+	public static class httpHandlerEvent {
+		public String handler;
+		public String uri;
+		public boolean handled;
+		public void start() {}
+		public void finish() {}
+	}
+
+
+}
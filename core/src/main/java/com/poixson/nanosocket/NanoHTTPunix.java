@@ -0,0 +1,51 @@
+package com.poixson.nanosocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+
+/**
+ * Unix domain socket listener, for traffic from processes on the same host.
+ * <p>
+ * This is the fallback for older JDKs, where Unix domain sockets aren't
+ * available. On Java 16+ the multi-release jar replaces this class with
+ * one using UnixDomainSocketAddress. Both versions must keep the same
+ * public methods.
+ * </p>
+ */
+public final class NanoHTTPunix {
+
+
+	private NanoHTTPunix() {
+	}
+
+
+	/**
+	 * @return true if this JDK can listen on Unix domain sockets.
+	 */
+	public static boolean isSupported() {
+		return false;
+	}
+
+
+	/**
+	 * Binds a blocking listener to a socket file.
+	 * @param path socket file to create.
+	 * @param backlog pending connection limit.
+	 */
+	public static ServerSocketChannel bind(final String path, final int backlog) throws IOException {
+		throw new IOException("Unix domain sockets require Java 16 or newer");
+	}
+
+
+	/**
+	 * Removes the socket file once the listener is closed.
+	 */
+	public static void unlink(final String path) {
+		if(path == null) return;
+		new File(path).delete();
+	}
+
+
+}
@@ -0,0 +1,233 @@
+package com.poixson.nanosocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpInputBuffer;
+import com.poixson.nanosocket.NanoHTTPcommon.httpOutputBuffer;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * JIT warm-up, run by the server before its listeners are bound.
+ * <p>
+ * Synthetic requests are passed through the same parse, serve() and
+ * send() path as real ones, over in-memory streams, so the hot code is
+ * compiled before the first client connects. Requests come from raw
+ * captures added here, and from handlers implementing httpWarmupIO.
+ * </p>
+ * Warm-up requests aren't counted in totalRequests() and never reach
+ * the response cache. They do run the handlers, so they should be safe
+ * to repeat, like a GET.
+ */
+public class NanoHTTPwarmup {
+
+	public static final int  DEFAULT_ITERATIONS = 2000;
+	public static final long DEFAULT_TIME_LIMIT = 10000L;
+
+	private final int iterations;
+	private final long timeLimit;
+	private final List<byte[]> requests = new CopyOnWriteArrayList<byte[]>();
+
+	// results of the last run
+	private volatile int countIterations = 0;
+	private volatile long countRequests = 0L;
+	private volatile long countFailed = 0L;
+	private volatile long duration = 0L;
+
+
+	public NanoHTTPwarmup() {
+		this(DEFAULT_ITERATIONS, DEFAULT_TIME_LIMIT);
+	}
+	/**
+	 * @param iterations passes over the full set of requests.
+	 * @param timeLimit most time to spend, in milliseconds. 0 for no limit.
+	 */
+	public NanoHTTPwarmup(final int iterations, final long timeLimit) {
+		if(iterations < 1) throw new IllegalArgumentException("Iterations must be at least 1");
+		this.iterations = iterations;
+		this.timeLimit = (timeLimit < 0L ? 0L : timeLimit);
+	}
+
+
+	public int getIterations() {
+		return iterations;
+	}
+	public long getTimeLimit() {
+		return timeLimit;
+	}
+
+
+	/**
+	 * Adds a request, either a full raw request or just a uri
+	 * starting with / which is sent as a GET.
+	 */
+	public NanoHTTPwarmup addRequest(final String request) {
+		if(request == null) throw new NullPointerException();
+		return addRequest(toBytes(toRequest(request, null)));
+	}
+	/**
+	 * Adds a raw request, as recorded from a client.
+	 */
+	public NanoHTTPwarmup addRequest(final byte[] request) {
+		if(request == null) throw new NullPointerException();
+		requests.add(request);
+		return this;
+	}
+
+
+	/**
+	 * @param entry raw request, or a uri starting with /
+	 * @param host Host header for a uri, or null.
+	 */
+	public static String toRequest(final String entry, final String host) {
+		if(!entry.startsWith("/"))
+			return entry;
+		return "GET "+entry+" HTTP/1.1\r\n"+
+			"Host: "+(host == null ? "localhost" : host)+"\r\n\r\n";
+	}
+	protected static byte[] toBytes(final String request) {
+		try {
+			return request.getBytes(NanoHTTPcommon.UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// run
+
+
+	/**
+	 * Warms up the server, returning when done or the time limit passes.
+	 */
+	public void run(final NanoHTTPserver server) {
+		final List<byte[]> all = new ArrayList<byte[]>(requests);
+		for(final String request : server.getWarmupRequests())
+			all.add(toBytes(request));
+		if(all.isEmpty()) return;
+		System.out.println("Warming up with "+Integer.toString(all.size())+" requests ..");
+		// on a thread of its own, so it can be interrupted
+		final httpWarmupThread thread = new httpWarmupThread(server, all);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			thread.interrupt();
+			Thread.currentThread().interrupt();
+		}
+		System.out.println(
+			"Warm-up finished: "+Long.toString(countRequests)+" requests, "+
+			Integer.toString(countIterations)+" iterations in "+Long.toString(duration)+"ms"+
+			(countFailed > 0L ? ", "+Long.toString(countFailed)+" failed" : "")
+		);
+	}
+
+
+	protected void runRequests(final NanoHTTPserver server, final List<byte[]> all) {
+		final long start = System.currentTimeMillis();
+		final long deadline = (timeLimit == 0L ? Long.MAX_VALUE : start + timeLimit);
+		final httpOutputBuffer out = new httpOutputBuffer(new httpDiscardStream(), null, server.getWriteBufferSize());
+		countIterations = 0;
+		countRequests = 0L;
+		countFailed = 0L;
+		Exception first = null;
+		for(int i = 0; i < iterations; i++) {
+			if(System.currentTimeMillis() >= deadline) break;
+			if(Thread.currentThread().isInterrupted()) break;
+			for(final byte[] raw : all) {
+				try {
+					runRequest(server, raw, out);
+				} catch (Exception e) {
+					countFailed++;
+					if(first == null)
+						first = e;
+				}
+				countRequests++;
+			}
+			countIterations++;
+		}
+		duration = System.currentTimeMillis() - start;
+		if(first != null)
+			first.printStackTrace();
+	}
+	/**
+	 * One request through the same steps as a connection worker,
+	 * without the response cache or request counters.
+	 */
+	protected void runRequest(final NanoHTTPserver server, final byte[] raw,
+			final httpOutputBuffer out) throws Exception {
+		final httpInputBuffer in = new httpInputBuffer(new ByteArrayInputStream(raw));
+		final httpServerRequest request = new httpServerRequest(in, server.getLimits());
+		server.resolveVirtualHost(request);
+		httpServerResponse result = server.expect(request, out);
+		if(result == null)
+			result = server.serve(request);
+		if(result == null) return;
+		result.send(out, null);
+		request.discardBody(raw.length);
+		out.flush();
+	}
+
+
+	private class httpWarmupThread extends Thread {
+
+		private final NanoHTTPserver server;
+		private final List<byte[]> all;
+
+		public httpWarmupThread(final NanoHTTPserver server, final List<byte[]> all) {
+			super(server.getThreadName()+":warmup");
+			this.server = server;
+			this.all = all;
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			runRequests(server, all);
+		}
+
+	}
+
+
+	private static class httpDiscardStream extends OutputStream {
+		@Override
+		public void write(final int b) {
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// stats
+
+
+	/**
+	 * @return passes over the requests completed by the last run.
+	 */
+	public int totalIterations() {
+		return countIterations;
+	}
+	public long totalRequests() {
+		return countRequests;
+	}
+	public long totalFailed() {
+		return countFailed;
+	}
+	/**
+	 * @return length of the last run, in milliseconds.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+
+}
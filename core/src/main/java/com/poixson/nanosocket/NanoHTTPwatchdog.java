@@ -0,0 +1,417 @@
+package com.poixson.nanosocket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpInputBuffer;
+import com.poixson.nanosocket.NanoHTTPselector.httpSelectorHandler;
+import com.poixson.nanosocket.NanoHTTPserver.httpCancelReason;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+
+
+/**
+ * Watches requests while they're in flight, cancelling them when the
+ * client goes away or their deadline passes.
+ * <p>
+ * A timer on the server's selector checks every connection each interval.
+ * Once a request without a pending body has run longer than the grace
+ * time, its connection is watched by the selector for the client closing
+ * it, until the handler returns. A request still being sent when its
+ * deadline passes has its connection closed, ending the write.
+ * </p>
+ * Handlers find out with httpServerRequest.isCancelled(), checkCancelled()
+ * or onCancel(). HTTP/2 requests are cancelled when their stream is reset,
+ * without the watchdog.
+ */
+public class NanoHTTPwatchdog {
+
+	public static final long DEFAULT_INTERVAL = 100L;
+	// requests shorter than this aren't watched for the close
+	public static final long DEFAULT_GRACE = 500L;
+
+	private final long interval;
+	private volatile long timeout = 0L;
+	private volatile long grace = DEFAULT_GRACE;
+
+	private final Set<httpWatch> watches =
+		Collections.newSetFromMap(new ConcurrentHashMap<httpWatch, Boolean>());
+	private volatile NanoHTTPselector selector = null;
+
+	// stats
+	private volatile long countWatched = 0L;
+	private volatile long countDisconnected = 0L;
+	private volatile long countTimedOut = 0L;
+	private volatile long countAborted = 0L;
+
+
+	public NanoHTTPwatchdog() {
+		this(DEFAULT_INTERVAL);
+	}
+	/**
+	 * @param interval time between checks, in milliseconds.
+	 */
+	public NanoHTTPwatchdog(final long interval) {
+		if(interval < 1L) throw new IllegalArgumentException("Interval must be at least 1ms");
+		this.interval = interval;
+	}
+
+
+	public long getInterval() {
+		return interval;
+	}
+	/**
+	 * @param timeout deadline for each request from when it's served,
+	 *   in milliseconds, or 0 for none. Handlers can move it with
+	 *   httpServerRequest.setDeadline().
+	 */
+	public void setTimeout(final long timeout) {
+		this.timeout = (timeout < 0L ? 0L : timeout);
+	}
+	public long getTimeout() {
+		return timeout;
+	}
+	/**
+	 * @param grace time a request runs before its connection is watched
+	 *   for the close, and time allowed to send an answer once the deadline
+	 *   has passed, in milliseconds.
+	 */
+	public void setGrace(final long grace) {
+		this.grace = (grace < 0L ? 0L : grace);
+	}
+	public long getGrace() {
+		return grace;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// timer
+
+
+	/**
+	 * Starts checking on the server's selector.
+	 */
+	public void start(final NanoHTTPserver server) throws IOException {
+		final NanoHTTPselector selector;
+		synchronized(this) {
+			if(this.selector != null) return;
+			selector = server.getSelector();
+			this.selector = selector;
+		}
+		selector.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if(NanoHTTPwatchdog.this.selector != selector) return;
+				check();
+				selector.schedule(this, interval);
+			}
+		}, interval);
+	}
+	public void stop() {
+		synchronized(this) {
+			this.selector = null;
+		}
+	}
+
+
+	protected void check() {
+		final long now = System.currentTimeMillis();
+		for(final httpWatch watch : watches)
+			watch.check(now);
+	}
+
+
+	/**
+	 * Starts tracking a connection.
+	 * @param socket connection socket, or null for a unix domain socket.
+	 * @param channel connection channel, or null if it can't be watched.
+	 * @param io channel behind the streams, the socket or a TLS layer.
+	 * @param reader input buffer, given any bytes read while watching.
+	 */
+	public httpWatch open(final Socket socket, final SocketChannel channel,
+			final ByteChannel io, final httpInputBuffer reader) {
+		final httpWatch watch = new httpWatch(socket, channel, io, reader);
+		watches.add(watch);
+		return watch;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// connection
+
+
+	/**
+	 * In-flight state of one connection. begin(), sending(), end() and
+	 * close() are called by the connection's worker, the rest on the
+	 * selector thread.
+	 */
+	public class httpWatch implements httpSelectorHandler {
+
+		private static final int IDLE     = 0;
+		private static final int RUNNING  = 1;
+		private static final int WATCHING = 2;
+		private static final int SENDING  = 3;
+
+		private final Socket socket;
+		private final SocketChannel channel;
+		private final ByteChannel io;
+		private final httpInputBuffer reader;
+
+		// guarded by this
+		private int state = IDLE;
+		private httpServerRequest request = null;
+		private long started = 0L;
+		private boolean watchable = false;
+		private long abortAt = 0L;
+		private boolean cancelledBeforeSend = false;
+		private SelectionKey key = null;
+		private CountDownLatch released = null;
+		private boolean lost = false;
+		// bytes of the next request, read while watching
+		private byte[] pending = null;
+		private int pendingCount = 0;
+		private int room = 0;
+
+
+		protected httpWatch(final Socket socket, final SocketChannel channel,
+				final ByteChannel io, final httpInputBuffer reader) {
+			this.socket  = socket;
+			this.channel = channel;
+			this.io      = io;
+			this.reader  = reader;
+		}
+
+
+		/**
+		 * A request is about to be served.
+		 * @param bodyBuffered true if nothing more of the request is
+		 *   left to arrive, so the connection can be watched.
+		 */
+		public void begin(final httpServerRequest request, final boolean bodyBuffered) {
+			final long now = System.currentTimeMillis();
+			final long timeout = NanoHTTPwatchdog.this.timeout;
+			if(timeout > 0L && request.getDeadline() == 0L)
+				request.setDeadline(now + timeout);
+			synchronized(this) {
+				this.request = request;
+				this.started = now;
+				this.watchable = (bodyBuffered && channel != null && io != null);
+				this.room = reader.capacity() - reader.buffered();
+				this.abortAt = 0L;
+				this.lost = false;
+				this.pendingCount = 0;
+				this.state = RUNNING;
+			}
+		}
+		/**
+		 * The handler returned, stops watching for the close and waits
+		 * for the connection to be back in blocking mode.
+		 * @return false if the connection can't be used any more.
+		 */
+		public boolean sending() {
+			final CountDownLatch latch;
+			synchronized(this) {
+				if(state == IDLE) return !lost;
+				final long deadline = request.getDeadline();
+				if(deadline > 0L)
+					abortAt = Math.max(deadline, System.currentTimeMillis() + grace);
+				cancelledBeforeSend = request.isCancelled();
+				final boolean watching = (state == WATCHING);
+				state = SENDING;
+				if(!watching) return !lost;
+				latch = new CountDownLatch(1);
+				released = latch;
+				// otherwise released once registered
+				if(key != null)
+					release();
+			}
+			try {
+				if(!latch.await(NanoHTTPcommon.SOCKET_TIMEOUT, TimeUnit.MILLISECONDS))
+					return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			synchronized(this) {
+				if(lost) return false;
+				if(pendingCount > 0)
+					reader.append(pending, 0, pendingCount);
+				pendingCount = 0;
+			}
+			return true;
+		}
+		/**
+		 * The response was sent.
+		 */
+		public void end() {
+			synchronized(this) {
+				state = IDLE;
+				request = null;
+			}
+		}
+		/**
+		 * The connection is closed.
+		 */
+		public void close() {
+			end();
+			watches.remove(this);
+		}
+
+
+		/**
+		 * Timer check, on the selector thread.
+		 */
+		protected void check(final long now) {
+			httpServerRequest timedOut = null;
+			boolean abort = false;
+			synchronized(this) {
+				if(state == IDLE) return;
+				if(state == SENDING) {
+					if(request.isCancelled() && !cancelledBeforeSend) {
+						abort = true;
+					} else
+					if(abortAt > 0L && now >= abortAt) {
+						abort = true;
+						timedOut = request;
+					}
+					if(abort)
+						state = IDLE;
+				} else {
+					final long deadline = request.getDeadline();
+					if(deadline > 0L && now >= deadline) {
+						timedOut = request;
+					} else
+					if(state == RUNNING && watchable && now - started >= grace && !request.isCancelled()) {
+						watch();
+					}
+				}
+			}
+			if(timedOut != null && timedOut.cancel(httpCancelReason.TIMEOUT))
+				countTimedOut++;
+			if(abort) {
+				countAborted++;
+				// fails the blocked write
+				if(socket == null)
+					NanoHTTPcommon.safeClose(channel);
+				else
+					NanoHTTPcommon.safeClose(socket);
+			}
+		}
+		private void watch() {
+			final NanoHTTPselector selector = NanoHTTPwatchdog.this.selector;
+			if(selector == null) return;
+			watchable = false;
+			key = null;
+			try {
+				selector.register(channel, this);
+			} catch (IOException e) {
+				return;
+			}
+			state = WATCHING;
+			countWatched++;
+		}
+		/**
+		 * Hands the connection back to the worker, from any thread.
+		 */
+		private void release() {
+			final NanoHTTPselector selector = NanoHTTPwatchdog.this.selector;
+			final CountDownLatch latch = released;
+			if(selector == null) {
+				lost = true;
+				latch.countDown();
+				return;
+			}
+			selector.release(key, new Runnable() {
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			});
+		}
+
+
+		@Override
+		public void onRegister(final SelectionKey key) throws IOException {
+			synchronized(this) {
+				this.key = key;
+				// the handler already returned
+				if(state != WATCHING)
+					release();
+			}
+		}
+		@Override
+		public void onReadable() throws IOException {
+			final httpServerRequest closed;
+			synchronized(this) {
+				if(state != WATCHING) return;
+				if(pending == null || pending.length < room)
+					pending = new byte[room];
+				final int read = (pendingCount < room
+					? io.read(ByteBuffer.wrap(pending, pendingCount, room - pendingCount))
+					: 0);
+				if(read > 0)
+					pendingCount += read;
+				// stop reading once the client is gone or the buffer is full
+				if(read < 0 || pendingCount >= room)
+					key.interestOps(0);
+				closed = (read < 0 ? request : null);
+			}
+			if(closed != null && closed.cancel(httpCancelReason.DISCONNECTED))
+				countDisconnected++;
+		}
+		@Override
+		public void onWritable() throws IOException {
+		}
+		@Override
+		public void onClose() {
+			final httpServerRequest closed;
+			synchronized(this) {
+				lost = true;
+				closed = request;
+				if(released != null)
+					released.countDown();
+			}
+			if(closed != null && closed.cancel(httpCancelReason.DISCONNECTED))
+				countDisconnected++;
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// stats
+
+
+	/**
+	 * @return requests whose connection was watched for the close.
+	 */
+	public long totalWatched() {
+		return countWatched;
+	}
+	/**
+	 * @return requests cancelled because the client went away.
+	 */
+	public long totalDisconnected() {
+		return countDisconnected;
+	}
+	public long totalTimedOut() {
+		return countTimedOut;
+	}
+	/**
+	 * @return responses cut off because the deadline passed while sending.
+	 */
+	public long totalAborted() {
+		return countAborted;
+	}
+
+
+}
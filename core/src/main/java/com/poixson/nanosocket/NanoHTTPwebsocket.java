@@ -0,0 +1,681 @@
+package com.poixson.nanosocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.Locale;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMethod;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPselector.httpSelectorHandler;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+import com.poixson.nanosocket.NanoHTTPserver.httpUpgrade;
+
+
+/**
+ * RFC 6455 WebSocket connection, run by the server's shared selector
+ * once the handshake response has been sent.
+ * <p>
+ * Messages are delivered to the listener on the selector thread, so
+ * listeners must not block. Outgoing frames are written straight to
+ * the socket when possible, and otherwise queued up to a limit so a
+ * slow client can't use up the heap.
+ * </p>
+ */
+public class NanoHTTPwebsocket implements httpSelectorHandler, Closeable {
+
+	public static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	public static final int DEFAULT_MAX_MESSAGE = 1024 * 1024; // 1M
+	public static final int DEFAULT_MAX_QUEUED  = 1024 * 1024; // 1M
+	public static final int READ_BUFFER_SIZE    = 16 * 1024;   // 16K
+
+	// opcodes
+	public static final int OP_CONTINUATION = 0x0;
+	public static final int OP_TEXT         = 0x1;
+	public static final int OP_BINARY       = 0x2;
+	public static final int OP_CLOSE        = 0x8;
+	public static final int OP_PING         = 0x9;
+	public static final int OP_PONG         = 0xA;
+
+	// close codes
+	public static final int CLOSE_NORMAL         = 1000;
+	public static final int CLOSE_GOING_AWAY     = 1001;
+	public static final int CLOSE_PROTOCOL_ERROR = 1002;
+	public static final int CLOSE_UNSUPPORTED    = 1003;
+	public static final int CLOSE_NO_STATUS      = 1005;
+	public static final int CLOSE_ABNORMAL       = 1006;
+	public static final int CLOSE_INVALID_DATA   = 1007;
+	public static final int CLOSE_POLICY         = 1008;
+	public static final int CLOSE_TOO_BIG        = 1009;
+	public static final int CLOSE_INTERNAL_ERROR = 1011;
+
+	private final httpWebSocketListener listener;
+	private final int maxMessageSize;
+	private final int maxQueued;
+	private volatile boolean closeOnOverflow = false;
+
+	private volatile NanoHTTPselector selector = null;
+	private volatile SelectionKey key = null;
+	private volatile SocketChannel channel = null;
+	// reads and writes go through this, the channel or a TLS layer
+	private volatile ByteChannel io = null;
+
+	// incoming frames
+	private ByteBuffer inbound;
+	private boolean inFrame = false;
+	private int frameOpcode = 0;
+	private boolean frameFin = false;
+	private long frameRemaining = 0L;
+	private final byte[] mask = new byte[4];
+	private int maskPos = 0;
+	private final ByteArrayOutputStream control = new ByteArrayOutputStream(125);
+	private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+	private int messageOpcode = -1;
+	private final byte[] chunk = new byte[READ_BUFFER_SIZE];
+
+	// outgoing frames
+	private final LinkedList<ByteBuffer> queue = new LinkedList<ByteBuffer>();
+	private long queued = 0L;
+	private volatile boolean closeSent = false;
+	private volatile boolean closeReceived = false;
+	private volatile int closeCode = CLOSE_ABNORMAL;
+	private volatile String closeReason = "";
+	private volatile boolean closed = false;
+
+	// stats
+	private volatile long countDropped = 0L;
+
+
+	/**
+	 * WebSocket events.
+	 */
+	public interface httpWebSocketListener {
+		public void onOpen(NanoHTTPwebsocket socket);
+		public void onMessage(NanoHTTPwebsocket socket, String message);
+		public void onMessage(NanoHTTPwebsocket socket, byte[] message);
+		/**
+		 * @param code close code sent by the client, or CLOSE_ABNORMAL if the
+		 *   connection was lost without a close frame.
+		 */
+		public void onClose(NanoHTTPwebsocket socket, int code, String reason);
+	}
+
+
+	/**
+	 * Request handler which accepts WebSocket handshakes.
+	 */
+	public static abstract class httpWebSocketIO implements httpIO {
+
+		private volatile int maxMessageSize = DEFAULT_MAX_MESSAGE;
+		private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+
+
+		/**
+		 * @return listener for a new connection, or null to leave
+		 *   the request to other handlers.
+		 */
+		protected abstract httpWebSocketListener getListener(httpServerRequest request);
+
+
+		@Override
+		public httpServerResponse serve(final httpServerRequest request) {
+			if(!isUpgrade(request)) return null;
+			final httpWebSocketListener listener = getListener(request);
+			if(listener == null) return null;
+			final String version = request.getHeader("Sec-WebSocket-Version");
+			if(version == null || !"13".equals(version.trim())) {
+				final httpServerResponse response = new httpServerResponse(
+					request, httpStatus.UPGRADE_REQUIRED, NanoHTTPserver.DEFAULT_MIME,
+					"Unsupported WebSocket version"
+				);
+				response.addHeader("Sec-WebSocket-Version", "13");
+				return response;
+			}
+			final httpServerResponse response = new httpServerResponse(
+				request, httpStatus.SWITCHING_PROTOCOLS, null, (httpBody) null
+			);
+			response.addHeader("Upgrade", "websocket");
+			response.addHeader("Connection", "Upgrade");
+			response.addHeader("Sec-WebSocket-Accept", getAcceptKey(request.getHeader("Sec-WebSocket-Key").trim()));
+			response.setCacheTTL(0L);
+			final int maxMessageSize = this.maxMessageSize;
+			final int maxQueued = this.maxQueued;
+			response.setUpgrade(new httpUpgrade() {
+				@Override
+				public void upgrade(final NanoHTTPserver server, final SocketChannel channel,
+						final ByteChannel io, final byte[] leftover) throws IOException {
+					final NanoHTTPwebsocket socket = new NanoHTTPwebsocket(listener, maxMessageSize, maxQueued);
+					socket.open(server.getSelector(), channel, io, leftover);
+				}
+			});
+			return response;
+		}
+
+
+		/**
+		 * Largest message to accept, larger messages close with 1009.
+		 */
+		public void setMaxMessageSize(final int bytes) {
+			if(bytes < 1) throw new IllegalArgumentException("Size must be at least 1");
+			this.maxMessageSize = bytes;
+		}
+		public int getMaxMessageSize() {
+			return maxMessageSize;
+		}
+		/**
+		 * Most outgoing bytes to queue for a connection which isn't keeping up.
+		 */
+		public void setMaxQueued(final int bytes) {
+			if(bytes < 1) throw new IllegalArgumentException("Size must be at least 1");
+			this.maxQueued = bytes;
+		}
+		public int getMaxQueued() {
+			return maxQueued;
+		}
+
+
+	}
+
+
+	/**
+	 * @return true if the request asks for a WebSocket.
+	 */
+	public static boolean isUpgrade(final httpServerRequest request) {
+		if(!httpMethod.GET.equals(request.getMethod()))
+			return false;
+		if(request.getHeader("Sec-WebSocket-Key") == null)
+			return false;
+		final String upgrade = request.getHeader("Upgrade");
+		if(upgrade == null || !upgrade.toLowerCase(Locale.US).contains("websocket"))
+			return false;
+		final String connection = request.getHeader("Connection");
+		return (connection != null && connection.toLowerCase(Locale.US).contains("upgrade"));
+	}
+	/**
+	 * @return Sec-WebSocket-Accept value for a client key.
+	 */
+	public static String getAcceptKey(final String key) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return encodeBase64(digest.digest((key+GUID).getBytes(NanoHTTPserver.UTF8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	public NanoHTTPwebsocket(final httpWebSocketListener listener,
+			final int maxMessageSize, final int maxQueued) {
+		if(listener == null) throw new NullPointerException();
+		this.listener = listener;
+		this.maxMessageSize = maxMessageSize;
+		this.maxQueued = maxQueued;
+	}
+
+
+	/**
+	 * Registers the connection with the selector.
+	 * @param io channel to read and write through, the socket itself
+	 *   or a TLS layer over it.
+	 * @param leftover bytes read past the handshake request.
+	 */
+	public void open(final NanoHTTPselector selector, final SocketChannel channel,
+			final ByteChannel io, final byte[] leftover) throws IOException {
+		this.selector = selector;
+		this.channel = channel;
+		this.io = io;
+		final int size = Math.max(READ_BUFFER_SIZE, (leftover == null ? 0 : leftover.length));
+		this.inbound = ByteBuffer.allocate(size);
+		if(leftover != null)
+			this.inbound.put(leftover);
+		selector.register(channel, this);
+	}
+
+
+	/**
+	 * Closes the connection instead of dropping messages
+	 * when the outgoing queue is full.
+	 */
+	public void setCloseOnOverflow(final boolean closeOnOverflow) {
+		this.closeOnOverflow = closeOnOverflow;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// selector events
+
+
+	@Override
+	public void onRegister(final SelectionKey key) throws IOException {
+		this.key = key;
+		listener.onOpen(this);
+		// frames sent along with the handshake
+		if(inbound.position() > 0) {
+			inbound.flip();
+			parse();
+			inbound.compact();
+		}
+		// a TLS layer may already hold more
+		onReadable();
+	}
+	@Override
+	public void onReadable() throws IOException {
+		// until empty, data held by a TLS layer won't wake the selector
+		while(true) {
+			final int read = io.read(inbound);
+			if(read < 0) throw new EOFException();
+			if(read == 0) break;
+			inbound.flip();
+			try {
+				parse();
+			} finally {
+				inbound.compact();
+			}
+		}
+	}
+	@Override
+	public void onWritable() throws IOException {
+		synchronized(queue) {
+			if(!queue.isEmpty()) {
+				final ByteBuffer[] buffers = queue.toArray(new ByteBuffer[queue.size()]);
+				queued -= NanoHTTPcommon.write(io, buffers);
+				while(!queue.isEmpty() && !queue.getFirst().hasRemaining())
+					queue.removeFirst();
+			}
+			if(!queue.isEmpty()) return;
+			if(!NanoHTTPtls.flush(io)) return;
+			selector.setWritable(key, false);
+			// close handshake finished
+			if(closeSent && closeReceived)
+				selector.close(key);
+		}
+	}
+	@Override
+	public void onClose() {
+		closed = true;
+		synchronized(queue) {
+			queue.clear();
+			queued = 0L;
+		}
+		try {
+			listener.onClose(this, closeCode, closeReason);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// incoming frames
+
+
+	private void parse() throws IOException {
+		// nothing more is read after a close frame
+		if(closeReceived) {
+			inbound.position(inbound.limit());
+			return;
+		}
+		while(!closed && !closeReceived) {
+			if(!inFrame && !readFrameHeader())
+				return;
+			// payload, unmasked as it arrives
+			final int len = (int) Math.min(Math.min(inbound.remaining(), frameRemaining), chunk.length);
+			if(len == 0 && frameRemaining > 0L) return;
+			inbound.get(chunk, 0, len);
+			for(int i=0; i<len; i++)
+				chunk[i] ^= mask[(maskPos++) & 3];
+			if(frameOpcode >= OP_CLOSE)
+				control.write(chunk, 0, len);
+			else
+				message.write(chunk, 0, len);
+			frameRemaining -= len;
+			if(frameRemaining > 0L) return;
+			inFrame = false;
+			onFrame();
+		}
+	}
+	/**
+	 * @return false if the header isn't complete yet.
+	 */
+	private boolean readFrameHeader() throws IOException {
+		if(inbound.remaining() < 2) return false;
+		final int start = inbound.position();
+		final int b0 = inbound.get() & 0xff;
+		final int b1 = inbound.get() & 0xff;
+		final int lenByte = b1 & 0x7f;
+		final int needed = (lenByte == 126 ? 2 : (lenByte == 127 ? 8 : 0)) + 4;
+		if(inbound.remaining() < needed) {
+			inbound.position(start);
+			return false;
+		}
+		long len = lenByte;
+		if(lenByte == 126)
+			len = inbound.getShort() & 0xffff;
+		else
+		if(lenByte == 127)
+			len = inbound.getLong();
+		inbound.get(mask);
+		maskPos = 0;
+		final int opcode = b0 & 0x0f;
+		final boolean fin = ((b0 & 0x80) != 0);
+		if((b0 & 0x70) != 0)
+			return fail(CLOSE_PROTOCOL_ERROR, "Reserved bits set");
+		if((b1 & 0x80) == 0)
+			return fail(CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+		if(len < 0L)
+			return fail(CLOSE_PROTOCOL_ERROR, "Invalid length");
+		switch(opcode) {
+		case OP_CLOSE:
+		case OP_PING:
+		case OP_PONG:
+			if(!fin || len > 125L)
+				return fail(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+			control.reset();
+			break;
+		case OP_CONTINUATION:
+			if(messageOpcode < 0)
+				return fail(CLOSE_PROTOCOL_ERROR, "Continuation without a message");
+			break;
+		case OP_TEXT:
+		case OP_BINARY:
+			if(messageOpcode >= 0)
+				return fail(CLOSE_PROTOCOL_ERROR, "Message interrupted");
+			messageOpcode = opcode;
+			break;
+		default:
+			return fail(CLOSE_PROTOCOL_ERROR, "Unknown opcode: "+Integer.toString(opcode));
+		}
+		if(opcode < OP_CLOSE && message.size() + len > maxMessageSize)
+			return fail(CLOSE_TOO_BIG, "Message too large");
+		frameOpcode = opcode;
+		frameFin = fin;
+		frameRemaining = len;
+		inFrame = true;
+		return true;
+	}
+	private void onFrame() throws IOException {
+		switch(frameOpcode) {
+		case OP_PING:
+			sendFrame(OP_PONG, control.toByteArray());
+			return;
+		case OP_PONG:
+			return;
+		case OP_CLOSE: {
+			final byte[] payload = control.toByteArray();
+			if(payload.length == 1) {
+				fail(CLOSE_PROTOCOL_ERROR, "Invalid close frame");
+				return;
+			}
+			if(payload.length >= 2) {
+				final int code = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+				if(!isValidCloseCode(code)) {
+					fail(CLOSE_PROTOCOL_ERROR, "Invalid close code: "+Integer.toString(code));
+					return;
+				}
+				final String reason;
+				try {
+					reason = decodeText(payload, 2, payload.length - 2);
+				} catch (CharacterCodingException e) {
+					fail(CLOSE_INVALID_DATA, "Invalid UTF-8");
+					return;
+				}
+				closeReceived = true;
+				closeCode = code;
+				closeReason = reason;
+			} else {
+				closeReceived = true;
+				closeCode = CLOSE_NO_STATUS;
+			}
+			if(closeSent) {
+				selector.close(key);
+			} else {
+				// echo the close, then close once it's written
+				close(closeCode == CLOSE_NO_STATUS ? CLOSE_NORMAL : closeCode, "");
+			}
+			return;
+		}
+		default:
+			break;
+		}
+		if(!frameFin) return;
+		// complete message
+		final int opcode = messageOpcode;
+		final byte[] data = message.toByteArray();
+		message.reset();
+		messageOpcode = -1;
+		if(closeReceived) return;
+		if(opcode == OP_TEXT) {
+			final String text;
+			try {
+				text = decodeText(data, 0, data.length);
+			} catch (CharacterCodingException e) {
+				fail(CLOSE_INVALID_DATA, "Invalid UTF-8");
+				return;
+			}
+			listener.onMessage(this, text);
+		} else {
+			listener.onMessage(this, data);
+		}
+	}
+	/**
+	 * Closes with an error, without waiting for the client to answer.
+	 */
+	private boolean fail(final int code, final String reason) {
+		closeCode = code;
+		closeReason = reason;
+		closeReceived = true;
+		inFrame = false;
+		inbound.position(inbound.limit());
+		if(closeSent)
+			selector.close(key);
+		else
+			close(code, reason);
+		return false;
+	}
+	/**
+	 * @return true if a client may send this code in a close frame.
+	 *   1005, 1006 and 1015 only stand in for a missing code, and the
+	 *   rest of 1000-2999 is reserved for the protocol.
+	 */
+	public static boolean isValidCloseCode(final int code) {
+		if(code >= 3000 && code <= 4999)
+			return true;
+		switch(code) {
+		case CLOSE_NORMAL:
+		case CLOSE_GOING_AWAY:
+		case CLOSE_PROTOCOL_ERROR:
+		case CLOSE_UNSUPPORTED:
+		case CLOSE_INVALID_DATA:
+		case CLOSE_POLICY:
+		case CLOSE_TOO_BIG:
+		case 1010: // mandatory extension
+		case CLOSE_INTERNAL_ERROR:
+		case 1012: // service restart
+		case 1013: // try again later
+		case 1014: // bad gateway
+			return true;
+		default:
+			return false;
+		}
+	}
+	private static String decodeText(final byte[] data, final int off, final int len) throws CharacterCodingException {
+		final CharsetDecoder decoder = Charset.forName(NanoHTTPserver.UTF8).newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+		final CharBuffer chars = decoder.decode(ByteBuffer.wrap(data, off, len));
+		return chars.toString();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// outgoing frames
+
+
+	/**
+	 * Sends a text message.
+	 * @return false if the message was dropped because the connection
+	 *   is closed or too far behind.
+	 */
+	public boolean send(final String text) {
+		try {
+			return sendFrame(OP_TEXT, text.getBytes(NanoHTTPserver.UTF8));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	/**
+	 * Sends a binary message.
+	 * @return false if the message was dropped because the connection
+	 *   is closed or too far behind.
+	 */
+	public boolean send(final byte[] data) {
+		return sendFrame(OP_BINARY, data);
+	}
+	public boolean ping(final byte[] data) {
+		return sendFrame(OP_PING, (data == null ? new byte[0] : data));
+	}
+	/**
+	 * Starts the close handshake. The connection is closed once the
+	 * client answers with its own close frame.
+	 */
+	public void close(final int code, final String reason) {
+		if(closeSent) return;
+		byte[] text;
+		try {
+			text = (reason == null ? new byte[0] : reason.getBytes(NanoHTTPserver.UTF8));
+		} catch (IOException e) {
+			text = new byte[0];
+		}
+		final int len = Math.min(text.length, 123);
+		final byte[] payload = new byte[len + 2];
+		payload[0] = (byte) (code >>> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(text, 0, payload, 2, len);
+		sendFrame(OP_CLOSE, payload);
+	}
+	@Override
+	public void close() {
+		close(CLOSE_GOING_AWAY, "");
+	}
+
+
+	/**
+	 * Writes a frame now if nothing is queued, otherwise adds it to the
+	 * queue for the selector to write.
+	 */
+	protected boolean sendFrame(final int opcode, final byte[] payload) {
+		final ByteBuffer frame = encodeFrame(opcode, payload);
+		final SelectionKey key = this.key;
+		synchronized(queue) {
+			if(closed || closeSent || key == null) return false;
+			if(opcode == OP_CLOSE)
+				closeSent = true;
+			// data frames are dropped once the queue is full
+			if(opcode < OP_CLOSE && queued + frame.remaining() > maxQueued) {
+				countDropped++;
+				if(closeOnOverflow)
+					selector.close(key);
+				return false;
+			}
+			// a TLS layer may hold back the end of the frame
+			boolean held = false;
+			try {
+				if(queue.isEmpty()) {
+					io.write(frame);
+					held = !NanoHTTPtls.flush(io);
+				}
+			} catch (IOException e) {
+				selector.close(key);
+				return false;
+			}
+			if(frame.hasRemaining()) {
+				queue.add(frame);
+				queued += frame.remaining();
+				selector.setWritable(key, true);
+			} else
+			if(held) {
+				selector.setWritable(key, true);
+			} else
+			if(opcode == OP_CLOSE && closeReceived) {
+				selector.close(key);
+			}
+		}
+		return true;
+	}
+	/**
+	 * Server frames aren't masked.
+	 */
+	public static ByteBuffer encodeFrame(final int opcode, final byte[] payload) {
+		final int len = payload.length;
+		final int head = (len < 126 ? 2 : (len <= 0xffff ? 4 : 10));
+		final ByteBuffer frame = ByteBuffer.allocate(head + len);
+		frame.put((byte) (0x80 | opcode));
+		if(len < 126) {
+			frame.put((byte) len);
+		} else
+		if(len <= 0xffff) {
+			frame.put((byte) 126);
+			frame.putShort((short) len);
+		} else {
+			frame.put((byte) 127);
+			frame.putLong(len);
+		}
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+
+
+	/**
+	 * @return outgoing bytes waiting for the client.
+	 */
+	public long getQueued() {
+		synchronized(queue) {
+			return queued;
+		}
+	}
+	public long totalDropped() {
+		return countDropped;
+	}
+	public boolean isOpen() {
+		return !closed && !closeSent;
+	}
+
+
+	private static final char[] BASE64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	protected static String encodeBase64(final byte[] data) {
+		final StringBuilder result = new StringBuilder(((data.length + 2) / 3) * 4);
+		for(int i=0; i<data.length; i+=3) {
+			final int b0 = data[i] & 0xff;
+			final int b1 = (i+1 < data.length ? data[i+1] & 0xff : 0);
+			final int b2 = (i+2 < data.length ? data[i+2] & 0xff : 0);
+			result.append(BASE64[b0 >>> 2]);
+			result.append(BASE64[((b0 & 0x03) << 4) | (b1 >>> 4)]);
+			result.append(i+1 < data.length ? BASE64[((b1 & 0x0f) << 2) | (b2 >>> 6)] : '=');
+			result.append(i+2 < data.length ? BASE64[b2 & 0x3f] : '=');
+		}
+		return result.toString();
+	}
+
+
+}
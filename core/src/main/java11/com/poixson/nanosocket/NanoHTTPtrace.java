@@ -0,0 +1,171 @@
+package com.poixson.nanosocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+
+/**
+ * Per-request phase tracing, emitted as JDK Flight Recorder events.
+ * <p>
+ * Java 11+ version of this class, loaded from the multi-release jar.
+ * Both versions must keep the same public fields and methods.
+ * </p>
+ * Each event type is only created while a recording has it enabled, so
+ * tracing costs nothing unless a recording is running.
+ */
+public final class NanoHTTPtrace {
+
+	public static final long DEFAULT_THRESHOLD = 20L; // ms
+
+	private static volatile long threshold = DEFAULT_THRESHOLD * 1000000L;
+
+	// used to check if any recording has each event enabled
+	private static final httpAcceptEvent  ACCEPT_PROBE  = new httpAcceptEvent();
+	private static final httpRequestEvent REQUEST_PROBE = new httpRequestEvent();
+	private static final httpHandlerEvent HANDLER_PROBE = new httpHandlerEvent();
+
+
+	private NanoHTTPtrace() {
+	}
+
+
+	/**
+	 * @return true if a recording is active for any of the events.
+	 */
+	public static boolean isEnabled() {
+		return isAcceptEnabled() || isRequestEnabled() || isHandlerEnabled();
+	}
+	public static boolean isAcceptEnabled() {
+		return ACCEPT_PROBE.isEnabled();
+	}
+	public static boolean isRequestEnabled() {
+		return REQUEST_PROBE.isEnabled();
+	}
+	public static boolean isHandlerEnabled() {
+		return HANDLER_PROBE.isEnabled();
+	}
+
+
+	/**
+	 * Only requests and handler calls taking at least this long are recorded.
+	 * @param ms threshold in milliseconds.
+	 */
+	public static void setThreshold(final long ms) {
+		threshold = (ms < 0L ? 0L : ms) * 1000000L;
+	}
+	public static long getThreshold() {
+		return threshold / 1000000L;
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+
+
+	/**
+	 * Time taken to set up an accepted connection.
+	 */
+	@Name("com.poixson.nanosocket.Accept")
+	@Label("HTTP Accept")
+	@Category({ "NanoHTTPlib" })
+	@StackTrace(false)
+	public static class httpAcceptEvent extends Event {
+		@Label("Remote Address")
+		public String remote;
+		@Label("Connection")
+		public int connection;
+		private transient long startNanos;
+		public void start() {
+			this.startNanos = System.nanoTime();
+			begin();
+		}
+		public void finish() {
+			end();
+			if(System.nanoTime() - startNanos >= threshold && shouldCommit())
+				commit();
+		}
+	}
+
+
+	/**
+	 * Phases of a single request. The event spans handler dispatch and
+	 * sending, header parsing happens before it starts.
+	 */
+	@Name("com.poixson.nanosocket.Request")
+	@Label("HTTP Request")
+	@Category({ "NanoHTTPlib" })
+	@Description("Header parsing, handler dispatch and send times of a request")
+	@StackTrace(false)
+	public static class httpRequestEvent extends Event {
+		@Label("Method")
+		public String method;
+		@Label("URI")
+		public String uri;
+		@Label("Status")
+		public int status;
+		@Label("Connection")
+		public int connection;
+		@Label("Request")
+		public int request;
+		@Label("Parse Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long parseTime;
+		@Label("Dispatch Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long dispatchTime;
+		@Label("Send Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long sendTime;
+		private transient long startNanos;
+		private transient long dispatchedNanos;
+		public void start() {
+			this.startNanos = System.nanoTime();
+			begin();
+		}
+		public void dispatched() {
+			this.dispatchedNanos = System.nanoTime();
+			this.dispatchTime = dispatchedNanos - startNanos;
+		}
+		public void finish() {
+			end();
+			final long now = System.nanoTime();
+			if(dispatchedNanos > 0L)
+				this.sendTime = now - dispatchedNanos;
+			if(parseTime + (now - startNanos) >= threshold && shouldCommit())
+				commit();
+		}
+	}
+
+
+	/**
+	 * A single httpIO.serve() call.
+	 */
+	@Name("com.poixson.nanosocket.Handler")
+	@Label("HTTP Handler")
+	@Category({ "NanoHTTPlib" })
+	@StackTrace(false)
+	public static class httpHandlerEvent extends Event {
+		@Label("Handler")
+		public String handler;
+		@Label("URI")
+		public String uri;
+		@Label("Handled")
+		public boolean handled;
+		private transient long startNanos;
+		public void start() {
+			this.startNanos = System.nanoTime();
+			begin();
+		}
+		public void finish() {
+			end();
+			if(System.nanoTime() - startNanos >= threshold && shouldCommit())
+				commit();
+		}
+	}
+
+
+}
@@ -0,0 +1,87 @@
+package com.poixson.nanosocket;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+
+/**
+ * Unix domain socket listener, for traffic from processes on the same host.
+ * <p>
+ * Java 16+ version of this class, loaded from the multi-release jar.
+ * Both versions must keep the same public methods.
+ * </p>
+ */
+public final class NanoHTTPunix {
+
+
+	private NanoHTTPunix() {
+	}
+
+
+	/**
+	 * @return true if this JDK can listen on Unix domain sockets.
+	 */
+	public static boolean isSupported() {
+		return true;
+	}
+
+
+	/**
+	 * Binds a blocking listener to a socket file. A socket file left
+	 * behind by a process which is gone is replaced, but one which
+	 * still accepts connections is not.
+	 * @param path socket file to create.
+	 * @param backlog pending connection limit.
+	 */
+	public static ServerSocketChannel bind(final String path, final int backlog) throws IOException {
+		final UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+		removeStale(address);
+		final ServerSocketChannel listen = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			listen.bind(address, backlog);
+		} catch (IOException e) {
+			NanoHTTPcommon.safeClose(listen);
+			throw e;
+		}
+		return listen;
+	}
+	private static void removeStale(final UnixDomainSocketAddress address) throws IOException {
+		final Path file = address.getPath();
+		if(!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) return;
+		// never remove something which isn't a socket
+		if(Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)
+		|| Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)
+		|| Files.isSymbolicLink(file))
+			throw new BindException("Not a socket file: "+file);
+		final SocketChannel probe;
+		try {
+			probe = SocketChannel.open(address);
+		} catch (IOException e) {
+			// nothing listening
+			Files.deleteIfExists(file);
+			return;
+		}
+		NanoHTTPcommon.safeClose(probe);
+		throw new BindException("Socket is already in use: "+file);
+	}
+
+
+	/**
+	 * Removes the socket file once the listener is closed.
+	 */
+	public static void unlink(final String path) {
+		if(path == null) return;
+		try {
+			Files.deleteIfExists(Path.of(path));
+		} catch (IOException ignore) {}
+	}
+
+
+}
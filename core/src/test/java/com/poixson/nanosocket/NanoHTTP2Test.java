@@ -0,0 +1,562 @@
+package com.poixson.nanosocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poixson.nanosocket.NanoHTTP2.http2Exception;
+import com.poixson.nanosocket.NanoHTTP2.http2Hpack;
+import com.poixson.nanosocket.NanoHTTPcommon.httpBytesBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMethod;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * HPACK against the examples in RFC 7541 Appendix C, and HTTP/2
+ * connections to a loopback server.
+ */
+public class NanoHTTP2Test {
+
+	// larger than the initial flow control window
+	private static final int BODY_SIZE = 100000;
+
+	private NanoHTTPserver server = null;
+	private int port = 0;
+	private Socket socket = null;
+
+
+	@Before
+	public void start() throws IOException, InterruptedException {
+		final ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		server = new NanoHTTPserver(port);
+		server.registerHandler(new httpIO() {
+			@Override
+			public httpServerResponse serve(final httpServerRequest request) {
+				if(!"/echo".equals(request.getUri())) return null;
+				if(!httpMethod.POST.equals(request.getMethod())) {
+					return new httpServerResponse(request, httpStatus.OK, httpMime.PLAINTEXT,
+						new httpBytesBody("hello"));
+				}
+				try {
+					final byte[] data = readAll(request.getBody());
+					return new httpServerResponse(request, httpStatus.OK, httpMime.PLAINTEXT,
+						new httpBytesBody(data));
+				} catch (IOException e) {
+					e.printStackTrace();
+					return null;
+				}
+			}
+		});
+		server.start();
+		// listener is bound on its own thread
+		for(int i = 0; i < 100 && !server.isRunning(); i++)
+			Thread.sleep(50L);
+		assertTrue("Server didn't start", server.isRunning());
+	}
+	@After
+	public void stop() throws IOException {
+		if(socket != null)
+			socket.close();
+		if(server != null)
+			server.stop();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// RFC 7541 Appendix C
+
+
+	// C.1 integer representation
+	@Test
+	public void testIntegerEncoding() {
+		assertArrayEquals(hex("0a"),     writeInteger(5, 10));
+		assertArrayEquals(hex("1f9a0a"), writeInteger(5, 1337));
+		assertArrayEquals(hex("2a"),     writeInteger(8, 42));
+	}
+	@Test
+	public void testIntegerDecoding() throws http2Exception {
+		// table size updates carry a 5 bit prefix integer
+		assertFields(new String[][] { { ":method", "GET" } }, decode(new http2Hpack(), "3f9a0a 82"));
+		assertFields(new String[][] {}, decode(new http2Hpack(), "3fe11f"));
+		try {
+			decode(new http2Hpack(), "3fe21f");
+			throw new AssertionError("Table size of 4097 accepted");
+		} catch (http2Exception e) {
+			assertEquals(NanoHTTP2.COMPRESSION_ERROR, e.getErrorCode());
+		}
+	}
+
+
+	// C.2 header field representation
+	@Test
+	public void testLiteralWithIndexing() throws http2Exception {
+		final http2Hpack hpack = new http2Hpack();
+		final String[][] expected = new String[][] { { "custom-key", "custom-header" } };
+		assertFields(expected, decode(hpack, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+		// now the first dynamic table entry
+		assertFields(expected, decode(hpack, "be"));
+	}
+	@Test
+	public void testLiteralWithoutIndexing() throws http2Exception {
+		final http2Hpack hpack = new http2Hpack();
+		assertFields(new String[][] { { ":path", "/sample/path" } },
+			decode(hpack, "040c 2f73 616d 706c 652f 7061 7468"));
+		assertNotIndexed(hpack);
+	}
+	@Test
+	public void testLiteralNeverIndexed() throws http2Exception {
+		final http2Hpack hpack = new http2Hpack();
+		assertFields(new String[][] { { "password", "secret" } },
+			decode(hpack, "1008 7061 7373 776f 7264 0673 6563 7265 74"));
+		assertNotIndexed(hpack);
+	}
+	@Test
+	public void testIndexed() throws http2Exception {
+		assertFields(new String[][] { { ":method", "GET" } }, decode(new http2Hpack(), "82"));
+	}
+
+
+	// C.3 requests without Huffman coding
+	@Test
+	public void testRequests() throws http2Exception {
+		final http2Hpack hpack = new http2Hpack();
+		assertFields(REQUEST_1, decode(hpack, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+		assertFields(REQUEST_2, decode(hpack, "8286 84be 5808 6e6f 2d63 6163 6865"));
+		assertFields(REQUEST_3, decode(hpack,
+			"8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+	}
+	// C.4 requests with Huffman coding
+	@Test
+	public void testRequestsHuffman() throws http2Exception {
+		final http2Hpack hpack = new http2Hpack();
+		assertFields(REQUEST_1, decode(hpack, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+		assertFields(REQUEST_2, decode(hpack, "8286 84be 5886 a8eb 1064 9cbf"));
+		assertFields(REQUEST_3, decode(hpack,
+			"8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+	}
+	// C.6 responses with Huffman coding, evicting from a 256 byte table
+	@Test
+	public void testResponsesHuffman() throws http2Exception {
+		final http2Hpack hpack = new http2Hpack();
+		// the examples assume a table size of 256, set with an update first
+		assertFields(new String[][] {
+				{ ":status",       "302"                           },
+				{ "cache-control", "private"                       },
+				{ "date",          "Mon, 21 Oct 2013 20:13:21 GMT" },
+				{ "location",      "https://www.example.com"       }
+			}, decode(hpack,
+			"3fe101"+
+			"4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6"+
+			"2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"));
+		assertFields(new String[][] {
+				{ ":status",       "307"                           },
+				{ "cache-control", "private"                       },
+				{ "date",          "Mon, 21 Oct 2013 20:13:21 GMT" },
+				{ "location",      "https://www.example.com"       }
+			}, decode(hpack, "4883 640e ffc1 c0bf"));
+		assertFields(new String[][] {
+				{ ":status",          "200"                           },
+				{ "cache-control",    "private"                       },
+				{ "date",             "Mon, 21 Oct 2013 20:13:22 GMT" },
+				{ "location",         "https://www.example.com"       },
+				{ "content-encoding", "gzip"                          },
+				{ "set-cookie",       "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1" }
+			}, decode(hpack,
+			"88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab"+
+			"77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f"+
+			"9587 3160 65c0 03ed 4ee5 b106 3d50 07"));
+	}
+
+
+	@Test
+	public void testEncode() throws http2Exception {
+		// static table matches, then Huffman coded literals without indexing
+		final List<String[]> fields = fields(REQUEST_1);
+		fields.add(new String[] { "cache-control", "no-cache" });
+		fields.add(new String[] { "custom-key", "custom-value" });
+		final byte[] block = http2Hpack.encode(fields);
+		assertArrayEquals(hex(
+			"8286 8401 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"+
+			"0f09 86a8 eb10 649c bf"+
+			"0088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"
+		), block);
+		assertFields(fields.toArray(new String[0][]), new http2Hpack().decode(block, block.length));
+	}
+
+
+	private static final String[][] REQUEST_1 = new String[][] {
+		{ ":method",    "GET"             },
+		{ ":scheme",    "http"            },
+		{ ":path",      "/"               },
+		{ ":authority", "www.example.com" }
+	};
+	private static final String[][] REQUEST_2 = new String[][] {
+		{ ":method",       "GET"             },
+		{ ":scheme",       "http"            },
+		{ ":path",         "/"               },
+		{ ":authority",    "www.example.com" },
+		{ "cache-control", "no-cache"        }
+	};
+	private static final String[][] REQUEST_3 = new String[][] {
+		{ ":method",    "GET"             },
+		{ ":scheme",    "https"           },
+		{ ":path",      "/index.html"     },
+		{ ":authority", "www.example.com" },
+		{ "custom-key", "custom-value"    }
+	};
+
+
+	// ------------------------------------------------------------------------------- //
+	// loopback
+
+
+	@Test
+	public void testPriorKnowledge() throws IOException {
+		final http2Client client = connect();
+		client.writePreface();
+		final byte[] body = randomBody();
+		final http2Response response = client.request(1, "POST", "/echo", body);
+		assertEquals(200, response.status);
+		assertArrayEquals(body, response.body);
+	}
+
+
+	@Test
+	public void testUpgrade() throws IOException {
+		final http2Client client = connect();
+		// SETTINGS_INITIAL_WINDOW_SIZE = 65535
+		client.out.write(NanoHTTPwarmup.toBytes(
+			"GET /echo HTTP/1.1\r\n"+
+			"Host: localhost\r\n"+
+			"Connection: Upgrade, HTTP2-Settings\r\n"+
+			"Upgrade: h2c\r\n"+
+			"HTTP2-Settings: AAQAAP__\r\n\r\n"
+		));
+		client.out.flush();
+		final String head = readHead(client.in);
+		assertTrue(head, head.startsWith("HTTP/1.1 101"));
+		client.writePreface();
+		// the upgraded request is answered on stream 1
+		final http2Response upgraded = client.readResponse(1);
+		assertEquals(200, upgraded.status);
+		assertEquals("hello", new String(upgraded.body, "UTF-8"));
+		// then the connection carries further streams
+		final byte[] body = randomBody();
+		final http2Response response = client.request(3, "POST", "/echo", body);
+		assertEquals(200, response.status);
+		assertArrayEquals(body, response.body);
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// client
+
+
+	private http2Client connect() throws IOException {
+		socket = connect(port);
+		socket.setSoTimeout(5000);
+		socket.setTcpNoDelay(true);
+		return new http2Client(socket);
+	}
+	/**
+	 * The server reports running just before the listener is bound.
+	 */
+	private static Socket connect(final int port) throws IOException {
+		for(int i = 0; ; i++) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (ConnectException e) {
+				if(i >= 100) throw e;
+				try {
+					Thread.sleep(50L);
+				} catch (InterruptedException ignore) {
+					throw e;
+				}
+			}
+		}
+	}
+
+
+	private static class http2Frame {
+		public final int type;
+		public final int flags;
+		public final int streamId;
+		public final byte[] payload;
+		public http2Frame(final int type, final int flags, final int streamId, final byte[] payload) {
+			this.type     = type;
+			this.flags    = flags;
+			this.streamId = streamId;
+			this.payload  = payload;
+		}
+	}
+	private static class http2Response {
+		public int status = 0;
+		public byte[] body = null;
+	}
+
+
+	/**
+	 * Minimal client, one stream at a time.
+	 */
+	private static class http2Client {
+
+		public final DataInputStream in;
+		public final OutputStream out;
+		private final http2Hpack decoder = new http2Hpack();
+
+		// send windows
+		private long connectionWindow = NanoHTTP2.DEFAULT_WINDOW_SIZE;
+		private long streamWindow = 0L;
+		private int streamId = 0;
+
+
+		public http2Client(final Socket socket) throws IOException {
+			this.in  = new DataInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+		}
+
+
+		public void writePreface() throws IOException {
+			out.write(NanoHTTP2.PREFACE);
+			writeFrame(NanoHTTP2.FRAME_SETTINGS, 0, 0, new byte[0], 0, 0);
+		}
+
+
+		public http2Response request(final int streamId, final String method,
+				final String path, final byte[] body) throws IOException {
+			this.streamId = streamId;
+			this.streamWindow = NanoHTTP2.DEFAULT_WINDOW_SIZE;
+			final List<String[]> fields = new ArrayList<String[]>();
+			fields.add(new String[] { ":method",    method      });
+			fields.add(new String[] { ":scheme",    "http"      });
+			fields.add(new String[] { ":path",      path        });
+			fields.add(new String[] { ":authority", "localhost" });
+			if(body != null)
+				fields.add(new String[] { "content-length", Integer.toString(body.length) });
+			final byte[] block = http2Hpack.encode(fields);
+			writeFrame(NanoHTTP2.FRAME_HEADERS,
+				NanoHTTP2.FLAG_END_HEADERS | (body == null ? NanoHTTP2.FLAG_END_STREAM : 0),
+				streamId, block, 0, block.length);
+			if(body != null) {
+				int off = 0;
+				while(off < body.length) {
+					// wait for the server to open the windows again
+					final long window = Math.min(connectionWindow, streamWindow);
+					if(window <= 0L) {
+						final http2Frame frame = readFrame();
+						assertTrue("Response before the request body was sent",
+							frame.type != NanoHTTP2.FRAME_HEADERS && frame.type != NanoHTTP2.FRAME_DATA);
+						continue;
+					}
+					final int len = (int) Math.min(Math.min(window, NanoHTTP2.DEFAULT_FRAME_SIZE), body.length - off);
+					connectionWindow -= len;
+					streamWindow -= len;
+					writeFrame(NanoHTTP2.FRAME_DATA,
+						(off + len >= body.length ? NanoHTTP2.FLAG_END_STREAM : 0),
+						streamId, body, off, len);
+					off += len;
+				}
+			}
+			return readResponse(streamId);
+		}
+
+
+		public http2Response readResponse(final int streamId) throws IOException {
+			final http2Response response = new http2Response();
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			while(true) {
+				final http2Frame frame = readFrame();
+				if(frame.streamId != streamId) continue;
+				switch(frame.type) {
+				case NanoHTTP2.FRAME_HEADERS:
+					for(final String[] field : decoder.decode(frame.payload, frame.payload.length)) {
+						if(":status".equals(field[0]))
+							response.status = Integer.parseInt(field[1]);
+					}
+					break;
+				case NanoHTTP2.FRAME_DATA:
+					body.write(frame.payload, 0, frame.payload.length);
+					if(frame.payload.length > 0) {
+						writeWindowUpdate(0, frame.payload.length);
+						writeWindowUpdate(streamId, frame.payload.length);
+					}
+					break;
+				default:
+					break;
+				}
+				if((frame.flags & NanoHTTP2.FLAG_END_STREAM) != 0) {
+					response.body = body.toByteArray();
+					return response;
+				}
+			}
+		}
+
+
+		/**
+		 * Reads the next frame, handling connection frames along the way.
+		 */
+		public http2Frame readFrame() throws IOException {
+			final byte[] head = new byte[9];
+			in.readFully(head);
+			final int length = ((head[0] & 0xff) << 16) | ((head[1] & 0xff) << 8) | (head[2] & 0xff);
+			final int streamId = readInt(head, 5) & 0x7fffffff;
+			final byte[] payload = new byte[length];
+			in.readFully(payload);
+			final http2Frame frame = new http2Frame(head[3] & 0xff, head[4] & 0xff, streamId, payload);
+			switch(frame.type) {
+			case NanoHTTP2.FRAME_SETTINGS:
+				if((frame.flags & NanoHTTP2.FLAG_ACK) == 0)
+					writeFrame(NanoHTTP2.FRAME_SETTINGS, NanoHTTP2.FLAG_ACK, 0, new byte[0], 0, 0);
+				break;
+			case NanoHTTP2.FRAME_WINDOW_UPDATE:
+				final int increment = readInt(payload, 0) & 0x7fffffff;
+				if(streamId == 0)
+					connectionWindow += increment;
+				else
+				if(streamId == this.streamId)
+					streamWindow += increment;
+				break;
+			case NanoHTTP2.FRAME_RST_STREAM:
+			case NanoHTTP2.FRAME_GOAWAY:
+				throw new AssertionError("Server sent frame type "+Integer.toString(frame.type)
+					+" with error "+Integer.toString(readInt(payload, (frame.type == NanoHTTP2.FRAME_GOAWAY ? 4 : 0))));
+			default:
+				break;
+			}
+			return frame;
+		}
+
+
+		private void writeFrame(final int type, final int flags, final int streamId,
+				final byte[] payload, final int off, final int len) throws IOException {
+			final byte[] head = new byte[9];
+			head[0] = (byte) (len >>> 16);
+			head[1] = (byte) (len >>> 8);
+			head[2] = (byte) len;
+			head[3] = (byte) type;
+			head[4] = (byte) flags;
+			writeInt(head, 5, streamId);
+			out.write(head);
+			out.write(payload, off, len);
+			out.flush();
+		}
+		private void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+			final byte[] payload = new byte[4];
+			writeInt(payload, 0, increment);
+			writeFrame(NanoHTTP2.FRAME_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+		}
+
+
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// utils
+
+
+	private static byte[] writeInteger(final int prefix, final int value) {
+		final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		http2Hpack.writeInteger(block, 0x00, prefix, value);
+		return block.toByteArray();
+	}
+	private static List<String[]> decode(final http2Hpack hpack, final String block) throws http2Exception {
+		final byte[] bytes = hex(block);
+		return hpack.decode(bytes, bytes.length);
+	}
+	/**
+	 * Field decoded with a fresh decoder isn't found in the dynamic table.
+	 */
+	private static void assertNotIndexed(final http2Hpack hpack) {
+		try {
+			decode(hpack, "be");
+			throw new AssertionError("Field was added to the dynamic table");
+		} catch (http2Exception e) {
+			assertEquals(NanoHTTP2.COMPRESSION_ERROR, e.getErrorCode());
+		}
+	}
+	private static void assertFields(final String[][] expected, final List<String[]> actual) {
+		assertEquals(expected.length, actual.size());
+		for(int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i][0], actual.get(i)[0]);
+			assertEquals(expected[i][1], actual.get(i)[1]);
+		}
+	}
+	private static List<String[]> fields(final String[][] fields) {
+		final List<String[]> result = new ArrayList<String[]>();
+		for(final String[] field : fields)
+			result.add(field);
+		return result;
+	}
+
+
+	private static byte[] hex(final String str) {
+		final String digits = str.replace(" ", "");
+		final byte[] result = new byte[digits.length() / 2];
+		for(int i = 0; i < result.length; i++)
+			result[i] = (byte) Integer.parseInt(digits.substring(i * 2, (i * 2) + 2), 16);
+		return result;
+	}
+	private static byte[] randomBody() {
+		final byte[] body = new byte[BODY_SIZE];
+		new Random(42L).nextBytes(body);
+		return body;
+	}
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		final byte[] buff = new byte[8192];
+		while(true) {
+			final int read = in.read(buff);
+			if(read < 0) break;
+			result.write(buff, 0, read);
+		}
+		return result.toByteArray();
+	}
+	private static String readHead(final InputStream in) throws IOException {
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int matched = 0;
+		while(matched < 4) {
+			final int b = in.read();
+			if(b < 0) throw new EOFException();
+			head.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0));
+		}
+		return head.toString("UTF-8");
+	}
+	private static int readInt(final byte[] buff, final int off) {
+		return ((buff[off]   & 0xff) << 24)
+			| ((buff[off+1] & 0xff) << 16)
+			| ((buff[off+2] & 0xff) << 8)
+			|  (buff[off+3] & 0xff);
+	}
+	private static void writeInt(final byte[] buff, final int off, final int value) {
+		buff[off]   = (byte) (value >>> 24);
+		buff[off+1] = (byte) (value >>> 16);
+		buff[off+2] = (byte) (value >>> 8);
+		buff[off+3] = (byte) value;
+	}
+
+
+}
@@ -0,0 +1,278 @@
+package com.poixson.nanosocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Requests forwarded through the proxy to an in-process upstream,
+ * which answers with canned responses and records what it received.
+ */
+public class NanoHTTPproxyTest {
+
+	private static final String HOP_RESPONSE =
+		"HTTP/1.1 200 OK\r\n"+
+		"Connection: keep-alive, X-Upstream-Hop\r\n"+
+		"Keep-Alive: timeout=77\r\n"+
+		"X-Upstream-Hop: secret\r\n"+
+		"X-Upstream-Kept: yes\r\n"+
+		"Content-Type: text/plain\r\n"+
+		"Content-Length: 5\r\n"+
+		"\r\n"+
+		"hello";
+	private static final String HEAD_RESPONSE =
+		"HTTP/1.1 200 OK\r\n"+
+		"Content-Type: text/plain\r\n"+
+		"Content-Length: 1234\r\n"+
+		"\r\n";
+	private static final String NOT_MODIFIED_RESPONSE =
+		"HTTP/1.1 304 Not Modified\r\n"+
+		"ETag: \"abc\"\r\n"+
+		"Content-Length: 1234\r\n"+
+		"\r\n";
+
+	private ServerSocket upstream = null;
+	private Thread upstreamThread = null;
+	// request heads received by the upstream
+	private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+	private NanoHTTPserver server = null;
+	private NanoHTTPproxy proxy = null;
+	private int port = 0;
+	private Socket socket = null;
+
+
+	@Before
+	public void start() throws IOException, InterruptedException {
+		upstream = new ServerSocket(0);
+		upstreamThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runUpstream();
+			}
+		}, "upstream");
+		upstreamThread.setDaemon(true);
+		upstreamThread.start();
+		final ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		proxy = new NanoHTTPproxy();
+		proxy.addUpstream("127.0.0.1", upstream.getLocalPort());
+		server = new NanoHTTPserver(port);
+		server.registerHandler(proxy);
+		server.start();
+		// listener is bound on its own thread
+		for(int i = 0; i < 100 && !server.isRunning(); i++)
+			Thread.sleep(50L);
+		assertTrue("Server didn't start", server.isRunning());
+		socket = connect(port);
+		socket.setSoTimeout(5000);
+	}
+	@After
+	public void stop() throws IOException {
+		if(socket != null)
+			socket.close();
+		if(server != null)
+			server.stop();
+		if(proxy != null)
+			proxy.close();
+		if(upstream != null)
+			upstream.close();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// tests
+
+
+	@Test
+	public void testRequestHopHeaders() throws IOException, InterruptedException {
+		final String response = exchange(
+			"GET /hop HTTP/1.1\r\n"+
+			"Host: localhost\r\n"+
+			"Connection: keep-alive, X-Client-Hop\r\n"+
+			"Keep-Alive: 300\r\n"+
+			"X-Client-Hop: secret\r\n"+
+			"TE: trailers\r\n"+
+			"Proxy-Authorization: Basic c2VjcmV0\r\n"+
+			"X-Client-Kept: yes\r\n"+
+			"\r\n",
+			true
+		);
+		assertTrue(response, response.startsWith("HTTP/1.1 200"));
+		final String head = received.poll(5L, TimeUnit.SECONDS);
+		assertTrue("Upstream got no request", head != null);
+		assertTrue(head, head.startsWith("GET /hop HTTP/1.1\r\n"));
+		assertEquals("yes", getHeader(head, "X-Client-Kept"));
+		assertEquals(null, getHeader(head, "X-Client-Hop"));
+		assertEquals(null, getHeader(head, "Keep-Alive"));
+		assertEquals(null, getHeader(head, "TE"));
+		assertEquals(null, getHeader(head, "Proxy-Authorization"));
+	}
+
+
+	@Test
+	public void testResponseHopHeaders() throws IOException {
+		final String response = exchange("GET /hop HTTP/1.1\r\nHost: localhost\r\n\r\n", true);
+		assertTrue(response, response.startsWith("HTTP/1.1 200"));
+		assertTrue(response, response.endsWith("\r\n\r\nhello"));
+		assertEquals("yes", getHeader(response, "X-Upstream-Kept"));
+		assertEquals(null, getHeader(response, "X-Upstream-Hop"));
+		final String keepAlive = getHeader(response, "Keep-Alive");
+		assertTrue(keepAlive, keepAlive == null || !keepAlive.contains("77"));
+	}
+
+
+	@Test
+	public void testHeadLength() throws IOException {
+		final String response = exchange("HEAD /head HTTP/1.1\r\nHost: localhost\r\n\r\n", false);
+		assertTrue(response, response.startsWith("HTTP/1.1 200"));
+		assertEquals("1234", getHeader(response, "Content-Length"));
+		// nothing was sent after the head, the next response follows
+		assertTrue(exchange("GET /hop HTTP/1.1\r\nHost: localhost\r\n\r\n", true).endsWith("hello"));
+	}
+
+
+	@Test
+	public void testNotModifiedLength() throws IOException {
+		final String response = exchange(
+			"GET /304 HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: \"abc\"\r\n\r\n",
+			false
+		);
+		assertTrue(response, response.startsWith("HTTP/1.1 304"));
+		assertEquals("1234", getHeader(response, "Content-Length"));
+		assertTrue(exchange("GET /hop HTTP/1.1\r\nHost: localhost\r\n\r\n", true).endsWith("hello"));
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// upstream
+
+
+	/**
+	 * Answers requests on each connection until it's closed.
+	 */
+	private void runUpstream() {
+		while(!upstream.isClosed()) {
+			final Socket accept;
+			try {
+				accept = upstream.accept();
+			} catch (IOException e) {
+				return;
+			}
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final InputStream in = accept.getInputStream();
+						final OutputStream out = accept.getOutputStream();
+						while(true) {
+							final String head = readHead(in);
+							received.add(head);
+							final String response;
+							if(head.startsWith("HEAD ")) response = HEAD_RESPONSE; else
+							if(head.contains(" /304 "))   response = NOT_MODIFIED_RESPONSE;
+							else                          response = HOP_RESPONSE;
+							out.write(NanoHTTPwarmup.toBytes(response));
+							out.flush();
+						}
+					} catch (IOException ignore) {
+					} finally {
+						NanoHTTPcommon.safeClose(accept);
+					}
+				}
+			}, "upstream-connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// client
+
+
+	/**
+	 * Sends a request through the proxy.
+	 * @param hasBody read the body given by Content-Length.
+	 * @return response head, and body if read.
+	 */
+	private String exchange(final String request, final boolean hasBody) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		final InputStream in = socket.getInputStream();
+		out.write(NanoHTTPwarmup.toBytes(request));
+		out.flush();
+		final String head = readHead(in);
+		if(!hasBody) return head;
+		final String length = getHeader(head, "Content-Length");
+		final int len = (length == null ? 0 : Integer.parseInt(length));
+		final byte[] body = new byte[len];
+		int count = 0;
+		while(count < len) {
+			final int read = in.read(body, count, len - count);
+			if(read < 0) throw new EOFException();
+			count += read;
+		}
+		return head+new String(body, "UTF-8");
+	}
+	/**
+	 * The server reports running just before the listener is bound.
+	 */
+	private static Socket connect(final int port) throws IOException {
+		for(int i = 0; ; i++) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (ConnectException e) {
+				if(i >= 100) throw e;
+				try {
+					Thread.sleep(50L);
+				} catch (InterruptedException ignore) {
+					throw e;
+				}
+			}
+		}
+	}
+
+
+	private static String readHead(final InputStream in) throws IOException {
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int matched = 0;
+		while(matched < 4) {
+			final int b = in.read();
+			if(b < 0) throw new EOFException();
+			head.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0));
+		}
+		return head.toString("UTF-8");
+	}
+	/**
+	 * @return value of a header in a message head, or null if missing.
+	 */
+	private static String getHeader(final String head, final String name) {
+		final String prefix = name.toLowerCase(Locale.US)+":";
+		for(final String line : head.split("\r\n")) {
+			if(line.toLowerCase(Locale.US).startsWith(prefix))
+				return line.substring(prefix.length()).trim();
+		}
+		return null;
+	}
+
+
+}
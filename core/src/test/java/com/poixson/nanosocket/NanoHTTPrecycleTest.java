@@ -0,0 +1,157 @@
+package com.poixson.nanosocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBytesBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * Keep-alive requests served with recycled requests and responses.
+ */
+public class NanoHTTPrecycleTest {
+
+	private static final int WARMUP   = 500;
+	private static final int REQUESTS = 1000;
+	// allowance for the odd allocation outside the request path
+	private static final long MAX_BYTES_PER_REQUEST = 16L;
+
+	private static final byte[] REQUEST = NanoHTTPwarmup.toBytes(
+		"GET /hello?name=test HTTP/1.1\r\n"+
+		"Host: localhost\r\n"+
+		"User-Agent: NanoHTTPrecycleTest\r\n"+
+		"Accept: */*\r\n\r\n"
+	);
+
+	private NanoHTTPserver server = null;
+	private int port = 0;
+
+
+	@Before
+	public void start() throws IOException, InterruptedException {
+		final ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		final httpBytesBody body = new httpBytesBody("hello test");
+		server = new NanoHTTPserver(port);
+		server.setRecycleRequests(true);
+		server.registerHandler(new httpIO() {
+			@Override
+			public httpServerResponse serve(final httpServerRequest request) {
+				if(!"/hello".equals(request.getUri())) return null;
+				final httpServerResponse response = request.getResponse();
+				response.setMime(httpMime.PLAINTEXT);
+				response.setBody(body);
+				return response;
+			}
+		});
+		server.start();
+		// listener is bound on its own thread
+		for(int i = 0; i < 100 && !server.isRunning(); i++)
+			Thread.sleep(50L);
+		assertTrue("Server didn't start", server.isRunning());
+	}
+	@After
+	public void stop() {
+		if(server != null)
+			server.stop();
+	}
+
+
+	@Test
+	public void testSimpleGetDoesNotAllocate() throws IOException {
+		final java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		final Socket socket = new Socket("127.0.0.1", port);
+		try {
+			socket.setTcpNoDelay(true);
+			final OutputStream out = socket.getOutputStream();
+			final InputStream in = socket.getInputStream();
+			for(int i = 0; i < WARMUP; i++)
+				assertEquals("hello test", exchange(out, in));
+			final long before = workerBytes(threads);
+			for(int i = 0; i < REQUESTS; i++)
+				exchange(out, in);
+			final long allocated = workerBytes(threads) - before;
+			assertTrue(
+				"Allocated "+Long.toString(allocated / REQUESTS)+" bytes per request",
+				allocated <= MAX_BYTES_PER_REQUEST * REQUESTS
+			);
+		} finally {
+			socket.close();
+		}
+	}
+
+
+	/**
+	 * Sends the request and reads one response.
+	 * @return response body.
+	 */
+	private static String exchange(final OutputStream out, final InputStream in) throws IOException {
+		out.write(REQUEST);
+		out.flush();
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		while(!endsWithBlankLine(head)) {
+			final int b = in.read();
+			if(b < 0) throw new EOFException();
+			head.write(b);
+		}
+		int length = 0;
+		for(final String line : head.toString("UTF-8").split("\r\n")) {
+			if(line.toLowerCase().startsWith("content-length:"))
+				length = Integer.parseInt(line.substring(15).trim());
+		}
+		final byte[] body = new byte[length];
+		int count = 0;
+		while(count < length) {
+			final int read = in.read(body, count, length - count);
+			if(read < 0) throw new EOFException();
+			count += read;
+		}
+		return new String(body, "UTF-8");
+	}
+	private static boolean endsWithBlankLine(final ByteArrayOutputStream head) {
+		final byte[] bytes = head.toByteArray();
+		final int len = bytes.length;
+		return len >= 4
+			&& bytes[len-4] == '\r' && bytes[len-3] == '\n'
+			&& bytes[len-2] == '\r' && bytes[len-1] == '\n';
+	}
+
+
+	/**
+	 * @return bytes allocated so far by the server's connection workers.
+	 */
+	private long workerBytes(final com.sun.management.ThreadMXBean threads) {
+		final String prefix = server.getThreadName()+"[";
+		long total = 0L;
+		for(final Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().startsWith(prefix))
+				total += threads.getThreadAllocatedBytes(thread.getId());
+		}
+		return total;
+	}
+
+
+}
@@ -0,0 +1,155 @@
+package com.poixson.nanosocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBytesBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+import com.poixson.nanosocket.NanoHTTPshaper.httpTokenBucket;
+
+
+/**
+ * Per-connection cap measured over loopback.
+ */
+public class NanoHTTPshaperTest {
+
+	private static final long RATE  = 512L * 1024L; // 512K/s
+	private static final long BURST = 32L * 1024L;  // 32K
+	private static final int  SIZE  = 1024 * 1024;  // 1M
+
+	private NanoHTTPserver server = null;
+	private NanoHTTPshaper shaper = null;
+	private int port = 0;
+
+
+	@Before
+	public void start() throws IOException, InterruptedException {
+		final ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		shaper = new NanoHTTPshaper();
+		shaper.setConnectionRate(RATE, BURST);
+		final httpBytesBody body = new httpBytesBody(new byte[SIZE]);
+		server = new NanoHTTPserver(port);
+		server.setShaper(shaper);
+		server.registerHandler(new httpIO() {
+			@Override
+			public httpServerResponse serve(final httpServerRequest request) {
+				return new httpServerResponse(request, httpStatus.OK, httpMime.BINARY, body);
+			}
+		});
+		server.start();
+		// listener is bound on its own thread
+		for(int i = 0; i < 100 && !server.isRunning(); i++)
+			Thread.sleep(50L);
+		assertTrue("Server didn't start", server.isRunning());
+	}
+	@After
+	public void stop() {
+		if(server != null)
+			server.stop();
+	}
+
+
+	@Test
+	public void testTokenBucket() {
+		final httpTokenBucket bucket = new httpTokenBucket(RATE, BURST);
+		// a full bucket sends the burst at once
+		assertEquals(0L, bucket.take(BURST));
+		// then waits for the rate
+		final long wait = bucket.take(RATE);
+		assertTrue(Long.toString(wait), wait > 900000000L && wait <= 1000000000L);
+	}
+
+
+	@Test
+	public void testConnectionRate() throws IOException {
+		final Socket socket = connect(port);
+		try {
+			socket.setSoTimeout(10000);
+			final long start = System.nanoTime();
+			final int length = download(socket);
+			final long elapsed = System.nanoTime() - start;
+			assertEquals(SIZE, length);
+			// all but the burst is paced by the rate
+			final double seconds = elapsed / 1000000000.0;
+			final double expected = (double) (SIZE - BURST) / RATE;
+			assertTrue(
+				"Sent "+Integer.toString(SIZE)+" bytes in "+String.format("%.2f", seconds)+"s,"+
+				" expected about "+String.format("%.2f", expected)+"s",
+				seconds >= expected * 0.9 && seconds <= expected * 2.0
+			);
+			assertTrue(shaper.totalWaitTime() > 0L);
+		} finally {
+			socket.close();
+		}
+	}
+
+
+	/**
+	 * @return length of the response body.
+	 */
+	private static int download(final Socket socket) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		final InputStream in = socket.getInputStream();
+		out.write(NanoHTTPwarmup.toBytes("GET /download HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+		out.flush();
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int matched = 0;
+		while(matched < 4) {
+			final int b = in.read();
+			if(b < 0) throw new EOFException();
+			head.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0));
+		}
+		int length = 0;
+		for(final String line : head.toString("UTF-8").split("\r\n")) {
+			if(line.toLowerCase().startsWith("content-length:"))
+				length = Integer.parseInt(line.substring(15).trim());
+		}
+		final byte[] buff = new byte[8192];
+		int count = 0;
+		while(count < length) {
+			final int read = in.read(buff, 0, Math.min(buff.length, length - count));
+			if(read < 0) throw new EOFException();
+			count += read;
+		}
+		return count;
+	}
+	/**
+	 * The server reports running just before the listener is bound.
+	 */
+	private static Socket connect(final int port) throws IOException {
+		for(int i = 0; ; i++) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (ConnectException e) {
+				if(i >= 100) throw e;
+				try {
+					Thread.sleep(50L);
+				} catch (InterruptedException ignore) {
+					throw e;
+				}
+			}
+		}
+	}
+
+
+}
@@ -0,0 +1,350 @@
+package com.poixson.nanosocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Random;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBytesBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+import com.poixson.nanosocket.NanoHTTPtls.httpTLSChannel;
+
+
+/**
+ * TLS connections to a loopback server, with a self-signed key
+ * generated by keytool.
+ */
+public class NanoHTTPtlsTest {
+
+	private static final String PASSWORD = "changeit";
+	// many TLS records, which hold at most 16K
+	private static final int LARGE_SIZE = 1024 * 1024;
+
+	private static File keystore = null;
+
+	private NanoHTTPserver server = null;
+	private NanoHTTPtls tls = null;
+	private SSLContext client = null;
+	private int port = 0;
+	private Socket socket = null;
+	private final byte[] large = new byte[LARGE_SIZE];
+
+
+	@Before
+	public void start() throws IOException, InterruptedException, GeneralSecurityException {
+		final File store = getKeystore();
+		Assume.assumeTrue(store != null);
+		new Random(42L).nextBytes(large);
+		final ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		tls = new NanoHTTPtls(store.getPath(), PASSWORD);
+		client = createClientContext(store);
+		server = new NanoHTTPserver(port);
+		server.setTLS(tls);
+		server.registerHandler(new httpIO() {
+			@Override
+			public httpServerResponse serve(final httpServerRequest request) {
+				if("/hello".equals(request.getUri()))
+					return new httpServerResponse(request, httpStatus.OK, httpMime.PLAINTEXT, new httpBytesBody("hello tls"));
+				if("/large".equals(request.getUri()))
+					return new httpServerResponse(request, httpStatus.OK, httpMime.BINARY, new httpBytesBody(large));
+				return null;
+			}
+		});
+		server.start();
+		// listener is bound on its own thread
+		for(int i = 0; i < 100 && !server.isRunning(); i++)
+			Thread.sleep(50L);
+		assertTrue("Server didn't start", server.isRunning());
+	}
+	@After
+	public void stop() throws IOException {
+		if(socket != null)
+			socket.close();
+		if(server != null)
+			server.stop();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// tests
+
+
+	@Test
+	public void testHandshake() throws IOException {
+		final SSLSocket ssl = connect(null);
+		ssl.startHandshake();
+		assertTrue(ssl.getSession().getProtocol(), ssl.getSession().getProtocol().startsWith("TLS"));
+		assertEquals("hello tls", new String(get(ssl, "/hello", false), "UTF-8"));
+		assertEquals(1L, server.totalHandshakes());
+	}
+
+
+	@Test
+	public void testLargeResponse() throws IOException {
+		final SSLSocket ssl = connect(null);
+		assertArrayEquals(large, get(ssl, "/large", false));
+		// keep-alive still works after it
+		assertEquals("hello tls", new String(get(ssl, "/hello", false), "UTF-8"));
+	}
+
+
+	@Test
+	public void testAlpnH2() throws IOException {
+		final SSLSocket ssl = connect(new String[] { NanoHTTPtls.ALPN_H2, NanoHTTPtls.ALPN_HTTP_1_1 });
+		ssl.startHandshake();
+		assertEquals(NanoHTTPtls.ALPN_H2, getApplicationProtocol(ssl));
+		// the server answers the preface with its settings
+		final OutputStream out = ssl.getOutputStream();
+		out.write(NanoHTTP2.PREFACE);
+		out.write(new byte[] { 0, 0, 0, NanoHTTP2.FRAME_SETTINGS, 0, 0, 0, 0, 0 });
+		out.flush();
+		final byte[] head = new byte[9];
+		new DataInputStream(ssl.getInputStream()).readFully(head);
+		assertEquals(NanoHTTP2.FRAME_SETTINGS, head[3]);
+	}
+	@Test
+	public void testAlpnHttp11() throws IOException {
+		final SSLSocket ssl = connect(new String[] { NanoHTTPtls.ALPN_HTTP_1_1 });
+		ssl.startHandshake();
+		assertEquals(NanoHTTPtls.ALPN_HTTP_1_1, getApplicationProtocol(ssl));
+		assertEquals("hello tls", new String(get(ssl, "/hello", false), "UTF-8"));
+	}
+	@Test
+	public void testAlpnHttp2Disabled() throws IOException {
+		server.setHTTP2(false);
+		final SSLSocket ssl = connect(new String[] { NanoHTTPtls.ALPN_H2, NanoHTTPtls.ALPN_HTTP_1_1 });
+		ssl.startHandshake();
+		assertEquals(NanoHTTPtls.ALPN_HTTP_1_1, getApplicationProtocol(ssl));
+		assertEquals("hello tls", new String(get(ssl, "/hello", false), "UTF-8"));
+	}
+
+
+	/**
+	 * Client side engine, through the same reflective ALPN calls
+	 * the server uses.
+	 */
+	@Test
+	public void testEngineAlpn() throws IOException {
+		final SSLEngine engine = client.createSSLEngine("localhost", port);
+		engine.setUseClientMode(true);
+		Assume.assumeTrue(NanoHTTPtls.setApplicationProtocols(engine, new String[] { NanoHTTPtls.ALPN_H2 }));
+		final httpTLSChannel channel = open(engine);
+		channel.handshake();
+		assertEquals(NanoHTTPtls.ALPN_H2, channel.getApplicationProtocol());
+	}
+
+
+	/**
+	 * The server ends a closed connection with close_notify, rather
+	 * than dropping it.
+	 */
+	@Test
+	public void testCloseNotify() throws IOException {
+		final SSLEngine engine = client.createSSLEngine("localhost", port);
+		engine.setUseClientMode(true);
+		final httpTLSChannel channel = open(engine);
+		final OutputStream out = Channels.newOutputStream(channel);
+		final InputStream  in  = Channels.newInputStream(channel);
+		writeRequest(out, "/hello", true);
+		assertEquals("hello tls", new String(readResponse(in), "UTF-8"));
+		assertEquals(-1, channel.read(ByteBuffer.allocate(1024)));
+		assertTrue("close_notify wasn't received", engine.isInboundDone());
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// client
+
+
+	private SSLSocket connect(final String[] protocols) throws IOException {
+		final SSLSocket ssl = (SSLSocket) client.getSocketFactory()
+			.createSocket(connect(port), "localhost", port, true);
+		socket = ssl;
+		ssl.setSoTimeout(5000);
+		if(protocols != null)
+			Assume.assumeTrue(setApplicationProtocols(ssl, protocols));
+		return ssl;
+	}
+	private httpTLSChannel open(final SSLEngine engine) throws IOException {
+		socket = connect(port);
+		socket.setSoTimeout(5000);
+		return tls.new httpTLSChannel(engine, socket);
+	}
+	/**
+	 * The server reports running just before the listener is bound.
+	 */
+	private static Socket connect(final int port) throws IOException {
+		for(int i = 0; ; i++) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (ConnectException e) {
+				if(i >= 100) throw e;
+				try {
+					Thread.sleep(50L);
+				} catch (InterruptedException ignore) {
+					throw e;
+				}
+			}
+		}
+	}
+
+
+	private static byte[] get(final SSLSocket ssl, final String path, final boolean close) throws IOException {
+		writeRequest(ssl.getOutputStream(), path, close);
+		return readResponse(ssl.getInputStream());
+	}
+	private static void writeRequest(final OutputStream out, final String path,
+			final boolean close) throws IOException {
+		out.write(NanoHTTPwarmup.toBytes(
+			"GET "+path+" HTTP/1.1\r\n"+
+			"Host: localhost\r\n"+
+			(close ? "Connection: close\r\n" : "")+
+			"\r\n"
+		));
+		out.flush();
+	}
+	/**
+	 * @return response body.
+	 */
+	private static byte[] readResponse(final InputStream in) throws IOException {
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int matched = 0;
+		while(matched < 4) {
+			final int b = in.read();
+			if(b < 0) throw new EOFException();
+			head.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0));
+		}
+		final String str = head.toString("UTF-8");
+		assertTrue(str, str.startsWith("HTTP/1.1 200"));
+		int length = 0;
+		for(final String line : str.split("\r\n")) {
+			if(line.toLowerCase().startsWith("content-length:"))
+				length = Integer.parseInt(line.substring(15).trim());
+		}
+		final byte[] body = new byte[length];
+		new DataInputStream(in).readFully(body);
+		return body;
+	}
+
+
+	/**
+	 * ALPN arrived in Java 9, so it's called by reflection like the server does.
+	 */
+	private static boolean setApplicationProtocols(final SSLSocket ssl, final String[] protocols) {
+		try {
+			final Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+			final SSLParameters params = ssl.getSSLParameters();
+			method.invoke(params, (Object) protocols);
+			ssl.setSSLParameters(params);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	private static String getApplicationProtocol(final SSLSocket ssl) {
+		try {
+			return (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(ssl);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// keys
+
+
+	/**
+	 * Generates a self-signed key for localhost, once.
+	 * @return keystore file, or null if keytool isn't available.
+	 */
+	private static synchronized File getKeystore() throws IOException, InterruptedException {
+		if(keystore != null) return keystore;
+		final File file = File.createTempFile("nanohttp", ".p12");
+		file.delete();
+		file.deleteOnExit();
+		final File keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool");
+		final ProcessBuilder builder = new ProcessBuilder(
+			keytool.getPath(), "-genkeypair",
+			"-alias",     "localhost",
+			"-dname",     "CN=localhost",
+			"-keyalg",    "RSA",
+			"-keysize",   "2048",
+			"-validity",  "1",
+			"-storetype", "PKCS12",
+			"-keystore",  file.getPath(),
+			"-storepass", PASSWORD,
+			"-keypass",   PASSWORD
+		);
+		builder.redirectErrorStream(true);
+		final Process process;
+		try {
+			process = builder.start();
+		} catch (IOException e) {
+			return null;
+		}
+		final InputStream output = process.getInputStream();
+		while(output.read() >= 0);
+		if(process.waitFor() != 0 || !file.isFile())
+			return null;
+		keystore = file;
+		return file;
+	}
+	/**
+	 * Client which trusts the generated key.
+	 */
+	private static SSLContext createClientContext(final File store)
+			throws IOException, GeneralSecurityException {
+		final KeyStore trust = KeyStore.getInstance("PKCS12");
+		final InputStream in = new FileInputStream(store);
+		try {
+			trust.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		final TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(trust);
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, factory.getTrustManagers(), null);
+		return context;
+	}
+
+
+}
@@ -0,0 +1,140 @@
+package com.poixson.nanosocket;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import com.poixson.nanosocket.NanoHTTPcommon.httpBytesBody;
+import com.poixson.nanosocket.NanoHTTPcommon.httpMime;
+import com.poixson.nanosocket.NanoHTTPcommon.httpStatus;
+import com.poixson.nanosocket.NanoHTTPserver.httpIO;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPserver.httpServerResponse;
+
+
+/**
+ * Latency of keep-alive GETs over a unix domain socket compared with
+ * loopback TCP. Not run with the tests, unix sockets need the
+ * multi-release jar on Java 16 or newer:
+ * <pre>
+ * java -cp target/nanohttpd-2.0.5.jar:target/test-classes \
+ *     com.poixson.nanosocket.NanoHTTPunixBench [requests]
+ * </pre>
+ */
+public class NanoHTTPunixBench {
+
+	public static final int DEFAULT_REQUESTS = 20000;
+
+	private static final byte[] REQUEST = NanoHTTPwarmup.toBytes(
+		"GET /bench HTTP/1.1\r\nHost: localhost\r\n\r\n"
+	);
+
+
+	public static void main(final String[] args) throws Exception {
+		if(!NanoHTTPunix.isSupported()) {
+			System.err.println("Unix domain sockets require Java 16 or newer, and the multi-release jar");
+			System.exit(1);
+		}
+		final int requests = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS);
+		final ServerSocket free = new ServerSocket(0);
+		final int port = free.getLocalPort();
+		free.close();
+		final File path = File.createTempFile("nanohttp", ".sock");
+		path.delete();
+		final NanoHTTPserver server = new NanoHTTPserver("127.0.0.1", port);
+		server.setUnixSocket(path.getPath());
+		final httpBytesBody body = new httpBytesBody("hello bench");
+		server.registerHandler(new httpIO() {
+			@Override
+			public httpServerResponse serve(final httpServerRequest request) {
+				return new httpServerResponse(request, httpStatus.OK, httpMime.PLAINTEXT, body);
+			}
+		});
+		server.start();
+		try {
+			for(int i = 0; i < 100 && !server.isRunning(); i++)
+				Thread.sleep(50L);
+			final SocketAddress unix = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+				.getMethod("of", String.class).invoke(null, path.getPath());
+			final SocketAddress tcp = new InetSocketAddress("127.0.0.1", port);
+			// warm up both paths first
+			run(unix, requests);
+			run(tcp, requests);
+			print("unix", run(unix, requests));
+			print("tcp ", run(tcp,  requests));
+		} finally {
+			server.stop();
+			path.delete();
+		}
+	}
+
+
+	/**
+	 * @return time of each request, in nanoseconds.
+	 */
+	protected static long[] run(final SocketAddress address, final int requests) throws IOException {
+		final long[] times = new long[requests];
+		final SocketChannel channel = SocketChannel.open(address);
+		try {
+			if(address instanceof InetSocketAddress)
+				channel.socket().setTcpNoDelay(true);
+			final InputStream  in  = new BufferedInputStream(Channels.newInputStream(channel));
+			final OutputStream out = Channels.newOutputStream(channel);
+			for(int i = 0; i < requests; i++) {
+				final long start = System.nanoTime();
+				out.write(REQUEST);
+				readResponse(in);
+				times[i] = System.nanoTime() - start;
+			}
+		} finally {
+			channel.close();
+		}
+		return times;
+	}
+	private static void readResponse(final InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int length = 0;
+		while(true) {
+			final int b = in.read();
+			if(b < 0) throw new EOFException();
+			if(b != '\n') {
+				if(b != '\r')
+					line.append((char) b);
+				continue;
+			}
+			if(line.length() == 0) break;
+			final String str = line.toString();
+			if(str.regionMatches(true, 0, "Content-Length:", 0, 15))
+				length = Integer.parseInt(str.substring(15).trim());
+			line.setLength(0);
+		}
+		for(int i = 0; i < length; i++) {
+			if(in.read() < 0) throw new EOFException();
+		}
+	}
+
+
+	protected static void print(final String name, final long[] times) {
+		Arrays.sort(times);
+		System.out.println(
+			name+" "+Integer.toString(times.length)+" requests:"+
+			" p50 "+micros(times[times.length / 2])+
+			" p99 "+micros(times[(int) (times.length * 0.99)])+
+			" max "+micros(times[times.length - 1])
+		);
+	}
+	private static String micros(final long nanos) {
+		return String.format("%.1fus", nanos / 1000.0);
+	}
+
+
+}
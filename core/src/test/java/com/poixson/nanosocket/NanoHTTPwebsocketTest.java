@@ -0,0 +1,324 @@
+package com.poixson.nanosocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.poixson.nanosocket.NanoHTTPserver.httpServerRequest;
+import com.poixson.nanosocket.NanoHTTPwebsocket.httpWebSocketIO;
+import com.poixson.nanosocket.NanoHTTPwebsocket.httpWebSocketListener;
+
+
+/**
+ * Frames sent by a raw client to an echo socket.
+ */
+public class NanoHTTPwebsocketTest {
+
+	private static final int MAX_MESSAGE = 1024;
+
+	private NanoHTTPserver server = null;
+	private int port = 0;
+	private Socket socket = null;
+	private DataInputStream in = null;
+	private OutputStream out = null;
+	private final Random random = new Random();
+
+	// close code and reason seen by the listener
+	private final BlockingQueue<String> closes = new LinkedBlockingQueue<String>();
+
+
+	@Before
+	public void start() throws IOException, InterruptedException {
+		final ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		final httpWebSocketListener listener = new httpWebSocketListener() {
+			@Override
+			public void onOpen(final NanoHTTPwebsocket socket) {
+			}
+			@Override
+			public void onMessage(final NanoHTTPwebsocket socket, final String message) {
+				socket.send(message);
+			}
+			@Override
+			public void onMessage(final NanoHTTPwebsocket socket, final byte[] message) {
+				socket.send(message);
+			}
+			@Override
+			public void onClose(final NanoHTTPwebsocket socket, final int code, final String reason) {
+				closes.add(Integer.toString(code)+" "+reason);
+			}
+		};
+		final httpWebSocketIO io = new httpWebSocketIO() {
+			@Override
+			protected httpWebSocketListener getListener(final httpServerRequest request) {
+				return listener;
+			}
+		};
+		io.setMaxMessageSize(MAX_MESSAGE);
+		server = new NanoHTTPserver(port);
+		server.registerHandler(io);
+		server.start();
+		// listener is bound on its own thread
+		for(int i = 0; i < 100 && !server.isRunning(); i++)
+			Thread.sleep(50L);
+		assertTrue("Server didn't start", server.isRunning());
+		connect();
+	}
+	@After
+	public void stop() throws IOException {
+		if(socket != null)
+			socket.close();
+		if(server != null)
+			server.stop();
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// tests
+
+
+	@Test
+	public void testMaskedTextSplitAcrossReads() throws IOException, InterruptedException {
+		final byte[] frame = frame(true, NanoHTTPwebsocket.OP_TEXT, utf8("hello split frame"));
+		// header, part of the mask, then the payload in two pieces
+		final int[] cuts = new int[] { 1, 4, 10, frame.length };
+		int pos = 0;
+		for(final int cut : cuts) {
+			out.write(frame, pos, cut - pos);
+			out.flush();
+			pos = cut;
+			Thread.sleep(20L);
+		}
+		assertFrame(NanoHTTPwebsocket.OP_TEXT, "hello split frame", readFrame());
+	}
+
+
+	@Test
+	public void testFragmentedMessage() throws IOException {
+		out.write(frame(false, NanoHTTPwebsocket.OP_TEXT,         utf8("frag")));
+		out.write(frame(false, NanoHTTPwebsocket.OP_CONTINUATION, utf8("mented ")));
+		out.write(frame(true,  NanoHTTPwebsocket.OP_CONTINUATION, utf8("message")));
+		out.flush();
+		assertFrame(NanoHTTPwebsocket.OP_TEXT, "fragmented message", readFrame());
+	}
+
+
+	@Test
+	public void testPingInsideFragmentedMessage() throws IOException {
+		out.write(frame(false, NanoHTTPwebsocket.OP_BINARY,       utf8("abc")));
+		out.write(frame(true,  NanoHTTPwebsocket.OP_PING,         utf8("ping")));
+		out.write(frame(true,  NanoHTTPwebsocket.OP_CONTINUATION, utf8("def")));
+		out.flush();
+		// the pong is answered before the message completes
+		assertFrame(NanoHTTPwebsocket.OP_PONG,   "ping",   readFrame());
+		assertFrame(NanoHTTPwebsocket.OP_BINARY, "abcdef", readFrame());
+	}
+
+
+	@Test
+	public void testOversizeMessage() throws IOException, InterruptedException {
+		out.write(frame(false, NanoHTTPwebsocket.OP_BINARY,       new byte[MAX_MESSAGE / 2]));
+		out.write(frame(true,  NanoHTTPwebsocket.OP_CONTINUATION, new byte[MAX_MESSAGE]));
+		out.flush();
+		assertClose(NanoHTTPwebsocket.CLOSE_TOO_BIG);
+	}
+
+
+	@Test
+	public void testInvalidUTF8() throws IOException, InterruptedException {
+		out.write(frame(true, NanoHTTPwebsocket.OP_TEXT, new byte[] { 'o', 'k', (byte) 0xc3, (byte) 0x28 }));
+		out.flush();
+		assertClose(NanoHTTPwebsocket.CLOSE_INVALID_DATA);
+	}
+
+
+	@Test
+	public void testCloseHandshake() throws IOException, InterruptedException {
+		out.write(closeFrame(NanoHTTPwebsocket.CLOSE_NORMAL, "bye"));
+		out.flush();
+		final Frame reply = readFrame();
+		assertEquals(NanoHTTPwebsocket.OP_CLOSE, reply.opcode);
+		assertEquals(NanoHTTPwebsocket.CLOSE_NORMAL, reply.getCloseCode());
+		assertEquals(-1, in.read());
+		assertEquals("1000 bye", closes.poll(5L, TimeUnit.SECONDS));
+	}
+
+
+	@Test
+	public void testReservedCloseCode() throws IOException, InterruptedException {
+		out.write(closeFrame(NanoHTTPwebsocket.CLOSE_NO_STATUS, ""));
+		out.flush();
+		assertClose(NanoHTTPwebsocket.CLOSE_PROTOCOL_ERROR);
+	}
+
+
+	@Test
+	public void testCloseCodes() {
+		assertTrue(NanoHTTPwebsocket.isValidCloseCode(NanoHTTPwebsocket.CLOSE_NORMAL));
+		assertTrue(NanoHTTPwebsocket.isValidCloseCode(NanoHTTPwebsocket.CLOSE_INTERNAL_ERROR));
+		assertTrue(NanoHTTPwebsocket.isValidCloseCode(3000));
+		assertTrue(NanoHTTPwebsocket.isValidCloseCode(4999));
+		final int[] invalid = new int[] { 0, 999, 1004, 1005, 1006, 1015, 1016, 2999, 5000 };
+		for(final int code : invalid)
+			assertTrue(Integer.toString(code), !NanoHTTPwebsocket.isValidCloseCode(code));
+	}
+
+
+	// ------------------------------------------------------------------------------- //
+	// client
+
+
+	private void connect() throws IOException {
+		socket = connect(port);
+		socket.setSoTimeout(5000);
+		socket.setTcpNoDelay(true);
+		in  = new DataInputStream(socket.getInputStream());
+		out = socket.getOutputStream();
+		out.write(utf8(
+			"GET /socket HTTP/1.1\r\n"+
+			"Host: localhost\r\n"+
+			"Upgrade: websocket\r\n"+
+			"Connection: Upgrade\r\n"+
+			"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"+
+			"Sec-WebSocket-Version: 13\r\n\r\n"
+		));
+		out.flush();
+		final String head = readHead(in);
+		assertTrue(head, head.startsWith("HTTP/1.1 101"));
+		assertTrue(head, head.contains("s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+	}
+	/**
+	 * The server reports running just before the listener is bound.
+	 */
+	private static Socket connect(final int port) throws IOException {
+		for(int i = 0; ; i++) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (ConnectException e) {
+				if(i >= 100) throw e;
+				try {
+					Thread.sleep(50L);
+				} catch (InterruptedException ignore) {
+					throw e;
+				}
+			}
+		}
+	}
+	private static String readHead(final InputStream in) throws IOException {
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int matched = 0;
+		while(matched < 4) {
+			final int b = in.read();
+			if(b < 0) throw new EOFException();
+			head.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0));
+		}
+		return head.toString("UTF-8");
+	}
+
+
+	/**
+	 * @return masked client frame.
+	 */
+	private byte[] frame(final boolean fin, final int opcode, final byte[] payload) {
+		final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write((fin ? 0x80 : 0x00) | opcode);
+		final int len = payload.length;
+		if(len < 126) {
+			frame.write(0x80 | len);
+		} else {
+			frame.write(0x80 | 126);
+			frame.write(len >>> 8);
+			frame.write(len);
+		}
+		final byte[] mask = new byte[4];
+		random.nextBytes(mask);
+		frame.write(mask, 0, 4);
+		for(int i = 0; i < len; i++)
+			frame.write(payload[i] ^ mask[i & 3]);
+		return frame.toByteArray();
+	}
+	private byte[] closeFrame(final int code, final String reason) {
+		final byte[] text = utf8(reason);
+		final byte[] payload = new byte[text.length + 2];
+		payload[0] = (byte) (code >>> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(text, 0, payload, 2, text.length);
+		return frame(true, NanoHTTPwebsocket.OP_CLOSE, payload);
+	}
+
+
+	private static class Frame {
+		public final int opcode;
+		public final byte[] payload;
+		public Frame(final int opcode, final byte[] payload) {
+			this.opcode  = opcode;
+			this.payload = payload;
+		}
+		public int getCloseCode() {
+			return ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+		}
+	}
+	private Frame readFrame() throws IOException {
+		final int b0 = in.readUnsignedByte();
+		final int b1 = in.readUnsignedByte();
+		assertEquals("Server frames aren't masked", 0, b1 & 0x80);
+		long len = b1 & 0x7f;
+		if(len == 126)
+			len = in.readUnsignedShort();
+		else
+		if(len == 127)
+			len = in.readLong();
+		final byte[] payload = new byte[(int) len];
+		in.readFully(payload);
+		return new Frame(b0 & 0x0f, payload);
+	}
+
+
+	private static void assertFrame(final int opcode, final String payload, final Frame frame)
+			throws IOException {
+		assertEquals(opcode, frame.opcode);
+		assertEquals(payload, new String(frame.payload, "UTF-8"));
+	}
+	/**
+	 * Server closes with the code, without waiting for the client.
+	 */
+	private void assertClose(final int code) throws IOException, InterruptedException {
+		final Frame frame = readFrame();
+		assertEquals(NanoHTTPwebsocket.OP_CLOSE, frame.opcode);
+		assertEquals(code, frame.getCloseCode());
+		try {
+			assertEquals(-1, in.read());
+		} catch (SocketTimeoutException e) {
+			throw new AssertionError("Connection wasn't closed");
+		}
+		final String closed = closes.poll(5L, TimeUnit.SECONDS);
+		assertTrue(String.valueOf(closed), closed != null && closed.startsWith(Integer.toString(code)+" "));
+	}
+
+
+	private static byte[] utf8(final String str) {
+		return NanoHTTPwarmup.toBytes(str);
+	}
+
+
+}